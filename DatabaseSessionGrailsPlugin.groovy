@@ -35,11 +35,16 @@ class DatabaseSessionGrailsPlugin {
 			return
 		}
 
+		// Async requests need every filter they pass through to declare it, which only Servlet 3 descriptors can
+		def servletVersion = grails.util.BuildSettingsHolder.settings?.servletVersion ?: Metadata.current.getServletVersion() ?: '2.5'
+		def asyncSupported = servletVersion.isNumber() && (servletVersion as BigDecimal) >= 3.0
+
 		def contextParam = xml.'context-param'
 		contextParam[contextParam.size() - 1] + {
 			'filter' {
 				'filter-name'('sessionProxyFilter')
 				'filter-class'(DelegatingFilterProxy.name)
+				if(asyncSupported) 'async-supported'('true')
 			}
 		}
 
@@ -51,6 +56,7 @@ class DatabaseSessionGrailsPlugin {
 				'dispatcher'('ERROR')
 				'dispatcher'('FORWARD')
 				'dispatcher'('REQUEST')
+				if(asyncSupported) 'dispatcher'('ASYNC')
 			}
 		}
 	}
@@ -60,9 +66,59 @@ class DatabaseSessionGrailsPlugin {
 			return
 		}
 
-		sessionMemoryPersister(InMemoryPersister)
+		def conf = application.config.grails.plugin.databasesession
+		def thisNodeId = conf.nodeId instanceof String ? conf.nodeId : UUID.randomUUID().toString()
+
+		def principalEnabled = conf.principal.enabled instanceof Boolean && conf.principal.enabled
+		if(principalEnabled) {
+			sessionPrincipalExtractor(AttributePrincipalExtractor) {
+				if(conf.principal.attributeName instanceof String) attributeName = conf.principal.attributeName
+				if(conf.principal.propertyPath instanceof String) propertyPath = conf.principal.propertyPath
+			}
+		}
+
+		def membershipEnabled = conf.membership.enabled instanceof Boolean && conf.membership.enabled
+		if(membershipEnabled) {
+			sessionMembership(SessionMembership) {
+				if(conf.membership.maximumSize instanceof Number) maximumSize = conf.membership.maximumSize
+				if(conf.membership.trustSeconds instanceof Number) trustSeconds = conf.membership.trustSeconds
+				if(conf.membership.writtenPerGeneration instanceof Number) writtenPerGeneration = conf.membership.writtenPerGeneration
+				if(conf.membership.falsePositiveRate instanceof Number) falsePositiveRate = conf.membership.falsePositiveRate
+			}
+		}
+
+		def migrationEnabled = conf.migration.enabled instanceof Boolean && conf.migration.enabled
+		def sharedTierName = migrationEnabled ? "sessionDualWritePersister" : "sessionJdbcMemoryPersister"
+
+		sessionMemoryPersister(InMemoryPersister) {
+			if(conf.memory.maximumBytes instanceof Number) maximumBytes = conf.memory.maximumBytes
+			if(conf.memory.maximumSize instanceof Number) maximumSize = conf.memory.maximumSize
+			if(conf.memory.expiresSeconds instanceof Number) expiresSeconds = conf.memory.expiresSeconds
+			if(conf.memory.writeBack instanceof Boolean && conf.memory.writeBack) {
+				writeBackTarget = ref(sharedTierName)
+				if(conf.memory.maxUnflushedMillis instanceof Number) maxUnflushedMillis = conf.memory.maxUnflushedMillis
+			}
+			if(principalEnabled) principalExtractor = ref("sessionPrincipalExtractor")
+		}
 
 		sessionJdbcMemoryPersister(JdbcPersister) {
+			if(conf.spillThreshold instanceof Number) spillThreshold = conf.spillThreshold
+			if(conf.shared.threshold instanceof Number) sharedThreshold = conf.shared.threshold
+			if(conf.shared.cacheSize instanceof Number) sharedCacheSize = conf.shared.cacheSize
+			if(conf.shared.graceSeconds instanceof Number) sharedGraceSeconds = conf.shared.graceSeconds
+			if(conf.touchFraction instanceof Number) touchFraction = conf.touchFraction
+			if(conf.batchSize instanceof Number) batchSize = conf.batchSize
+			if(conf.optimisticLocking instanceof Boolean) optimisticLocking = conf.optimisticLocking
+			if(conf.maxMergeAttempts instanceof Number) maxMergeAttempts = conf.maxMergeAttempts
+			if(conf.keys.format instanceof String) keyFormat = conf.keys.format
+			if(conf.keys.length instanceof Number) keyLength = conf.keys.length
+			if(conf.keys.upperCase instanceof Boolean) upperCaseKeys = conf.keys.upperCase
+			if(principalEnabled) principalExtractor = ref("sessionPrincipalExtractor")
+			if(membershipEnabled) membership = ref("sessionMembership")
+			localPersister = ref("sessionMemoryPersister")
+			nodeId = thisNodeId
+			if(conf.changeFeed.enabled instanceof Boolean) changeFeedEnabled = conf.changeFeed.enabled
+			if(conf.changeFeed.sequenceType instanceof String) changeSequenceType = conf.changeFeed.sequenceType
 			transactionTemplate = { TransactionTemplate tmp ->
 				isolationLevelName = "ISOLATION_DEFAULT"
 				propagationBehaviorName = "PROPAGATION_NEVER"
@@ -83,16 +139,181 @@ class DatabaseSessionGrailsPlugin {
 			}
 		}
 
+		if(migrationEnabled) {
+			def migrationConf = conf.migration
+			sessionMigrationTargetPersister(JdbcPersister) {
+				if(migrationConf.tableName instanceof String) tableName = migrationConf.tableName
+				if(migrationConf.spillThreshold instanceof Number) spillThreshold = migrationConf.spillThreshold
+				if(migrationConf.shared.threshold instanceof Number) sharedThreshold = migrationConf.shared.threshold
+				if(migrationConf.keys.format instanceof String) keyFormat = migrationConf.keys.format
+				if(migrationConf.keys.length instanceof Number) keyLength = migrationConf.keys.length
+				if(migrationConf.keys.upperCase instanceof Boolean) upperCaseKeys = migrationConf.keys.upperCase
+				if(conf.touchFraction instanceof Number) touchFraction = conf.touchFraction
+				if(conf.batchSize instanceof Number) batchSize = conf.batchSize
+				if(conf.optimisticLocking instanceof Boolean) optimisticLocking = conf.optimisticLocking
+				if(conf.maxMergeAttempts instanceof Number) maxMergeAttempts = conf.maxMergeAttempts
+				if(principalEnabled) principalExtractor = ref("sessionPrincipalExtractor")
+				localPersister = ref("sessionMemoryPersister")
+				nodeId = thisNodeId
+				transactionTemplate = { TransactionTemplate tmp ->
+					isolationLevelName = "ISOLATION_DEFAULT"
+					propagationBehaviorName = "PROPAGATION_NEVER"
+					transactionManager = ref("transactionManager")
+				}
+				jdbcTemplate = { JdbcTemplate tmp ->
+					def dbConfig = migrationConf.db.url ? migrationConf.db : tryToFindDbConfig(application.config)
+					if(dbConfig) {
+						dataSource = { BasicDataSource ds ->
+							if(dbConfig.driverClassName) driverClassName = dbConfig.driverClassName
+							if(dbConfig.url) url = dbConfig.url
+							if(dbConfig.username) username = dbConfig.username
+							if(dbConfig.password) password = dbConfig.password
+						}
+					} else {
+						dataSource = ref("dataSourceUnproxied")
+					}
+				}
+			}
+
+			sessionDualWritePersister(DualWritePersister) {
+				source = ref("sessionJdbcMemoryPersister")
+				target = ref("sessionMigrationTargetPersister")
+				if(migrationConf.cutOver instanceof Boolean) cutOver = migrationConf.cutOver
+			}
+
+			sessionMigrator(SessionMigrator) {
+				source = ref("sessionJdbcMemoryPersister")
+				target = ref("sessionMigrationTargetPersister")
+				if(migrationConf.threads instanceof Number) threads = migrationConf.threads
+				if(migrationConf.chunkSize instanceof Number) chunkSize = migrationConf.chunkSize
+				if(migrationConf.maxSessionsPerSecond instanceof Number) maxSessionsPerSecond = migrationConf.maxSessionsPerSecond
+				if(migrationConf.checkpointFile instanceof String) checkpointFile = migrationConf.checkpointFile
+			}
+		}
+
+		if(conf.changeFeed.enabled instanceof Boolean && conf.changeFeed.enabled) {
+			sessionChangeFeedPoller(ChangeFeedPoller) {
+				jdbcPersister = ref("sessionJdbcMemoryPersister")
+				localPersister = ref("sessionMemoryPersister")
+				if(conf.changeFeed.pollIntervalMillis instanceof Number) pollIntervalMillis = conf.changeFeed.pollIntervalMillis
+			}
+		}
+
+		if(conf.warmup.enabled instanceof Boolean && conf.warmup.enabled) {
+			sessionWarmer(SessionWarmer) {
+				jdbcPersister = ref("sessionJdbcMemoryPersister")
+				localPersister = ref("sessionMemoryPersister")
+				if(conf.warmup.maxSessions instanceof Number) maxSessions = conf.warmup.maxSessions
+				if(conf.warmup.maxBytes instanceof Number) maxBytes = conf.warmup.maxBytes
+				if(conf.warmup.timeoutMillis instanceof Number) timeoutMillis = conf.warmup.timeoutMillis
+				if(conf.warmup.threads instanceof Number) threads = conf.warmup.threads
+				if(conf.warmup.recentSeconds instanceof Number) recentSeconds = conf.warmup.recentSeconds
+			}
+		}
+
+		def cookieSecrets = conf.cookie.secrets instanceof String ? [conf.cookie.secrets] : conf.cookie.secrets
+		def cookieEnabled = cookieSecrets instanceof List && !cookieSecrets.isEmpty()
+
 		sessionPersister(ChainPersister) {
-			persisters = [ ref("sessionMemoryPersister"), ref("sessionJdbcMemoryPersister") ]				
+			persisters = [ ref("sessionMemoryPersister"), ref(sharedTierName) ]				
+			if(conf.hedge.enabled instanceof Boolean) hedgedReads = conf.hedge.enabled
+			if(cookieEnabled) cookiePersister = ref('sessionCookiePersister')
+			if(conf.hedge.percentile instanceof Number) hedgePercentile = conf.hedge.percentile
+			if(conf.hedge.defaultDelayMillis instanceof Number) defaultHedgeDelayMillis = conf.hedge.defaultDelayMillis
+			if(conf.hedge.threads instanceof Number) hedgeThreads = conf.hedge.threads
+			if(conf.invalidation.deferred instanceof Boolean) deferredInvalidation = conf.invalidation.deferred
+			if(conf.invalidation.intervalMillis instanceof Number) invalidationIntervalMillis = conf.invalidation.intervalMillis
+		}
+
+		def asyncEnabled = conf.async.enabled instanceof Boolean && conf.async.enabled
+		if(asyncEnabled) {
+			sessionAsyncPersister(AsyncPersister) {
+				persister = ref("sessionPersister")
+				if(conf.async.threads instanceof Number) threads = conf.async.threads
+				if(conf.async.queueCapacity instanceof Number) queueCapacity = conf.async.queueCapacity
+			}
+		}
+
+		if(cookieEnabled) {
+			sessionCookiePersister(CookiePersister) {
+				fallback = ref(asyncEnabled ? 'sessionAsyncPersister' : 'sessionPersister')
+				secrets = cookieSecrets
+				if(conf.cookie.maxBytes instanceof Number) maxCookieBytes = conf.cookie.maxBytes
+				if(conf.cookie.encrypt instanceof Boolean) encrypt = conf.cookie.encrypt
+				if(conf.cookie.compress instanceof Boolean) compress = conf.cookie.compress
+				if(conf.cookie.secure instanceof Boolean) secure = conf.cookie.secure
+				if(conf.cookie.revocationSeconds instanceof Number) revocationSeconds = conf.cookie.revocationSeconds
+				if(conf.touchFraction instanceof Number) touchFraction = conf.touchFraction
+			}
+		}
+
+		def attributesConf = conf.attributes
+		def policyEnabled = ['transientNames', 'localNames', 'shortLivedNames', 'transientTypes', 'localTypes'].any { attributesConf[it] instanceof List }
+		if(policyEnabled) {
+			sessionAttributePolicy(AttributePolicy) {
+				if(attributesConf.transientNames instanceof List) transientNames = attributesConf.transientNames
+				if(attributesConf.localNames instanceof List) localNames = attributesConf.localNames
+				if(attributesConf.shortLivedNames instanceof List) shortLivedNames = attributesConf.shortLivedNames
+				if(attributesConf.shortLivedSeconds instanceof Number) shortLivedSeconds = attributesConf.shortLivedSeconds
+				if(attributesConf.transientTypes instanceof List) transientTypes = attributesConf.transientTypes
+				if(attributesConf.localTypes instanceof List) localTypes = attributesConf.localTypes
+			}
+		}
+
+		def analyzerEnabled = conf.analyzer.enabled instanceof Boolean && conf.analyzer.enabled
+		if(analyzerEnabled) {
+			sessionStorageAnalyzer(SessionStorageAnalyzer) {
+				jdbcPersister = ref('sessionJdbcMemoryPersister')
+				if(conf.analyzer.threads instanceof Number) threads = conf.analyzer.threads
+				if(conf.analyzer.sampleRate instanceof Number) sampleRate = conf.analyzer.sampleRate
+				if(conf.analyzer.largeSessionBytes instanceof Number) largeSessionBytes = conf.analyzer.largeSessionBytes
+				if(conf.analyzer.maxLargeSessions instanceof Number) maxLargeSessions = conf.analyzer.maxLargeSessions
+			}
 		}
 
 		sessionProxyFilter(SessionProxyFilter) {
-			persister = ref('sessionPersister')
+			if(cookieEnabled) {
+				persister = ref('sessionCookiePersister')
+				cookiePersister = ref('sessionCookiePersister')
+			} else {
+				persister = ref(asyncEnabled ? 'sessionAsyncPersister' : 'sessionPersister')
+			}
+			persistAfterResponse = asyncEnabled
+			nodeId = thisNodeId
+			localPersister = ref('sessionMemoryPersister')
+			if(conf.affinity.secret instanceof String) affinitySecret = conf.affinity.secret
+			if(conf.affinity.secure instanceof Boolean) affinitySecure = conf.affinity.secure
+			if(policyEnabled) attributePolicy = ref('sessionAttributePolicy')
+			if(analyzerEnabled) storageAnalyzer = ref('sessionStorageAnalyzer')
+			if(membershipEnabled) membership = ref('sessionMembership')
+			if(conf.timing.enabled instanceof Boolean) timingEnabled = conf.timing.enabled
+			if(conf.timing.serverTiming instanceof Boolean) serverTimingHeader = conf.timing.serverTiming
+			if(conf.timing.slowRequestMillis instanceof Number) slowRequestMillis = conf.timing.slowRequestMillis
 		}
 	}
 
 	def doWithApplicationContext = { appCtx ->
+		if (!isEnabled(application.config)) {
+			return
+		}
+
+		def conf = application.config.grails.plugin.databasesession
+		if(conf.keys.migrateFrom instanceof String) {
+			appCtx.sessionJdbcMemoryPersister.migrateKeys(conf.keys.migrateFrom, conf.keys.migrateSpillFrom instanceof String ? conf.keys.migrateSpillFrom : null)
+		}
+		if(conf.principal.indexOnStartup instanceof Boolean && conf.principal.indexOnStartup) {
+			appCtx.sessionJdbcMemoryPersister.indexPrincipals()
+		}
+		if(appCtx.containsBean("sessionMigrator") && conf.migration.runOnStartup instanceof Boolean && conf.migration.runOnStartup) {
+			appCtx.sessionMigrator.start()
+		}
+		if(appCtx.containsBean("sessionWarmer")) {
+			if(conf.warmup.background instanceof Boolean && !conf.warmup.background) {
+				appCtx.sessionWarmer.warmUp()
+			} else {
+				appCtx.sessionWarmer.start()
+			}
+		}
 	}
 
 	private static def tryToFindDbConfig(config) {
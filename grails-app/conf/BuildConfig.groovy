@@ -1,4 +1,5 @@
 grails.project.work.dir = 'target'
+grails.servlet.version = '3.0' // Compiles the async request support: AsyncSessionSupport keeps Servlet 2.5 containers working
 grails.project.docs.output.dir = 'docs/manual' // for backwards-compatibility, the docs are checked into gh-pages branch
 
 grails.project.dependency.resolution = {
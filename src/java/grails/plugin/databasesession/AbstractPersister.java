@@ -0,0 +1,57 @@
+package grails.plugin.databasesession;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A base for {@link Persister} implementations which provides the batch methods by looping over the
+ * single-session methods. Implementations with a native way to handle several sessions at once should
+ * override them.
+ *
+ * @author Robert Fischer
+ */
+public abstract class AbstractPersister implements Persister {
+
+	@Override
+	public void persistSessions(Collection<SessionData> sessions) {
+		for(SessionData session : sessions) {
+			persistSession(session);
+		}
+	}
+
+	@Override
+	public Map<String,SessionData> getSessionData(Collection<String> sessionIds) {
+		final Map<String,SessionData> found = new HashMap<String,SessionData>();
+		for(String sessionId : sessionIds) {
+			final SessionData session = getSessionData(sessionId);
+			if(session != null) found.put(sessionId, session);
+		}
+		return found;
+	}
+
+	@Override
+	public void invalidateAll(Collection<String> sessionIds) {
+		for(String sessionId : sessionIds) {
+			invalidate(sessionId);
+		}
+	}
+
+	/**
+	* Does not index sessions by principal, so finds none.
+	*/
+	@Override
+	public Set<String> findSessionIds(String principal) {
+		return Collections.emptySet();
+	}
+
+	@Override
+	public Set<String> invalidateByPrincipal(String principal) {
+		final Set<String> sessionIds = findSessionIds(principal);
+		invalidateAll(sessionIds);
+		return sessionIds;
+	}
+
+}
@@ -0,0 +1,464 @@
+package grails.plugin.databasesession;
+
+import java.io.Serializable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A {@link Persister} which hands writes off to a bounded executor and returns immediately. The {@code *Async}
+ * methods return a future which completes once the write has reached the underlying {@link #getPersister() persister}.
+ *
+ * Writes to the same session are applied one at a time and in order. A write which has not started yet is
+ * combined with the next write to the same session, so a busy session is written once per turn of the executor
+ * rather than once per request. Two persists of the same version (made by overlapping requests) are combined by
+ * applying the attributes the second one changed to the first; if that cannot be worked out, both are queued, so
+ * that the second one goes through the compare-and-set of the underlying persister. Until a write completes, reads
+ * of that session through this persister see the pending write, so the next request for the session does not read
+ * stale data.
+ *
+ * When the executor queue is full, the calling thread performs the write itself, which keeps the backlog bounded.
+ * It does the same once the executor has been shut down, so writes made during shutdown are not lost.
+ *
+ * @author Robert Fischer
+ */
+public class AsyncPersister implements Persister, InitializingBean, DisposableBean {
+
+	private final Logger log = Logger.getLogger(getClass());
+
+	private volatile Persister persister;
+	public Persister getPersister() {
+		return persister;
+	}
+	public void setPersister(Persister persister) {
+		this.persister = persister;
+	}
+
+	private volatile int threads = 4;
+	public int getThreads() {
+		return threads;
+	}
+	public void setThreads(int threads) {
+		if(threads <= 0) throw new IllegalArgumentException("The thread count must be positive: " + threads);
+		this.threads = threads;
+	}
+
+	/**
+	* How many sessions may be waiting for a thread before callers perform their writes themselves.
+	*/
+	private volatile int queueCapacity = 1000;
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+	public void setQueueCapacity(int queueCapacity) {
+		if(queueCapacity <= 0) throw new IllegalArgumentException("The queue capacity must be positive: " + queueCapacity);
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	* How long to wait for pending writes when shutting down.
+	*/
+	private volatile long shutdownTimeoutMillis = 10000;
+	public long getShutdownTimeoutMillis() {
+		return shutdownTimeoutMillis;
+	}
+	public void setShutdownTimeoutMillis(long shutdownTimeoutMillis) {
+		this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+	}
+
+	private volatile ThreadPoolExecutor executor = null;
+
+	private final ConcurrentMap<String,Slot> slots = new ConcurrentHashMap<String,Slot>();
+
+	private static enum Kind { PERSIST, TOUCH, INVALIDATE }
+
+	/**
+	* A write to one session, and the futures of the writes it has superseded.
+	*/
+	private static final class Write {
+		final Kind kind;
+		final String sessionId;
+		final SessionData data;
+		final long lastAccessedAt;
+		final int maxInactiveInterval;
+		final List<SettableFuture<Void>> futures = new ArrayList<SettableFuture<Void>>(1);
+
+		Write(final Kind kind, final String sessionId, final SessionData data, final long lastAccessedAt, final int maxInactiveInterval) {
+			this.kind = kind;
+			this.sessionId = sessionId;
+			this.data = data;
+			this.lastAccessedAt = lastAccessedAt;
+			this.maxInactiveInterval = maxInactiveInterval;
+		}
+
+		/**
+		* The write which has the effect of this write followed by the next one, or {@code null} if they have to be
+		* applied one after the other. Only called on writes which have not started.
+		*/
+		Write then(final Write next) {
+			final Write combined;
+			if(kind == Kind.PERSIST && next.kind == Kind.PERSIST && next.data.version <= data.version) {
+				// Not made from this write's data, so replacing this write would lose its changes
+				if(next.data.version < data.version || next.data.baseAttributeHashes == null) return null;
+				combined = new Write(Kind.PERSIST, sessionId, mergeChanges(data, next.data), 0L, 0);
+			} else if(next.kind != Kind.TOUCH) {
+				combined = next;
+			} else if(kind == Kind.PERSIST) {
+				combined = new Write(Kind.PERSIST, sessionId, new SessionData(
+					sessionId, data.attrs, data.createdAt, next.lastAccessedAt, next.maxInactiveInterval,
+					data.version, data.baseAttributeHashes, data.localAttrs
+				), 0L, 0);
+			} else if(kind == Kind.INVALIDATE) {
+				combined = this; // Nothing left to touch
+			} else {
+				combined = next;
+			}
+			if(combined != this) combined.futures.addAll(futures);
+			if(combined != next) combined.futures.addAll(next.futures);
+			return combined;
+		}
+
+		/**
+		* The first session with the attributes the second one changed since it was read applied to it. Both were read
+		* at the same version, so the result keeps the version and base attributes of the first.
+		*/
+		private static SessionData mergeChanges(final SessionData first, final SessionData second) {
+			final Map<String,Integer> base = second.baseAttributeHashes;
+			PersistentAttributeMap merged = first.attrs;
+			final Set<String> names = new HashSet<String>(second.attrs.keySet());
+			names.addAll(base.keySet());
+			for(String name : names) {
+				final Serializable value = second.attrs.get(name);
+				final boolean changed;
+				if(!base.containsKey(name)) {
+					changed = value != null; // Added
+				} else {
+					changed = value == null || value.hashCode() != base.get(name).intValue();
+				}
+				if(!changed) continue;
+				merged = value == null ? merged.minus(name) : merged.plus(name, value);
+			}
+			return new SessionData(
+				first.sessionId, merged, first.createdAt,
+				Math.max(first.lastAccessedAt, second.lastAccessedAt), second.maxInactiveInterval,
+				first.version, first.baseAttributeHashes, second.localAttrs
+			);
+		}
+
+		void applyTo(final Persister persister) {
+			switch(kind) {
+				case PERSIST:
+					persister.persistSession(data);
+					break;
+				case TOUCH:
+					persister.touchSession(sessionId, lastAccessedAt, maxInactiveInterval);
+					break;
+				case INVALIDATE:
+					persister.invalidate(sessionId);
+					break;
+			}
+		}
+
+		void complete(final Throwable failure) {
+			for(SettableFuture<Void> future : futures) {
+				if(failure == null) {
+					future.set(null);
+				} else {
+					future.setException(failure);
+				}
+			}
+		}
+	}
+
+	/**
+	* The writes of one session: the one being applied, and those waiting for it. Guarded by itself.
+	*/
+	private static final class Slot {
+		Write running = null;
+		final LinkedList<Write> queued = new LinkedList<Write>();
+		boolean retired = false;
+
+		/**
+		* The write whose data reads should see: a touch does not hide the data of the write before it.
+		*/
+		Write visible() {
+			final ListIterator<Write> it = queued.listIterator(queued.size());
+			while(it.hasPrevious()) {
+				final Write write = it.previous();
+				if(write.kind != Kind.TOUCH) return write;
+			}
+			if(running != null && running.kind != Kind.TOUCH) return running;
+			return queued.isEmpty() ? running : queued.getLast();
+		}
+	}
+
+	/**
+	* Runs rejected tasks on the calling thread, like {@link ThreadPoolExecutor.CallerRunsPolicy}, but also after the 
+	* executor has been shut down (where that policy discards them): a discarded {@link Drain} would lose its writes, 
+	* and leave the futures of its session incomplete and the session pending for good.
+	*/
+	private static final class RunOnCaller implements RejectedExecutionHandler {
+		public void rejectedExecution(final Runnable task, final ThreadPoolExecutor executor) {
+			task.run();
+		}
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		if(persister == null) {
+			throw new IllegalStateException("persister property must be assigned (cannot be null)");
+		}
+		executor = new ThreadPoolExecutor(
+			threads, threads, 60, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(queueCapacity),
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("session-async-persister-%d").build(),
+			new RunOnCaller()
+		);
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	* Stops accepting writes, and waits up to {@link #getShutdownTimeoutMillis()} for the pending ones.
+	*/
+	@Override
+	public void destroy() throws InterruptedException {
+		if(executor == null) return;
+		executor.shutdown();
+		if(!executor.awaitTermination(shutdownTimeoutMillis, TimeUnit.MILLISECONDS)) {
+			log.warn("Gave up waiting on " + slots.size() + " sessions with pending writes");
+			executor.shutdownNow();
+		}
+	}
+
+	public ListenableFuture<Void> persistSessionAsync(final SessionData session) {
+		if(session == null) return Futures.immediateFuture(null);
+		return submit(new Write(Kind.PERSIST, session.sessionId, session, 0L, 0));
+	}
+
+	public ListenableFuture<Void> touchSessionAsync(final String sessionId, final long lastAccessedAt, final int maxInactiveInterval) {
+		return submit(new Write(Kind.TOUCH, sessionId, null, lastAccessedAt, maxInactiveInterval));
+	}
+
+	public ListenableFuture<Void> invalidateAsync(final String sessionId) {
+		return submit(new Write(Kind.INVALIDATE, sessionId, null, 0L, 0));
+	}
+
+	/**
+	* Provides the session data, which is the pending write if there is one (so it may complete immediately).
+	*/
+	public ListenableFuture<SessionData> getSessionDataAsync(final String sessionId) {
+		final Write pending = pendingWrite(sessionId);
+		if(pending != null && pending.kind != Kind.TOUCH) {
+			return Futures.immediateFuture(pending.kind == Kind.PERSIST ? pending.data : null);
+		}
+		final SettableFuture<SessionData> future = SettableFuture.create();
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					future.set(getSessionData(sessionId));
+				} catch(Throwable t) {
+					future.setException(t);
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	* Whether the session has a write which has not reached the underlying persister yet.
+	*/
+	public boolean isPending(final String sessionId) {
+		return pendingWrite(sessionId) != null;
+	}
+
+	/**
+	* The number of sessions with writes which have not reached the underlying persister yet.
+	*/
+	public int getPendingCount() {
+		return slots.size();
+	}
+
+	private Write pendingWrite(final String sessionId) {
+		final Slot slot = slots.get(sessionId);
+		if(slot == null) return null;
+		synchronized(slot) {
+			return slot.visible();
+		}
+	}
+
+	private ListenableFuture<Void> submit(final Write write) {
+		final SettableFuture<Void> future = SettableFuture.create();
+		write.futures.add(future);
+		while(true) {
+			Slot slot = slots.get(write.sessionId);
+			if(slot == null) {
+				final Slot created = new Slot();
+				slot = slots.putIfAbsent(write.sessionId, created);
+				if(slot == null) slot = created;
+			}
+			synchronized(slot) {
+				if(slot.retired) continue; // Lost a race with the drain of the previous slot
+				if(!slot.queued.isEmpty()) {
+					final Write combined = slot.queued.getLast().then(write);
+					if(combined == null) {
+						slot.queued.addLast(write);
+						log.debug("Queued a concurrent write for session " + write.sessionId);
+					} else {
+						slot.queued.set(slot.queued.size() - 1, combined);
+						log.debug("Coalesced a pending write for session " + write.sessionId);
+					}
+					return future;
+				}
+				slot.queued.addLast(write);
+				if(slot.running != null) return future; // The drain picks it up after the running write
+			}
+			executor.execute(new Drain(write.sessionId, slot));
+			return future;
+		}
+	}
+
+	/**
+	* Applies the writes of a session until none are queued.
+	*/
+	private final class Drain implements Runnable {
+		private final String sessionId;
+		private final Slot slot;
+
+		Drain(final String sessionId, final Slot slot) {
+			this.sessionId = sessionId;
+			this.slot = slot;
+		}
+
+		public void run() {
+			while(true) {
+				final Write write;
+				synchronized(slot) {
+					write = slot.queued.poll();
+					slot.running = write;
+					if(write == null) {
+						slot.retired = true;
+						slots.remove(sessionId, slot);
+						return;
+					}
+				}
+				try {
+					write.applyTo(persister);
+					write.complete(null);
+				} catch(Throwable t) {
+					log.error("Error while applying the " + write.kind + " of session " + sessionId, t);
+					write.complete(t);
+				}
+			}
+		}
+	}
+
+	/**
+	* Queues the session to be persisted and returns immediately.
+	*/
+	@Override
+	public void persistSession(final SessionData session) {
+		persistSessionAsync(session);
+	}
+
+	@Override
+	public void touchSession(final String sessionId, final long lastAccessedAt, final int maxInactiveInterval) {
+		touchSessionAsync(sessionId, lastAccessedAt, maxInactiveInterval);
+	}
+
+	@Override
+	public void persistSessions(final Collection<SessionData> sessions) {
+		for(SessionData session : sessions) {
+			persistSessionAsync(session);
+		}
+	}
+
+	@Override
+	public SessionData getSessionData(final String sessionId) {
+		final Write pending = pendingWrite(sessionId);
+		if(pending != null && pending.kind == Kind.PERSIST) return pending.data;
+		if(pending != null && pending.kind == Kind.INVALIDATE) return null;
+		return persister.getSessionData(sessionId);
+	}
+
+	@Override
+	public Map<String,SessionData> getSessionData(final Collection<String> sessionIds) {
+		final Map<String,SessionData> found = persister.getSessionData(sessionIds);
+		for(String sessionId : sessionIds) {
+			final Write pending = pendingWrite(sessionId);
+			if(pending == null) continue;
+			if(pending.kind == Kind.PERSIST) found.put(sessionId, pending.data);
+			if(pending.kind == Kind.INVALIDATE) found.remove(sessionId);
+		}
+		return found;
+	}
+
+	/**
+	* Queues the session to be invalidated and returns immediately.
+	*/
+	@Override
+	public void invalidate(final String sessionId) {
+		invalidateAsync(sessionId);
+	}
+
+	@Override
+	public void invalidateAll(final Collection<String> sessionIds) {
+		for(String sessionId : sessionIds) {
+			invalidateAsync(sessionId);
+		}
+	}
+
+	/**
+	* Finds the sessions of the principal in the underlying persister, so sessions whose first write is still
+	* pending are not found.
+	*/
+	@Override
+	public Set<String> findSessionIds(final String principal) {
+		return persister.findSessionIds(principal);
+	}
+
+	/**
+	* Queues the sessions of the principal to be invalidated (superseding their pending writes), and returns their ids.
+	*/
+	@Override
+	public Set<String> invalidateByPrincipal(final String principal) {
+		final Set<String> sessionIds = findSessionIds(principal);
+		invalidateAll(sessionIds);
+		return sessionIds;
+	}
+
+	@Override
+	public boolean isValid(final String sessionId) {
+		final Write pending = pendingWrite(sessionId);
+		if(pending != null && pending.kind != Kind.TOUCH) return pending.kind == Kind.PERSIST;
+		return persister.isValid(sessionId);
+	}
+
+	@Override
+	public void cleanUp() {
+		persister.cleanUp();
+	}
+
+}
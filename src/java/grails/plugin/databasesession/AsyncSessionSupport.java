@@ -0,0 +1,83 @@
+package grails.plugin.databasesession;
+
+import java.io.IOException;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletRequest;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The Servlet 3 async request support of {@link SessionProxyFilter}. The Servlet 3 API is only touched once the
+ * container has been found to provide it, so the filter still works in Servlet 2.5 containers, where no request
+ * is ever async.
+ *
+ * @author Robert Fischer
+ */
+final class AsyncSessionSupport {
+
+	private static final Logger log = Logger.getLogger(AsyncSessionSupport.class);
+
+	private static final boolean available = detect();
+
+	private AsyncSessionSupport() {}
+
+	private static boolean detect() {
+		try {
+			ServletRequest.class.getMethod("isAsyncStarted");
+			return true;
+		} catch(NoSuchMethodException nsme) {
+			return false;
+		} catch(LinkageError le) {
+			return false;
+		}
+	}
+
+	/**
+	* Whether the request has been put into async mode, so that the handler carries on after the filter chain returns.
+	*/
+	static boolean isAsyncStarted(final ServletRequest request) {
+		return available && request.isAsyncStarted();
+	}
+
+	/**
+	* Whether the request is being dispatched again by the container after it went async.
+	*/
+	static boolean isAsyncDispatch(final ServletRequest request) {
+		return available && request.getDispatcherType() == DispatcherType.ASYNC;
+	}
+
+	/**
+	* Runs the callback once the async request completes (including after a time-out or an error), on whichever thread
+	* the container completes it on. Only call this for requests which {@link #isAsyncStarted(ServletRequest) are async}.
+	*/
+	static void onComplete(final ServletRequest request, final Runnable callback) {
+		request.getAsyncContext().addListener(new AsyncListener() {
+			private final AtomicBoolean done = new AtomicBoolean(false);
+
+			public void onComplete(final AsyncEvent event) throws IOException {
+				if(done.compareAndSet(false, true)) callback.run();
+			}
+
+			public void onTimeout(final AsyncEvent event) throws IOException {
+				log.debug("Async request timed out: the session is persisted once it completes");
+			}
+
+			public void onError(final AsyncEvent event) throws IOException {
+				log.debug("Async request failed: the session is persisted once it completes", event.getThrowable());
+			}
+
+			/**
+			* The handler started another async cycle: listeners have to register again to hear of its completion.
+			*/
+			public void onStartAsync(final AsyncEvent event) throws IOException {
+				event.getAsyncContext().addListener(this);
+			}
+		});
+	}
+
+}
@@ -0,0 +1,148 @@
+package grails.plugin.databasesession;
+
+import java.io.Serializable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Decides how each session attribute is persisted, by name pattern or by the type of its value:
+ * <ul>
+ * <li>{@link Scope#TRANSIENT transient} attributes are not persisted at all, and only live as long as the request;</li>
+ * <li>{@link Scope#LOCAL local} attributes are only kept by the node-local tier, and are lost when the session moves;</li>
+ * <li>all other attributes are {@link Scope#DURABLE durable}, and those matching the short-lived patterns are dropped
+ * {@link #getShortLivedSeconds()} after they were set.</li>
+ * </ul>
+ * Name patterns may use {@code *} as a wildcard. Type rules take precedence over name rules, and transient rules over local ones.
+ *
+ * @author Robert Fischer
+ */
+public class AttributePolicy {
+
+	public static enum Scope { DURABLE, LOCAL, TRANSIENT }
+
+	private volatile List<Pattern> transientNames = Collections.emptyList();
+	private volatile List<Pattern> localNames = Collections.emptyList();
+	private volatile List<Pattern> shortLivedNames = Collections.emptyList();
+	private volatile List<Class<?>> transientTypes = Collections.emptyList();
+	private volatile List<Class<?>> localTypes = Collections.emptyList();
+
+	/**
+	* The scope of each attribute name according to the name rules: type rules depend on the value, so are not cached.
+	* Bounded, since applications may use generated attribute names.
+	*/
+	private final Cache<String,Scope> nameScopes = newNameCache();
+	private final Cache<String,Boolean> shortLived = newNameCache();
+
+	private static <V> Cache<String,V> newNameCache() {
+		return CacheBuilder.newBuilder().maximumSize(10000).build();
+	}
+
+	public void setTransientNames(List<String> patterns) {
+		this.transientNames = compile(patterns);
+		nameScopes.invalidateAll();
+	}
+
+	public void setLocalNames(List<String> patterns) {
+		this.localNames = compile(patterns);
+		nameScopes.invalidateAll();
+	}
+
+	public void setShortLivedNames(List<String> patterns) {
+		this.shortLivedNames = compile(patterns);
+		shortLived.invalidateAll();
+	}
+
+	public void setTransientTypes(List<Class<?>> types) {
+		this.transientTypes = types == null ? Collections.<Class<?>>emptyList() : new ArrayList<Class<?>>(types);
+	}
+
+	public void setLocalTypes(List<Class<?>> types) {
+		this.localTypes = types == null ? Collections.<Class<?>>emptyList() : new ArrayList<Class<?>>(types);
+	}
+
+	private volatile int shortLivedSeconds = 300;
+	public int getShortLivedSeconds() {
+		return shortLivedSeconds;
+	}
+	public void setShortLivedSeconds(int shortLivedSeconds) {
+		if(shortLivedSeconds <= 0) throw new IllegalArgumentException("The short-lived seconds must be positive: " + shortLivedSeconds);
+		this.shortLivedSeconds = shortLivedSeconds;
+	}
+
+	private static List<Pattern> compile(final List<String> globs) {
+		if(globs == null) return Collections.emptyList();
+		final List<Pattern> patterns = new ArrayList<Pattern>(globs.size());
+		for(String glob : globs) {
+			final StringBuilder regex = new StringBuilder();
+			for(String part : glob.split("\\*", -1)) {
+				if(regex.length() > 0) regex.append(".*");
+				regex.append(Pattern.quote(part));
+			}
+			patterns.add(Pattern.compile(regex.toString()));
+		}
+		return patterns;
+	}
+
+	private static boolean matches(final List<Pattern> patterns, final String name) {
+		for(Pattern pattern : patterns) {
+			if(pattern.matcher(name).matches()) return true;
+		}
+		return false;
+	}
+
+	private static boolean isInstance(final List<Class<?>> types, final Object value) {
+		for(Class<?> type : types) {
+			if(type.isInstance(value)) return true;
+		}
+		return false;
+	}
+
+	/**
+	* How the attribute is to be persisted. Deferred values are judged by their name only, so that they are not loaded.
+	*/
+	public Scope scopeOf(final String name, final Object value) {
+		if(value != null && !(value instanceof DeferredAttribute)) {
+			if(isInstance(transientTypes, value)) return Scope.TRANSIENT;
+			if(isInstance(localTypes, value)) return Scope.LOCAL;
+		}
+		Scope scope = nameScopes.getIfPresent(name);
+		if(scope == null) {
+			if(matches(transientNames, name)) {
+				scope = Scope.TRANSIENT;
+			} else if(matches(localNames, name)) {
+				scope = Scope.LOCAL;
+			} else {
+				scope = Scope.DURABLE;
+			}
+			nameScopes.put(name, scope);
+		}
+		return scope;
+	}
+
+	public boolean isShortLived(final String name) {
+		Boolean result = shortLived.getIfPresent(name);
+		if(result == null) {
+			result = matches(shortLivedNames, name);
+			shortLived.put(name, result);
+		}
+		return result;
+	}
+
+	/**
+	* The value to store for a durable attribute: short-lived values which were just set are given their expiry time.
+	*/
+	public Serializable durableValue(final String name, final Serializable value, final long now) {
+		if(value == null || value instanceof DeferredAttribute || !isShortLived(name)) return value;
+		return new ExpiringAttribute(value, now + TimeUnit.SECONDS.toMillis(shortLivedSeconds));
+	}
+
+}
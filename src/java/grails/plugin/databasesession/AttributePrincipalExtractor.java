@@ -0,0 +1,66 @@
+package grails.plugin.databasesession;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.beans.BeansException;
+
+/**
+ * Reads the principal from a property of a session attribute. By default, this is the name of the authentication
+ * in the Spring Security context ({@code SPRING_SECURITY_CONTEXT.authentication.name}), which works without
+ * depending on Spring Security.
+ *
+ * @author Robert Fischer
+ */
+public class AttributePrincipalExtractor implements PrincipalExtractor {
+
+	private final Logger log = Logger.getLogger(getClass());
+
+	private volatile String attributeName = "SPRING_SECURITY_CONTEXT";
+	public String getAttributeName() {
+		return attributeName;
+	}
+	public void setAttributeName(String attributeName) {
+		if(attributeName == null) throw new IllegalArgumentException("Cannot assign a null attributeName property");
+		this.attributeName = attributeName;
+	}
+
+	/**
+	* The (nested) property of the attribute value holding the principal. If {@code null} or empty, the principal is
+	* the attribute value itself.
+	*/
+	private volatile String propertyPath = "authentication.name";
+	public String getPropertyPath() {
+		return propertyPath;
+	}
+	public void setPropertyPath(String propertyPath) {
+		this.propertyPath = propertyPath;
+	}
+
+	public Collection<String> getAttributeNames() {
+		return Collections.singleton(attributeName);
+	}
+
+	public String principalOf(final Map<String,Serializable> attrs) {
+		Object value = attrs.get(attributeName);
+		if(value instanceof DeferredAttribute) value = ((DeferredAttribute)value).getValue();
+		if(value == null) return null;
+
+		final String path = propertyPath;
+		if(path != null && path.length() > 0) {
+			try {
+				value = new BeanWrapperImpl(value).getPropertyValue(path);
+			} catch(BeansException be) {
+				log.debug("Could not read " + path + " from the " + attributeName + " attribute", be);
+				return null;
+			}
+		}
+		return value == null ? null : value.toString();
+	}
+
+}
@@ -3,35 +3,349 @@ package grails.plugin.databasesession;
 import java.io.Serializable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.apache.log4j.Logger;
 
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Multiset;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * A {@link Persister} that attempts a series of persistance strategies in order. 
  *
+ * When {@link #setHedgedReads(boolean) hedged reads} are enabled, a tier that has not answered within its 
+ * {@link #setHedgePercentile(double) observed latency percentile} no longer holds up the read: the next source
+ * is queried in parallel, and the first non-{@code null} answer wins. The first tier (the local one) is read on the 
+ * calling thread, and the sources after it on the {@link #getHedgeExecutor() hedge executor} with the request's 
+ * {@link SessionTimings} and {@link CookiePersister} binding. The losing reads are not interrupted. When the executor has
+ * no thread to spare, the hedge is skipped: the outstanding read is waited for, or the source is read on the calling thread.
+ *
+ * When {@link #setDeferredInvalidation(boolean) deferred invalidation} is enabled, invalidating a session only evicts
+ * it from the {@link InMemoryPersister} tiers on the calling thread, and records a tombstone which hides it from
+ * every read through this chain. A background task deletes the tombstoned sessions from the other tiers in batches.
+ * Writing a tombstoned session deletes it first, and the batch leaves out the sessions being written: a write which
+ * starts while the batch is deleting its session waits for the batch, so that the batch cannot delete what it wrote.
+ *
  * @author Robert Fischer
  */
-public class ChainPersister implements Persister {
+public class ChainPersister implements Persister, InitializingBean, DisposableBean {
 
 	private final Logger log = Logger.getLogger(getClass());
 
 	private volatile List<Persister> persisters = new CopyOnWriteArrayList<Persister>();
 
+	private volatile List<Persister> hedgePersisters = new CopyOnWriteArrayList<Persister>();
+
+	private final ConcurrentMap<Persister,LatencyTracker> latencies = new ConcurrentHashMap<Persister,LatencyTracker>();
+
+	private volatile boolean hedgedReads = false;
+	public boolean isHedgedReads() {
+		return hedgedReads;
+	}
+	public void setHedgedReads(boolean hedgedReads) {
+		this.hedgedReads = hedgedReads;
+	}
+
+	/**
+	* The latency percentile (between 0 and 1) of a tier after which the next source is queried in parallel.
+	*/
+	private volatile double hedgePercentile = 0.95;
+	public double getHedgePercentile() {
+		return hedgePercentile;
+	}
+	public void setHedgePercentile(double hedgePercentile) {
+		if(hedgePercentile <= 0.0 || hedgePercentile > 1.0) {
+			throw new IllegalArgumentException("The hedge percentile must be in (0,1]: " + hedgePercentile);
+		}
+		this.hedgePercentile = hedgePercentile;
+	}
+
+	/**
+	* The hedge delay used for a tier until enough of its latencies have been observed.
+	*/
+	private volatile long defaultHedgeDelayMillis = 50;
+	public long getDefaultHedgeDelayMillis() {
+		return defaultHedgeDelayMillis;
+	}
+	public void setDefaultHedgeDelayMillis(long defaultHedgeDelayMillis) {
+		this.defaultHedgeDelayMillis = defaultHedgeDelayMillis;
+	}
+
+	/**
+	* The floor for the hedge delay, so that a very fast tier does not cause a hedge on every read.
+	*/
+	private volatile long minimumHedgeDelayMillis = 2;
+	public long getMinimumHedgeDelayMillis() {
+		return minimumHedgeDelayMillis;
+	}
+	public void setMinimumHedgeDelayMillis(long minimumHedgeDelayMillis) {
+		this.minimumHedgeDelayMillis = minimumHedgeDelayMillis;
+	}
+
+	private volatile boolean deferredInvalidation = false;
+	public boolean isDeferredInvalidation() {
+		return deferredInvalidation;
+	}
+	public void setDeferredInvalidation(boolean deferredInvalidation) {
+		this.deferredInvalidation = deferredInvalidation;
+	}
+
+	/**
+	* How often tombstoned sessions are deleted from the tiers, when invalidation is deferred.
+	*/
+	private volatile long invalidationIntervalMillis = 200;
+	public long getInvalidationIntervalMillis() {
+		return invalidationIntervalMillis;
+	}
+	public void setInvalidationIntervalMillis(long invalidationIntervalMillis) {
+		if(invalidationIntervalMillis <= 0) {
+			throw new IllegalArgumentException("The invalidation interval must be positive: " + invalidationIntervalMillis);
+		}
+		this.invalidationIntervalMillis = invalidationIntervalMillis;
+	}
+
+	/**
+	* The sessions invalidated but not yet deleted from the tiers, with a stamp telling invalidations apart.
+	*/
+	private final ConcurrentMap<String,Long> tombstones = new ConcurrentHashMap<String,Long>();
+	private final AtomicLong nextTombstone = new AtomicLong(0);
+
+	/**
+	* The sessions being written, and those the background batch is deleting: each side registers before it looks at
+	* the other, so that at least one of them sees the other.
+	*/
+	private final Multiset<String> writing = ConcurrentHashMultiset.create();
+	private final Set<String> deleting = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+	private volatile ScheduledExecutorService invalidationExecutor = null;
+
+	/**
+	* The {@link CookiePersister} in front of this chain, if any, whose binding to the request is carried over to the 
+	* threads running hedged reads.
+	*/
+	private volatile CookiePersister cookiePersister = null;
+	public CookiePersister getCookiePersister() {
+		return cookiePersister;
+	}
+	public void setCookiePersister(CookiePersister cookiePersister) {
+		this.cookiePersister = cookiePersister;
+	}
+
+	/**
+	* The most threads of the hedge executor created by this chain: a read which finds them all busy is not hedged.
+	*/
+	private volatile int hedgeThreads = 16;
+	public int getHedgeThreads() {
+		return hedgeThreads;
+	}
+	public void setHedgeThreads(int hedgeThreads) {
+		if(hedgeThreads <= 0) throw new IllegalArgumentException("The hedge threads must be positive: " + hedgeThreads);
+		this.hedgeThreads = hedgeThreads;
+	}
+
+	private volatile ExecutorService hedgeExecutor = null;
+	private volatile boolean ownsHedgeExecutor = false;
+	public ExecutorService getHedgeExecutor() {
+		return hedgeExecutor;
+	}
+	public void setHedgeExecutor(ExecutorService hedgeExecutor) {
+		this.hedgeExecutor = hedgeExecutor;
+		this.ownsHedgeExecutor = false;
+	}
+
+	/**
+	* Read-only sources (such as a {@link JdbcPersister} pointed at a replica) which are only queried as hedges
+	* after the regular tiers. They are never written to by this chain.
+	*/
+	public List<Persister> getHedgePersisters() {
+		return new ArrayList<Persister>(hedgePersisters);
+	}
+	public void setHedgePersisters(List<Persister> hedgePersisters) {
+		if(hedgePersisters == null) throw new IllegalArgumentException("Cannot assign a null hedgePersisters property");
+		this.hedgePersisters = new CopyOnWriteArrayList<Persister>(hedgePersisters);
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		if(hedgedReads && hedgeExecutor == null) {
+			// Without a queue, a read which finds every thread busy is rejected, and goes without its hedge
+			hedgeExecutor = new ThreadPoolExecutor(
+				0, hedgeThreads, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("session-hedge-%d").build(),
+				new ThreadPoolExecutor.AbortPolicy()
+			);
+			ownsHedgeExecutor = true;
+		}
+		if(deferredInvalidation && invalidationExecutor == null) {
+			invalidationExecutor = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("session-invalidator-%d").build()
+			);
+			invalidationExecutor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					deleteTombstoned();
+				}
+			}, invalidationIntervalMillis, invalidationIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	* Stops the background tasks, and deletes the sessions which are still tombstoned.
+	*/
+	@Override
+	public void destroy() {
+		if(ownsHedgeExecutor && hedgeExecutor != null) {
+			hedgeExecutor.shutdownNow();
+		}
+		if(invalidationExecutor != null) {
+			invalidationExecutor.shutdown();
+			try {
+				invalidationExecutor.awaitTermination(invalidationIntervalMillis, TimeUnit.MILLISECONDS);
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			deleteTombstoned();
+		}
+	}
+
+	/**
+	* The number of sessions invalidated but not yet deleted from the tiers.
+	*/
+	public int getTombstoneCount() {
+		return tombstones.size();
+	}
+
+	private boolean isTombstoned(final String sessionId) {
+		return !tombstones.isEmpty() && sessionId != null && tombstones.containsKey(sessionId);
+	}
+
+	/**
+	* Whether the tier is invalidated on the calling thread even when invalidation is deferred.
+	*/
+	private static boolean isLocal(final Persister p) {
+		return p instanceof InMemoryPersister;
+	}
+
+	/**
+	* Tombstones the sessions and evicts them from the local tiers: the rest are left for {@link #deleteTombstoned()}.
+	*/
+	private void tombstone(final Collection<String> sessionIds) {
+		for(String sessionId : sessionIds) {
+			tombstones.put(sessionId, nextTombstone.incrementAndGet());
+		}
+		for(final Persister p : persisters) {
+			if(isLocal(p)) p.invalidateAll(sessionIds);
+		}
+	}
+
+	/**
+	* Deletes the tombstoned sessions from the tiers which are not local, and drops their tombstones. Tombstones are
+	* kept (and retried) if deleting them fails, and those of sessions invalidated again meanwhile are kept as well.
+	*/
+	private void deleteTombstoned() {
+		final Map<String,Long> stamps = new HashMap<String,Long>(tombstones);
+		if(stamps.isEmpty()) return;
+		final Set<String> claimed = new HashSet<String>(stamps.keySet());
+		deleting.addAll(claimed);
+		try {
+			// Sessions being written are deleted by the write, or (if invalidated since) by the next batch
+			stamps.keySet().removeAll(writing.elementSet());
+			deleteTombstoned(stamps);
+		} finally {
+			synchronized(deleting) {
+				deleting.removeAll(claimed);
+				deleting.notifyAll();
+			}
+		}
+	}
+
+	private void deleteTombstoned(final Map<String,Long> stamps) {
+		if(stamps.isEmpty()) return;
+		try {
+			for(final Persister p : persisters) {
+				if(!isLocal(p)) p.invalidateAll(stamps.keySet());
+			}
+		} catch(RuntimeException re) {
+			log.error("Error while deleting " + stamps.size() + " invalidated sessions: keeping their tombstones to retry", re);
+			return;
+		}
+		for(Map.Entry<String,Long> entry : stamps.entrySet()) {
+			tombstones.remove(entry.getKey(), entry.getValue());
+		}
+		log.debug("Deleted " + stamps.size() + " invalidated sessions");
+	}
+
+	/**
+	* Registers the sessions as being written, waiting for the background batch if it is deleting any of them. Must be
+	* followed by {@link #endWrite(Collection)}.
+	*/
+	private void beginWrite(final Collection<String> sessionIds) {
+		for(String sessionId : sessionIds) writing.add(sessionId);
+		if(deleting.isEmpty()) return;
+		boolean interrupted = false;
+		synchronized(deleting) {
+			for(String sessionId : sessionIds) {
+				while(deleting.contains(sessionId)) {
+					try {
+						deleting.wait();
+					} catch(InterruptedException ie) {
+						interrupted = true;
+					}
+				}
+			}
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+	}
+
+	private void endWrite(final Collection<String> sessionIds) {
+		for(String sessionId : sessionIds) writing.remove(sessionId);
+	}
+
+	/**
+	* Deletes the tombstoned sessions among these right away, so that writing them anew is not undone by the batch.
+	*/
+	private void deleteTombstonedNow(final Collection<String> sessionIds) {
+		final Map<String,Long> stamps = new HashMap<String,Long>();
+		for(String sessionId : sessionIds) {
+			final Long stamp = tombstones.get(sessionId);
+			if(stamp != null) stamps.put(sessionId, stamp);
+		}
+		deleteTombstoned(stamps);
+	}
+
 	public List<Persister> getPersisters() {
 		return new ArrayList<Persister>(persisters);
 	}
@@ -58,14 +372,132 @@ public class ChainPersister implements Persister {
 	}
 
 	/**
-	* Persists a session to each of the underlying {@link Persister}s. The sessionData may be {@code null}.
-	* The persistance is done concurrently using the executor.
+	* The persisters which session data is written to: those which a write-back {@link InMemoryPersister} earlier in
+	* the chain writes to itself are left out.
+	*/
+	private List<Persister> writtenPersisters() {
+		final List<Persister> written = new ArrayList<Persister>(persisters.size());
+		final Set<Persister> writtenBack = new HashSet<Persister>();
+		for(Persister p : persisters) {
+			if(writtenBack.contains(p)) continue;
+			written.add(p);
+			if(p instanceof InMemoryPersister && ((InMemoryPersister)p).isWriteBack()) {
+				writtenBack.add(((InMemoryPersister)p).getWriteBackTarget());
+			}
+		}
+		return written;
+	}
+
+	/**
+	* Persists a session to each of the underlying {@link Persister}s, except those written back to by an earlier tier.
+	* The sessionData may be {@code null}.
 	*/
 	@Override
 	public void persistSession(final SessionData sessionData) {
 		log.debug("Persisting session " + sessionData + " to persister chain");
+		final Collection<String> sessionIds = sessionData == null || !deferredInvalidation ? 
+			Collections.<String>emptySet() : Collections.singleton(sessionData.sessionId);
+		beginWrite(sessionIds);
+		try {
+			if(!sessionIds.isEmpty() && isTombstoned(sessionData.sessionId)) deleteTombstonedNow(sessionIds);
+			for(final Persister p : writtenPersisters()) {
+				p.persistSession(sessionData);
+			}
+		} finally {
+			endWrite(sessionIds);
+		}
+	}
+
+	/**
+	* Persists the sessions to each of the underlying {@link Persister}s, except those written back to by an earlier tier.
+	*/
+	@Override
+	public void persistSessions(final Collection<SessionData> sessions) {
+		log.debug("Persisting " + sessions.size() + " sessions to persister chain");
+		final List<String> sessionIds = new ArrayList<String>(deferredInvalidation ? sessions.size() : 0);
+		if(deferredInvalidation) {
+			for(SessionData session : sessions) {
+				if(session != null) sessionIds.add(session.sessionId);
+			}
+		}
+		beginWrite(sessionIds);
+		try {
+			if(!tombstones.isEmpty()) deleteTombstonedNow(sessionIds);
+			for(final Persister p : writtenPersisters()) {
+				p.persistSessions(sessions);
+			}
+		} finally {
+			endWrite(sessionIds);
+		}
+	}
+
+	/**
+	* Retrieves each session from the first {@link Persister} containing it: each tier is only asked for the sessions 
+	* the tiers before it did not have.
+	*/
+	@Override
+	public Map<String,SessionData> getSessionData(final Collection<String> sessionIds) {
+		final Map<String,SessionData> found = new HashMap<String,SessionData>();
+		final Set<String> remaining = new LinkedHashSet<String>(sessionIds);
+		if(!tombstones.isEmpty()) remaining.removeAll(tombstones.keySet());
+		for(Persister p : persisters) {
+			if(remaining.isEmpty()) break;
+			final Map<String,SessionData> fromTier = p.getSessionData(remaining);
+			found.putAll(fromTier);
+			remaining.removeAll(fromTier.keySet());
+		}
+		log.debug("Found " + found.size() + " of " + sessionIds.size() + " sessions in chain");
+		return found;
+	}
+
+	/**
+	* Informs all the {@link Persister} instances to invalidate these sessions.
+	*/
+	@Override
+	public void invalidateAll(final Collection<String> sessionIds) {
+		log.debug("Submitting invalidation call to persister chain for " + sessionIds.size() + " sessions");
+		if(deferredInvalidation) {
+			tombstone(sessionIds);
+			return;
+		}
+		for(final Persister p : persisters) {
+			p.invalidateAll(sessionIds);
+		}
+	}
+
+	/**
+	* Finds the sessions of the principal in any of the underlying {@link Persister}s.
+	*/
+	@Override
+	public Set<String> findSessionIds(final String principal) {
+		final Set<String> found = new HashSet<String>();
+		for(final Persister p : persisters) {
+			found.addAll(p.findSessionIds(principal));
+		}
+		if(!tombstones.isEmpty()) found.removeAll(tombstones.keySet());
+		return found;
+	}
+
+	/**
+	* Invalidates the sessions of the principal found in any of the underlying {@link Persister}s in all of them,
+	* so that they are evicted from the tiers which do not index principals as well.
+	*/
+	@Override
+	public Set<String> invalidateByPrincipal(final String principal) {
+		final Set<String> sessionIds = findSessionIds(principal);
+		log.info("Invalidating the " + sessionIds.size() + " sessions of principal " + principal);
+		invalidateAll(sessionIds);
+		return sessionIds;
+	}
+
+	/**
+	* Touches the session in each of the underlying {@link Persister}s.
+	*/
+	@Override
+	public void touchSession(final String sessionId, final long lastAccessedAt, final int maxInactiveInterval) {
+		if(isTombstoned(sessionId)) return;
 		for(final Persister p : persisters) {
-			p.persistSession(sessionData);
+			p.touchSession(sessionId, lastAccessedAt, maxInactiveInterval);
 		}
 	}
 
@@ -75,10 +507,23 @@ public class ChainPersister implements Persister {
 	@Override
 	public SessionData getSessionData(final String sessionId) {
 		SessionData session = null;
-		
-		for(Persister p : persisters) {
-			session = p.getSessionData(sessionId);
-			if(session != null) break;
+		if(isTombstoned(sessionId)) {
+			log.debug("Session " + sessionId + " has been invalidated");
+			return null;
+		}
+
+		if(hedgedReads && hedgeExecutor != null) {
+			final List<Persister> sources = new ArrayList<Persister>(persisters);
+			sources.addAll(hedgePersisters);
+			session = hedgedSessionData(sessionId, sources);
+		} else {
+			for(Persister p : persisters) {
+				session = timedSessionData(p, sessionId);
+				if(session != null) {
+					SessionTimings.recordReadTier(p);
+					break;
+				}
+			}
 		}
 
 		if(session != null) {
@@ -95,6 +540,10 @@ public class ChainPersister implements Persister {
 	@Override
 	public void invalidate(final String sessionId) {
 		log.debug("Submitting invalidation call to persister chain for session " + sessionId);
+		if(deferredInvalidation) {
+			tombstone(Collections.singleton(sessionId));
+			return;
+		}
 		for(final Persister p : persisters) {
 			log.debug("Submitting invalidation call for session " + sessionId + " to persister " + p);
 			p.invalidate(sessionId);
@@ -103,6 +552,7 @@ public class ChainPersister implements Persister {
 
 	@Override
 	public boolean isValid(final String sessionId) {
+		if(isTombstoned(sessionId)) return false;
 		for(Persister p : persisters) {
 			boolean isValid = p.isValid(sessionId);
 			if(isValid) return isValid;
@@ -117,4 +567,170 @@ public class ChainPersister implements Persister {
 		}
 	}
 
+	private SessionData timedSessionData(final Persister p, final String sessionId) {
+		final long start = System.nanoTime();
+		try {
+			return p.getSessionData(sessionId);
+		} finally {
+			trackerFor(p).record(System.nanoTime() - start);
+		}
+	}
+
+	private LatencyTracker trackerFor(final Persister p) {
+		LatencyTracker tracker = latencies.get(p);
+		if(tracker == null) {
+			latencies.putIfAbsent(p, new LatencyTracker());
+			tracker = latencies.get(p);
+		}
+		return tracker;
+	}
+
+	private long hedgeDelayMillis(final Persister p) {
+		final long observed = trackerFor(p).percentileMillis(hedgePercentile);
+		return Math.max(minimumHedgeDelayMillis, observed < 0 ? defaultHedgeDelayMillis : observed);
+	}
+
+	/**
+	* Queries the sources in order, but starts on the next source whenever the outstanding one is slower than its 
+	* hedge delay (or answers {@code null}). The first non-{@code null} answer wins: the reads which have not started are
+	* cancelled, and those which have are left to finish. The first source is read on the calling thread, before any other.
+	*/
+	private SessionData hedgedSessionData(final String sessionId, final List<Persister> sources) {
+		if(sources.isEmpty()) return null;
+		final Persister first = sources.get(0);
+		final SessionData local = timedSessionData(first, sessionId);
+		if(local != null) {
+			SessionTimings.recordReadTier(first);
+			return local;
+		}
+
+		final CompletionService<SessionData> completion = new ExecutorCompletionService<SessionData>(hedgeExecutor);
+		final Map<Future<SessionData>,Persister> calls = new HashMap<Future<SessionData>,Persister>();
+		Persister latest = null;
+		int next = 1;
+		int outstanding = 0;
+		try {
+			while(next < sources.size() || outstanding > 0) {
+				if(outstanding == 0) {
+					latest = sources.get(next++);
+					final Future<SessionData> call = submitRead(completion, latest, sessionId);
+					if(call == null) {
+						log.debug("No thread to read session " + sessionId + " from " + latest + ": reading it unhedged");
+						final SessionData session = timedSessionData(latest, sessionId);
+						if(session != null) {
+							SessionTimings.recordReadTier(latest);
+							return session;
+						}
+						continue;
+					}
+					calls.put(call, latest);
+					outstanding++;
+				}
+
+				Future<SessionData> done = null;
+				if(next < sources.size()) {
+					done = completion.poll(hedgeDelayMillis(latest), TimeUnit.MILLISECONDS);
+					if(done == null) {
+						final Persister hedge = sources.get(next);
+						final Future<SessionData> call = submitRead(completion, hedge, sessionId);
+						if(call != null) {
+							log.debug("Hedging read of session " + sessionId + " to " + hedge);
+							calls.put(call, hedge);
+							latest = hedge;
+							next++;
+							outstanding++;
+							continue;
+						}
+						log.debug("No thread to hedge the read of session " + sessionId + " to " + hedge + ": skipping the hedge");
+					}
+				}
+				if(done == null) done = completion.take();
+				outstanding--;
+
+				try {
+					final SessionData session = done.get();
+					if(session != null) {
+						SessionTimings.recordReadTier(calls.get(done));
+						return session;
+					}
+				} catch(ExecutionException ee) {
+					log.warn("Error from a persister during a hedged read of session " + sessionId, ee.getCause());
+				} catch(CancellationException ce) {
+					// Somebody else won
+				}
+			}
+			return null;
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			log.warn("Interrupted during a hedged read of session " + sessionId);
+			return null;
+		} finally {
+			for(Future<SessionData> call : calls.keySet()) {
+				// Interrupting a JDBC read can break its connection: let the losers finish
+				call.cancel(false);
+			}
+		}
+	}
+
+	/**
+	* Submits the read of the session, run with the request's timings and cookie binding as if on the request thread.
+	* Returns {@code null} if the executor has no thread for it.
+	*/
+	private Future<SessionData> submitRead(final CompletionService<SessionData> completion, final Persister p, final String sessionId) {
+		Callable<SessionData> read = SessionTimings.propagate(new Callable<SessionData>() {
+			public SessionData call() {
+				return timedSessionData(p, sessionId);
+			}
+		});
+		final CookiePersister cookies = cookiePersister;
+		if(cookies != null) read = cookies.propagate(read);
+		try {
+			return completion.submit(read);
+		} catch(RejectedExecutionException ree) {
+			return null;
+		}
+	}
+
+	/**
+	* Keeps a ring of the most recent read latencies of a tier, and caches the requested percentile of them.
+	*/
+	private static final class LatencyTracker {
+
+		private static final int SAMPLES = 128;
+		private static final int RECOMPUTE_EVERY = 16;
+
+		private final AtomicLongArray samples = new AtomicLongArray(SAMPLES);
+		private final AtomicInteger count = new AtomicInteger(0);
+		private volatile double cachedPercentile = -1.0;
+		private volatile long cachedMillis = -1L;
+		private volatile int cachedAt = -1;
+
+		public void record(long nanos) {
+			final int idx = count.getAndIncrement();
+			samples.set(idx & (SAMPLES - 1), nanos);
+		}
+
+		/**
+		* The percentile of the recent latencies in millis, or {@code -1} if not enough have been observed yet.
+		*/
+		public long percentileMillis(double percentile) {
+			final int seen = count.get();
+			if(seen < RECOMPUTE_EVERY) return -1L;
+			if(percentile == cachedPercentile && seen - cachedAt < RECOMPUTE_EVERY) return cachedMillis;
+
+			final long[] sorted = new long[Math.min(seen, SAMPLES)];
+			for(int i = 0; i < sorted.length; i++) {
+				sorted[i] = samples.get(i);
+			}
+			Arrays.sort(sorted);
+			final int idx = Math.min(sorted.length - 1, (int)Math.ceil(percentile * sorted.length) - 1);
+			final long millis = TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(0, idx)]);
+
+			cachedMillis = millis;
+			cachedPercentile = percentile;
+			cachedAt = seen;
+			return millis;
+		}
+	}
+
 }
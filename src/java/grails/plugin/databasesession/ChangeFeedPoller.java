@@ -0,0 +1,181 @@
+package grails.plugin.databasesession;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.apache.log4j.Logger;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Polls the change table of a {@link JdbcPersister} and evicts the sessions changed by other nodes from
+ * the local tier, so that the local tier can be trusted without sticky sessions.
+ *
+ * Sequence numbers may become visible out of order (a later insert can commit first), so skipped sequence
+ * numbers are looked for again on later polls until {@link #getGapTimeoutMillis()} has passed.
+ *
+ * A change is recorded after the session is written, not in the same transaction, so a node may serve its stale copy
+ * for up to a poll interval after the change is recorded, plus however long the writer took to record it. A change
+ * which is never recorded (the writer died after writing the session) is only caught up with when the copy leaves
+ * the local tier.
+ *
+ * @author Robert Fischer
+ */
+public class ChangeFeedPoller implements InitializingBean, DisposableBean {
+
+	private final Logger log = Logger.getLogger(getClass());
+
+	private static final int MAX_GAPS = 1000;
+
+	private volatile JdbcPersister jdbcPersister;
+	public JdbcPersister getJdbcPersister() {
+		return jdbcPersister;
+	}
+	public void setJdbcPersister(JdbcPersister jdbcPersister) {
+		this.jdbcPersister = jdbcPersister;
+	}
+
+	/**
+	* The tier to evict the changed sessions from.
+	*/
+	private volatile Persister localPersister;
+	public Persister getLocalPersister() {
+		return localPersister;
+	}
+	public void setLocalPersister(Persister localPersister) {
+		this.localPersister = localPersister;
+	}
+
+	private volatile long pollIntervalMillis = 1000;
+	public long getPollIntervalMillis() {
+		return pollIntervalMillis;
+	}
+	public void setPollIntervalMillis(long pollIntervalMillis) {
+		this.pollIntervalMillis = pollIntervalMillis;
+	}
+
+	private volatile int batchSize = 500;
+	public int getBatchSize() {
+		return batchSize;
+	}
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	private volatile long gapTimeoutMillis = 10000;
+	public long getGapTimeoutMillis() {
+		return gapTimeoutMillis;
+	}
+	public void setGapTimeoutMillis(long gapTimeoutMillis) {
+		this.gapTimeoutMillis = gapTimeoutMillis;
+	}
+
+	private volatile long lastSeen = 0;
+	public long getLastSeen() {
+		return lastSeen;
+	}
+
+	/**
+	* Sequence numbers which were skipped over, and when they were first noticed.
+	*/
+	private final Map<Long,Long> gaps = new LinkedHashMap<Long,Long>();
+
+	private volatile ScheduledExecutorService executor = null;
+
+	@Override
+	public void afterPropertiesSet() {
+		if(jdbcPersister == null) {
+			throw new IllegalStateException("jdbcPersister property must be assigned (cannot be null)");
+		}
+		if(localPersister == null) {
+			throw new IllegalStateException("localPersister property must be assigned (cannot be null)");
+		}
+		if(!jdbcPersister.isChangeFeedEnabled()) {
+			log.warn("The change feed is not enabled on " + jdbcPersister + ": not polling for changes");
+			return;
+		}
+
+		lastSeen = jdbcPersister.getLatestChangeSequence();
+		executor = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("session-change-feed-%d").build()
+		);
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					poll();
+				} catch(Exception e) {
+					log.warn("Error while polling the session change feed", e);
+				}
+			}
+		}, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void destroy() {
+		if(executor != null) executor.shutdownNow();
+	}
+
+	/**
+	* Reads all the changes since the last poll, and evicts the sessions changed by other nodes.
+	*/
+	public synchronized void poll() {
+		final String nodeId = jdbcPersister.getNodeId();
+		final Set<String> toEvict = new LinkedHashSet<String>();
+
+		if(!gaps.isEmpty()) {
+			for(JdbcPersister.Change change : jdbcPersister.readChanges(new ArrayList<Long>(gaps.keySet()))) {
+				gaps.remove(change.seq);
+				if(!nodeId.equals(change.nodeId)) toEvict.add(change.sessionId);
+			}
+			final long expired = System.currentTimeMillis() - gapTimeoutMillis;
+			for(Iterator<Long> it = gaps.values().iterator(); it.hasNext();) {
+				if(it.next() < expired) it.remove(); // Rolled back, most likely
+			}
+		}
+
+		List<JdbcPersister.Change> changes;
+		do {
+			changes = jdbcPersister.readChanges(lastSeen, batchSize);
+			for(JdbcPersister.Change change : changes) {
+				recordGaps(lastSeen, change.seq);
+				lastSeen = Math.max(lastSeen, change.seq);
+				if(!nodeId.equals(change.nodeId)) toEvict.add(change.sessionId);
+			}
+			evict(toEvict);
+			toEvict.clear();
+		} while(changes.size() >= batchSize);
+	}
+
+	private void recordGaps(final long previous, final long seq) {
+		if(previous == 0 || seq - previous > MAX_GAPS) return; // A fresh table, or the sequence moved on without us
+		final long now = System.currentTimeMillis();
+		for(long missing = previous + 1; missing < seq && gaps.size() < MAX_GAPS; missing++) {
+			gaps.put(missing, now);
+		}
+	}
+
+	private void evict(final Set<String> sessionIds) {
+		if(sessionIds.isEmpty()) return;
+		log.debug("Evicting " + sessionIds.size() + " sessions changed by other nodes");
+		final Persister local = localPersister;
+		if(local instanceof InMemoryPersister) {
+			// Not an invalidation: a write-back in flight would delete the session the other node just wrote
+			((InMemoryPersister)local).evictAll(sessionIds);
+		} else {
+			local.invalidateAll(sessionIds);
+		}
+	}
+
+}
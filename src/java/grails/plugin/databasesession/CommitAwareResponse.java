@@ -0,0 +1,147 @@
+package grails.plugin.databasesession;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Runs a callback once, just before the response is committed: when it is flushed, redirected, or sent an error,
+ * or when the body written to it no longer fits in its buffer. This leaves the callback a chance to add headers
+ * (such as cookies) after the application is done with the session but before the headers are sent.
+ *
+ * @author Robert Fischer
+ */
+class CommitAwareResponse extends HttpServletResponseWrapper {
+
+	private final HttpServletResponse response;
+	private final Runnable beforeCommit;
+	private boolean notified = false;
+	private int contentLength = -1;
+	private long written = 0;
+
+	private ServletOutputStream outputStream = null;
+	private PrintWriter writer = null;
+
+	CommitAwareResponse(final HttpServletResponse response, final Runnable beforeCommit) {
+		super(response);
+		this.response = response;
+		this.beforeCommit = beforeCommit;
+	}
+
+	/**
+	* Runs the callback, unless it has already run or the response has already been committed.
+	*/
+	void beforeCommit() {
+		if(notified) return;
+		notified = true;
+		if(!response.isCommitted()) beforeCommit.run();
+	}
+
+	private void written(final int length) {
+		if(notified) return;
+		written += length;
+		if(written >= response.getBufferSize() || (contentLength >= 0 && written >= contentLength)) beforeCommit();
+	}
+
+	@Override
+	public void setContentLength(final int length) {
+		contentLength = length;
+		super.setContentLength(length);
+	}
+
+	@Override
+	public void flushBuffer() throws IOException {
+		beforeCommit();
+		super.flushBuffer();
+	}
+
+	@Override
+	public void sendError(final int sc, final String msg) throws IOException {
+		beforeCommit();
+		super.sendError(sc, msg);
+	}
+
+	@Override
+	public void sendError(final int sc) throws IOException {
+		beforeCommit();
+		super.sendError(sc);
+	}
+
+	@Override
+	public void sendRedirect(final String location) throws IOException {
+		beforeCommit();
+		super.sendRedirect(location);
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+		if(outputStream == null) {
+			final ServletOutputStream delegate = response.getOutputStream();
+			outputStream = new ServletOutputStream() {
+				@Override
+				public void write(final int b) throws IOException {
+					written(1);
+					delegate.write(b);
+				}
+				@Override
+				public void write(final byte[] b, final int off, final int len) throws IOException {
+					written(len);
+					delegate.write(b, off, len);
+				}
+				@Override
+				public void flush() throws IOException {
+					beforeCommit();
+					delegate.flush();
+				}
+				@Override
+				public void close() throws IOException {
+					beforeCommit();
+					delegate.close();
+				}
+			};
+		}
+		return outputStream;
+	}
+
+	/**
+	* Characters are counted as bytes, which can only make the callback run early.
+	*/
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		if(writer == null) {
+			final PrintWriter delegate = response.getWriter();
+			writer = new PrintWriter(delegate) {
+				@Override
+				public void write(final int c) {
+					written(1);
+					super.write(c);
+				}
+				@Override
+				public void write(final char[] buf, final int off, final int len) {
+					written(len);
+					super.write(buf, off, len);
+				}
+				@Override
+				public void write(final String s, final int off, final int len) {
+					written(len);
+					super.write(s, off, len);
+				}
+				@Override
+				public void flush() {
+					beforeCommit();
+					super.flush();
+				}
+				@Override
+				public void close() {
+					beforeCommit();
+					super.close();
+				}
+			};
+		}
+		return writer;
+	}
+
+}
@@ -0,0 +1,640 @@
+package grails.plugin.databasesession;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.apache.commons.codec.binary.Base64;
+
+import org.apache.log4j.Logger;
+
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * A {@link Persister} which keeps small sessions entirely in a cookie, so that nothing is stored on the server for them.
+ * The cookie is signed with HMAC-SHA256, compressed, and encrypted with AES unless that is turned off. It is issued
+ * {@code HttpOnly}, and {@code Secure} when the request came over HTTPS (or always, if {@link #isSecure()}). Sessions which do not fit in
+ * {@link #getMaxCookieBytes()} are handed to the {@link #getFallback() fallback} persister (usually the {@link ChainPersister}),
+ * and move between the cookie and the fallback as they shrink and grow.
+ *
+ * The first of the {@link #setSecrets(List) secrets} signs (and encrypts) new cookies; all of them are accepted when
+ * reading, so that a secret can be rotated out without logging everyone out.
+ *
+ * The cookie can only be written while the response is not committed: the {@link SessionProxyFilter} binds the request
+ * and response to the current thread, and persists the session just before the response commits. A session which
+ * changes after that is written to the fallback persister instead.
+ *
+ * Nothing on the server says that a cookie has been superseded, so a copy of an old cookie would still be accepted.
+ * Each node keeps a list of the sessions invalidated (or moved to the fallback persister) through it, for
+ * {@link #getRevocationSeconds()}, and does not accept their older cookies; other nodes do not know about them.
+ *
+ * @author Robert Fischer
+ */
+public class CookiePersister implements Persister, InitializingBean {
+
+	private final Logger log = Logger.getLogger(getClass());
+
+	public static final String DEFAULT_COOKIE_NAME = "SessionProxyFilter_Data";
+
+	private static final byte FORMAT = 2;
+	private static final byte FORMAT_WITHOUT_VERSION = 1;
+	private static final byte FLAG_COMPRESSED = 1;
+	private static final byte FLAG_ENCRYPTED = 2;
+	private static final String MAC = "HmacSHA256";
+	private static final int MAC_LENGTH = 32;
+	private static final String CIPHER = "AES/CBC/PKCS5Padding";
+	private static final int IV_LENGTH = 16;
+
+	private final SecureRandom random = new SecureRandom();
+
+	private volatile Persister fallback;
+	public Persister getFallback() {
+		return fallback;
+	}
+	public void setFallback(Persister fallback) {
+		this.fallback = fallback;
+	}
+
+	private volatile String cookieName = DEFAULT_COOKIE_NAME;
+	public String getCookieName() {
+		return cookieName;
+	}
+	public void setCookieName(String cookieName) {
+		this.cookieName = cookieName;
+	}
+
+	/**
+	* The largest cookie value to issue: sessions which encode to more than this go to the fallback persister.
+	*/
+	private volatile int maxCookieBytes = 3800;
+	public int getMaxCookieBytes() {
+		return maxCookieBytes;
+	}
+	public void setMaxCookieBytes(int maxCookieBytes) {
+		this.maxCookieBytes = maxCookieBytes;
+	}
+
+	private volatile boolean compress = true;
+	public boolean isCompress() {
+		return compress;
+	}
+	public void setCompress(boolean compress) {
+		this.compress = compress;
+	}
+
+	private volatile boolean encrypt = true;
+	public boolean isEncrypt() {
+		return encrypt;
+	}
+	public void setEncrypt(boolean encrypt) {
+		this.encrypt = encrypt;
+	}
+
+	/**
+	* Whether the cookie is marked {@code Secure} even when the request did not come over HTTPS, as when TLS ends at
+	* a proxy in front of the application. It always is when the request did.
+	*/
+	private volatile boolean secure = false;
+	public boolean isSecure() {
+		return secure;
+	}
+	public void setSecure(boolean secure) {
+		this.secure = secure;
+	}
+
+	/**
+	* How long this node refuses the cookies of a session issued before it was invalidated or moved to the fallback
+	* persister. Should be longer than the {@code maxInactiveInterval} of the sessions, after which the old cookies
+	* have expired anyway.
+	*/
+	private volatile int revocationSeconds = 24 * 60 * 60;
+	public int getRevocationSeconds() {
+		return revocationSeconds;
+	}
+	public void setRevocationSeconds(int revocationSeconds) {
+		this.revocationSeconds = revocationSeconds;
+	}
+
+	/**
+	* The sessions whose cookies must not be accepted if last accessed at or before the given time.
+	*/
+	private volatile Cache<String,Long> revoked = newRevocations(revocationSeconds);
+
+	private static Cache<String,Long> newRevocations(final int seconds) {
+		return CacheBuilder.newBuilder()
+			.maximumSize(100000)
+			.expireAfterWrite(seconds, TimeUnit.SECONDS)
+			.build();
+	}
+
+	/**
+	* The fraction of a session's {@code maxInactiveInterval} which has to pass before the cookie of an unchanged session
+	* is issued again with the new access time.
+	*/
+	private volatile double touchFraction = 0.25;
+	public double getTouchFraction() {
+		return touchFraction;
+	}
+	public void setTouchFraction(double touchFraction) {
+		if(touchFraction < 0.0 || touchFraction > 1.0) {
+			throw new IllegalArgumentException("The touch fraction must be in [0,1]: " + touchFraction);
+		}
+		this.touchFraction = touchFraction;
+	}
+
+	private static final class Keys {
+		final SecretKeySpec mac;
+		final SecretKeySpec cipher;
+		Keys(final SecretKeySpec mac, final SecretKeySpec cipher) {
+			this.mac = mac;
+			this.cipher = cipher;
+		}
+	}
+
+	private volatile List<Keys> keys = new ArrayList<Keys>();
+
+	/**
+	* The secrets to sign and encrypt the cookie with, newest first.
+	*/
+	public void setSecrets(List<String> secrets) {
+		if(secrets == null) throw new IllegalArgumentException("Cannot assign a null secrets property");
+		final List<Keys> derived = new ArrayList<Keys>(secrets.size());
+		for(String secret : secrets) {
+			derived.add(new Keys(
+				new SecretKeySpec(derive("mac:", secret), MAC),
+				new SecretKeySpec(Arrays.copyOf(derive("cipher:", secret), 16), "AES")
+			));
+		}
+		this.keys = derived;
+	}
+
+	private static byte[] derive(final String purpose, final String secret) {
+		final MessageDigest digest = SerializationBuffers.newMessageDigest();
+		return digest.digest(toBytes(purpose + secret));
+	}
+
+	private static byte[] toBytes(final String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch(UnsupportedEncodingException uee) {
+			throw new IllegalStateException("UTF-8 is not supported", uee);
+		}
+	}
+
+	/**
+	* The request and response of the current thread, and what has been learned about its session so far. Reads handed
+	* to other threads (see {@link #propagate(Callable)}) may still be using it after the request thread has moved on.
+	*/
+	private static final class Exchange {
+		final HttpServletRequest request;
+		final HttpServletResponse response;
+		volatile boolean cookieRead = false;
+		volatile SessionData cookieSession = null;
+		final Set<String> fromFallback = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+		Exchange(final HttpServletRequest request, final HttpServletResponse response) {
+			this.request = request;
+			this.response = response;
+		}
+	}
+
+	private final ThreadLocal<Exchange> exchanges = new ThreadLocal<Exchange>();
+
+	@Override
+	public void afterPropertiesSet() {
+		if(fallback == null) {
+			throw new IllegalStateException("fallback property must be assigned (cannot be null)");
+		}
+		if(keys.isEmpty()) {
+			throw new IllegalStateException("secrets property must be assigned at least one secret");
+		}
+		revoked = newRevocations(revocationSeconds);
+	}
+
+	/**
+	* Binds the request and response to the current thread, so that sessions can be read from and written to their cookies.
+	*/
+	public void bind(final HttpServletRequest request, final HttpServletResponse response) {
+		exchanges.set(new Exchange(request, response));
+	}
+
+	public void unbind() {
+		exchanges.remove();
+	}
+
+	/**
+	* Wraps the task so that it runs with the request and response of this thread bound, for work done on another thread
+	* on behalf of the request.
+	*/
+	<T> Callable<T> propagate(final Callable<T> task) {
+		final Exchange exchange = exchanges.get();
+		if(exchange == null) return task;
+		return new Callable<T>() {
+			public T call() throws Exception {
+				exchanges.set(exchange);
+				try {
+					return task.call();
+				} finally {
+					exchanges.remove();
+				}
+			}
+		};
+	}
+
+	/**
+	* The session stored in the cookie of the current request, if it is the given session.
+	*/
+	private SessionData cookieSession(final Exchange exchange, final String sessionId) {
+		if(exchange == null) return null;
+		if(!exchange.cookieRead) {
+			exchange.cookieRead = true;
+			final String value = cookieValue(exchange.request);
+			if(value != null) exchange.cookieSession = decode(value);
+			if(exchange.cookieSession != null && isRevoked(exchange.cookieSession)) {
+				log.debug("Ignoring a superseded cookie of session " + exchange.cookieSession.sessionId);
+				exchange.cookieSession = null;
+			}
+		}
+		final SessionData session = exchange.cookieSession;
+		if(session == null || !session.sessionId.equals(sessionId)) return null;
+		return session;
+	}
+
+	private boolean isRevoked(final SessionData session) {
+		final Long until = revoked.getIfPresent(session.sessionId);
+		return until != null && session.lastAccessedAt <= until.longValue();
+	}
+
+	/**
+	* Stops this node accepting the cookies of the session last accessed at or before the given time.
+	*/
+	private void revoke(final String sessionId, final long lastAccessedAt) {
+		final Long previous = revoked.getIfPresent(sessionId);
+		revoked.put(sessionId, previous == null ? lastAccessedAt : Math.max(previous.longValue(), lastAccessedAt));
+	}
+
+	private String cookieValue(final HttpServletRequest request) {
+		final Cookie[] cookies = request.getCookies();
+		if(cookies == null) return null;
+		for(Cookie cookie : cookies) {
+			if(cookieName.equals(cookie.getName())) return cookie.getValue();
+		}
+		return null;
+	}
+
+	private void writeCookie(final Exchange exchange, final String value, final int maxAge) {
+		// The Servlet 2.5 Cookie cannot be made HttpOnly, so the header is written out here (the value is URL-safe Base64)
+		final StringBuilder header = new StringBuilder(cookieName.length() + value.length() + 96);
+		header.append(cookieName).append('=').append(value).append("; Path=/");
+		if(maxAge >= 0) {
+			header.append("; Max-Age=").append(maxAge);
+			if(maxAge == 0) header.append("; Expires=Thu, 01 Jan 1970 00:00:00 GMT");
+		}
+		if(secure || exchange.request.isSecure()) header.append("; Secure");
+		header.append("; HttpOnly");
+		exchange.response.addHeader("Set-Cookie", header.toString());
+	}
+
+	private static boolean isExpired(final SessionData session) {
+		return session.lastAccessedAt + TimeUnit.SECONDS.toMillis(session.maxInactiveInterval) < System.currentTimeMillis();
+	}
+
+	/**
+	* Encodes the session as a cookie value, or returns {@code null} if it would be longer than {@link #getMaxCookieBytes()}.
+	*/
+	String encode(final SessionData session) {
+		try {
+			final SerializationBuffers.Buffer plain = SerializationBuffers.acquire(maxCookieBytes);
+			try {
+				OutputStream out = plain;
+				final Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+				if(deflater != null) out = new DeflaterOutputStream(out, deflater);
+				try {
+					final ObjectOutputStream oos = new ObjectOutputStream(out);
+					oos.writeUTF(session.sessionId);
+					oos.writeLong(session.createdAt);
+					oos.writeLong(session.lastAccessedAt);
+					oos.writeInt(session.maxInactiveInterval);
+					oos.writeLong(session.version);
+					oos.writeObject(unwrapped(session.attrs));
+					oos.writeObject(unwrapped(session.localAttrs));
+					oos.close();
+				} finally {
+					if(deflater != null) deflater.end();
+				}
+
+				// Base64 turns 3 bytes into 4: give up before bothering with the crypto
+				final int overhead = 2 + MAC_LENGTH + (encrypt ? IV_LENGTH + 16 : 0);
+				if((plain.length() + overhead + 2) / 3 * 4 > maxCookieBytes) return null;
+
+				final Keys key = keys.get(0);
+				byte[] body;
+				final byte[] iv;
+				if(encrypt) {
+					iv = new byte[IV_LENGTH];
+					random.nextBytes(iv);
+					final Cipher cipher = Cipher.getInstance(CIPHER);
+					cipher.init(Cipher.ENCRYPT_MODE, key.cipher, new IvParameterSpec(iv));
+					body = cipher.doFinal(plain.buffer(), 0, plain.length());
+				} else {
+					iv = new byte[0];
+					body = Arrays.copyOf(plain.buffer(), plain.length());
+				}
+
+				final byte[] bytes = new byte[2 + iv.length + body.length + MAC_LENGTH];
+				bytes[0] = FORMAT;
+				bytes[1] = (byte)((compress ? FLAG_COMPRESSED : 0) | (encrypt ? FLAG_ENCRYPTED : 0));
+				System.arraycopy(iv, 0, bytes, 2, iv.length);
+				System.arraycopy(body, 0, bytes, 2 + iv.length, body.length);
+				final Mac mac = Mac.getInstance(MAC);
+				mac.init(key.mac);
+				mac.update(bytes, 0, bytes.length - MAC_LENGTH);
+				mac.doFinal(bytes, bytes.length - MAC_LENGTH);
+
+				final String value = Base64.encodeBase64URLSafeString(bytes);
+				return value.length() > maxCookieBytes ? null : value;
+			} finally {
+				plain.release();
+			}
+		} catch(IOException ioe) {
+			throw new RuntimeException("IO Exception while encoding the session cookie", ioe);
+		} catch(GeneralSecurityException gse) {
+			throw new IllegalStateException("Could not sign or encrypt the session cookie", gse);
+		}
+	}
+
+	/**
+	* The attributes with the values of {@link DeferredAttribute}s loaded: the cookie has to carry the values themselves,
+	* since the rows they were loaded from are deleted once the session has moved into the cookie.
+	*/
+	private static HashMap<String,Serializable> unwrapped(final Map<String,Serializable> attrs) {
+		final HashMap<String,Serializable> values = new HashMap<String,Serializable>(attrs.size() * 4 / 3 + 1);
+		for(Map.Entry<String,Serializable> entry : attrs.entrySet()) {
+			final Serializable value = DeferredAttribute.unwrap(entry.getValue());
+			if(value != null) values.put(entry.getKey(), value);
+		}
+		return values;
+	}
+
+	/**
+	* Decodes the cookie value, or returns {@code null} if it is not signed by one of the secrets (or is otherwise unusable).
+	* Nothing is deserialized until the signature has been checked.
+	*/
+	SessionData decode(final String value) {
+		try {
+			final byte[] bytes = Base64.decodeBase64(value);
+			if(bytes == null || bytes.length < 2 + MAC_LENGTH || (bytes[0] != FORMAT && bytes[0] != FORMAT_WITHOUT_VERSION)) return null;
+
+			Keys signer = null;
+			final byte[] expected = new byte[MAC_LENGTH];
+			final byte[] actual = Arrays.copyOfRange(bytes, bytes.length - MAC_LENGTH, bytes.length);
+			for(Keys key : keys) {
+				final Mac mac = Mac.getInstance(MAC);
+				mac.init(key.mac);
+				mac.update(bytes, 0, bytes.length - MAC_LENGTH);
+				mac.doFinal(expected, 0);
+				if(MessageDigest.isEqual(expected, actual)) {
+					signer = key;
+					break;
+				}
+			}
+			if(signer == null) {
+				log.debug("Ignoring a session cookie which is not signed by any of the secrets");
+				return null;
+			}
+
+			final boolean compressed = (bytes[1] & FLAG_COMPRESSED) != 0;
+			final boolean encrypted = (bytes[1] & FLAG_ENCRYPTED) != 0;
+			InputStream in;
+			if(encrypted) {
+				final Cipher cipher = Cipher.getInstance(CIPHER);
+				cipher.init(Cipher.DECRYPT_MODE, signer.cipher, new IvParameterSpec(bytes, 2, IV_LENGTH));
+				in = new ByteArrayInputStream(cipher.doFinal(bytes, 2 + IV_LENGTH, bytes.length - 2 - IV_LENGTH - MAC_LENGTH));
+			} else {
+				in = new ByteArrayInputStream(bytes, 2, bytes.length - 2 - MAC_LENGTH);
+			}
+			if(compressed) in = new InflaterInputStream(in);
+
+			final ObjectInputStream ois = new ObjectInputStream(in);
+			try {
+				final String sessionId = ois.readUTF();
+				final long createdAt = ois.readLong();
+				final long lastAccessedAt = ois.readLong();
+				final int maxInactiveInterval = ois.readInt();
+				if(bytes[0] == FORMAT_WITHOUT_VERSION) {
+					@SuppressWarnings("unchecked")
+					final Map<String,Serializable> attrs = (Map<String,Serializable>)ois.readObject();
+					return new SessionData(sessionId, attrs, createdAt, lastAccessedAt, maxInactiveInterval);
+				}
+				final long version = ois.readLong();
+				@SuppressWarnings("unchecked")
+				final Map<String,Serializable> attrs = (Map<String,Serializable>)ois.readObject();
+				@SuppressWarnings("unchecked")
+				final Map<String,Serializable> localAttrs = (Map<String,Serializable>)ois.readObject();
+				return new SessionData(sessionId, attrs, createdAt, lastAccessedAt, maxInactiveInterval, version, null, localAttrs);
+			} finally {
+				ois.close();
+			}
+		} catch(GeneralSecurityException gse) {
+			log.warn("Could not decrypt a signed session cookie", gse);
+			return null;
+		} catch(ClassNotFoundException cnfe) {
+			log.warn("Could not find the class to deserialize the session cookie", cnfe);
+			return null;
+		} catch(IOException ioe) {
+			log.warn("I/O Exception while reading the session cookie", ioe);
+			return null;
+		}
+	}
+
+	/**
+	* Writes the session to the cookie if it fits and the response is not committed yet, and to the fallback persister otherwise.
+	* If the response was committed before a session held in the cookie could be written, the cookie the client has is
+	* revoked, so that this node reads the session from the fallback persister until the cookie is issued again.
+	*/
+	@Override
+	public void persistSession(final SessionData session) {
+		if(session == null) return;
+		final Exchange exchange = exchanges.get();
+		final boolean inCookie = cookieSession(exchange, session.sessionId) != null;
+
+		if(exchange != null && !exchange.response.isCommitted()) {
+			final String value = encode(session);
+			if(value != null) {
+				log.debug("Persisting session " + session.sessionId + " to its cookie (" + value.length() + " bytes)");
+				writeCookie(exchange, value, -1);
+				exchange.cookieSession = session;
+				if(exchange.fromFallback.remove(session.sessionId)) {
+					log.debug("Session " + session.sessionId + " now fits in its cookie: removing it from the fallback persister");
+					fallback.invalidate(session.sessionId);
+				}
+				return;
+			}
+			if(inCookie) {
+				log.debug("Session " + session.sessionId + " no longer fits in its cookie: moving it to the fallback persister");
+				writeCookie(exchange, "", 0);
+				exchange.cookieSession = null;
+			}
+		} else if(inCookie) {
+			log.error(
+				"The response was committed before session " + session.sessionId + " could be written to its cookie: " +
+				"writing it to the fallback persister instead, which only this node knows to read it from"
+			);
+			revoke(session.sessionId, Math.max(session.lastAccessedAt, exchange.cookieSession.lastAccessedAt));
+			exchange.cookieSession = null;
+			exchange.fromFallback.add(session.sessionId);
+		}
+
+		fallback.persistSession(session);
+	}
+
+	/**
+	* Issues the cookie again with the new access time, at most once per {@link #getTouchFraction()} of the {@code maxInactiveInterval}.
+	*/
+	@Override
+	public void touchSession(final String sessionId, final long lastAccessedAt, final int maxInactiveInterval) {
+		final Exchange exchange = exchanges.get();
+		final SessionData session = cookieSession(exchange, sessionId);
+		if(session == null) {
+			fallback.touchSession(sessionId, lastAccessedAt, maxInactiveInterval);
+			return;
+		}
+		final long throttleMillis = (long)(TimeUnit.SECONDS.toMillis(maxInactiveInterval) * touchFraction);
+		if(lastAccessedAt - session.lastAccessedAt < throttleMillis && maxInactiveInterval == session.maxInactiveInterval) {
+			log.debug("Not touching the cookie of session " + sessionId + ": it was touched recently");
+			return;
+		}
+		persistSession(new SessionData(
+			sessionId, session.attrs, session.createdAt, lastAccessedAt, maxInactiveInterval,
+			session.version, session.baseAttributeHashes, session.localAttrs
+		));
+	}
+
+	@Override
+	public SessionData getSessionData(final String sessionId) {
+		final Exchange exchange = exchanges.get();
+		final SessionData session = cookieSession(exchange, sessionId);
+		if(session != null) {
+			if(!isExpired(session)) return session;
+			log.debug("The cookie of session " + sessionId + " has expired");
+			return null;
+		}
+		final SessionData fromFallback = fallback.getSessionData(sessionId);
+		if(fromFallback != null && exchange != null) exchange.fromFallback.add(sessionId);
+		return fromFallback;
+	}
+
+	/**
+	* Sessions held in cookies are only known while their request is being handled, so these go to the fallback persister.
+	*/
+	@Override
+	public Map<String,SessionData> getSessionData(final Collection<String> sessionIds) {
+		return fallback.getSessionData(sessionIds);
+	}
+
+	@Override
+	public void persistSessions(final Collection<SessionData> sessions) {
+		if(exchanges.get() == null) {
+			fallback.persistSessions(sessions);
+			return;
+		}
+		for(SessionData session : sessions) {
+			persistSession(session);
+		}
+	}
+
+	/**
+	* Removes the cookie if the response is not committed yet. A copy of the cookie is only refused by this node: see
+	* {@link #getRevocationSeconds()}.
+	*/
+	@Override
+	public void invalidate(final String sessionId) {
+		final Exchange exchange = exchanges.get();
+		final boolean inCookie = cookieSession(exchange, sessionId) != null;
+		revoke(sessionId, Long.MAX_VALUE);
+		if(!inCookie) {
+			fallback.invalidate(sessionId);
+			return;
+		}
+		if(exchange.response.isCommitted()) {
+			log.warn("The response was committed before the cookie of session " + sessionId + " could be removed: only this node refuses it");
+		} else {
+			writeCookie(exchange, "", 0);
+		}
+		exchange.cookieSession = null;
+	}
+
+	@Override
+	public void invalidateAll(final Collection<String> sessionIds) {
+		for(String sessionId : sessionIds) revoke(sessionId, Long.MAX_VALUE);
+		fallback.invalidateAll(sessionIds);
+	}
+
+	/**
+	* Finds the sessions of the principal in the fallback persister: sessions kept in cookies cannot be found.
+	*/
+	@Override
+	public Set<String> findSessionIds(final String principal) {
+		return fallback.findSessionIds(principal);
+	}
+
+	@Override
+	public Set<String> invalidateByPrincipal(final String principal) {
+		final Set<String> sessionIds = fallback.invalidateByPrincipal(principal);
+		for(String sessionId : sessionIds) revoke(sessionId, Long.MAX_VALUE);
+		return sessionIds;
+	}
+
+	@Override
+	public boolean isValid(final String sessionId) {
+		final SessionData session = cookieSession(exchanges.get(), sessionId);
+		if(session != null) return !isExpired(session);
+		return fallback.isValid(sessionId);
+	}
+
+	/**
+	* Cookies expire by themselves: cleans up the fallback persister.
+	*/
+	@Override
+	public void cleanUp() {
+		fallback.cleanUp();
+	}
+
+}
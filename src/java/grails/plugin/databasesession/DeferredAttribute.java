@@ -0,0 +1,98 @@
+package grails.plugin.databasesession;
+
+import java.io.Serializable;
+
+import javax.servlet.http.HttpSessionActivationListener;
+
+/**
+ * A session attribute value which is stored apart from the rest of the session, and which is only loaded
+ * when it is actually read. The {@link #hashCode()} is that of the value when it was stored until the value
+ * has been loaded, so that {@link SessionHash} does not see a change for attributes nobody has looked at.
+ *
+ * @author Robert Fischer
+ */
+public abstract class DeferredAttribute implements Serializable {
+
+	private static final long serialVersionUID = 1;
+
+	private final int valueHashCode;
+	private final boolean activationListener;
+
+	private transient volatile Serializable value;
+	private transient volatile boolean resolved;
+
+	protected DeferredAttribute(final Serializable value) {
+		this.valueHashCode = value == null ? 0 : value.hashCode();
+		this.activationListener = value instanceof HttpSessionActivationListener;
+		this.value = value;
+		this.resolved = value != null;
+	}
+
+	/**
+	* Loads the value from wherever it is stored. Only called once per instance.
+	*/
+	protected abstract Serializable load();
+
+	/**
+	* Provides the value, loading it if need be.
+	*/
+	public Serializable getValue() {
+		if(!resolved) {
+			synchronized(this) {
+				if(!resolved) {
+					value = load();
+					resolved = true;
+				}
+			}
+		}
+		return value;
+	}
+
+	/**
+	* Whether the value has been loaded (or was provided on construction).
+	*/
+	public boolean isResolved() {
+		return resolved;
+	}
+
+	/**
+	* Whether the value was an {@link HttpSessionActivationListener} when it was stored.
+	*/
+	public boolean isActivationListener() {
+		return activationListener;
+	}
+
+	/**
+	* The {@link Object#hashCode()} of the value when it was stored.
+	*/
+	public int getValueHashCode() {
+		return valueHashCode;
+	}
+
+	/**
+	* Whether the value has been loaded and no longer has the hash code it was stored with.
+	*/
+	public boolean isChanged() {
+		if(!resolved) return false;
+		final Serializable current = value;
+		return (current == null ? 0 : current.hashCode()) != valueHashCode;
+	}
+
+	@Override
+	public int hashCode() {
+		if(resolved) {
+			final Serializable current = value;
+			return current == null ? 0 : current.hashCode();
+		}
+		return valueHashCode;
+	}
+
+	/**
+	* Provides the value of the argument if it is a {@link DeferredAttribute}, and the argument itself otherwise.
+	*/
+	public static Serializable unwrap(final Serializable value) {
+		if(value instanceof DeferredAttribute) return ((DeferredAttribute)value).getValue();
+		return value;
+	}
+
+}
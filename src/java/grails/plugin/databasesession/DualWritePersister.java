@@ -0,0 +1,151 @@
+package grails.plugin.databasesession;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * A {@link Persister} for moving sessions from one store to another without losing them: writes go to both stores,
+ * and reads go to the target, falling back to the source for the sessions which are not there yet. Once every
+ * session has been copied (see {@link SessionMigrator}), {@link #setCutOver(boolean) cutting over} stops using the
+ * source altogether.
+ * <p>
+ * The source is written first, so that it always holds the latest write: {@link SessionMigrator} relies on this to
+ * catch the sessions which were written while it copied them. The target is the store whose versions count, so the
+ * source is written without a compare-and-set.
+ *
+ * @author Robert Fischer
+ */
+public class DualWritePersister implements Persister, InitializingBean {
+
+	private final Logger log = Logger.getLogger(getClass());
+
+	/**
+	* The store being moved away from.
+	*/
+	private volatile Persister source;
+	public Persister getSource() {
+		return source;
+	}
+	public void setSource(Persister source) {
+		this.source = source;
+	}
+
+	/**
+	* The store being moved to.
+	*/
+	private volatile Persister target;
+	public Persister getTarget() {
+		return target;
+	}
+	public void setTarget(Persister target) {
+		this.target = target;
+	}
+
+	/**
+	* Whether the migration is over, so that only the target is used.
+	*/
+	private volatile boolean cutOver = false;
+	public boolean isCutOver() {
+		return cutOver;
+	}
+	public void setCutOver(boolean cutOver) {
+		if(cutOver != this.cutOver) log.info(cutOver ? "Cutting over to the target session store" : "Writing sessions to both stores");
+		this.cutOver = cutOver;
+	}
+
+	public void afterPropertiesSet() {
+		if(source == null) {
+			throw new IllegalStateException("source property must be assigned (cannot be null)");
+		}
+		if(target == null) {
+			throw new IllegalStateException("target property must be assigned (cannot be null)");
+		}
+	}
+
+	@Override
+	public void persistSession(final SessionData session) {
+		if(!cutOver) source.persistSession(session.withVersion(0L));
+		target.persistSession(session);
+	}
+
+	@Override
+	public void persistSessions(final Collection<SessionData> sessions) {
+		if(!cutOver) {
+			final List<SessionData> unversioned = new ArrayList<SessionData>(sessions.size());
+			for(SessionData session : sessions) {
+				if(session != null) unversioned.add(session.withVersion(0L));
+			}
+			source.persistSessions(unversioned);
+		}
+		target.persistSessions(sessions);
+	}
+
+	@Override
+	public void touchSession(final String sessionId, final long lastAccessedAt, final int maxInactiveInterval) {
+		if(!cutOver) source.touchSession(sessionId, lastAccessedAt, maxInactiveInterval);
+		target.touchSession(sessionId, lastAccessedAt, maxInactiveInterval);
+	}
+
+	@Override
+	public SessionData getSessionData(final String sessionId) {
+		final SessionData session = target.getSessionData(sessionId);
+		if(session != null || cutOver) return session;
+		return source.getSessionData(sessionId);
+	}
+
+	@Override
+	public Map<String,SessionData> getSessionData(final Collection<String> sessionIds) {
+		final Map<String,SessionData> found = target.getSessionData(sessionIds);
+		if(cutOver || found.size() == sessionIds.size()) return found;
+		final Set<String> missing = new HashSet<String>(sessionIds);
+		missing.removeAll(found.keySet());
+		if(!missing.isEmpty()) found.putAll(source.getSessionData(missing));
+		return found;
+	}
+
+	@Override
+	public void invalidate(final String sessionId) {
+		if(!cutOver) source.invalidate(sessionId);
+		target.invalidate(sessionId);
+	}
+
+	@Override
+	public void invalidateAll(final Collection<String> sessionIds) {
+		if(!cutOver) source.invalidateAll(sessionIds);
+		target.invalidateAll(sessionIds);
+	}
+
+	@Override
+	public Set<String> findSessionIds(final String principal) {
+		final Set<String> found = new HashSet<String>(target.findSessionIds(principal));
+		if(!cutOver) found.addAll(source.findSessionIds(principal));
+		return found;
+	}
+
+	@Override
+	public Set<String> invalidateByPrincipal(final String principal) {
+		final Set<String> sessionIds = findSessionIds(principal);
+		invalidateAll(sessionIds);
+		return sessionIds;
+	}
+
+	@Override
+	public boolean isValid(final String sessionId) {
+		return target.isValid(sessionId) || (!cutOver && source.isValid(sessionId));
+	}
+
+	@Override
+	public void cleanUp() {
+		if(!cutOver) source.cleanUp();
+		target.cleanUp();
+	}
+
+}
@@ -0,0 +1,37 @@
+package grails.plugin.databasesession;
+
+import java.io.Serializable;
+
+/**
+ * A short-lived attribute value (see {@link AttributePolicy}), which is dropped from the session when it is read
+ * after its expiry time.
+ *
+ * @author Robert Fischer
+ */
+public class ExpiringAttribute extends DeferredAttribute {
+
+	private static final long serialVersionUID = 1;
+
+	private final Serializable storedValue;
+	public final long expiresAt;
+
+	public ExpiringAttribute(final Serializable value, final long expiresAt) {
+		super(value);
+		this.storedValue = value;
+		this.expiresAt = expiresAt;
+	}
+
+	public boolean isExpired(final long now) {
+		return expiresAt <= now;
+	}
+
+	@Override
+	protected Serializable load() {
+		return storedValue;
+	}
+
+	public String toString() {
+		return "ExpiringAttribute[" + expiresAt + "]";
+	}
+
+}
@@ -2,27 +2,52 @@ package grails.plugin.databasesession;
 
 import java.io.Serializable;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.apache.log4j.Logger;
 
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 
 /**
  * Persists data into an in-memory weak hash map. Note that this means that it's easy for session 
  * instances to be lost. But this does make for a fast way to query things right away.
  *
+ * The cache is bounded either by entry count ({@link #setMaximumSize(int)}) or, if {@link #setMaximumBytes(long)}
+ * is assigned, by the serialized size of the sessions. Each entry expires when its session's own 
+ * {@code maxInactiveInterval} has passed, which is tracked on a {@link TimingWheel}.
+ *
+ * If a {@link #setWriteBackTarget(Persister) write-back target} is assigned, changed sessions are only held here, and
+ * are written to the target when they are evicted, at checkpoints every {@link #getMaxUnflushedMillis()}, and on
+ * shutdown. This is only safe with sticky sessions, since other nodes do not see the changes until they are written.
+ * A {@link ChainPersister} does not write to the target of a write-back tier itself.
+ *
  * @author RobertFischer
  */
-public class InMemoryPersister implements Persister, InitializingBean {
+public class InMemoryPersister implements Persister, InitializingBean, DisposableBean {
 
 	private final Logger log = Logger.getLogger(getClass());
 
@@ -45,9 +70,29 @@ public class InMemoryPersister implements Persister, InitializingBean {
 	}
 
 	/**
-	* How soon a session expires after its last access
+	* The most memory (as measured by the serialized size of the sessions) the cache may use. If {@code 0} or less,
+	* the cache is bounded by {@link #getMaximumSize()} instead.
+	*/
+	private volatile long maximumBytes = 0;
+	public void setMaximumBytes(long maximumBytes) {
+		this.maximumBytes = maximumBytes;
+	}
+	public long getMaximumBytes() {
+		return maximumBytes;
+	}
+
+	/**
+	* What a session weighs before it has been written and its size is known, if no other session has been weighed yet.
+	*/
+	private static final int UNKNOWN_SIZE = 1024;
+	private final AtomicLong weighedBytes = new AtomicLong(0);
+	private final AtomicLong weighedCount = new AtomicLong(0);
+
+	/**
+	* How soon a session expires after its last access, regardless of its {@code maxInactiveInterval}. If {@code 0} 
+	* or less (the default), only the {@code maxInactiveInterval} of the session applies.
 	*/
-	private volatile int expiresSeconds = 60;
+	private volatile int expiresSeconds = 0;
 
 	/**
 	* How soon a session expires after its last access
@@ -62,23 +107,415 @@ public class InMemoryPersister implements Persister, InitializingBean {
 		return expiresSeconds;
 	}
 
+	/**
+	* The tier (usually the {@link JdbcPersister}) which changed sessions are written back to. If {@code null}, this 
+	* persister only holds copies of sessions which are written to the other tiers as well.
+	*/
+	private volatile Persister writeBackTarget = null;
+	public Persister getWriteBackTarget() {
+		return writeBackTarget;
+	}
+	public void setWriteBackTarget(Persister writeBackTarget) {
+		this.writeBackTarget = writeBackTarget;
+	}
+
+	public boolean isWriteBack() {
+		return writeBackTarget != null;
+	}
+
+	/**
+	* Reads the principal of the sessions held in memory for {@link #findSessionIds(String)}, which matters in
+	* write-back mode, where changed sessions may not have reached the indexing tier yet. If {@code null}, this
+	* persister finds no sessions by principal (which the chain then evicts by the ids the other tiers find).
+	*/
+	private volatile PrincipalExtractor principalExtractor = null;
+	public PrincipalExtractor getPrincipalExtractor() {
+		return principalExtractor;
+	}
+	public void setPrincipalExtractor(PrincipalExtractor principalExtractor) {
+		this.principalExtractor = principalExtractor;
+	}
+
+	/**
+	* How long a change may stay in memory before it is written back: the interval between checkpoints.
+	*/
+	private volatile long maxUnflushedMillis = 30000;
+	public long getMaxUnflushedMillis() {
+		return maxUnflushedMillis;
+	}
+	public void setMaxUnflushedMillis(long maxUnflushedMillis) {
+		if(maxUnflushedMillis <= 0) throw new IllegalArgumentException("The unflushed time must be positive: " + maxUnflushedMillis);
+		this.maxUnflushedMillis = maxUnflushedMillis;
+	}
+
+	/**
+	* The latest data of the sessions which have changed since they were last written back.
+	*/
+	private final ConcurrentMap<String,SessionData> unflushed = new ConcurrentHashMap<String,SessionData>();
+	private final AtomicLong flushedCount = new AtomicLong(0);
+	private volatile ScheduledExecutorService flusher = null;
+
+	/**
+	* The sessions invalidated while write-backs were in flight, stamped with the invalidation clock, so that a write-back 
+	* of a session taken before it was invalidated does not bring it back. Cleared when no write-back is in flight.
+	*/
+	private final Object flushLock = new Object();
+	private final Map<String,Long> invalidatedAt = new HashMap<String,Long>(); // Guarded by flushLock
+	private int flushesInFlight = 0; // Guarded by flushLock
+	private long invalidationClock = 0L; // Guarded by flushLock
+
+	private final TimingWheel expirations = new TimingWheel(1000, 512);
+	private final AtomicLong expiredCount = new AtomicLong(0);
+	private volatile long nextSweep = 0;
+
 	/**
 	* Creates the cache based on the configuration
 	*/
 	@Override
 	public void afterPropertiesSet() {
-		cache = CacheBuilder.newBuilder() 
-			.maximumSize(maximumSize)
+		final CacheBuilder<Object,Object> builder = CacheBuilder.newBuilder() 
 			.concurrencyLevel(concurrencyLevel)
-			.expireAfterAccess(expiresSeconds, TimeUnit.SECONDS)
 			.initialCapacity(2)
-			.softValues()
+			.recordStats();
+		if(!isWriteBack()) {
+			builder.softValues(); // Unflushed sessions cannot be left to the garbage collector
+		}
+		if(maximumBytes > 0) {
+			builder.maximumWeight(maximumBytes).weigher(new Weigher<String,SessionData>() {
+				public int weigh(String sessionId, SessionData sessionData) {
+					return sizeOf(sessionData);
+				}
+			});
+		} else {
+			builder.maximumSize(maximumSize);
+		}
+		if(expiresSeconds > 0) {
+			builder.expireAfterAccess(expiresSeconds, TimeUnit.SECONDS);
+		}
+		cache = builder
 			.removalListener(new RemovalListener<String, SessionData>() {
 				public void onRemoval(RemovalNotification<String,SessionData> notification) {
 					log.debug("Removing session " + notification.getKey() + " because: " + notification.getCause());
+					if(notification.wasEvicted()) {
+						expirations.cancel(notification.getKey());
+						if(!unflushed.containsKey(notification.getKey())) return;
+						final long stamp = startFlush();
+						final SessionData pending = unflushed.remove(notification.getKey());
+						if(pending != null) {
+							flushLater(pending, stamp);
+						} else {
+							endFlush();
+						}
+					}
 				}
 			})
 			.build();
+
+		if(isWriteBack()) {
+			flusher = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("session-write-back-%d").build()
+			);
+			flusher.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						checkpoint();
+					} catch(RuntimeException re) {
+						log.error("Error while writing back the changed sessions", re);
+					}
+				}
+			}, maxUnflushedMillis, maxUnflushedMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	* Stops the checkpoints, and writes back the sessions which have changed since the last one.
+	*/
+	@Override
+	public void destroy() throws InterruptedException {
+		final ScheduledExecutorService f = flusher;
+		if(f == null) return;
+		f.shutdown();
+		if(!f.awaitTermination(maxUnflushedMillis, TimeUnit.MILLISECONDS)) {
+			log.warn("Gave up waiting on the session write-back thread");
+		}
+		checkpoint();
+	}
+
+	/**
+	* Writes back all the sessions which have changed since they were last written back. Sessions which cannot be
+	* written are kept for the next checkpoint.
+	*/
+	public void checkpoint() {
+		if(!isWriteBack() || unflushed.isEmpty()) return;
+		final long stamp = startFlush();
+		try {
+			final List<SessionData> toFlush = new ArrayList<SessionData>(unflushed.size());
+			for(Map.Entry<String,SessionData> entry : unflushed.entrySet()) {
+				if(unflushed.remove(entry.getKey(), entry.getValue())) toFlush.add(entry.getValue());
+			}
+			flush(toFlush, stamp);
+		} finally {
+			endFlush();
+		}
+	}
+
+	/**
+	* Starts loading sessions from the shared store to {@link #cacheSessionsIfAbsent(Collection, long) cache} them, 
+	* returning the stamp to cache them with. Must be followed by {@link #endLoad()}.
+	*/
+	public long startLoad() {
+		return startFlush();
+	}
+
+	public void endLoad() {
+		endFlush();
+	}
+
+	/**
+	* Caches the sessions loaded from the shared store, except for those which are in memory already (and so at least as
+	* recent) and those invalidated since the load started. Returns the number of sessions cached.
+	*/
+	public int cacheSessionsIfAbsent(Collection<SessionData> sessions, long stamp) {
+		final Set<String> invalidated = invalidatedSince(stamp, sessions);
+		final ConcurrentMap<String,SessionData> map = cache.asMap();
+		int cached = 0;
+		for(SessionData sessionData : sessions) {
+			if(sessionData == null || invalidated.contains(sessionData.sessionId)) continue;
+			if(map.putIfAbsent(sessionData.sessionId, sessionData) != null) continue;
+			scheduleExpiry(sessionData.sessionId, sessionData.lastAccessedAt, sessionData.maxInactiveInterval);
+			cached++;
+		}
+		sweepExpired(System.currentTimeMillis());
+		return cached;
+	}
+
+	/**
+	* Drops the cached copy of the session without deleting it, so that it is read from the shared store next time.
+	* Its changes which have not been written back yet are written back first; if that fails, the copy is kept.
+	*/
+	public void evict(final String sessionId) {
+		evictAll(Collections.singleton(sessionId));
+	}
+
+	/**
+	* Drops the cached copies of the sessions without deleting them (see {@link #evict(String)}). Unlike an invalidation,
+	* this is not recorded for the write-backs in flight, which go ahead.
+	*/
+	public void evictAll(final Collection<String> sessionIds) {
+		if(!unflushed.isEmpty()) {
+			final long stamp = startFlush();
+			try {
+				final List<SessionData> pending = new ArrayList<SessionData>();
+				for(String sessionId : sessionIds) {
+					final SessionData session = unflushed.remove(sessionId);
+					if(session != null) pending.add(session);
+				}
+				flush(pending, stamp);
+			} finally {
+				endFlush();
+			}
+		}
+		for(String sessionId : sessionIds) {
+			if(unflushed.containsKey(sessionId)) {
+				log.warn("Keeping session " + sessionId + " in memory: its changes could not be written back");
+				continue;
+			}
+			expirations.cancel(sessionId);
+			cache.invalidate(sessionId);
+		}
+	}
+
+	/**
+	* Writes back an evicted session on the write-back thread, or on this one if it has been shut down. Ends the
+	* write-back started when it was taken out of the unflushed sessions.
+	*/
+	private void flushLater(final SessionData session, final long stamp) {
+		final Runnable task = new Runnable() {
+			public void run() {
+				try {
+					flush(Collections.singletonList(session), stamp);
+				} finally {
+					endFlush();
+				}
+			}
+		};
+		final ScheduledExecutorService f = flusher;
+		try {
+			if(f != null) {
+				f.execute(task);
+				return;
+			}
+		} catch(RejectedExecutionException ree) {
+			// Shutting down
+		}
+		task.run();
+	}
+
+	/**
+	* Writes the sessions back, leaving out those invalidated since they were taken (at {@code stamp}). The sessions 
+	* invalidated while they were being written are deleted from the target again, since the write may have landed
+	* after the delete.
+	*/
+	private void flush(final List<SessionData> sessions, final long stamp) {
+		if(sessions.isEmpty()) return;
+		// The target has not seen the versions in between, so they cannot be written with a compare-and-set, and the
+		// attributes may have changed since the target last saw them even where the last request did not change them
+		final Set<String> skipped = invalidatedSince(stamp, sessions);
+		final List<SessionData> unversioned = new ArrayList<SessionData>(sessions.size());
+		for(SessionData session : sessions) {
+			if(skipped.contains(session.sessionId)) continue;
+			unversioned.add(new SessionData(
+				session.sessionId, session.attrs, session.createdAt, session.lastAccessedAt, session.maxInactiveInterval,
+				0L, null, session.localAttrs
+			));
+		}
+		if(unversioned.isEmpty()) return;
+		try {
+			writeBackTarget.persistSessions(unversioned);
+			flushedCount.addAndGet(unversioned.size());
+			reweigh(sessions);
+			log.debug("Wrote back " + unversioned.size() + " sessions");
+		} catch(RuntimeException re) {
+			log.error("Error while writing back " + unversioned.size() + " sessions: keeping them for the next checkpoint", re);
+			final Set<String> invalidated = invalidatedSince(stamp, unversioned);
+			for(SessionData session : unversioned) {
+				if(!invalidated.contains(session.sessionId)) unflushed.putIfAbsent(session.sessionId, session);
+			}
+			return;
+		}
+
+		final Set<String> invalidated = invalidatedSince(stamp, unversioned);
+		if(!invalidated.isEmpty()) {
+			log.debug("Deleting " + invalidated.size() + " sessions again: they were invalidated while being written back");
+			writeBackTarget.invalidateAll(invalidated);
+		}
+	}
+
+	/**
+	* Starts a write-back, returning the invalidation clock to check the sessions it takes against.
+	*/
+	private long startFlush() {
+		synchronized(flushLock) {
+			flushesInFlight++;
+			return invalidationClock;
+		}
+	}
+
+	private void endFlush() {
+		synchronized(flushLock) {
+			if(--flushesInFlight == 0) invalidatedAt.clear();
+		}
+	}
+
+	/**
+	* Records the invalidation for the write-backs in flight. Called after the sessions were taken out of the unflushed 
+	* sessions, so a write-back which took one of them before that has already started.
+	*/
+	private void recordInvalidation(final Collection<String> sessionIds) {
+		synchronized(flushLock) {
+			if(flushesInFlight == 0) return;
+			invalidationClock++;
+			for(String sessionId : sessionIds) invalidatedAt.put(sessionId, invalidationClock);
+		}
+	}
+
+	private Set<String> invalidatedSince(final long stamp, final Collection<SessionData> sessions) {
+		final Set<String> found = new HashSet<String>();
+		synchronized(flushLock) {
+			if(invalidatedAt.isEmpty()) return found;
+			for(SessionData session : sessions) {
+				final Long at = invalidatedAt.get(session.sessionId);
+				if(at != null && at.longValue() > stamp) found.add(session.sessionId);
+			}
+		}
+		return found;
+	}
+
+	/**
+	* The serialized size of the session as last written, so that weighing it does not serialize it again on the request
+	* thread. A session whose size is not known yet weighs as much as the sessions weighed so far do on average; it is
+	* weighed by its own size the next time it is stored, or once it has been {@link #reweigh(Collection) written back}.
+	*/
+	private int sizeOf(final SessionData sessionData) {
+		final int hint = SerializationBuffers.sizeHint(sessionData.sessionId);
+		if(hint < 0) {
+			final long count = weighedCount.get();
+			return count == 0 ? UNKNOWN_SIZE : (int)Math.max(1L, weighedBytes.get() / count);
+		}
+		weighedBytes.addAndGet(hint);
+		weighedCount.incrementAndGet();
+		return Math.max(1, hint);
+	}
+
+	/**
+	* Puts the sessions back into the cache if they are still held, so that they are weighed by the size just written.
+	*/
+	private void reweigh(final Collection<SessionData> sessions) {
+		if(maximumBytes <= 0) return;
+		final ConcurrentMap<String,SessionData> map = cache.asMap();
+		for(SessionData session : sessions) {
+			map.replace(session.sessionId, session, session);
+		}
+	}
+
+	/**
+	* Schedules the entry to expire when the session has been inactive for its {@code maxInactiveInterval}.
+	*/
+	private void scheduleExpiry(final String sessionId, final long lastAccessedAt, final int maxInactiveInterval) {
+		if(maxInactiveInterval <= 0) {
+			expirations.cancel(sessionId); // Never expires
+		} else {
+			expirations.schedule(sessionId, lastAccessedAt + TimeUnit.SECONDS.toMillis(maxInactiveInterval));
+		}
+	}
+
+	/**
+	* Drops the entries whose sessions have expired. This is done at most once a second as part of regular use.
+	*/
+	private void sweepExpired(final long now) {
+		if(now < nextSweep) return;
+		nextSweep = now + 1000;
+		for(String sessionId : expirations.advance(now)) {
+			log.debug("Session " + sessionId + " expired from memory");
+			expiredCount.incrementAndGet();
+			unflushed.remove(sessionId);
+			cache.invalidate(sessionId);
+		}
+	}
+
+	/**
+	* The hit, miss, and eviction statistics of the cache.
+	*/
+	public CacheStats getStats() {
+		return cache.stats();
+	}
+
+	/**
+	* The number of entries dropped because their session's {@code maxInactiveInterval} had passed.
+	*/
+	public long getExpiredCount() {
+		return expiredCount.get();
+	}
+
+	/**
+	* The number of sessions with changes which have not been written back yet.
+	*/
+	public int getUnflushedCount() {
+		return unflushed.size();
+	}
+
+	/**
+	* The number of sessions written back so far.
+	*/
+	public long getFlushedCount() {
+		return flushedCount.get();
+	}
+
+	/**
+	* The number of sessions currently held.
+	*/
+	public long getSize() {
+		return cache.size();
 	}
 
 	/**
@@ -89,6 +526,72 @@ public class InMemoryPersister implements Persister, InitializingBean {
 		if(sessionData == null) return;
 		log.debug("Persisting session: " + sessionData);
 		cache.put(sessionData.sessionId, sessionData);
+		if(isWriteBack()) unflushed.put(sessionData.sessionId, sessionData);
+		scheduleExpiry(sessionData.sessionId, sessionData.lastAccessedAt, sessionData.maxInactiveInterval);
+		sweepExpired(System.currentTimeMillis());
+	}
+
+	/**
+	* Holds the session without counting it as changed, for sessions which were just read from or written to the 
+	* next tier. The same as {@link #persistSession(SessionData)} unless this is a write-back tier.
+	*/
+	public void cacheSession(SessionData sessionData) {
+		cacheSessions(Collections.singletonList(sessionData));
+	}
+
+	/**
+	* Holds a session of which only the {@link AttributePolicy.Scope#LOCAL local} attributes changed, so that its stored
+	* state is still the version it was read as: it is held as that version, and this change is not written back. The
+	* data is versioned as {@link SessionData#fromSession} versions it, as the version after the one read.
+	*/
+	public void cacheLocalChanges(SessionData sessionData) {
+		if(sessionData == null) return;
+		final SessionData held = sessionData.withVersion(Math.max(0L, sessionData.version - 1));
+		cache.put(held.sessionId, held);
+		final SessionData pending = unflushed.get(held.sessionId);
+		if(pending != null) unflushed.replace(held.sessionId, pending, held); // Written back with the earlier changes
+		scheduleExpiry(held.sessionId, held.lastAccessedAt, held.maxInactiveInterval);
+		sweepExpired(System.currentTimeMillis());
+	}
+
+	/**
+	* Holds the sessions without counting them as changed (see {@link #cacheSession(SessionData)}).
+	*/
+	public void cacheSessions(Collection<SessionData> sessions) {
+		for(SessionData sessionData : sessions) {
+			if(sessionData == null) continue;
+			cache.put(sessionData.sessionId, sessionData);
+			scheduleExpiry(sessionData.sessionId, sessionData.lastAccessedAt, sessionData.maxInactiveInterval);
+		}
+		sweepExpired(System.currentTimeMillis());
+	}
+
+	/**
+	* Counts as an access of the cached entry, so that it does not expire while the session is in use. The entry (and
+	* the unflushed session, so that it is written back with it) takes the access time along, since
+	* {@link SessionProxy} checks it against the {@code maxInactiveInterval} of sessions read from here.
+	*/
+	@Override
+	public void touchSession(String sessionId, long lastAccessedAt, int maxInactiveInterval) {
+		final SessionData cached = cache.getIfPresent(sessionId);
+		if(cached == null) return;
+		scheduleExpiry(sessionId, lastAccessedAt, maxInactiveInterval);
+		if(cached.lastAccessedAt >= lastAccessedAt) return;
+
+		final SessionData pending = unflushed.get(sessionId);
+		if(pending == null) {
+			cache.asMap().replace(sessionId, cached, touched(cached, lastAccessedAt, maxInactiveInterval));
+		} else if(pending.lastAccessedAt < lastAccessedAt) {
+			final SessionData touched = touched(pending, lastAccessedAt, maxInactiveInterval);
+			if(unflushed.replace(sessionId, pending, touched)) cache.asMap().replace(sessionId, pending, touched);
+		}
+	}
+
+	private static SessionData touched(final SessionData session, final long lastAccessedAt, final int maxInactiveInterval) {
+		return new SessionData(
+			session.sessionId, session.attrs, session.createdAt, lastAccessedAt, maxInactiveInterval,
+			session.version, session.baseAttributeHashes, session.localAttrs
+		);
 	}
 
 	/**
@@ -96,11 +599,81 @@ public class InMemoryPersister implements Persister, InitializingBean {
 	*/
 	@Override
 	public SessionData getSessionData(String sessionId) {
+		final long now = System.currentTimeMillis();
+		sweepExpired(now);
+		if(expirations.isExpired(sessionId, now)) {
+			log.debug("Session " + sessionId + " has expired in memory");
+			expirations.cancel(sessionId);
+			expiredCount.incrementAndGet();
+			unflushed.remove(sessionId);
+			cache.invalidate(sessionId);
+			return null;
+		}
 		SessionData result = cache.getIfPresent(sessionId);
 		log.debug("Retrieving session data " + sessionId + ": " + result);
 		return result;
 	}
 
+	@Override
+	public void persistSessions(Collection<SessionData> sessions) {
+		for(SessionData sessionData : sessions) {
+			if(sessionData == null) continue;
+			cache.put(sessionData.sessionId, sessionData);
+			if(isWriteBack()) unflushed.put(sessionData.sessionId, sessionData);
+			scheduleExpiry(sessionData.sessionId, sessionData.lastAccessedAt, sessionData.maxInactiveInterval);
+		}
+		sweepExpired(System.currentTimeMillis());
+	}
+
+	@Override
+	public Map<String,SessionData> getSessionData(Collection<String> sessionIds) {
+		final long now = System.currentTimeMillis();
+		sweepExpired(now);
+		final Map<String,SessionData> found = new HashMap<String,SessionData>(cache.getAllPresent(sessionIds));
+		for(String sessionId : sessionIds) {
+			if(found.containsKey(sessionId) && expirations.isExpired(sessionId, now)) {
+				found.remove(sessionId);
+				expirations.cancel(sessionId);
+				expiredCount.incrementAndGet();
+				unflushed.remove(sessionId);
+				cache.invalidate(sessionId);
+			}
+		}
+		return found;
+	}
+
+	@Override
+	public void invalidateAll(Collection<String> sessionIds) {
+		log.debug("Invalidating " + sessionIds.size() + " sessions");
+		for(String sessionId : sessionIds) {
+			expirations.cancel(sessionId);
+			unflushed.remove(sessionId);
+		}
+		recordInvalidation(sessionIds);
+		cache.invalidateAll(sessionIds);
+	}
+
+	/**
+	* Scans the sessions held in memory for those of the principal.
+	*/
+	@Override
+	public Set<String> findSessionIds(String principal) {
+		final PrincipalExtractor extractor = principalExtractor;
+		final Set<String> found = new HashSet<String>();
+		if(extractor == null || principal == null) return found;
+		for(SessionData session : cache.asMap().values()) {
+			if(principal.equals(extractor.principalOf(session.attrs))) found.add(session.sessionId);
+		}
+		return found;
+	}
+
+	@Override
+	public Set<String> invalidateByPrincipal(String principal) {
+		final Set<String> sessionIds = findSessionIds(principal);
+		invalidateAll(sessionIds);
+		return sessionIds;
+	}
+
 	/**
 	 * Delete a session and its attributes.
 	 * @param sessionId the session id
@@ -108,6 +681,9 @@ public class InMemoryPersister implements Persister, InitializingBean {
 	@Override
 	public void invalidate(String sessionId) {
 		log.debug("Invalidating session " + sessionId);
+		expirations.cancel(sessionId);
+		unflushed.remove(sessionId);
+		recordInvalidation(Collections.singleton(sessionId));
 		cache.invalidate(sessionId);
 	}
 
@@ -123,6 +699,8 @@ public class InMemoryPersister implements Persister, InitializingBean {
 
 	@Override
 	public void cleanUp() {
+		nextSweep = 0;
+		sweepExpired(System.currentTimeMillis());
 		cache.cleanUp();
 	}
 
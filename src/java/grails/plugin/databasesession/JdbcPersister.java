@@ -3,13 +3,16 @@ package grails.plugin.databasesession;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.sql.*;
 
-import java.security.MessageDigest;
-import java.security.DigestOutputStream;
-
+import com.google.common.base.Function;
 import com.google.common.base.Predicates;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Collections2;
+import com.google.common.collect.Lists;
+import com.google.common.io.CountingInputStream;
 
 import org.apache.commons.io.IOUtils;
 
@@ -21,6 +24,7 @@ import org.springframework.jdbc.core.*;
 import org.springframework.transaction.*;
 import org.springframework.transaction.support.*;
 
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 
 
@@ -30,7 +34,7 @@ import org.springframework.beans.factory.InitializingBean;
  * 
  * @author Robert Fischer
  */
-public class JdbcPersister implements Persister, InitializingBean {
+public class JdbcPersister implements Persister, InitializingBean, DisposableBean {
 
 	private static final Logger log = Logger.getLogger(JdbcPersister.class);
 
@@ -93,6 +97,354 @@ public class JdbcPersister implements Persister, InitializingBean {
 		}
 	}
 
+	/**
+	* Whether session data is streamed to and from the driver ({@code setBinaryStream}/{@code getBinaryStream}) 
+	* instead of being bound as a {@code byte[]} of {@link #getSqlBinaryType()}.
+	*/
+	private volatile boolean streamBinaryData = true;
+	public boolean isStreamBinaryData() {
+		return streamBinaryData;
+	}
+	public void setStreamBinaryData(boolean streamBinaryData) {
+		this.streamBinaryData = streamBinaryData;
+	}
+
+	/**
+	* Attributes whose serialized form is larger than this many bytes are written to the spill table, and are only
+	* loaded when they are read. A value of {@code 0} or less disables the spill table.
+	*/
+	private volatile int spillThreshold = 0;
+	public int getSpillThreshold() {
+		return spillThreshold;
+	}
+	public void setSpillThreshold(int spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	private volatile String spillTableName = null;
+	public String getSpillTableName() {
+		return spillTableName == null ? getTableName() + "Spill" : spillTableName;
+	}
+	public void setSpillTableName(String spillTableName) {
+		this.spillTableName = spillTableName;
+	}
+
+	private boolean isSpilling() {
+		return spillThreshold > 0;
+	}
+
+	/**
+	* Spill rows are keyed by the attribute name and the stamp of the write, so that a write never overwrites a row which
+	* a reader of the previous session row may still load.
+	*/
+	private static final char SPILL_KEY_SEPARATOR = '#';
+	private final AtomicLong spillStamps = new AtomicLong(0L);
+
+	/**
+	* The spill keys which the row of each session referred to when this node last read or wrote it, so that a write can
+	* drop the spill rows it replaces without reading the keys back. Rows written by another node in between are left to
+	* {@link #cleanUp()} once their session is gone.
+	*/
+	private final Cache<String,Set<String>> knownSpillKeys = CacheBuilder.newBuilder()
+		.maximumSize(100000)
+		.expireAfterAccess(1, TimeUnit.DAYS)
+		.build();
+
+	/**
+	* Attributes whose serialized form is larger than this many bytes are written once to the shared value table, keyed 
+	* by their digest, so that sessions holding equal values share one copy. A value of {@code 0} or less disables sharing.
+	*/
+	private volatile int sharedThreshold = 0;
+	public int getSharedThreshold() {
+		return sharedThreshold;
+	}
+	public void setSharedThreshold(int sharedThreshold) {
+		this.sharedThreshold = sharedThreshold;
+	}
+
+	private volatile String sharedTableName = null;
+	public String getSharedTableName() {
+		return sharedTableName == null ? getTableName() + "Shared" : sharedTableName;
+	}
+	public void setSharedTableName(String sharedTableName) {
+		this.sharedTableName = sharedTableName;
+	}
+
+	/**
+	* The table recording which sessions refer to which shared values, which is what garbage collection goes by.
+	*/
+	private volatile String sharedRefTableName = null;
+	public String getSharedRefTableName() {
+		return sharedRefTableName == null ? getTableName() + "SharedRefs" : sharedRefTableName;
+	}
+	public void setSharedRefTableName(String sharedRefTableName) {
+		this.sharedRefTableName = sharedRefTableName;
+	}
+
+	/**
+	* How long a shared value is kept after it was last written, even if no session refers to it (yet).
+	*/
+	private volatile int sharedGraceSeconds = 3600;
+	public int getSharedGraceSeconds() {
+		return sharedGraceSeconds;
+	}
+	public void setSharedGraceSeconds(int sharedGraceSeconds) {
+		this.sharedGraceSeconds = sharedGraceSeconds;
+	}
+
+	/**
+	* The serialized form of the shared values lately loaded, most recently used first. Each load deserializes its own
+	* copy, so that a session changing its value in place does not change it for the other sessions sharing it.
+	*/
+	private volatile Cache<String,byte[]> sharedValues = buildSharedValueCache(1000);
+	public void setSharedCacheSize(int sharedCacheSize) {
+		this.sharedValues = buildSharedValueCache(sharedCacheSize);
+	}
+
+	private static Cache<String,byte[]> buildSharedValueCache(final int size) {
+		if(size < 0) throw new IllegalArgumentException("The shared value cache size cannot be negative: " + size);
+		return CacheBuilder.newBuilder().maximumSize(size).<String,byte[]>build();
+	}
+
+	private boolean isSharing() {
+		return sharedThreshold > 0;
+	}
+
+	/**
+	* Reads the principal of each session as it is written, so that sessions can be found by it. If {@code null},
+	* sessions are not indexed by principal.
+	*/
+	private volatile PrincipalExtractor principalExtractor = null;
+	public PrincipalExtractor getPrincipalExtractor() {
+		return principalExtractor;
+	}
+	public void setPrincipalExtractor(PrincipalExtractor principalExtractor) {
+		this.principalExtractor = principalExtractor;
+	}
+
+	/**
+	* The table holding the principal of each session which has one.
+	*/
+	private volatile String principalTableName = null;
+	public String getPrincipalTableName() {
+		return principalTableName == null ? getTableName() + "Principals" : principalTableName;
+	}
+	public void setPrincipalTableName(String principalTableName) {
+		this.principalTableName = principalTableName;
+	}
+
+	private boolean isIndexingPrincipals() {
+		return principalExtractor != null;
+	}
+
+	private static final int MAX_PRINCIPAL_LENGTH = 255;
+
+	/**
+	* The fraction of a session's {@code maxInactiveInterval} which has to pass before an unchanged session is touched 
+	* again. A value of {@code 0} touches on every request.
+	*/
+	private volatile double touchFraction = 0.25;
+	public double getTouchFraction() {
+		return touchFraction;
+	}
+	public void setTouchFraction(double touchFraction) {
+		if(touchFraction < 0.0 || touchFraction > 1.0) {
+			throw new IllegalArgumentException("The touch fraction must be in [0,1]: " + touchFraction);
+		}
+		this.touchFraction = touchFraction;
+	}
+
+	/**
+	* When each session was last written or touched by this node, used to throttle touches.
+	*/
+	private final Cache<String,Long> lastTouched = CacheBuilder.newBuilder()
+		.maximumSize(100000)
+		.expireAfterWrite(1, TimeUnit.DAYS)
+		.build();
+
+	/**
+	* Whether writes and invalidations are appended to the change table, so that other nodes can evict their 
+	* local copies (see {@link ChangeFeedPoller}).
+	*/
+	private volatile boolean changeFeedEnabled = false;
+	public boolean isChangeFeedEnabled() {
+		return changeFeedEnabled;
+	}
+	public void setChangeFeedEnabled(boolean changeFeedEnabled) {
+		this.changeFeedEnabled = changeFeedEnabled;
+	}
+
+	private volatile String changeTableName = null;
+	public String getChangeTableName() {
+		return changeTableName == null ? getTableName() + "Changes" : changeTableName;
+	}
+	public void setChangeTableName(String changeTableName) {
+		this.changeTableName = changeTableName;
+	}
+
+	/**
+	* The column type of the auto-generated sequence number of the change table, such as {@code BIGSERIAL} for PostgreSQL.
+	*/
+	private volatile String changeSequenceType = "BIGINT AUTO_INCREMENT";
+	public String getChangeSequenceType() {
+		return changeSequenceType;
+	}
+	public void setChangeSequenceType(String changeSequenceType) {
+		if(changeSequenceType == null) {
+			this.changeSequenceType = "BIGINT AUTO_INCREMENT";
+		} else {
+			this.changeSequenceType = changeSequenceType;
+		}
+	}
+
+	/**
+	* How long entries are kept in the change table.
+	*/
+	private volatile int changeRetentionSeconds = 3600;
+	public int getChangeRetentionSeconds() {
+		return changeRetentionSeconds;
+	}
+	public void setChangeRetentionSeconds(int changeRetentionSeconds) {
+		this.changeRetentionSeconds = changeRetentionSeconds;
+	}
+
+	/**
+	* Identifies this node in the change table.
+	*/
+	private volatile String nodeId = UUID.randomUUID().toString();
+	public String getNodeId() {
+		return nodeId;
+	}
+	public void setNodeId(String nodeId) {
+		if(nodeId == null) throw new IllegalArgumentException("Cannot assign a null nodeId property");
+		this.nodeId = nodeId;
+	}
+
+	/**
+	* The most sessions handled by one batched statement or {@code IN (...)} list.
+	*/
+	private volatile int batchSize = 500;
+	public int getBatchSize() {
+		return batchSize;
+	}
+	public void setBatchSize(int batchSize) {
+		if(batchSize <= 0) throw new IllegalArgumentException("The batch size must be positive: " + batchSize);
+		this.batchSize = batchSize;
+	}
+
+	/**
+	* Whether the driver reports the update counts of batched statements: once it is seen not to, the compare-and-set
+	* writes are no longer batched, since a conflict could not be told from a write.
+	*/
+	private volatile boolean batchCountsReported = true;
+
+	/**
+	* Whether sessions are written with a compare-and-set on their version, merging the attributes changed by concurrent
+	* requests instead of overwriting them.
+	*/
+	private volatile boolean optimisticLocking = false;
+	public boolean isOptimisticLocking() {
+		return optimisticLocking;
+	}
+	public void setOptimisticLocking(boolean optimisticLocking) {
+		this.optimisticLocking = optimisticLocking;
+	}
+
+	/**
+	* How many times a conflicting write is merged and retried before it is given up, keeping the stored session.
+	*/
+	private volatile int maxMergeAttempts = 3;
+	public int getMaxMergeAttempts() {
+		return maxMergeAttempts;
+	}
+	public void setMaxMergeAttempts(int maxMergeAttempts) {
+		if(maxMergeAttempts < 0) throw new IllegalArgumentException("The merge attempts cannot be negative: " + maxMergeAttempts);
+		this.maxMergeAttempts = maxMergeAttempts;
+	}
+
+	/**
+	* The node-local tier (usually the {@link InMemoryPersister}) which is given the merged session after a conflict,
+	* since the copy it was given beforehand did not have the changes of the other request.
+	*/
+	private volatile Persister localPersister = null;
+	public Persister getLocalPersister() {
+		return localPersister;
+	}
+	public void setLocalPersister(Persister localPersister) {
+		this.localPersister = localPersister;
+	}
+
+	/**
+	* What this node knows of which sessions are stored, which {@link #isValid(String)} and 
+	* {@link #persistSession(SessionData)} answer from before asking the database. {@code null} to always ask it.
+	*/
+	private volatile SessionMembership membership = null;
+	public SessionMembership getMembership() {
+		return membership;
+	}
+	public void setMembership(SessionMembership membership) {
+		this.membership = membership;
+	}
+
+	/**
+	* How session ids are stored in the session and spill tables: {@code string} (the default) stores them as they are, 
+	* while the compact formats store them as fixed-length binary keys, along with the session hash as 32 raw bytes
+	* instead of 64 hex digits. The compact formats are {@code uuid} for ids which are UUIDs ({@code BINARY(16)}), and 
+	* {@code hex} for ids of {@link #getKeyLength()} bytes written in hex digits, such as the ones the servlet container
+	* generates. Sessions whose ids do not fit the format are kept with string keys in the 
+	* {@link #getKeyFallbackTableName() key fallback table}. Use {@link #migrateKeys(String, String)} to convert an existing table.
+	*/
+	private volatile String keyFormat = "string";
+	public String getKeyFormat() {
+		return keyFormat;
+	}
+	public void setKeyFormat(String keyFormat) {
+		this.keyCodec = SessionKeyCodec.forFormat(keyFormat, keyLength, upperCaseKeys);
+		this.keyFormat = keyFormat == null ? "string" : keyFormat;
+	}
+
+	/**
+	* The length in bytes of {@code hex} keys.
+	*/
+	private volatile int keyLength = 16;
+	public int getKeyLength() {
+		return keyLength;
+	}
+	public void setKeyLength(int keyLength) {
+		this.keyCodec = SessionKeyCodec.forFormat(keyFormat, keyLength, upperCaseKeys);
+		this.keyLength = keyLength;
+	}
+
+	/**
+	* Whether {@code hex} ids are written with upper case digits (as Tomcat does) rather than lower case ones.
+	*/
+	private volatile boolean upperCaseKeys = true;
+	public boolean isUpperCaseKeys() {
+		return upperCaseKeys;
+	}
+	public void setUpperCaseKeys(boolean upperCaseKeys) {
+		this.keyCodec = SessionKeyCodec.forFormat(keyFormat, keyLength, upperCaseKeys);
+		this.upperCaseKeys = upperCaseKeys;
+	}
+
+	private volatile SessionKeyCodec keyCodec = SessionKeyCodec.STRING;
+
+	/**
+	* The table of the sessions whose ids do not fit a compact {@link #getKeyFormat() key format} (such as Tomcat ids with
+	* a {@code .jvmRoute} suffix), which are kept there with string keys rather than lost. Its spill, shared value, and
+	* principal tables are named after it. It is not created for the {@code string} format, and the change feed, the
+	* warm-up, and the migration do not cover it. Defaults to the {@link #getTableName() table name} plus {@code StringKeys}.
+	*/
+	private volatile String keyFallbackTableName = null;
+	public String getKeyFallbackTableName() {
+		return keyFallbackTableName == null ? getTableName() + "StringKeys" : keyFallbackTableName;
+	}
+	public void setKeyFallbackTableName(String keyFallbackTableName) {
+		this.keyFallbackTableName = keyFallbackTableName;
+	}
+
+	private volatile JdbcPersister keyFallback = null;
+
 	public void afterPropertiesSet() {
 		if(jdbcTemplate == null) {
 			throw new IllegalStateException("jdbcTemplate property must be assigned (cannot be null)");
@@ -106,8 +458,63 @@ public class JdbcPersister implements Persister, InitializingBean {
 		log.debug("Transaction template configuration: " + 
 			transactionTemplate.getIsolationLevel() + " - " + transactionTemplate.getPropagationBehavior()
 		);
-		getMessageDigest(); // Make sure it works
+		SerializationBuffers.newMessageDigest(); // Make sure it works
 		createTable();
+		keyFallback = keyCodec.isCompact() ? createKeyFallback() : null;
+	}
+
+	/**
+	* The persister of the sessions whose ids do not fit the key format: configured like this one, with string keys.
+	*/
+	private JdbcPersister createKeyFallback() {
+		final JdbcPersister fallback = new JdbcPersister();
+		fallback.setJdbcTemplate(jdbcTemplate);
+		fallback.setTransactionTemplate(transactionTemplate);
+		fallback.setTableName(getKeyFallbackTableName());
+		fallback.setCurrentTimestampDbFunction(nowFunc);
+		fallback.setBinaryType(binaryType);
+		fallback.setSqlBinaryType(sqlBinaryType);
+		fallback.setStreamBinaryData(streamBinaryData);
+		fallback.setSpillThreshold(spillThreshold);
+		fallback.setSharedThreshold(sharedThreshold);
+		fallback.setSharedGraceSeconds(sharedGraceSeconds);
+		fallback.setPrincipalExtractor(principalExtractor);
+		fallback.setTouchFraction(touchFraction);
+		fallback.setBatchSize(batchSize);
+		fallback.setOptimisticLocking(optimisticLocking);
+		fallback.setMaxMergeAttempts(maxMergeAttempts);
+		fallback.setLocalPersister(localPersister);
+		fallback.setMembership(membership);
+		fallback.setNodeId(nodeId);
+		fallback.afterPropertiesSet();
+		log.info("Sessions whose ids do not fit the " + keyFormat + " key format are kept in " + fallback.getTableName());
+		return fallback;
+	}
+
+	/**
+	* Whether the session is kept by the {@link #getKeyFallbackTableName() key fallback}.
+	*/
+	private boolean isUnfit(final String sessionId) {
+		return keyFallback != null && sessionId != null && !keyCodec.canEncode(sessionId);
+	}
+
+	/**
+	* The distinct ids kept by the {@link #getKeyFallbackTableName() key fallback}.
+	*/
+	private List<String> unfitIds(final Collection<String> sessionIds) {
+		final List<String> unfit = new ArrayList<String>();
+		if(keyFallback == null) return unfit;
+		for(String sessionId : new LinkedHashSet<String>(sessionIds)) {
+			if(isUnfit(sessionId)) unfit.add(sessionId);
+		}
+		return unfit;
+	}
+
+	/**
+	* Drops the pooled serialization buffers.
+	*/
+	public void destroy() {
+		SerializationBuffers.clear();
 	}
 
 	public void createTable() {
@@ -115,137 +522,795 @@ public class JdbcPersister implements Persister, InitializingBean {
 		try {
 			jdbcTemplate.execute(
 				"CREATE TABLE IF NOT EXISTS " + getTableName() + " (\n" +
-					"sessionId VARCHAR(255) NOT NULL PRIMARY KEY,\n" +
-					"sessionHash CHAR(64) NOT NULL,\n" + 
+					"sessionId " + keyCodec.columnType() + " NOT NULL PRIMARY KEY,\n" +
+					"sessionHash " + (keyCodec.isCompact() ? "BINARY(32)" : "CHAR(64)") + " NOT NULL,\n" + 
 					"sessionData " + getBinaryType() + " NOT NULL,\n" +
 					"createdAt TIMESTAMP NOT NULL,\n"+
 					"lastAccessedAt TIMESTAMP NOT NULL,\n"+
-					"maxInactiveInterval INT NOT NULL\n"
+					"maxInactiveInterval INT NOT NULL,\n"+
+					"version BIGINT DEFAULT 0 NOT NULL\n"
 				+")"
 			);
 			log.info("If not already present, created the table for sessions: " + getTableName());
 		} catch(Exception e) {
 			log.warn("Unknown error while creating the table for sessions", e);
 		}
-	}
+		try {
+			jdbcTemplate.execute(
+				"CREATE INDEX " + getTableName() + "ByLastAccessedAt ON " + getTableName() + " (lastAccessedAt)"
+			);
+			log.info("Created the index by last access time of " + getTableName());
+		} catch(Exception e) {
+			log.debug("Did not create the index by last access time (it is most likely there already)", e);
+		}
+
+		if(optimisticLocking) {
+			try {
+				jdbcTemplate.execute("ALTER TABLE " + getTableName() + " ADD COLUMN version BIGINT DEFAULT 0 NOT NULL");
+				log.info("Added the version column to the table for sessions: " + getTableName());
+			} catch(Exception e) {
+				log.debug("Did not add the version column to the table for sessions (it is most likely there already)", e);
+			}
+		}
+
+		if(changeFeedEnabled) {
+			try {
+				jdbcTemplate.execute(
+					"CREATE TABLE IF NOT EXISTS " + getChangeTableName() + " (\n" +
+						"seq " + getChangeSequenceType() + " NOT NULL PRIMARY KEY,\n" +
+						"sessionId VARCHAR(255) NOT NULL,\n" +
+						"nodeId VARCHAR(64) NOT NULL,\n" +
+						"changedAt TIMESTAMP NOT NULL\n"
+					+")"
+				);
+				log.info("If not already present, created the change table for sessions: " + getChangeTableName());
+			} catch(Exception e) {
+				log.warn("Unknown error while creating the change table for sessions", e);
+			}
+		}
+
+		if(isSharing()) {
+			try {
+				jdbcTemplate.execute(
+					"CREATE TABLE IF NOT EXISTS " + getSharedTableName() + " (\n" +
+						"digest CHAR(64) NOT NULL PRIMARY KEY,\n" +
+						"valueData " + getBinaryType() + " NOT NULL,\n" +
+						"referencedAt TIMESTAMP NOT NULL\n"
+					+")"
+				);
+				jdbcTemplate.execute(
+					"CREATE TABLE IF NOT EXISTS " + getSharedRefTableName() + " (\n" +
+						"sessionId " + keyCodec.columnType() + " NOT NULL,\n" +
+						"attributeName VARCHAR(255) NOT NULL,\n" +
+						"digest CHAR(64) NOT NULL,\n" +
+						"PRIMARY KEY (sessionId, attributeName)\n"
+					+")"
+				);
+				log.info("If not already present, created the tables for shared session attributes: " + getSharedTableName());
+			} catch(Exception e) {
+				log.warn("Unknown error while creating the tables for shared session attributes", e);
+			}
+		}
+
+		if(isIndexingPrincipals()) {
+			try {
+				jdbcTemplate.execute(
+					"CREATE TABLE IF NOT EXISTS " + getPrincipalTableName() + " (\n" +
+						"sessionId " + keyCodec.columnType() + " NOT NULL PRIMARY KEY,\n" +
+						"principal VARCHAR(" + MAX_PRINCIPAL_LENGTH + ") NOT NULL\n"
+					+")"
+				);
+				log.info("If not already present, created the principal table for sessions: " + getPrincipalTableName());
+			} catch(Exception e) {
+				log.warn("Unknown error while creating the principal table for sessions", e);
+			}
+			try {
+				jdbcTemplate.execute(
+					"CREATE INDEX " + getPrincipalTableName() + "ByPrincipal ON " + getPrincipalTableName() + " (principal)"
+				);
+				log.info("Created the index by principal of " + getPrincipalTableName());
+			} catch(Exception e) {
+				log.debug("Did not create the index by principal (it is most likely there already)", e);
+			}
+		}
 
-	private static final String algorithm = "SHA-256";
-	private static MessageDigest getMessageDigest() {
+		if(!isSpilling()) return;
 		try {
-			return MessageDigest.getInstance(algorithm);
-		} catch(java.security.NoSuchAlgorithmException nsae) {
-			throw new RuntimeException("Could not find " + algorithm + " on your virtual machine", nsae);	
+			jdbcTemplate.execute(
+				"CREATE TABLE IF NOT EXISTS " + getSpillTableName() + " (\n" +
+					"sessionId " + keyCodec.columnType() + " NOT NULL,\n" +
+					"attributeName VARCHAR(255) NOT NULL,\n" +
+					"attributeData " + getBinaryType() + " NOT NULL,\n" +
+					"PRIMARY KEY (sessionId, attributeName)\n"
+				+")"
+			);
+			log.info("If not already present, created the spill table for large session attributes: " + getSpillTableName());
+		} catch(Exception e) {
+			log.warn("Unknown error while creating the spill table for large session attributes", e);
+		}
+	}
+
+	/**
+	* A value kept apart from the session row, serialized under its spill key or shared digest.
+	*/
+	private static final class LargeValue {
+		public final String key;
+		public final SerializationBuffers.Buffer bytes;
+
+		public LargeValue(final String key, final SerializationBuffers.Buffer bytes) {
+			this.key = key;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	* The attributes kept apart from the session row, with the references to them which the row holds instead.
+	*/
+	private static final class LargeAttributes {
+		public final Set<String> spillKeys = new HashSet<String>();
+		public final List<LargeValue> spills = new ArrayList<LargeValue>();
+		public final Map<String,String> sharedRefs = new HashMap<String,String>();
+		public final Set<String> changedRefs = new HashSet<String>();
+		public final List<LargeValue> shares = new ArrayList<LargeValue>();
+
+		public int length() {
+			int length = 0;
+			for(LargeValue value : spills) length += value.bytes.length();
+			for(LargeValue value : shares) length += value.bytes.length();
+			return length;
+		}
+
+		public void release() {
+			for(LargeValue value : spills) value.bytes.release();
+			for(LargeValue value : shares) value.bytes.release();
 		}
 	}
 
+	private static final LargeAttributes NO_LARGE_ATTRIBUTES = new LargeAttributes();
+
 	private static final class SessionBytes {
 		public final SessionData session;
-		public final String hash;
+		public final byte[] hash;
 		public final byte[] bytes;
+		public final int length;
+		public final Set<String> spillKeys;
+		public final long spillStamp;
+		public final Map<String,String> sharedRefs;
+		public final Set<String> changedRefs;
+		public final LargeAttributes large;
+		public final boolean principalChanged;
+		public final String principal;
+		private final SerializationBuffers.Buffer buffer;
+		private volatile boolean largeValuesWritten = false;
 
-		public SessionBytes(final SessionData session, final byte[] hashBytes, final byte[] dataBytes) {
+		public SessionBytes(final SessionData session, final byte[] hashBytes, final SerializationBuffers.Buffer buffer, final long spillStamp, final LargeAttributes large, final boolean principalChanged, final String principal) {
 			this.session = session;
-			this.bytes = dataBytes;
+			this.principalChanged = principalChanged;
+			this.principal = principal;
+			this.large = large;
+			this.sharedRefs = large.sharedRefs;
+			this.changedRefs = large.changedRefs;
+			this.buffer = buffer;
+			this.bytes = buffer.buffer();
+			this.length = buffer.length();
+			this.spillKeys = large.spillKeys;
+			this.spillStamp = spillStamp;
+			this.hash = hashBytes;
+		}
 
-			String hashStr = "";
-			for(byte b : hashBytes) hashStr = hashStr + String.format("%02X", (int)b & 0xff);
-			this.hash = hashStr;
+		/**
+		* Hands the serialization buffers back to the pool: the bytes must not be used afterwards.
+		*/
+		public void release() {
+			buffer.release();
+			large.release();
 		}
 	}
 
-	private static SessionBytes sessionToBytes(SessionData session) {
+	private static SerializationBuffers.Buffer serialize(final Object value, final SerializationBuffers.Buffer buffer) throws IOException {
+		final ObjectOutputStream oos = new ObjectOutputStream(buffer);
+		oos.writeObject(value);
+		oos.close();
+		return buffer;
+	}
+
+	/**
+	* Serializes the attributes into a pooled buffer sized from the last write of the session. When spilling or sharing,
+	* a session which may hold large attributes has each of them serialized once: the large ones are kept apart under
+	* their keys, to be written along with the row, and the row is then serialized from the small ones and the references.
+	*/
+	private SessionBytes sessionToBytes(SessionData session) {
+		keyCodec.checkEncodable(session.sessionId);
+		final String sessionId = session.sessionId;
+		SerializationBuffers.Buffer buffer = null;
+		LargeAttributes large = NO_LARGE_ATTRIBUTES;
 		try {	
-			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			final DigestOutputStream dos = new DigestOutputStream(baos, getMessageDigest());
-			final ObjectOutputStream oos = new ObjectOutputStream(dos);
-			oos.writeObject(new HashMap<String,Serializable>(session.attrs));
-			oos.close();
-			return new SessionBytes(session, dos.getMessageDigest().digest(), baos.toByteArray());
+			Map<String,Serializable> attrs = adoptAttributes(session.attrs);
+			final long spillStamp = isSpilling() ? nextSpillStamp() : 0L;
+
+			if(mayHaveLargeAttributes(sessionId, attrs)) {
+				large = new LargeAttributes();
+				attrs = separateLargeAttributes(sessionId, attrs, spillStamp, large);
+			}
+			buffer = serialize(attrs, SerializationBuffers.acquireFor(sessionId));
+			if(large == NO_LARGE_ATTRIBUTES && isSeparating() && buffer.length() > smallestThreshold()) {
+				// The session has grown since it was last written
+				large = new LargeAttributes();
+				attrs = separateLargeAttributes(sessionId, attrs, spillStamp, large);
+				buffer.reset();
+				serialize(attrs, buffer);
+			}
+			// The size of the whole session, which tells the next write whether to look for large attributes
+			final int length = buffer.length() + large.length();
+			SerializationBuffers.recordSize(sessionId, length);
+			SessionTimings.recordWrittenBytes(length);
+
+			final byte[] hash = SerializationBuffers.digest(buffer.buffer(), buffer.length());
+			final boolean principalChanged = isPrincipalChanged(session);
+			final String principal = principalChanged ? principalExtractor.principalOf(session.attrs) : null;
+			return new SessionBytes(session, hash, buffer, spillStamp, large, principalChanged, principal);
 		} catch(java.io.IOException ioe) {
+			if(buffer != null) buffer.release();
+			large.release();
 			throw new RuntimeException("IO Exception while converting the session to bytes: cannot serialize!", ioe);
+		} catch(RuntimeException re) {
+			if(buffer != null) buffer.release();
+			large.release();
+			throw re;
 		}
 	}
 
+	private boolean isSeparating() {
+		return isSharing() || isSpilling();
+	}
+
+	private int smallestThreshold() {
+		if(!isSharing()) return spillThreshold;
+		if(!isSpilling()) return sharedThreshold;
+		return Math.min(sharedThreshold, spillThreshold);
+	}
+
 	/**
-	* Persists a session to the data store. The sessionData may be {@code null}.
+	* Whether the attributes are to be looked at one by one before the row is serialized: because some of them were kept
+	* apart when the session was read, or because the session was larger than a threshold when it was last written.
 	*/
-	@Override
-	public void persistSession(SessionData session) {
-		log.debug("Persisting session: " + session);
-		final SessionBytes data = sessionToBytes(session);
-		if(isValid(session.sessionId)) {
-			updateSession(data);
-		} else {
-			insertSession(data);
+	private boolean mayHaveLargeAttributes(final String sessionId, final Map<String,Serializable> attrs) {
+		if(!isSeparating()) return false;
+		if(SerializationBuffers.sizeHint(sessionId) > smallestThreshold()) return true;
+		return hasAttributesOf(attrs, SpilledAttribute.class) || hasAttributesOf(attrs, SharedAttribute.class);
+	}
+
+	/**
+	* Loads the spilled and shared attributes which another persister read (such as the one being migrated from), since 
+	* their values are not in this persister's tables.
+	*/
+	private Map<String,Serializable> adoptAttributes(final Map<String,Serializable> attrs) {
+		Map<String,Serializable> result = null;
+		for(Map.Entry<String,Serializable> entry : attrs.entrySet()) {
+			final Serializable value = entry.getValue();
+			final JdbcPersister owner;
+			if(value instanceof SpilledAttribute) {
+				owner = ((SpilledAttribute)value).getPersister();
+			} else if(value instanceof SharedAttribute) {
+				owner = ((SharedAttribute)value).getPersister();
+			} else {
+				continue;
+			}
+			if(owner == null || owner == this) continue;
+			if(result == null) result = new HashMap<String,Serializable>(attrs);
+			result.put(entry.getKey(), ((DeferredAttribute)value).getValue());
 		}
+		return result == null ? attrs : result;
 	}
 
-	private void insertSession(final SessionBytes data) {
-		final String timestamp = getCurrentTimestampDbFunction();
-		
-		final List<Object> arguments = new ArrayList<Object>(6);
-		arguments.add(data.session.sessionId);
-		arguments.add(new SqlParameterValue(getSqlBinaryType(), data.bytes));
-		arguments.add(data.hash);
-		arguments.add(data.session.maxInactiveInterval);
-		if("?".equals(timestamp)) {
-			final java.util.Date now = new java.util.Date();
-			arguments.add(now);
-			arguments.add(now);
+	private static boolean hasAttributesOf(final Map<String,Serializable> attrs, final Class<? extends DeferredAttribute> type) {
+		for(Serializable value : attrs.values()) {
+			if(type.isInstance(value)) return true;
 		}
+		return false;
+	}
 
-		transactionTemplate.execute(
-			new TransactionCallback<Void>() {
-				public Void doInTransaction(TransactionStatus status) {
-					try {	
-						jdbcTemplate.update(
-							"INSERT INTO " + getTableName() + 
-								" (sessionId, sessionData, sessionHash, maxInactiveInterval, createdAt    , lastAccessedAt) VALUES " +
-								" (?        , ?          , ?          , ?                  , "+timestamp+","+timestamp+  ")",
-							arguments.toArray(new Object[0])
-						);
-						status.flush();
-						log.debug("Successfully inserted session: " + data.session.sessionId);
-					} catch(DuplicateKeyException dke) {
-						// Someone else did an insert at the same time!
-						log.debug("Detected a duplicate key: " + data.session.sessionId + " (going to try for an update)");
-						updateSession(data);
-					} catch(Exception e) {
-						log.error("Error persisting session: " + data.session.sessionId, e);
-					}
-					return null;
+	/**
+	* Serializes each attribute once, and replaces those over the shared threshold with {@link SharedAttribute} references
+	* and the rest of those over the spill threshold with {@link SpilledAttribute} references (under new keys stamped with
+	* {@code stamp}). Their serialized values go into {@code large}, along with the references and spill keys the row is
+	* to hold. Unchanged references are kept, along with their rows. Other deferred values (such as expiring ones) are
+	* only ever spilled.
+	*/
+	private Map<String,Serializable> separateLargeAttributes(final String sessionId, final Map<String,Serializable> attrs, final long stamp, final LargeAttributes large) throws IOException {
+		final boolean sharing = isSharing();
+		final boolean spilling = isSpilling();
+		final Map<String,Serializable> result = new HashMap<String,Serializable>(attrs.size() * 2);
+		for(Map.Entry<String,Serializable> entry : attrs.entrySet()) {
+			final String name = entry.getKey();
+			Serializable value = entry.getValue();
+			if(value instanceof SharedAttribute) {
+				final SharedAttribute shared = (SharedAttribute)value;
+				if(sharing && !shared.isChanged()) {
+					large.sharedRefs.put(name, shared.digest);
+					result.put(name, shared);
+					continue;
 				}
+				value = shared.getValue();
+			} else if(value instanceof SpilledAttribute) {
+				final SpilledAttribute spill = (SpilledAttribute)value;
+				if(spilling && sessionId.equals(spill.sessionId) && name.equals(spill.name) && !spill.isChanged()) {
+					large.spillKeys.add(spill.getKey());
+					result.put(name, spill);
+					continue;
+				}
+				value = spill.getValue();
 			}
-		);
-	}
+			if(value == null) continue;
 
-	private void updateSession(final SessionBytes data) {
-		final List<Object> arguments = new ArrayList<Object>(6);
-		arguments.add(new SqlParameterValue(getSqlBinaryType(), data.bytes));
-		arguments.add(data.hash);
-		arguments.add(new java.sql.Date(data.session.lastAccessedAt));
-		arguments.add(data.session.maxInactiveInterval);
-		arguments.add(data.session.sessionId);
-		//arguments.add(data.hash);
+			final SerializationBuffers.Buffer bytes = serialize(value, SerializationBuffers.acquire(smallestThreshold() + 1));
+			if(sharing && !(value instanceof DeferredAttribute) && bytes.length() > sharedThreshold) {
+				final String hex = SerializationBuffers.toHex(SerializationBuffers.digest(bytes.buffer(), bytes.length()));
+				log.debug("Sharing attribute " + name + " of session " + sessionId + " as " + hex + " (" + bytes.length() + " bytes)");
+				large.shares.add(new LargeValue(hex, bytes));
+				large.sharedRefs.put(name, hex);
+				large.changedRefs.add(name);
+				result.put(name, new SharedAttribute(hex, value));
+			} else if(spilling && bytes.length() > spillThreshold) {
+				log.debug("Spilling attribute " + name + " of session " + sessionId + " (" + bytes.length() + " bytes)");
+				final String key = spillKey(name, stamp);
+				large.spills.add(new LargeValue(key, bytes));
+				large.spillKeys.add(key);
+				result.put(name, new SpilledAttribute(sessionId, name, key, value));
+			} else {
+				bytes.release();
+				result.put(name, value);
+			}
+		}
+		return result;
+	}
 
-		transactionTemplate.execute(
-			new TransactionCallback<Void>() {
-				public Void doInTransaction(TransactionStatus status) {
+	/**
+	* Writes the values the session keeps apart from its row: those written by this write, before the row refers to them,
+	* so that a reader never finds a reference to a value which is not there. Only done once for the write, however many
+	* statements it takes to store the row.
+	*/
+	private void writeLargeValues(final SessionBytes data) {
+		if(data.largeValuesWritten) return;
+		final String sessionId = data.session.sessionId;
+		for(LargeValue value : data.large.spills) {
+			writeSpilledAttribute(sessionId, value.key, value.bytes.buffer(), value.bytes.length());
+		}
+		for(LargeValue value : data.large.shares) {
+			writeSharedValue(value.key, value.bytes.buffer(), value.bytes.length());
+		}
+		data.largeValuesWritten = true;
+	}
+
+	/**
+	* Writes the value to the shared value table unless it is there already, in which case its reference time is bumped so
+	* that garbage collection leaves it alone.
+	*/
+	private void writeSharedValue(final String digest, final byte[] bytes, final int length) {
+		final java.sql.Timestamp now = new java.sql.Timestamp(System.currentTimeMillis());
+		final int updated = jdbcTemplate.update(
+			"UPDATE " + getSharedTableName() + " SET referencedAt = ? WHERE digest = ?", now, digest
+		);
+		if(updated > 0) return;
+		try {
+			jdbcTemplate.update(
+				"INSERT INTO " + getSharedTableName() + " (digest, valueData, referencedAt) VALUES (?, ?, ?)",
+				new PreparedStatementSetter() {
+					public void setValues(PreparedStatement ps) throws SQLException {
+						ps.setString(1, digest);
+						setBinary(ps, 2, bytes, length);
+						ps.setTimestamp(3, now);
+					}
+				}
+			);
+		} catch(DuplicateKeyException dke) {
+			log.debug("Shared value " + digest + " was written by someone else at the same time");
+		}
+	}
+
+	/**
+	* Stamps a write of spill rows: later than any this persister has used, and going by the clock so that writes from
+	* different nodes mostly order the same way.
+	*/
+	private long nextSpillStamp() {
+		final long now = System.currentTimeMillis() * 1000;
+		while(true) {
+			final long last = spillStamps.get();
+			final long next = Math.max(now, last + 1);
+			if(spillStamps.compareAndSet(last, next)) return next;
+		}
+	}
+
+	private static String spillKey(final String name, final long stamp) {
+		return name + SPILL_KEY_SEPARATOR + Long.toString(stamp, 36);
+	}
+
+	/**
+	* The stamp of the write of the spill row, or {@code -1} for a row written before the keys were stamped.
+	*/
+	private static long spillStampOf(final String key) {
+		final int idx = key.lastIndexOf(SPILL_KEY_SEPARATOR);
+		if(idx < 0) return -1L;
+		try {
+			return Long.parseLong(key.substring(idx + 1), 36);
+		} catch(NumberFormatException nfe) {
+			return -1L;
+		}
+	}
+
+	private void setBinary(final PreparedStatement ps, final int idx, final byte[] bytes, final int length) throws SQLException {
+		if(streamBinaryData) {
+			ps.setBinaryStream(idx, new ByteArrayInputStream(bytes, 0, length), length);
+		} else {
+			StatementCreatorUtils.setParameterValue(ps, idx, getSqlBinaryType(), bytes.length == length ? bytes : Arrays.copyOf(bytes, length));
+		}
+	}
+
+	private void setHash(final PreparedStatement ps, final int idx, final byte[] hash) throws SQLException {
+		if(keyCodec.isCompact()) {
+			ps.setBytes(idx, hash);
+		} else {
+			ps.setString(idx, SerializationBuffers.toHex(hash));
+		}
+	}
+
+	private InputStream getBinary(final ResultSet rs, final int idx) throws SQLException {
+		if(streamBinaryData) {
+			return rs.getBinaryStream(idx);
+		} else {
+			final byte[] bytes = rs.getBytes(idx);
+			return bytes == null ? null : new ByteArrayInputStream(bytes);
+		}
+	}
+
+	/**
+	* Persists a session to the data store. The sessionData may be {@code null}.
+	*/
+	@Override
+	public void persistSession(SessionData session) {
+		log.debug("Persisting session: " + session);
+		if(session != null && isUnfit(session.sessionId)) {
+			keyFallback.persistSession(session);
+			return;
+		}
+		final SessionBytes data = sessionToBytes(session);
+		lastTouched.put(session.sessionId, session.lastAccessedAt);
+		try {
+			if(isLikelyStored(session.sessionId)) {
+				updateSession(data);
+			} else {
+				insertSession(data);
+			}
+		} finally {
+			data.release();
+		}
+	}
+
+	/**
+	* Persists the sessions with batched updates, followed by a batched insert of the sessions which were not there yet.
+	*/
+	@Override
+	public void persistSessions(final Collection<SessionData> sessions) {
+		if(sessions == null || sessions.isEmpty()) return;
+		final List<SessionData> fitting = new ArrayList<SessionData>(sessions.size());
+		final List<SessionData> unfit = new ArrayList<SessionData>();
+		for(SessionData session : sessions) {
+			if(session != null && isUnfit(session.sessionId)) {
+				unfit.add(session);
+			} else {
+				fitting.add(session);
+			}
+		}
+		if(!unfit.isEmpty()) keyFallback.persistSessions(unfit);
+		for(List<SessionData> chunk : Lists.partition(fitting, batchSize)) {
+			persistChunk(chunk);
+		}
+	}
+
+	/**
+	* Persists the sessions of a batch. A conflict which cannot be merged does not keep the other sessions from being
+	* written: the first one is thrown once they are.
+	*/
+	private void persistChunk(final List<SessionData> sessions) {
+		final List<SessionBytes> datas = new ArrayList<SessionBytes>(sessions.size());
+		OptimisticLockingFailureException conflict = null;
+		try {
+			for(SessionData session : sessions) {
+				if(session == null) continue;
+				if(optimisticLocking && (!session.isVersioned() || !batchCountsReported)) {
+					try {
+						persistSession(session); // Cannot share the compare-and-set statement
+					} catch(OptimisticLockingFailureException olfe) {
+						if(conflict == null) conflict = olfe;
+					}
+					continue;
+				}
+				datas.add(sessionToBytes(session));
+				lastTouched.put(session.sessionId, session.lastAccessedAt);
+			}
+
+			final List<SessionBytes> conflicts = transactionTemplate.execute(
+				new TransactionCallback<List<SessionBytes>>() {
+					public List<SessionBytes> doInTransaction(TransactionStatus status) {
+						return writeChunk(datas);
+					}
+				}
+			);
+			for(SessionBytes data : conflicts) {
+				try {
+					updateSession(data); // Merged on its own
+				} catch(OptimisticLockingFailureException olfe) {
+					if(conflict == null) conflict = olfe;
+				}
+			}
+		} finally {
+			for(SessionBytes data : datas) data.release();
+		}
+		if(conflict != null) throw conflict;
+	}
+
+	/**
+	* Writes the rows of the sessions with batched statements, and returns those which conflicted.
+	*/
+	private List<SessionBytes> writeChunk(final List<SessionBytes> datas) {
+		for(SessionBytes data : datas) writeLargeValues(data);
+		final int[] updated = jdbcTemplate.batchUpdate(updateSql(optimisticLocking), new BatchPreparedStatementSetter() {
+			public void setValues(PreparedStatement ps, int i) throws SQLException {
+				setUpdateValues(ps, datas.get(i), optimisticLocking);
+			}
+			public int getBatchSize() {
+				return datas.size();
+			}
+		});
+
+		final List<SessionBytes> toInsert = new ArrayList<SessionBytes>();
+		final List<SessionBytes> written = new ArrayList<SessionBytes>(datas.size());
+		final List<SessionBytes> unsettled = new ArrayList<SessionBytes>();
+		for(int i = 0; i < datas.size(); i++) {
+			final SessionBytes data = datas.get(i);
+			if(i >= updated.length || updated[i] == Statement.SUCCESS_NO_INFO) {
+				if(batchCountsReported) {
+					log.info("The driver does not report the update counts of batched statements: checking the rows instead");
+					batchCountsReported = false;
+				}
+				unsettled.add(data);
+			} else if(updated[i] > 0) {
+				written.add(data);
+			} else if(isCompareAndSet(data.session)) {
+				unsettled.add(data); // Either not stored yet or a conflict
+			} else {
+				toInsert.add(data);
+				written.add(data);
+			}
+		}
+
+		final List<SessionBytes> conflicts = new ArrayList<SessionBytes>();
+		if(!unsettled.isEmpty()) settleBatchedUpdates(unsettled, written, toInsert, conflicts);
+
+		if(!toInsert.isEmpty()) {
+			final java.sql.Timestamp now = new java.sql.Timestamp(System.currentTimeMillis());
+			try {
+				jdbcTemplate.batchUpdate(insertSql(), new BatchPreparedStatementSetter() {
+					public void setValues(PreparedStatement ps, int i) throws SQLException {
+						setInsertValues(ps, toInsert.get(i), now);
+					}
+					public int getBatchSize() {
+						return toInsert.size();
+					}
+				});
+			} catch(DuplicateKeyException dke) {
+				log.debug("Duplicate key while inserting a batch of sessions: persisting them one at a time");
+				written.removeAll(toInsert);
+				for(SessionBytes data : toInsert) insertSession(data);
+			}
+		}
+
+		for(SessionBytes data : written) {
+			writeAttributeRows(data);
+			markWritten(data.session.sessionId);
+		}
+		recordChanges(Lists.transform(written, new Function<SessionBytes,String>() {
+			public String apply(SessionBytes data) {
+				return data.session.sessionId;
+			}
+		}));
+		log.debug("Persisted a batch of " + datas.size() + " sessions");
+		return conflicts;
+	}
+
+	/**
+	* Sorts out the sessions of a batched update whose outcome its counts do not tell, by reading back their rows: a row
+	* with the hash (and version) written is a write, a missing row is to be inserted, and any other row is a conflict.
+	*/
+	private void settleBatchedUpdates(
+		final List<SessionBytes> unsettled, final List<SessionBytes> written,
+		final List<SessionBytes> toInsert, final List<SessionBytes> conflicts
+	) {
+		final Map<String,Object[]> rows = new HashMap<String,Object[]>();
+		final List<String> sessionIds = new ArrayList<String>(unsettled.size());
+		for(SessionBytes data : unsettled) sessionIds.add(data.session.sessionId);
+		jdbcTemplate.query(
+			"SELECT sessionId, sessionHash" + (optimisticLocking ? ", version" : "") + " FROM " + getTableName() + 
+				" WHERE sessionId IN (" + placeholders(sessionIds.size()) + ")",
+			keys(sessionIds),
+			new RowCallbackHandler() {
+				public void processRow(ResultSet rs) throws SQLException {
+					final String hash = keyCodec.isCompact() ? SerializationBuffers.toHex(rs.getBytes(2)) : rs.getString(2);
+					rows.put(keyCodec.decode(rs, 1), new Object[] { hash, optimisticLocking ? rs.getLong(3) : 0L });
+				}
+			}
+		);
+
+		for(SessionBytes data : unsettled) {
+			final Object[] row = rows.get(data.session.sessionId);
+			if(row == null) {
+				toInsert.add(data);
+				written.add(data);
+			} else if(!isCompareAndSet(data.session)) {
+				written.add(data); // The update found the row
+			} else if(
+				((Long)row[1]).longValue() == data.session.version && 
+				SerializationBuffers.toHex(data.hash).equals(row[0])
+			) {
+				written.add(data);
+			} else {
+				conflicts.add(data);
+			}
+		}
+	}
+
+	private String insertSql() {
+		final String timestamp = getCurrentTimestampDbFunction();
+		return "INSERT INTO " + getTableName() + 
+			" (sessionId, sessionData, sessionHash, maxInactiveInterval, " + (optimisticLocking ? "version, " : "") + "createdAt    , lastAccessedAt) VALUES " +
+			" (?        , ?          , ?          , ?                  , " + (optimisticLocking ? "?      , " : "") + timestamp+","+timestamp+  ")";
+	}
+
+	private void setInsertValues(final PreparedStatement ps, final SessionBytes data, final java.sql.Timestamp now) throws SQLException {
+		int idx = 1;
+		keyCodec.bind(ps, idx++, data.session.sessionId);
+		setBinary(ps, idx++, data.bytes, data.length);
+		setHash(ps, idx++, data.hash);
+		ps.setInt(idx++, data.session.maxInactiveInterval);
+		if(optimisticLocking) ps.setLong(idx++, Math.max(1L, data.session.version));
+		if("?".equals(getCurrentTimestampDbFunction())) {
+			ps.setTimestamp(idx++, now);
+			ps.setTimestamp(idx++, now);
+		}
+	}
+
+	/**
+	* Whether the session is to be written with a compare-and-set on the version it was read from.
+	*/
+	private boolean isCompareAndSet(final SessionData session) {
+		return optimisticLocking && session.isVersioned();
+	}
+
+	/**
+	* The update of a session, which (with optimistic locking) either requires the row to still be at the version before
+	* that of the session, or just bumps the version.
+	*/
+	private String updateSql(final boolean compareAndSet) {
+		final String set = "UPDATE " + getTableName() + 
+			" SET sessionData = ?, sessionHash = ?, lastAccessedAt = ?, maxInactiveInterval = ? ";
+		if(!optimisticLocking) return set + " WHERE sessionId = ? "; //AND sessionHash <> ?"
+		if(!compareAndSet) return set + ", version = version + 1 WHERE sessionId = ? ";
+		return set + ", version = ? WHERE sessionId = ? AND version = ? ";
+	}
+
+	private void setUpdateValues(final PreparedStatement ps, final SessionBytes data, final boolean compareAndSet) throws SQLException {
+		setBinary(ps, 1, data.bytes, data.length);
+		setHash(ps, 2, data.hash);
+		ps.setTimestamp(3, new java.sql.Timestamp(data.session.lastAccessedAt));
+		ps.setInt(4, data.session.maxInactiveInterval);
+		if(optimisticLocking && compareAndSet) {
+			ps.setLong(5, data.session.version);
+			keyCodec.bind(ps, 6, data.session.sessionId);
+			ps.setLong(7, data.session.version - 1);
+		} else {
+			keyCodec.bind(ps, 5, data.session.sessionId);
+		}
+	}
+
+	private void insertSession(final SessionBytes data) {
+		final java.sql.Timestamp now = new java.sql.Timestamp(System.currentTimeMillis());
+
+		transactionTemplate.execute(
+			new TransactionCallback<Void>() {
+				public Void doInTransaction(TransactionStatus status) {
+					try {	
+						writeLargeValues(data);
+						jdbcTemplate.update(
+							insertSql(),
+							new PreparedStatementSetter() {
+								public void setValues(PreparedStatement ps) throws SQLException {
+									setInsertValues(ps, data, now);
+								}
+							}
+						);
+						writeAttributeRows(data);
+						recordChange(data.session.sessionId);
+						markWritten(data.session.sessionId);
+						status.flush();
+						log.debug("Successfully inserted session: " + data.session.sessionId);
+					} catch(DuplicateKeyException dke) {
+						// Someone else did an insert at the same time!
+						log.debug("Detected a duplicate key: " + data.session.sessionId + " (going to try for an update)");
+						updateSession(data);
+					} catch(OptimisticLockingFailureException olfe) {
+						throw olfe;
+					} catch(Exception e) {
+						status.setRollbackOnly();
+						log.error("Error persisting session: " + data.session.sessionId, e);
+					}
+					return null;
+				}
+			}
+		);
+	}
+
+	/**
+	* Updates the last access time of the session without rewriting its data, at most once per {@link #getTouchFraction()}
+	* of its {@code maxInactiveInterval}.
+	*/
+	@Override
+	public void touchSession(final String sessionId, final long lastAccessedAt, final int maxInactiveInterval) {
+		if(!keyCodec.canEncode(sessionId)) {
+			if(isUnfit(sessionId)) keyFallback.touchSession(sessionId, lastAccessedAt, maxInactiveInterval);
+			return;
+		}
+		final Long touched = lastTouched.getIfPresent(sessionId);
+		final long throttleMillis = (long)(TimeUnit.SECONDS.toMillis(maxInactiveInterval) * touchFraction);
+		if(touched != null && lastAccessedAt - touched.longValue() < throttleMillis) {
+			log.debug("Not touching session " + sessionId + ": it was touched recently");
+			return;
+		}
+
+		final int rows = jdbcTemplate.update(
+			"UPDATE " + getTableName() + " SET lastAccessedAt = ?, maxInactiveInterval = ? WHERE sessionId = ?",
+			new java.sql.Timestamp(lastAccessedAt), maxInactiveInterval, keyCodec.encode(sessionId)
+		);
+		// Throttled either way: a session with no row (such as an empty one) would otherwise be looked for on every request
+		lastTouched.put(sessionId, lastAccessedAt);
+		if(rows == 0) {
+			log.debug("No session " + sessionId + " found to touch");
+		} else {
+			log.debug("Touched session " + sessionId);
+		}
+	}
+
+	private void updateSession(final SessionBytes data) {
+		final boolean compareAndSet = isCompareAndSet(data.session);
+		transactionTemplate.execute(
+			new TransactionCallback<Void>() {
+				public Void doInTransaction(TransactionStatus status) {
 					try{ 
+						writeLargeValues(data);
 						int updatedRecords = jdbcTemplate.update(
-							"UPDATE " + getTableName() + 
-								" SET sessionData = ?, sessionHash = ?, lastAccessedAt = ?, maxInactiveInterval = ? " + 
-								" WHERE sessionId = ? ", //AND sessionHash <> ?",
-							arguments.toArray(new Object[0])
+							updateSql(compareAndSet),
+							new PreparedStatementSetter() {
+								public void setValues(PreparedStatement ps) throws SQLException {
+									setUpdateValues(ps, data, compareAndSet);
+								}
+							}
 						);
 						status.flush();
-						if(updatedRecords == 0) {
+						if(updatedRecords == 0 && compareAndSet && countSession(data.session.sessionId)) {
+							log.debug("Session was changed by someone else since it was read: " + data.session.sessionId);
+							mergeConflict(data.session);
+						} else if(updatedRecords == 0) {
 							log.debug("Session was not updated, no records found: " + data.session.sessionId);
 							insertSession(data);
 						} else {
+							writeAttributeRows(data);
+							recordChange(data.session.sessionId);
+							markWritten(data.session.sessionId);
 							log.debug("Updated session: " + data.session.sessionId);
 						}
+					} catch(OptimisticLockingFailureException olfe) {
+						throw olfe;
 					} catch(Exception e) {
+						status.setRollbackOnly();
 						log.error("Error updating session: " + data.session.sessionId, e);
 					}
 					return null;
@@ -254,44 +1319,568 @@ public class JdbcPersister implements Persister, InitializingBean {
 		);
 	} 
 
+	/**
+	* Merges the changes of the session into the stored session and writes it with a compare-and-set, up to 
+	* {@link #getMaxMergeAttempts()} times. If that does not succeed, the stored session is kept, the local copy is evicted
+	* and the conflict is thrown.
+	*/
+	private void mergeConflict(final SessionData local) {
+		final String sessionId = local.sessionId;
+		for(int attempt = 1; attempt <= maxMergeAttempts; attempt++) {
+			final SessionData current = getSessionData(sessionId);
+			if(current == null) {
+				log.debug("Session " + sessionId + " went away while merging: inserting it again");
+				final SessionBytes data = sessionToBytes(local);
+				try {
+					insertSession(data);
+				} finally {
+					data.release();
+				}
+				return;
+			}
+
+			final SessionData merged = merge(local, current);
+			final SessionBytes data = sessionToBytes(merged);
+			try {
+				writeLargeValues(data);
+				final int updated = jdbcTemplate.update(updateSql(true), new PreparedStatementSetter() {
+					public void setValues(PreparedStatement ps) throws SQLException {
+						setUpdateValues(ps, data, true);
+					}
+				});
+				if(updated > 0) {
+					writeAttributeRows(data);
+					recordChange(sessionId);
+					markWritten(sessionId);
+					if(localPersister instanceof InMemoryPersister) {
+						((InMemoryPersister)localPersister).cacheSession(merged); // Already written here
+					} else if(localPersister != null) {
+						localPersister.persistSession(merged);
+					}
+					log.debug("Merged session " + sessionId + " into version " + merged.version + " on attempt " + attempt);
+					return;
+				}
+			} finally {
+				data.release();
+			}
+		}
+
+		// The local copy holds the changes which were not written: the next request has to read the stored session
+		if(localPersister instanceof InMemoryPersister) {
+			((InMemoryPersister)localPersister).evict(sessionId);
+		} else if(localPersister != null) {
+			localPersister.invalidate(sessionId);
+		}
+		throw new OptimisticLockingFailureException(
+			"Could not merge the changes to session " + sessionId + " after " + maxMergeAttempts + " attempts: kept the stored session"
+		);
+	}
+
+	/**
+	* The three-way merge of the attributes: those the local session changed since it was read (going by
+	* {@link SessionData#baseAttributeHashes}) are applied to the current session, and the rest are left as they are there.
+	* If the attributes the local session was read with are not known, all its attributes are applied.
+	*/
+	private static SessionData merge(final SessionData local, final SessionData current) {
+		final Map<String,Integer> base = local.baseAttributeHashes;
+		PersistentAttributeMap merged = current.attrs;
+		final Set<String> names = new HashSet<String>(local.attrs.keySet());
+		if(base != null) names.addAll(base.keySet());
+
+		for(String name : names) {
+			final Serializable value = local.attrs.get(name);
+			final boolean changed;
+			if(base == null) {
+				changed = value != null;
+			} else if(!base.containsKey(name)) {
+				changed = value != null; // Added
+			} else {
+				changed = value == null || value.hashCode() != base.get(name).intValue();
+			}
+			if(!changed) continue;
+
+			merged = value == null ? merged.minus(name) : merged.plus(name, value);
+		}
+
+		return new SessionData(
+			local.sessionId, merged, current.createdAt, 
+			Math.max(local.lastAccessedAt, current.lastAccessedAt), local.maxInactiveInterval, 
+			current.version + 1, null, local.localAttrs
+		);
+	}
+
+	/**
+	* Writes the rows kept apart from the session row: spilled attributes, references to shared values, and the principal.
+	*/
+	private void writeAttributeRows(final SessionBytes data) {
+		deleteReplacedSpills(data);
+		writeSharedReferences(data);
+		if(data.principalChanged) writePrincipal(data.session.sessionId, data.principal);
+	}
+
+	/**
+	* Whether the principal of the session may have changed since it was read: that is, whether any of the attributes
+	* it is extracted from has changed. Sessions which were not read through a proxy are always taken to have changed.
+	*/
+	private boolean isPrincipalChanged(final SessionData session) {
+		final PrincipalExtractor extractor = principalExtractor;
+		if(extractor == null) return false;
+		final Map<String,Integer> base = session.baseAttributeHashes;
+		if(base == null) return true;
+		for(String name : extractor.getAttributeNames()) {
+			final Serializable value = session.attrs.get(name);
+			final Integer hash = value == null ? null : value.hashCode();
+			final Integer baseHash = base.get(name);
+			if(hash == null ? baseHash != null : !hash.equals(baseHash)) return true;
+		}
+		return false;
+	}
+
+	/**
+	* Records the principal of the session, or drops it if it is {@code null} (or too long to index).
+	*/
+	private void writePrincipal(final String sessionId, final String principal) {
+		final Object key = keyCodec.encode(sessionId);
+		if(principal == null || principal.length() > MAX_PRINCIPAL_LENGTH) {
+			if(principal != null) log.warn("Not indexing the principal of session " + sessionId + ": it is longer than " + MAX_PRINCIPAL_LENGTH + " characters");
+			jdbcTemplate.update("DELETE FROM " + getPrincipalTableName() + " WHERE sessionId = ?", key);
+			return;
+		}
+		final int updated = jdbcTemplate.update(
+			"UPDATE " + getPrincipalTableName() + " SET principal = ? WHERE sessionId = ?", principal, key
+		);
+		if(updated == 0) {
+			jdbcTemplate.update(
+				"INSERT INTO " + getPrincipalTableName() + " (principal, sessionId) VALUES (?, ?)", principal, key
+			);
+		}
+	}
+
+	/**
+	* Drops the rows of the session in the table, except for those of the given attributes.
+	*/
+	private void deleteAttributeRows(final String table, final String sessionId, final Set<String> kept) {
+		final StringBuilder sql = new StringBuilder("DELETE FROM " + table + " WHERE sessionId = ?");
+		final List<Object> args = new ArrayList<Object>(kept.size() + 1);
+		args.add(keyCodec.encode(sessionId));
+		if(!kept.isEmpty()) {
+			sql.append(" AND attributeName NOT IN (");
+			for(String name : kept) {
+				sql.append(args.size() == 1 ? "?" : ", ?");
+				args.add(name);
+			}
+			sql.append(")");
+		}
+		jdbcTemplate.update(sql.toString(), args.toArray());
+	}
+
+	/**
+	* Writes the value of a spilled attribute under its key. The key is new, but the row is overwritten if a failed write
+	* left it behind.
+	*/
+	private void writeSpilledAttribute(final String sessionId, final String key, final byte[] bytes, final int length) {
+		final PreparedStatementSetter setter = new PreparedStatementSetter() {
+			public void setValues(PreparedStatement ps) throws SQLException {
+				setBinary(ps, 1, bytes, length);
+				keyCodec.bind(ps, 2, sessionId);
+				ps.setString(3, key);
+			}
+		};
+		try {
+			jdbcTemplate.update(
+				"INSERT INTO " + getSpillTableName() + " (attributeData, sessionId, attributeName) VALUES (?, ?, ?)", setter
+			);
+		} catch(DuplicateKeyException dke) {
+			jdbcTemplate.update(
+				"UPDATE " + getSpillTableName() + " SET attributeData = ? WHERE sessionId = ? AND attributeName = ?", setter
+			);
+		}
+	}
+
+	/**
+	* Drops the spill rows which the session no longer refers to, once it has been written: those written before this
+	* write which it did not keep. Rows stamped later belong to a write which is still going on (or failed, in which case
+	* the next write drops them). The rows are those this node knows the row to have referred to, and only read back if
+	* it does not know.
+	*/
+	private void deleteReplacedSpills(final SessionBytes data) {
+		if(!isSpilling()) return;
+		final String sessionId = data.session.sessionId;
+		final Object key = keyCodec.encode(sessionId);
+		Set<String> previous = knownSpillKeys.getIfPresent(sessionId);
+		if(previous == null) {
+			previous = new HashSet<String>(jdbcTemplate.queryForList(
+				"SELECT attributeName FROM " + getSpillTableName() + " WHERE sessionId = ?", String.class, key
+			));
+		}
+		final List<String> replaced = new ArrayList<String>();
+		final Set<String> known = new HashSet<String>(data.spillKeys);
+		for(String spillKey : previous) {
+			if(data.spillKeys.contains(spillKey)) continue;
+			if(spillStampOf(spillKey) < data.spillStamp) {
+				replaced.add(spillKey);
+			} else {
+				known.add(spillKey); // Left to the later write
+			}
+		}
+		knownSpillKeys.put(sessionId, known);
+		if(replaced.isEmpty()) return;
+		final StringBuilder sql = new StringBuilder("DELETE FROM " + getSpillTableName() + " WHERE sessionId = ? AND attributeName IN (");
+		final List<Object> args = new ArrayList<Object>(replaced.size() + 1);
+		args.add(key);
+		for(String spillKey : replaced) {
+			sql.append(args.size() == 1 ? "?" : ", ?");
+			args.add(spillKey);
+		}
+		sql.append(")");
+		jdbcTemplate.update(sql.toString(), args.toArray());
+		log.debug("Dropped " + replaced.size() + " replaced spill rows of session " + sessionId);
+	}
+
+	/**
+	* Writes the references of the newly shared attributes of the session, and drops those of attributes which are no longer shared.
+	*/
+	private void writeSharedReferences(final SessionBytes data) {
+		if(!isSharing()) return;
+		final String sessionId = data.session.sessionId;
+		deleteAttributeRows(getSharedRefTableName(), sessionId, data.sharedRefs.keySet());
+
+		for(final String name : data.changedRefs) {
+			final PreparedStatementSetter setter = new PreparedStatementSetter() {
+				public void setValues(PreparedStatement ps) throws SQLException {
+					ps.setString(1, data.sharedRefs.get(name));
+					keyCodec.bind(ps, 2, sessionId);
+					ps.setString(3, name);
+				}
+			};
+			final int updated = jdbcTemplate.update(
+				"UPDATE " + getSharedRefTableName() + " SET digest = ? WHERE sessionId = ? AND attributeName = ?", setter
+			);
+			if(updated == 0) {
+				jdbcTemplate.update(
+					"INSERT INTO " + getSharedRefTableName() + " (digest, sessionId, attributeName) VALUES (?, ?, ?)", setter
+				);
+			}
+		}
+	}
+
+	/**
+	* Appends the session to the change table, if the change feed is enabled. This is a statement of its own, after the
+	* session has been written and not atomically with it: until it commits (and is polled), other nodes keep serving
+	* their copies, and if this node dies in between, they keep them until they leave memory.
+	*/
+	private void recordChange(final String sessionId) {
+		if(!changeFeedEnabled) return;
+		jdbcTemplate.update(
+			"INSERT INTO " + getChangeTableName() + " (sessionId, nodeId, changedAt) VALUES (?, ?, ?)",
+			sessionId, nodeId, new java.sql.Timestamp(System.currentTimeMillis())
+		);
+	}
+
+	private void recordChanges(final List<String> sessionIds) {
+		if(!changeFeedEnabled || sessionIds.isEmpty()) return;
+		final java.sql.Timestamp now = new java.sql.Timestamp(System.currentTimeMillis());
+		jdbcTemplate.batchUpdate(
+			"INSERT INTO " + getChangeTableName() + " (sessionId, nodeId, changedAt) VALUES (?, ?, ?)",
+			new BatchPreparedStatementSetter() {
+				public void setValues(PreparedStatement ps, int i) throws SQLException {
+					ps.setString(1, sessionIds.get(i));
+					ps.setString(2, nodeId);
+					ps.setTimestamp(3, now);
+				}
+				public int getBatchSize() {
+					return sessionIds.size();
+				}
+			}
+		);
+	}
+
+	/**
+	* An entry of the change table.
+	*/
+	public static final class Change {
+		public final long seq;
+		public final String sessionId;
+		public final String nodeId;
+
+		public Change(final long seq, final String sessionId, final String nodeId) {
+			this.seq = seq;
+			this.sessionId = sessionId;
+			this.nodeId = nodeId;
+		}
+	}
+
+	private static final RowMapper<Change> changeMapper = new RowMapper<Change>() {
+		public Change mapRow(ResultSet rs, int rowNum) throws SQLException {
+			return new Change(rs.getLong(1), rs.getString(2), rs.getString(3));
+		}
+	};
+
+	/**
+	* The highest sequence number in the change table, or {@code 0} if it is empty.
+	*/
+	public long getLatestChangeSequence() {
+		return jdbcTemplate.queryForLong("SELECT MAX(seq) FROM " + getChangeTableName());
+	}
+
+	/**
+	* The ids of up to {@code max} sessions which have not expired and were last accessed at or after {@code since}, most 
+	* recently accessed first. Only the rows accessed since then are looked at, using the index on {@code lastAccessedAt}.
+	*/
+	public List<String> getRecentSessionIds(final int max, final long since) {
+		final long now = System.currentTimeMillis();
+		final List<String> sessionIds = new ArrayList<String>();
+		jdbcTemplate.query(
+			"SELECT sessionId, lastAccessedAt, maxInactiveInterval FROM " + getTableName() + 
+				" WHERE lastAccessedAt >= ? ORDER BY lastAccessedAt DESC",
+			new PreparedStatementSetter() {
+				public void setValues(PreparedStatement ps) throws SQLException {
+					ps.setTimestamp(1, new java.sql.Timestamp(since));
+					ps.setMaxRows(max);
+					ps.setFetchSize(Math.min(max, batchSize));
+				}
+			},
+			new RowCallbackHandler() {
+				public void processRow(ResultSet rs) throws SQLException {
+					if(rs.getTimestamp(2).getTime() + TimeUnit.SECONDS.toMillis(rs.getInt(3)) >= now) {
+						sessionIds.add(keyCodec.decode(rs, 1));
+					}
+				}
+			}
+		);
+		return sessionIds;
+	}
+
+	/**
+	* Every {@code every}th session id in key order, which split the table into ranges of about that many sessions: the
+	* first range ends before the first id, and the last starts at the last one.
+	*/
+	public List<String> getSessionIdBoundaries(final int every) {
+		if(every <= 0) throw new IllegalArgumentException("The range size must be positive: " + every);
+		final List<String> boundaries = new ArrayList<String>();
+		jdbcTemplate.query(
+			"SELECT sessionId FROM " + getTableName() + " ORDER BY sessionId",
+			new PreparedStatementSetter() {
+				public void setValues(PreparedStatement ps) throws SQLException {
+					ps.setFetchSize(batchSize);
+				}
+			},
+			new RowCallbackHandler() {
+				private int rows = 0;
+				public void processRow(ResultSet rs) throws SQLException {
+					if(rows > 0 && rows % every == 0) boundaries.add(keyCodec.decode(rs, 1));
+					rows++;
+				}
+			}
+		);
+		return boundaries;
+	}
+
+	/**
+	* The session ids from {@code fromId} (inclusive) to {@code toId} (exclusive) in key order. A {@code null} bound 
+	* leaves that end of the range open.
+	*/
+	public List<String> getSessionIdsInRange(final String fromId, final String toId) {
+		final StringBuilder sql = new StringBuilder("SELECT sessionId FROM " + getTableName());
+		final List<Object> args = new ArrayList<Object>(2);
+		if(fromId != null) {
+			sql.append(" WHERE sessionId >= ?");
+			args.add(keyCodec.encode(fromId));
+		}
+		if(toId != null) {
+			sql.append(fromId == null ? " WHERE" : " AND").append(" sessionId < ?");
+			args.add(keyCodec.encode(toId));
+		}
+		sql.append(" ORDER BY sessionId");
+
+		final List<String> sessionIds = new ArrayList<String>();
+		jdbcTemplate.query(sql.toString(), args.toArray(), new RowCallbackHandler() {
+			public void processRow(ResultSet rs) throws SQLException {
+				sessionIds.add(keyCodec.decode(rs, 1));
+			}
+		});
+		return sessionIds;
+	}
+
+	/**
+	* Receives the stored sessions from {@link JdbcPersister#scanSessions(SessionRowHandler)}.
+	*/
+	interface SessionRowHandler {
+		void handle(String sessionId, byte[] sessionData);
+	}
+
+	/**
+	* Streams the id and stored bytes of every session in the table to the handler, on this thread.
+	*/
+	void scanSessions(final SessionRowHandler handler) {
+		jdbcTemplate.query(
+			"SELECT sessionId, sessionData FROM " + getTableName(),
+			new PreparedStatementSetter() {
+				public void setValues(PreparedStatement ps) throws SQLException {
+					ps.setFetchSize(batchSize);
+				}
+			},
+			new RowCallbackHandler() {
+				public void processRow(ResultSet rs) throws SQLException {
+					handler.handle(keyCodec.decode(rs, 1), readBytes(getBinary(rs, 2)));
+				}
+			}
+		);
+	}
+
+	/**
+	* Reads the attributes from the stored bytes of a session, without loading deferred attributes.
+	*/
+	Map<String,Serializable> decodeAttributes(final byte[] sessionData) {
+		return readAttributes(new ByteArrayInputStream(sessionData));
+	}
+
+	/**
+	* Reads up to {@code max} changes after the given sequence number, in sequence order.
+	*/
+	public List<Change> readChanges(final long afterSeq, final int max) {
+		final List<Change> changes = new ArrayList<Change>();
+		jdbcTemplate.query(
+			"SELECT seq, sessionId, nodeId FROM " + getChangeTableName() + " WHERE seq > ? ORDER BY seq",
+			new PreparedStatementSetter() {
+				public void setValues(PreparedStatement ps) throws SQLException {
+					ps.setMaxRows(max);
+					ps.setLong(1, afterSeq);
+				}
+			},
+			new RowCallbackHandler() {
+				public void processRow(ResultSet rs) throws SQLException {
+					changes.add(changeMapper.mapRow(rs, changes.size()));
+				}
+			}
+		);
+		return changes;
+	}
+
+	/**
+	* Reads the changes with the given sequence numbers, if they exist (yet).
+	*/
+	public List<Change> readChanges(final Collection<Long> seqs) {
+		if(seqs.isEmpty()) return Collections.emptyList();
+		return jdbcTemplate.query(
+			"SELECT seq, sessionId, nodeId FROM " + getChangeTableName() + " WHERE seq IN (" + placeholders(seqs.size()) + ") ORDER BY seq",
+			seqs.toArray(), changeMapper
+		);
+	}
+
+	/**
+	* Loads an attribute which was written to the spill table under the given key. If the row has been replaced since 
+	* the session was read, the attribute is loaded as the session now has it. Returns {@code null} if there is no such 
+	* attribute.
+	*/
+	Serializable loadSpilledAttribute(final String sessionId, final String name, final String key) {
+		log.debug("Loading spilled attribute " + name + " of session " + sessionId);
+		final List<Serializable> found = jdbcTemplate.query(
+			"SELECT attributeData FROM " + getSpillTableName() + " WHERE sessionId = ? AND attributeName = ?",
+			new RowMapper<Serializable>() {
+				public Serializable mapRow(ResultSet rs, int rowNum) throws SQLException {
+					return (Serializable)readObject(getBinary(rs, 1));
+				}
+			},
+			keyCodec.encode(sessionId), key
+		);
+		if(!found.isEmpty()) return found.get(0);
+
+		// Written again since the session was read
+		final SessionData current = getSessionData(sessionId);
+		final Serializable value = current == null ? null : current.attrs.get(name);
+		if(value == null || (value instanceof SpilledAttribute && key.equals(((SpilledAttribute)value).getKey()))) {
+			log.warn("No spilled attribute " + name + " found for session " + sessionId);
+			return null;
+		}
+		log.debug("Spilled attribute " + name + " of session " + sessionId + " was replaced: loading the current one");
+		return value instanceof DeferredAttribute ? ((DeferredAttribute)value).getValue() : value;
+	}
+
+	/**
+	* Provides a copy of a shared value of its own to the caller, deserialized from the cached bytes if they have been
+	* loaded already. Returns {@code null} if there is no such value.
+	*/
+	Serializable loadSharedValue(final String digest) {
+		final Cache<String,byte[]> cache = sharedValues;
+		byte[] bytes = cache.getIfPresent(digest);
+		if(bytes == null) {
+			log.debug("Loading shared value " + digest);
+			final List<byte[]> found = jdbcTemplate.query(
+				"SELECT valueData FROM " + getSharedTableName() + " WHERE digest = ?",
+				new RowMapper<byte[]>() {
+					public byte[] mapRow(ResultSet rs, int rowNum) throws SQLException {
+						return readBytes(getBinary(rs, 1));
+					}
+				},
+				digest
+			);
+			if(found.isEmpty() || found.get(0).length == 0) {
+				log.warn("No shared value " + digest + " found");
+				return null;
+			}
+			bytes = found.get(0);
+			cache.put(digest, bytes);
+		}
+		return (Serializable)readObject(new ByteArrayInputStream(bytes));
+	}
+
+	private String selectSessionSql() {
+		return "SELECT sessionId, sessionData, createdAt, lastAccessedAt, maxInactiveInterval" + (optimisticLocking ? ", version" : "") + " FROM ";
+	}
+
+	private final RowMapper<SessionData> sessionMapper = new RowMapper<SessionData>() {
+		public SessionData mapRow(ResultSet rs, int rowNum) throws SQLException {
+			final String sessionId = keyCodec.decode(rs, 1);
+			log.debug("Processing session data row #" + rowNum + " for " + sessionId);
+			try {
+				return new SessionData(
+					sessionId,
+					readAttributes(sessionId, getBinary(rs, 2)),
+					rs.getTimestamp(3).getTime(),
+					rs.getTimestamp(4).getTime(),
+					rs.getInt(5),
+					optimisticLocking ? rs.getLong(6) : 0L,
+					null
+				);
+			} catch(SQLException sqle) {
+				throw sqle;
+			} catch(RuntimeException re) {
+				log.error("Error processing row " + rowNum + " when fetching session data", re);
+				throw re;
+			} finally {
+				log.debug("Done processing session data row #" + rowNum + " for " + sessionId);
+			}
+		}
+	};
+
 	/**
 	* Retrieves the session data for the given session. May be {@code null}.
 	*/
 	public SessionData getSessionData(final String sessionId) {
 		log.debug("Getting session data for " + sessionId);
+		if(!keyCodec.canEncode(sessionId)) {
+			if(isUnfit(sessionId)) return keyFallback.getSessionData(sessionId);
+			log.debug("Session id does not fit the session key column, so there is no such session: " + sessionId);
+			return null;
+		}
 		return 
 			transactionTemplate.execute(new TransactionCallback<SessionData>() {
 					public SessionData doInTransaction(TransactionStatus status) {
 						try {
-							return jdbcTemplate.queryForObject(
-								"SELECT sessionId, sessionData, createdAt, lastAccessedAt, maxInactiveInterval " + 
-									"FROM " + getTableName() + " WHERE sessionId = ?",
-								new Object[] { sessionId },
-								new RowMapper<SessionData>() {
-									public SessionData mapRow(ResultSet rs, int rowNum) throws SQLException {
-										log.debug("Processing session data row #" + rowNum + " for " + sessionId);
-										try {
-											return new SessionData(
-												rs.getString(1),
-												readAttributes(rs.getBytes(2)),
-												rs.getDate(3).getTime(),
-												rs.getDate(4).getTime(),
-												rs.getInt(5)
-											);
-										} catch(SQLException sqle) {
-											throw sqle;
-										} catch(RuntimeException re) {
-											log.error("Error processing row " + rowNum + " when fetching session data", re);
-											throw re;
-										} finally {
-											log.debug("Done processing session data row #" + rowNum + " for " + sessionId);
-										}
-									}
-								}
+							final SessionData data = jdbcTemplate.queryForObject(
+								selectSessionSql() + getTableName() + " WHERE sessionId = ?",
+								new Object[] { keyCodec.encode(sessionId) },
+								sessionMapper
 							);
+							final SessionMembership known = membership;
+							if(known != null) known.markPresent(sessionId);
+							return data;
 						} catch(IncorrectResultSizeDataAccessException e) {
 							if(e.getActualSize() == 0) {
 								log.error("No database session data found: no records in the database for  " + sessionId);
+								final SessionMembership known = membership;
+								if(known != null) known.markAbsent(sessionId);
 								return null;
 							}
 							log.error("More than one record with session id " + sessionId, e);
@@ -304,13 +1893,111 @@ public class JdbcPersister implements Persister, InitializingBean {
 		});
 	}
 
-	private static Map<String,Serializable> readAttributes(byte[] bytes) {
-		if(bytes == null || bytes.length == 0) {
-			log.warn("Asked to read from a null/empty attributes stream: " + Arrays.toString(bytes));
+	/**
+	* Retrieves the session data for the sessions that exist, using {@code IN (...)} queries of up to {@link #getBatchSize()} ids.
+	*/
+	@Override
+	public Map<String,SessionData> getSessionData(final Collection<String> sessionIds) {
+		final Map<String,SessionData> found = new HashMap<String,SessionData>();
+		if(sessionIds == null || sessionIds.isEmpty()) return found;
+		for(List<String> chunk : Lists.partition(encodableIds(sessionIds), batchSize)) {
+			for(SessionData session : jdbcTemplate.query(
+				selectSessionSql() + getTableName() + " WHERE sessionId IN (" + placeholders(chunk.size()) + ")",
+				keys(chunk), sessionMapper
+			)) {
+				found.put(session.sessionId, session);
+			}
+		}
+		final SessionMembership known = membership;
+		if(known != null) {
+			for(String sessionId : encodableIds(sessionIds)) {
+				if(found.containsKey(sessionId)) {
+					known.markPresent(sessionId);
+				} else {
+					known.markAbsent(sessionId);
+				}
+			}
+		}
+		final List<String> unfit = unfitIds(sessionIds);
+		if(!unfit.isEmpty()) found.putAll(keyFallback.getSessionData(unfit));
+		log.debug("Found " + found.size() + " of " + sessionIds.size() + " requested sessions");
+		return found;
+	}
+
+	/**
+	* The distinct ids which fit the session key column: the others cannot name a stored session.
+	*/
+	private List<String> encodableIds(final Collection<String> sessionIds) {
+		final List<String> encodable = new ArrayList<String>(sessionIds.size());
+		for(String sessionId : new LinkedHashSet<String>(sessionIds)) {
+			if(keyCodec.canEncode(sessionId)) encodable.add(sessionId);
+		}
+		return encodable;
+	}
+
+	private Object[] keys(final List<String> sessionIds) {
+		final Object[] keys = new Object[sessionIds.size()];
+		for(int i = 0; i < keys.length; i++) {
+			keys[i] = keyCodec.encode(sessionIds.get(i));
+		}
+		return keys;
+	}
+
+	private static String placeholders(final int count) {
+		final StringBuilder sql = new StringBuilder(count * 3);
+		for(int i = 0; i < count; i++) {
+			sql.append(i == 0 ? "?" : ", ?");
+		}
+		return sql.toString();
+	}
+
+	/**
+	* Reads the attributes of the session, recording their size as the hint for the next write (and for sizing the local tier).
+	*/
+	private Map<String,Serializable> readAttributes(final String sessionId, final InputStream in) {
+		if(in == null) {
+			log.warn("Asked to read from a null attributes stream");
+			return Collections.emptyMap();
+		}
+		final CountingInputStream counting = new CountingInputStream(in);
+		final Map<String,Serializable> attrs = readAttributes(counting);
+		SerializationBuffers.recordSize(sessionId, (int)counting.getCount());
+		SessionTimings.recordReadBytes(counting.getCount());
+		if(isSpilling()) {
+			final Set<String> spillKeys = new HashSet<String>();
+			for(Serializable value : attrs.values()) {
+				if(value instanceof SpilledAttribute) spillKeys.add(((SpilledAttribute)value).getKey());
+			}
+			knownSpillKeys.put(sessionId, spillKeys);
+		}
+		return attrs;
+	}
+
+	private Map<String,Serializable> readAttributes(InputStream in) {
+		if(in == null) {
+			log.warn("Asked to read from a null attributes stream");
 			return Collections.emptyMap();
 		}
+		final Map<String,Serializable> attrs = (Map<String,Serializable>)readObject(in);
+		if(attrs == null) return Collections.emptyMap();
+		for(Serializable value : attrs.values()) {
+			if(value instanceof SpilledAttribute) ((SpilledAttribute)value).attach(this);
+			if(value instanceof SharedAttribute) ((SharedAttribute)value).attach(this);
+		}
+		return attrs;
+	}
+
+	private static Object readObject(InputStream in) {
 		try {
-			return (Map<String,Serializable>)(new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject());
+			final ObjectInputStream ois = new ObjectInputStream(in);
+			try {
+				return ois.readObject();
+			} finally {
+				ois.close();
+			}
+		} catch(java.io.EOFException eofe) {
+			log.warn("Asked to read from an empty attributes stream");
+			return null;
 		} catch(java.lang.ClassNotFoundException cnfe) {
 			throw new RuntimeException("Could not find the class to deserialize the session", cnfe);
 		} catch(java.io.IOException ioe) {
@@ -325,7 +2012,30 @@ public class JdbcPersister implements Persister, InitializingBean {
 	@Override
 	public void invalidate(String sessionId) {
 		log.debug("Deleting the session " + sessionId);
-		int rows = jdbcTemplate.update("DELETE FROM " + getTableName() + " WHERE sessionId = ?", sessionId);
+		SerializationBuffers.forgetSize(sessionId);
+		lastTouched.invalidate(sessionId);
+		knownSpillKeys.invalidate(sessionId);
+		if(!keyCodec.canEncode(sessionId)) {
+			if(isUnfit(sessionId)) {
+				keyFallback.invalidate(sessionId);
+			} else {
+				log.debug("Session id does not fit the session key column, so there is nothing to invalidate: " + sessionId);
+			}
+			return;
+		}
+		final Object key = keyCodec.encode(sessionId);
+		int rows = jdbcTemplate.update("DELETE FROM " + getTableName() + " WHERE sessionId = ?", key);
+		if(isSpilling()) {
+			jdbcTemplate.update("DELETE FROM " + getSpillTableName() + " WHERE sessionId = ?", key);
+		}
+		if(isSharing()) {
+			jdbcTemplate.update("DELETE FROM " + getSharedRefTableName() + " WHERE sessionId = ?", key);
+		}
+		if(isIndexingPrincipals()) {
+			jdbcTemplate.update("DELETE FROM " + getPrincipalTableName() + " WHERE sessionId = ?", key);
+		}
+		recordChange(sessionId);
+		if(membership != null) membership.markAbsent(sessionId);
 		if(rows == 0) {
 			log.debug("No session with id " + sessionId + " found in the database to invalidate");	
 		} else {
@@ -333,6 +2043,104 @@ public class JdbcPersister implements Persister, InitializingBean {
 		}
 	}
 
+	/**
+	* Deletes the sessions with {@code IN (...)} statements of up to {@link #getBatchSize()} ids.
+	*/
+	@Override
+	public void invalidateAll(final Collection<String> sessionIds) {
+		if(sessionIds == null || sessionIds.isEmpty()) return;
+		final List<String> unfit = unfitIds(sessionIds);
+		if(!unfit.isEmpty()) keyFallback.invalidateAll(unfit);
+		for(List<String> chunk : Lists.partition(encodableIds(sessionIds), batchSize)) {
+			for(String sessionId : chunk) {
+				SerializationBuffers.forgetSize(sessionId);
+				lastTouched.invalidate(sessionId);
+				knownSpillKeys.invalidate(sessionId);
+			}
+			final String in = " WHERE sessionId IN (" + placeholders(chunk.size()) + ")";
+			final Object[] keys = keys(chunk);
+			final int rows = jdbcTemplate.update("DELETE FROM " + getTableName() + in, keys);
+			if(isSpilling()) {
+				jdbcTemplate.update("DELETE FROM " + getSpillTableName() + in, keys);
+			}
+			if(isSharing()) {
+				jdbcTemplate.update("DELETE FROM " + getSharedRefTableName() + in, keys);
+			}
+			if(isIndexingPrincipals()) {
+				jdbcTemplate.update("DELETE FROM " + getPrincipalTableName() + in, keys);
+			}
+			recordChanges(chunk);
+			if(membership != null) membership.markAbsent(chunk);
+			log.debug("Deleted " + rows + " of " + chunk.size() + " sessions");
+		}
+	}
+
+	/**
+	* Finds the sessions of the principal in the principal table, which is empty unless a {@link #getPrincipalExtractor()
+	* principal extractor} is assigned.
+	*/
+	@Override
+	public Set<String> findSessionIds(final String principal) {
+		final Set<String> found = new HashSet<String>();
+		if(!isIndexingPrincipals() || principal == null) return found;
+		jdbcTemplate.query(
+			"SELECT sessionId FROM " + getPrincipalTableName() + " WHERE principal = ?",
+			new Object[] { principal },
+			new RowCallbackHandler() {
+				public void processRow(ResultSet rs) throws SQLException {
+					found.add(keyCodec.decode(rs, 1));
+				}
+			}
+		);
+		if(keyFallback != null) found.addAll(keyFallback.findSessionIds(principal));
+		return found;
+	}
+
+	/**
+	* Deletes the sessions of the principal, and evicts them from the {@link #getLocalPersister() local persister}.
+	*/
+	@Override
+	public Set<String> invalidateByPrincipal(final String principal) {
+		final Set<String> sessionIds = findSessionIds(principal);
+		log.info("Invalidating the " + sessionIds.size() + " sessions of principal " + principal);
+		invalidateAll(sessionIds);
+		final Persister local = localPersister;
+		if(local != null) local.invalidateAll(sessionIds);
+		return sessionIds;
+	}
+
+	/**
+	* Records the principal of every stored session, for sessions written before principals were indexed (whose
+	* principal is otherwise only recorded once it changes). This reads the whole table.
+	* @return the number of sessions with a principal
+	*/
+	public int indexPrincipals() {
+		if(!isIndexingPrincipals()) {
+			throw new IllegalStateException("principalExtractor property must be assigned to index principals");
+		}
+		final PrincipalExtractor extractor = principalExtractor;
+		final Map<String,String> principals = new HashMap<String,String>();
+		scanSessions(new SessionRowHandler() {
+			public void handle(final String sessionId, final byte[] sessionData) {
+				try {
+					final String principal = extractor.principalOf(decodeAttributes(sessionData));
+					if(principal != null) principals.put(sessionId, principal);
+				} catch(RuntimeException re) {
+					log.warn("Could not read the principal of session " + sessionId, re);
+				}
+			}
+		});
+		for(Map.Entry<String,String> entry : principals.entrySet()) {
+			try {
+				writePrincipal(entry.getKey(), entry.getValue());
+			} catch(DuplicateKeyException dke) {
+				log.debug("Session " + entry.getKey() + " was indexed while indexing principals", dke);
+			}
+		}
+		log.info("Indexed the principals of " + principals.size() + " sessions");
+		return principals.size() + (keyFallback == null ? 0 : keyFallback.indexPrincipals());
+	}
+
 	/**
 	 * Check if the session is valid.
 	 * @param sessionId the session id
@@ -340,7 +2148,46 @@ public class JdbcPersister implements Persister, InitializingBean {
 	 */
 	@Override
 	public boolean isValid(String sessionId) {
-		return 1 == jdbcTemplate.queryForInt("SELECT COUNT(*) FROM " + getTableName() + " WHERE sessionId = ?", sessionId);
+		if(!keyCodec.canEncode(sessionId)) return isUnfit(sessionId) && keyFallback.isValid(sessionId);
+		final SessionMembership known = membership;
+		// A remembered presence may be out of date if another node has since deleted the session, so only absence is
+		// taken on trust here
+		if(known != null && Boolean.FALSE.equals(known.isPresent(sessionId))) return false;
+		return countSession(sessionId);
+	}
+
+	/**
+	* Asks the database whether the session is stored, whatever the {@link #getMembership() membership} says.
+	*/
+	private boolean countSession(final String sessionId) {
+		if(!keyCodec.canEncode(sessionId)) return false;
+		final boolean present = 1 == jdbcTemplate.queryForInt(
+			"SELECT COUNT(*) FROM " + getTableName() + " WHERE sessionId = ?", keyCodec.encode(sessionId)
+		);
+		final SessionMembership known = membership;
+		if(known != null && present) {
+			known.markPresent(sessionId);
+		} else if(known != null) {
+			known.markAbsent(sessionId);
+		}
+		return present;
+	}
+
+	/**
+	* Whether a write of the session should start with an update rather than an insert. Either way, the write falls back 
+	* to the other statement, so the {@link #getMembership() membership} (even its Bloom filter) is good enough to go on.
+	*/
+	private boolean isLikelyStored(final String sessionId) {
+		final SessionMembership known = membership;
+		if(known == null) return isValid(sessionId);
+		final Boolean present = known.isPresent(sessionId);
+		if(present != null) return present.booleanValue();
+		return known.mightHaveWritten(sessionId) || countSession(sessionId);
+	}
+
+	private void markWritten(final String sessionId) {
+		final SessionMembership known = membership;
+		if(known != null) known.markWritten(sessionId);
 	}
 
 	@Override
@@ -356,8 +2203,8 @@ public class JdbcPersister implements Persister, InitializingBean {
 					"SELECT sessionId, lastAccessedAt, maxInactiveInterval FROM " + getTableName(),
 					new RowMapper<Object[]>() {
 						public Object[] mapRow(ResultSet rs, int rowNum) throws SQLException {
-							final String sessionId = rs.getString(1);
-							final java.sql.Date lastAccessed = rs.getDate(2);
+							final String sessionId = keyCodec.decode(rs, 1);
+							final java.sql.Timestamp lastAccessed = rs.getTimestamp(2);
 							final int maxInactiveSeconds = rs.getInt(3);
 							if(lastAccessed.getTime() + TimeUnit.SECONDS.toMillis(maxInactiveSeconds) < now) {
 								return new Object[] { sessionId, lastAccessed };
@@ -370,7 +2217,13 @@ public class JdbcPersister implements Persister, InitializingBean {
 				Predicates.notNull()
 			).toArray(new Object[0][0]);
 
-		if(toDelete.length == 0) return;
+		if(toDelete.length == 0) {
+			cleanUpSpillTable();
+			cleanUpSharedValues();
+			cleanUpPrincipalTable();
+			cleanUpChangeTable();
+			return;
+		}
 
 		// Now do the big update: will automatically fall back to individual queries if need be
 		jdbcTemplate.batchUpdate(
@@ -379,8 +2232,8 @@ public class JdbcPersister implements Persister, InitializingBean {
 			new BatchPreparedStatementSetter() {
 				public void setValues(PreparedStatement ps, int i) throws SQLException {
 					final Object[] args = toDelete[i];
-					ps.setString(1, (String)args[0]);
-					ps.setDate(2, (java.sql.Date)args[1]);
+					keyCodec.bind(ps, 1, (String)args[0]);
+					ps.setTimestamp(2, (java.sql.Timestamp)args[1]);
 				}
 		
 				public int getBatchSize() {
@@ -388,7 +2241,220 @@ public class JdbcPersister implements Persister, InitializingBean {
 				}
 			}
 		);
+		final SessionMembership known = membership;
+		if(known != null) {
+			// A session which was used meanwhile is not deleted
+			for(Object[] args : toDelete) known.forget((String)args[0]);
+		}
+
+		cleanUpSpillTable();
+		cleanUpSharedValues();
+		cleanUpPrincipalTable();
+		cleanUpChangeTable();
+		if(keyFallback != null) keyFallback.cleanUp();
+	}
 
+	/**
+	* Copies the sessions of a table with the original schema (string ids and hex hashes) into this persister's tables,
+	* converting them to its {@link #getKeyFormat() key format}. The source table is read in a single pass, and the rows 
+	* are inserted in batches of {@link #getBatchSize()}. Sessions which are already there are skipped, and those whose 
+	* ids do not fit the key format are copied as they are into the {@link #getKeyFallbackTableName() key fallback table}. 
+	* If {@code fromSpillTable} is not {@code null}, the spilled attributes are copied from it as well. The source tables 
+	* are left as they are.
+	* @return the number of sessions copied
+	*/
+	public int migrateKeys(final String fromTable, final String fromSpillTable) {
+		if(fromTable == null || fromTable.equalsIgnoreCase(getTableName())) {
+			throw new IllegalArgumentException("Cannot migrate the sessions of table " + fromTable + " into " + getTableName());
+		}
+		log.info("Migrating the sessions of " + fromTable + " into " + getTableName() + " with " + keyFormat + " keys");
+		final JdbcPersister fallback = keyFallback;
+		final int[] counts = new int[] { 0, 0 }; // Copied, skipped
+		final List<Object[]> batch = new ArrayList<Object[]>(batchSize);
+		final List<Object[]> unfitBatch = new ArrayList<Object[]>(batchSize);
+		final String columns = " (sessionId, sessionHash, sessionData, createdAt, lastAccessedAt, maxInactiveInterval) VALUES (?, ?, ?, ?, ?, ?)";
+		final String insertSql = "INSERT INTO " + getTableName() + columns;
+		final String insertUnfitSql = fallback == null ? null : "INSERT INTO " + fallback.getTableName() + columns;
+		jdbcTemplate.query(
+			"SELECT sessionId, sessionHash, sessionData, createdAt, lastAccessedAt, maxInactiveInterval FROM " + fromTable,
+			new PreparedStatementSetter() {
+				public void setValues(PreparedStatement ps) throws SQLException {
+					ps.setFetchSize(batchSize);
+				}
+			},
+			new RowCallbackHandler() {
+				public void processRow(ResultSet rs) throws SQLException {
+					final String sessionId = rs.getString(1);
+					if(!keyCodec.canEncode(sessionId)) {
+						if(fallback == null) {
+							log.warn("Not migrating session " + sessionId + ": its id does not fit the " + keyFormat + " key format");
+							counts[1]++;
+							return;
+						}
+						unfitBatch.add(new Object[] {
+							sessionId, rs.getString(2).trim(), readBytes(getBinary(rs, 3)), rs.getTimestamp(4), rs.getTimestamp(5), rs.getInt(6)
+						});
+						if(unfitBatch.size() >= batchSize) {
+							counts[0] += insertMigrated(insertUnfitSql, unfitBatch, 3);
+							unfitBatch.clear();
+						}
+						return;
+					}
+					final byte[] hash = SessionKeyCodec.fromHex(rs.getString(2).trim());
+					batch.add(new Object[] {
+						keyCodec.encode(sessionId), keyCodec.isCompact() ? hash : SerializationBuffers.toHex(hash),
+						readBytes(getBinary(rs, 3)), rs.getTimestamp(4), rs.getTimestamp(5), rs.getInt(6)
+					});
+					if(batch.size() >= batchSize) {
+						counts[0] += insertMigrated(insertSql, batch, 3);
+						batch.clear();
+					}
+				}
+			}
+		);
+		counts[0] += insertMigrated(insertSql, batch, 3);
+		batch.clear();
+		if(!unfitBatch.isEmpty()) counts[0] += insertMigrated(insertUnfitSql, unfitBatch, 3);
+		unfitBatch.clear();
+		log.info("Migrated " + counts[0] + " sessions into " + getTableName() + " (skipped " + counts[1] + " which did not fit)");
+
+		if(fromSpillTable == null || !isSpilling()) return counts[0];
+		final String insertSpillSql = "INSERT INTO " + getSpillTableName() + " (sessionId, attributeName, attributeData) VALUES (?, ?, ?)";
+		final String insertUnfitSpillSql = fallback == null ? null : 
+			"INSERT INTO " + fallback.getSpillTableName() + " (sessionId, attributeName, attributeData) VALUES (?, ?, ?)";
+		final int[] spilled = new int[] { 0 };
+		jdbcTemplate.query(
+			"SELECT sessionId, attributeName, attributeData FROM " + fromSpillTable,
+			new PreparedStatementSetter() {
+				public void setValues(PreparedStatement ps) throws SQLException {
+					ps.setFetchSize(batchSize);
+				}
+			},
+			new RowCallbackHandler() {
+				public void processRow(ResultSet rs) throws SQLException {
+					final String sessionId = rs.getString(1);
+					if(!keyCodec.canEncode(sessionId)) {
+						if(fallback == null) return;
+						unfitBatch.add(new Object[] { sessionId, rs.getString(2), readBytes(getBinary(rs, 3)) });
+						if(unfitBatch.size() >= batchSize) {
+							spilled[0] += insertMigrated(insertUnfitSpillSql, unfitBatch, 3);
+							unfitBatch.clear();
+						}
+						return;
+					}
+					batch.add(new Object[] { keyCodec.encode(sessionId), rs.getString(2), readBytes(getBinary(rs, 3)) });
+					if(batch.size() >= batchSize) {
+						spilled[0] += insertMigrated(insertSpillSql, batch, 3);
+						batch.clear();
+					}
+				}
+			}
+		);
+		spilled[0] += insertMigrated(insertSpillSql, batch, 3);
+		if(!unfitBatch.isEmpty()) spilled[0] += insertMigrated(insertUnfitSpillSql, unfitBatch, 3);
+		log.info("Migrated " + spilled[0] + " spilled attributes into " + getSpillTableName());
+		return counts[0];
+	}
+
+	/**
+	* Inserts the rows with a batched statement, falling back to one row at a time (skipping the duplicates) if some are there already.
+	*/
+	private int insertMigrated(final String sql, final List<Object[]> rows, final int binaryIndex) {
+		if(rows.isEmpty()) return 0;
+		try {
+			jdbcTemplate.batchUpdate(sql, new BatchPreparedStatementSetter() {
+				public void setValues(PreparedStatement ps, int i) throws SQLException {
+					setMigratedValues(ps, rows.get(i), binaryIndex);
+				}
+				public int getBatchSize() {
+					return rows.size();
+				}
+			});
+			return rows.size();
+		} catch(DuplicateKeyException dke) {
+			log.debug("Duplicate key while migrating a batch of rows: inserting them one at a time");
+		}
+		int inserted = 0;
+		for(final Object[] row : rows) {
+			try {
+				jdbcTemplate.update(sql, new PreparedStatementSetter() {
+					public void setValues(PreparedStatement ps) throws SQLException {
+						setMigratedValues(ps, row, binaryIndex);
+					}
+				});
+				inserted++;
+			} catch(DuplicateKeyException dke) {
+				log.debug("Skipping a row which was already migrated into " + getTableName());
+			}
+		}
+		return inserted;
+	}
+
+	private void setMigratedValues(final PreparedStatement ps, final Object[] row, final int binaryIndex) throws SQLException {
+		for(int i = 0; i < row.length; i++) {
+			if(i + 1 == binaryIndex) {
+				final byte[] bytes = (byte[])row[i];
+				setBinary(ps, i + 1, bytes, bytes.length);
+			} else {
+				StatementCreatorUtils.setParameterValue(ps, i + 1, SqlTypeValue.TYPE_UNKNOWN, row[i]);
+			}
+		}
+	}
+
+	private static byte[] readBytes(final InputStream in) {
+		if(in == null) return new byte[0];
+		try {
+			try {
+				return IOUtils.toByteArray(in);
+			} finally {
+				in.close();
+			}
+		} catch(IOException ioe) {
+			throw new RuntimeException("I/O Exception while reading session data from the database", ioe);
+		}
+	}
+
+	private void cleanUpChangeTable() {
+		if(!changeFeedEnabled) return;
+		final int rows = jdbcTemplate.update(
+			"DELETE FROM " + getChangeTableName() + " WHERE changedAt < ?",
+			new java.sql.Timestamp(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(changeRetentionSeconds))
+		);
+		log.debug("Removed " + rows + " old entries from the change table");
+	}
+
+	/**
+	* Drops the references of sessions which are gone, and then the shared values which no session refers to and which 
+	* have not been written for {@link #getSharedGraceSeconds()}. The reference table is the reference count: counting
+	* its rows when collecting, rather than keeping a counter on each value, cannot drift when a write fails halfway or 
+	* a session expires without being invalidated, since the references are written and dropped along with the session.
+	*/
+	private void cleanUpSharedValues() {
+		if(!isSharing()) return;
+		final int refs = jdbcTemplate.update(
+			"DELETE FROM " + getSharedRefTableName() + " WHERE sessionId NOT IN (SELECT sessionId FROM " + getTableName() + ")"
+		);
+		final int values = jdbcTemplate.update(
+			"DELETE FROM " + getSharedTableName() + " WHERE referencedAt < ? AND digest NOT IN (SELECT digest FROM " + getSharedRefTableName() + ")",
+			new java.sql.Timestamp(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(sharedGraceSeconds))
+		);
+		log.debug("Removed " + refs + " orphaned shared value references and " + values + " unreferenced shared values");
+	}
+
+	private void cleanUpPrincipalTable() {
+		if(!isIndexingPrincipals()) return;
+		final int rows = jdbcTemplate.update(
+			"DELETE FROM " + getPrincipalTableName() + " WHERE sessionId NOT IN (SELECT sessionId FROM " + getTableName() + ")"
+		);
+		log.debug("Removed " + rows + " orphaned session principals");
+	}
+
+	private void cleanUpSpillTable() {
+		if(!isSpilling()) return;
+		final int rows = jdbcTemplate.update(
+			"DELETE FROM " + getSpillTableName() + " WHERE sessionId NOT IN (SELECT sessionId FROM " + getTableName() + ")"
+		);
+		log.debug("Removed " + rows + " orphaned spilled attributes");
 	}
 
 
@@ -0,0 +1,414 @@
+package grails.plugin.databasesession;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable map of session attributes (a hash array mapped trie), where {@link #plus(String, Serializable)} and
+ * {@link #minus(String)} return a new map which shares all but {@code O(log n)} of its nodes with this one. This lets
+ * {@link SessionProxy}, {@link SessionData}, and the persisters hand the same attributes around without copying them:
+ * a snapshot of the attributes is just a reference to the current map.
+ *
+ * Keys and values cannot be {@code null}. The map is serialized through a proxy which streams its entries, without
+ * copying them into another map first. Whatever reads it back only needs it to be a {@link Map}.
+ *
+ * @author Robert Fischer
+ */
+public final class PersistentAttributeMap extends AbstractMap<String,Serializable> implements Serializable {
+
+	private static final long serialVersionUID = 1;
+
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+
+	private static final PersistentAttributeMap EMPTY = new PersistentAttributeMap(BitmapNode.EMPTY, 0);
+
+	private final Node root;
+	private final int size;
+
+	private PersistentAttributeMap(final Node root, final int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	public static PersistentAttributeMap empty() {
+		return EMPTY;
+	}
+
+	/**
+	* The map with the entries of the given one, which is returned as it is if it is a {@link PersistentAttributeMap}
+	* already. Entries with {@code null} values are left out.
+	*/
+	public static PersistentAttributeMap copyOf(final Map<String,? extends Serializable> map) {
+		if(map instanceof PersistentAttributeMap) return (PersistentAttributeMap)map;
+		PersistentAttributeMap result = EMPTY;
+		if(map == null) return result;
+		for(Map.Entry<String,? extends Serializable> entry : map.entrySet()) {
+			if(entry.getValue() != null) result = result.plus(entry.getKey(), entry.getValue());
+		}
+		return result;
+	}
+
+	private static int hash(final Object key) {
+		final int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private static int bit(final int hash, final int shift) {
+		return 1 << ((hash >>> shift) & MASK);
+	}
+
+	/**
+	* The map with the key mapped to the value, which is this map if it already was.
+	*/
+	public PersistentAttributeMap plus(final String key, final Serializable value) {
+		if(key == null) throw new IllegalArgumentException("Cannot store a null key into the attributes");
+		if(value == null) throw new IllegalArgumentException("Cannot store a null value into the attributes: " + key);
+		final boolean[] added = new boolean[1];
+		final Node newRoot = root.put(0, hash(key), key, value, added);
+		if(newRoot == root) return this;
+		return new PersistentAttributeMap(newRoot, added[0] ? size + 1 : size);
+	}
+
+	/**
+	* The map without the key, which is this map if it did not have it.
+	*/
+	public PersistentAttributeMap minus(final Object key) {
+		if(key == null) return this;
+		final Node newRoot = root.remove(0, hash(key), key);
+		if(newRoot == root) return this;
+		if(newRoot == null) return EMPTY;
+		return new PersistentAttributeMap(newRoot, size - 1);
+	}
+
+	@Override
+	public Serializable get(final Object key) {
+		if(key == null) return null;
+		return root.find(0, hash(key), key);
+	}
+
+	@Override
+	public boolean containsKey(final Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public Set<Map.Entry<String,Serializable>> entrySet() {
+		return new AbstractSet<Map.Entry<String,Serializable>>() {
+			@Override
+			public Iterator<Map.Entry<String,Serializable>> iterator() {
+				return new EntryIterator(root);
+			}
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private Object writeReplace() throws ObjectStreamException {
+		return new SerializationProxy(this);
+	}
+
+	private void readObject(final ObjectInputStream in) throws InvalidObjectException {
+		throw new InvalidObjectException("A PersistentAttributeMap can only be read through its serialization proxy");
+	}
+
+	/**
+	* The serialized form of the map: its size, followed by each key and value.
+	*/
+	private static final class SerializationProxy implements Serializable {
+
+		private static final long serialVersionUID = 1;
+
+		private transient PersistentAttributeMap map;
+
+		SerializationProxy(final PersistentAttributeMap map) {
+			this.map = map;
+		}
+
+		private void writeObject(final ObjectOutputStream out) throws IOException {
+			out.defaultWriteObject();
+			out.writeInt(map.size());
+			for(Map.Entry<String,Serializable> entry : map.entrySet()) {
+				out.writeObject(entry.getKey());
+				out.writeObject(entry.getValue());
+			}
+		}
+
+		private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+			in.defaultReadObject();
+			final int size = in.readInt();
+			PersistentAttributeMap read = EMPTY;
+			for(int i = 0; i < size; i++) {
+				final String key = (String)in.readObject();
+				final Serializable value = (Serializable)in.readObject();
+				read = read.plus(key, value);
+			}
+			map = read;
+		}
+
+		private Object readResolve() throws ObjectStreamException {
+			return map;
+		}
+	}
+
+	/**
+	* A node of the trie, which holds its entries and child nodes as pairs in an array: a pair is either a key and its
+	* value, or {@code null} and a child node.
+	*/
+	private static abstract class Node {
+		final Object[] array;
+
+		Node(final Object[] array) {
+			this.array = array;
+		}
+
+		abstract Serializable find(int shift, int hash, Object key);
+
+		/**
+		* The node with the entry, which is this node if it is unchanged. Sets {@code added[0]} if the key is new.
+		*/
+		abstract Node put(int shift, int hash, String key, Serializable value, boolean[] added);
+
+		/**
+		* The node without the entry, which is this node if it is unchanged, or {@code null} if it is left empty.
+		*/
+		abstract Node remove(int shift, int hash, Object key);
+
+		/**
+		* Whether this node holds a single entry, so that its parent can hold the entry itself.
+		*/
+		boolean isSingleEntry() {
+			return array.length == 2 && array[0] != null;
+		}
+	}
+
+	private static final class BitmapNode extends Node {
+		static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+		final int bitmap;
+
+		BitmapNode(final int bitmap, final Object[] array) {
+			super(array);
+			this.bitmap = bitmap;
+		}
+
+		private int index(final int bit) {
+			return 2 * Integer.bitCount(bitmap & (bit - 1));
+		}
+
+		Serializable find(final int shift, final int hash, final Object key) {
+			final int bit = bit(hash, shift);
+			if((bitmap & bit) == 0) return null;
+			final int idx = index(bit);
+			final Object k = array[idx];
+			if(k == null) return ((Node)array[idx + 1]).find(shift + BITS, hash, key);
+			return key.equals(k) ? (Serializable)array[idx + 1] : null;
+		}
+
+		Node put(final int shift, final int hash, final String key, final Serializable value, final boolean[] added) {
+			final int bit = bit(hash, shift);
+			final int idx = index(bit);
+			if((bitmap & bit) == 0) {
+				added[0] = true;
+				final Object[] newArray = new Object[array.length + 2];
+				System.arraycopy(array, 0, newArray, 0, idx);
+				newArray[idx] = key;
+				newArray[idx + 1] = value;
+				System.arraycopy(array, idx, newArray, idx + 2, array.length - idx);
+				return new BitmapNode(bitmap | bit, newArray);
+			}
+
+			final Object k = array[idx];
+			final Object v = array[idx + 1];
+			if(k == null) {
+				final Node child = ((Node)v).put(shift + BITS, hash, key, value, added);
+				return child == v ? this : with(idx, null, child);
+			}
+			if(key.equals(k)) {
+				return v == value ? this : with(idx, k, value);
+			}
+			added[0] = true;
+			return with(idx, null, createNode(shift + BITS, (String)k, (Serializable)v, hash, key, value));
+		}
+
+		Node remove(final int shift, final int hash, final Object key) {
+			final int bit = bit(hash, shift);
+			if((bitmap & bit) == 0) return this;
+			final int idx = index(bit);
+			final Object k = array[idx];
+			if(k == null) {
+				final Node child = (Node)array[idx + 1];
+				final Node newChild = child.remove(shift + BITS, hash, key);
+				if(newChild == child) return this;
+				if(newChild == null) return without(bit, idx);
+				if(newChild.isSingleEntry()) return with(idx, newChild.array[0], newChild.array[1]);
+				return with(idx, null, newChild);
+			}
+			if(!key.equals(k)) return this;
+			return without(bit, idx);
+		}
+
+		/**
+		* A copy of this node with the pair at {@code idx} replaced.
+		*/
+		private Node with(final int idx, final Object key, final Object value) {
+			final Object[] newArray = array.clone();
+			newArray[idx] = key;
+			newArray[idx + 1] = value;
+			return new BitmapNode(bitmap, newArray);
+		}
+
+		private Node without(final int bit, final int idx) {
+			if(bitmap == bit) return null;
+			final Object[] newArray = new Object[array.length - 2];
+			System.arraycopy(array, 0, newArray, 0, idx);
+			System.arraycopy(array, idx + 2, newArray, idx, array.length - idx - 2);
+			return new BitmapNode(bitmap ^ bit, newArray);
+		}
+	}
+
+	/**
+	* The entries of keys whose hashes are the same in all their bits.
+	*/
+	private static final class CollisionNode extends Node {
+		final int hash;
+
+		CollisionNode(final int hash, final Object[] array) {
+			super(array);
+			this.hash = hash;
+		}
+
+		private int indexOf(final Object key) {
+			for(int i = 0; i < array.length; i += 2) {
+				if(key.equals(array[i])) return i;
+			}
+			return -1;
+		}
+
+		Serializable find(final int shift, final int hash, final Object key) {
+			if(hash != this.hash) return null;
+			final int idx = indexOf(key);
+			return idx < 0 ? null : (Serializable)array[idx + 1];
+		}
+
+		Node put(final int shift, final int hash, final String key, final Serializable value, final boolean[] added) {
+			if(hash != this.hash) {
+				return new BitmapNode(bit(this.hash, shift), new Object[] { null, this }).put(shift, hash, key, value, added);
+			}
+			final int idx = indexOf(key);
+			if(idx >= 0) {
+				if(array[idx + 1] == value) return this;
+				final Object[] newArray = array.clone();
+				newArray[idx + 1] = value;
+				return new CollisionNode(hash, newArray);
+			}
+			added[0] = true;
+			final Object[] newArray = new Object[array.length + 2];
+			System.arraycopy(array, 0, newArray, 0, array.length);
+			newArray[array.length] = key;
+			newArray[array.length + 1] = value;
+			return new CollisionNode(hash, newArray);
+		}
+
+		Node remove(final int shift, final int hash, final Object key) {
+			if(hash != this.hash) return this;
+			final int idx = indexOf(key);
+			if(idx < 0) return this;
+			if(array.length == 4) {
+				final int other = idx == 0 ? 2 : 0;
+				return new BitmapNode(bit(hash, shift), new Object[] { array[other], array[other + 1] });
+			}
+			final Object[] newArray = new Object[array.length - 2];
+			System.arraycopy(array, 0, newArray, 0, idx);
+			System.arraycopy(array, idx + 2, newArray, idx, array.length - idx - 2);
+			return new CollisionNode(hash, newArray);
+		}
+	}
+
+	private static Node createNode(final int shift, final String key1, final Serializable value1, final int hash2, final String key2, final Serializable value2) {
+		final int hash1 = hash(key1);
+		if(hash1 == hash2) return new CollisionNode(hash1, new Object[] { key1, value1, key2, value2 });
+		final boolean[] added = new boolean[1];
+		return BitmapNode.EMPTY.put(shift, hash1, key1, value1, added).put(shift, hash2, key2, value2, added);
+	}
+
+	/**
+	* Walks the trie depth first, keeping the array and position of each level it is in.
+	*/
+	private static final class EntryIterator implements Iterator<Map.Entry<String,Serializable>> {
+		private final Object[][] arrays = new Object[(32 / BITS) + 3][];
+		private final int[] positions = new int[arrays.length];
+		private int depth = -1;
+		private Map.Entry<String,Serializable> next;
+
+		EntryIterator(final Node root) {
+			push(root);
+			advance();
+		}
+
+		private void push(final Node node) {
+			depth++;
+			arrays[depth] = node.array;
+			positions[depth] = 0;
+		}
+
+		private void advance() {
+			while(depth >= 0) {
+				final Object[] array = arrays[depth];
+				final int pos = positions[depth];
+				if(pos >= array.length) {
+					arrays[depth] = null;
+					depth--;
+					continue;
+				}
+				positions[depth] = pos + 2;
+				if(array[pos] == null) {
+					push((Node)array[pos + 1]);
+				} else {
+					next = new AbstractMap.SimpleImmutableEntry<String,Serializable>((String)array[pos], (Serializable)array[pos + 1]);
+					return;
+				}
+			}
+			next = null;
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public Map.Entry<String,Serializable> next() {
+			if(next == null) throw new NoSuchElementException();
+			final Map.Entry<String,Serializable> result = next;
+			advance();
+			return result;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException("The attribute map is immutable");
+		}
+	}
+
+}
@@ -2,11 +2,16 @@ package grails.plugin.databasesession;
 
 import java.io.Serializable;
 
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
+ * Implementations which do not have a native way to handle several sessions at once can extend 
+ * {@link AbstractPersister}, which provides the batch methods by looping over the single-session ones.
+ *
  * @author Burt Beckwith
  * @author Robert Fischer
  */
@@ -18,11 +23,27 @@ public interface Persister {
 	*/
 	void persistSession(SessionData session);
 
+	/**
+	* Records that a session was accessed without its attributes changing, so that it does not expire while in use. 
+	* Implementations may throttle how often this actually reaches the data store.
+	*/
+	void touchSession(String sessionId, long lastAccessedAt, int maxInactiveInterval);
+
 	/**
 	* Retrieves the session data for the given session. Return value will be {@code null} if the session id is not recognized.
 	*/
 	SessionData getSessionData(String sessionId);
 
+	/**
+	* Persists several sessions to the data store. Equivalent to calling {@link #persistSession(SessionData)} for each.
+	*/
+	void persistSessions(Collection<SessionData> sessions);
+
+	/**
+	* Retrieves the session data for the given sessions. Session ids which are not recognized are not in the returned map.
+	*/
+	Map<String,SessionData> getSessionData(Collection<String> sessionIds);
+
 	/**
 	 * Effectively delete a session.
    * 
@@ -30,6 +51,22 @@ public interface Persister {
 	 */
 	void invalidate(String sessionId);
 
+	/**
+	* Effectively delete several sessions. Equivalent to calling {@link #invalidate(String)} for each.
+	*/
+	void invalidateAll(Collection<String> sessionIds);
+
+	/**
+	* Finds the sessions whose principal (see {@link PrincipalExtractor}) is the given one. Persisters which do not
+	* index sessions by principal return an empty set.
+	*/
+	Set<String> findSessionIds(String principal);
+
+	/**
+	* Invalidates the sessions whose principal is the given one, and returns their ids.
+	*/
+	Set<String> invalidateByPrincipal(String principal);
+
 	/**
 	 * Check if the persister is aware of a session with that id and it is not invalidated.
 	 * 
@@ -0,0 +1,26 @@
+package grails.plugin.databasesession;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Pulls the principal (say, the user name) out of the attributes of a session, so that the persisters can index
+ * sessions by it: see {@link Persister#findSessionIds(String)} and {@link Persister#invalidateByPrincipal(String)}.
+ *
+ * @author Robert Fischer
+ */
+public interface PrincipalExtractor {
+
+	/**
+	* The attributes the principal is read from. The index of a session is only rewritten when one of these changes.
+	*/
+	Collection<String> getAttributeNames();
+
+	/**
+	* The principal of the session with the given attributes, or {@code null} if it has none. Principals longer than
+	* 255 characters cannot be indexed.
+	*/
+	String principalOf(Map<String,Serializable> attrs);
+
+}
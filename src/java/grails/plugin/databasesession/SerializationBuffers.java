@@ -0,0 +1,188 @@
+package grails.plugin.databasesession;
+
+import java.io.ByteArrayOutputStream;
+
+import java.security.MessageDigest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Reusable resources for serializing sessions: buffers pooled by power-of-two size class in small shared pools,
+ * a shared pool of {@link MessageDigest} instances, table-based hex encoding, and the last serialized size
+ * of each session so that buffers can be sized up front instead of growing by doubling.
+ * <p>
+ * The pools are shared rather than per-thread, so that a container with hundreds of threads does not pin a set of
+ * buffers and digests on each of them, and so that nothing of this class is left on the container's threads on redeploy.
+ *
+ * @author Robert Fischer
+ */
+final class SerializationBuffers {
+
+	private SerializationBuffers() {}
+
+	static final String DIGEST_ALGORITHM = "SHA-256";
+
+	/**
+	* The smallest size class is {@code 2^MIN_CLASS} bytes.
+	*/
+	private static final int MIN_CLASS = 10;
+
+	/**
+	* Buffers larger than {@code 2^MAX_CLASS} bytes (64KB) are not kept around after use.
+	*/
+	private static final int MAX_CLASS = 16;
+
+	/**
+	* The most buffers kept in the pool of each size class, so that at most about 128KB are pooled per processor.
+	*/
+	private static final int POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private static final BlockingQueue<MessageDigest> digests = new ArrayBlockingQueue<MessageDigest>(POOL_SIZE);
+
+	private static final List<BlockingQueue<Buffer>> pools = createPools();
+
+	private static List<BlockingQueue<Buffer>> createPools() {
+		final List<BlockingQueue<Buffer>> created = new ArrayList<BlockingQueue<Buffer>>(MAX_CLASS + 1);
+		for(int sizeClass = 0; sizeClass <= MAX_CLASS; sizeClass++) {
+			created.add(new ArrayBlockingQueue<Buffer>(POOL_SIZE));
+		}
+		return created;
+	}
+
+	private static final Cache<String,Integer> sizeHints = CacheBuilder.newBuilder()
+		.maximumSize(10000)
+		.concurrencyLevel(Math.max(1, Runtime.getRuntime().availableProcessors() / 2))
+		.build();
+
+	/**
+	* A {@link ByteArrayOutputStream} which hands its buffer off without copying it, and which goes back into
+	* the pool when {@link #release() released}.
+	*/
+	static final class Buffer extends ByteArrayOutputStream {
+
+		private Buffer(final int capacity) {
+			super(capacity);
+		}
+
+		public byte[] buffer() {
+			return buf;
+		}
+
+		public int length() {
+			return count;
+		}
+
+		public int capacity() {
+			return buf.length;
+		}
+
+		/**
+		* Returns the buffer to the pool, unless it is too large or the pool is full. The buffer must not be used afterwards.
+		*/
+		public void release() {
+			final int sizeClass = sizeClassOf(buf.length);
+			if(sizeClass > MAX_CLASS) return;
+			reset();
+			pools.get(sizeClass).offer(this);
+		}
+	}
+
+	private static int sizeClassOf(final int capacity) {
+		return Math.max(MIN_CLASS, 31 - Integer.numberOfLeadingZeros(Math.max(1, capacity)));
+	}
+
+	/**
+	* Provides an empty buffer which can hold at least {@code expectedSize} bytes without growing.
+	*/
+	static Buffer acquire(final int expectedSize) {
+		final int wanted = Math.max(MIN_CLASS, 32 - Integer.numberOfLeadingZeros(Math.max(1, expectedSize - 1)));
+		if(wanted <= MAX_CLASS) {
+			for(int sizeClass = wanted; sizeClass <= MAX_CLASS; sizeClass++) {
+				final Buffer buffer = pools.get(sizeClass).poll();
+				if(buffer != null) return buffer;
+			}
+		}
+		return new Buffer(wanted < 31 ? 1 << wanted : Integer.MAX_VALUE - 8);
+	}
+
+	/**
+	* Provides a buffer sized for the last known serialized size of the given session.
+	*/
+	static Buffer acquireFor(final String sessionId) {
+		final int hint = sizeHint(sessionId);
+		return acquire(hint <= 0 ? 0 : hint + (hint >> 3));
+	}
+
+	/**
+	* The last serialized size recorded for the session, or {@code -1} if unknown.
+	*/
+	static int sizeHint(final String sessionId) {
+		if(sessionId == null) return -1;
+		final Integer hint = sizeHints.getIfPresent(sessionId);
+		return hint == null ? -1 : hint.intValue();
+	}
+
+	static void recordSize(final String sessionId, final int size) {
+		if(sessionId == null) return;
+		sizeHints.put(sessionId, size);
+	}
+
+	static void forgetSize(final String sessionId) {
+		if(sessionId == null) return;
+		sizeHints.invalidate(sessionId);
+	}
+
+	/**
+	* Drops the pooled buffers and the size hints: done when the persister is shut down.
+	*/
+	static void clear() {
+		for(BlockingQueue<Buffer> pool : pools) pool.clear();
+		digests.clear();
+		sizeHints.invalidateAll();
+	}
+
+	static MessageDigest newMessageDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch(java.security.NoSuchAlgorithmException nsae) {
+			throw new RuntimeException("Could not find " + DIGEST_ALGORITHM + " on your virtual machine", nsae);
+		}
+	}
+
+	/**
+	* The {@link #DIGEST_ALGORITHM digest} of the first {@code length} bytes, computed with a pooled {@link MessageDigest}.
+	*/
+	static byte[] digest(final byte[] bytes, final int length) {
+		MessageDigest digest = digests.poll();
+		if(digest == null) digest = newMessageDigest();
+		try {
+			digest.update(bytes, 0, length);
+			return digest.digest();
+		} finally {
+			digest.reset();
+			digests.offer(digest);
+		}
+	}
+
+	/**
+	* Upper-case hex encoding of the bytes.
+	*/
+	static String toHex(final byte[] bytes) {
+		final char[] chars = new char[bytes.length * 2];
+		for(int i = 0; i < bytes.length; i++) {
+			chars[2*i] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[2*i + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+}
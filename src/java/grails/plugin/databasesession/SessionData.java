@@ -3,6 +3,7 @@ package grails.plugin.databasesession;
 import java.io.Serializable;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.SortedMap;
@@ -20,34 +21,99 @@ import com.google.common.collect.Iterators;
 public class SessionData {
 
 	public final String sessionId;
-	public final Map<String,Serializable> attrs;
+	public final PersistentAttributeMap attrs;
 	public final long createdAt;
 	public final long lastAccessedAt;
 	public final int maxInactiveInterval; // In seconds
 
+	/**
+	* The version of the stored session this data is (or is to be stored as). {@code 0} if not known.
+	*/
+	public final long version;
+
+	/**
+	* The hash codes of the attributes when the session was read, so that the attributes changed since can be told 
+	* apart from those changed by someone else. {@code null} if not known.
+	*/
+	public final Map<String,Integer> baseAttributeHashes;
+
+	/**
+	* The attributes which are only kept by the node-local tier (see {@link AttributePolicy.Scope#LOCAL}).
+	*/
+	public final PersistentAttributeMap localAttrs;
+
 	public static SessionData fromSession(HttpSession session) {
-		if(session instanceof SessionProxy) return fromProxy((SessionProxy)session);
+		return fromSession(session, null);
+	}
+
+	/**
+	* The data of the session, with the attributes sorted out by the policy (which may be {@code null}).
+	*/
+	public static SessionData fromSession(HttpSession session, AttributePolicy policy) {
+		if(session instanceof SessionProxy) return fromProxy((SessionProxy)session, policy);
 	
-		ImmutableMap.Builder<String,Serializable> builder = ImmutableMap.builder();
-		
+		final Map<String,Serializable> stored = new HashMap<String,Serializable>();
 		for(String name : Collections.list(session.getAttributeNames())) {
-			builder.put(name, (Serializable)session.getAttribute(name));
+			stored.put(name, (Serializable)session.getAttribute(name));
 		}
-		final ImmutableMap<String,Serializable> attrs = builder.build();
-		builder = null;
 
-		return new SessionData(
-			session.getId(), attrs,
+		return snapshot(
+			session.getId(), stored,
 			session.getCreationTime(), session.getLastAccessedTime(),
-			session.getMaxInactiveInterval()
+			session.getMaxInactiveInterval(), 0L, null, policy
 		);
 	}
 
 	public static SessionData fromProxy(SessionProxy proxy) {
-		return new SessionData(
-			proxy.getId(), ImmutableMap.copyOf(proxy.getAttributes()),
+		return fromProxy(proxy, null);
+	}
+
+	/**
+	* The data of the proxy, versioned as the version after the one it was read from.
+	*/
+	public static SessionData fromProxy(SessionProxy proxy, AttributePolicy policy) {
+		return snapshot(
+			proxy.getId(), proxy.getStoredAttributes(),
 			proxy.getCreationTime(), proxy.getLastAccessedTime(),
-			proxy.getMaxInactiveInterval()
+			proxy.getMaxInactiveInterval(),
+			proxy.getBaseVersion() + 1, proxy.getBaseAttributeHashes(), policy
+		);
+	}
+
+	private static SessionData snapshot(
+		final String sessionId, final Map<String,Serializable> stored,
+		final long createdAt, final long lastAccessedAt,
+		final int maxInactiveInterval,
+		final long version, final Map<String,Integer> baseAttributeHashes,
+		final AttributePolicy policy
+	) {
+		if(policy == null) {
+			return new SessionData(sessionId, stored, createdAt, lastAccessedAt, maxInactiveInterval, version, baseAttributeHashes);
+		}
+
+		// Starting from the stored map, so that only the attributes which the policy changes cost anything
+		final long now = System.currentTimeMillis();
+		final PersistentAttributeMap all = PersistentAttributeMap.copyOf(stored);
+		PersistentAttributeMap durable = all;
+		PersistentAttributeMap local = PersistentAttributeMap.empty();
+		for(Map.Entry<String,Serializable> entry : all.entrySet()) {
+			final String name = entry.getKey();
+			final Serializable value = entry.getValue();
+			switch(policy.scopeOf(name, value)) {
+				case TRANSIENT:
+					durable = durable.minus(name);
+					break;
+				case LOCAL:
+					durable = durable.minus(name);
+					local = local.plus(name, value);
+					break;
+				default:
+					durable = durable.plus(name, policy.durableValue(name, value, now));
+			}
+		}
+		return new SessionData(
+			sessionId, durable, createdAt, lastAccessedAt, maxInactiveInterval, 
+			version, baseAttributeHashes, local
 		);
 	}
 
@@ -55,16 +121,50 @@ public class SessionData {
 		final String sessionId, final Map<String,Serializable> attrs,
 		final long createdAt, final long lastAccessedAt,
 		final int maxInactiveInterval
+	) {
+		this(sessionId, attrs, createdAt, lastAccessedAt, maxInactiveInterval, 0L, null);
+	}
+
+	public SessionData(
+		final String sessionId, final Map<String,Serializable> attrs,
+		final long createdAt, final long lastAccessedAt,
+		final int maxInactiveInterval,
+		final long version, final Map<String,Integer> baseAttributeHashes
+	) {
+		this(sessionId, attrs, createdAt, lastAccessedAt, maxInactiveInterval, version, baseAttributeHashes, null);
+	}
+
+	public SessionData(
+		final String sessionId, final Map<String,Serializable> attrs,
+		final long createdAt, final long lastAccessedAt,
+		final int maxInactiveInterval,
+		final long version, final Map<String,Integer> baseAttributeHashes,
+		final Map<String,Serializable> localAttrs
 	) {
 		this.sessionId = sessionId;
-		if(attrs == null || attrs.isEmpty()) {
-			this.attrs = ImmutableMap.of();
-		} else {
-			this.attrs = ImmutableMap.copyOf(attrs);
-		}
+		this.attrs = PersistentAttributeMap.copyOf(attrs);
 		this.createdAt = createdAt;
 		this.lastAccessedAt = lastAccessedAt;
 		this.maxInactiveInterval = maxInactiveInterval;
+		this.version = version;
+		this.baseAttributeHashes = baseAttributeHashes == null ? null : ImmutableMap.copyOf(baseAttributeHashes);
+		this.localAttrs = PersistentAttributeMap.copyOf(localAttrs);
+	}
+
+	/**
+	* This data, as the given version.
+	*/
+	public SessionData withVersion(final long version) {
+		return new SessionData(
+			sessionId, attrs, createdAt, lastAccessedAt, maxInactiveInterval, version, baseAttributeHashes, localAttrs
+		);
+	}
+
+	/**
+	* Whether this data carries a version, so that it can be written with a compare-and-set.
+	*/
+	public boolean isVersioned() {
+		return version > 0;
 	}
 
 	public String toString() {
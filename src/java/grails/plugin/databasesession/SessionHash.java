@@ -13,16 +13,67 @@ public class SessionHash extends ForwardingMap<String,Integer> {
 
 	private final Map<String,Integer> data;
 
+	/**
+	* The hashes of the attributes which are only kept by the node-local tier.
+	*/
+	private final Map<String,Integer> localData;
+
 	private final int maxInactiveInterval;
 
 	public SessionHash(HttpSession session) {
+		this(session, null);
+	}
+
+	/**
+	* Hashes the session, leaving out the attributes which the policy (which may be {@code null}) does not persist.
+	*/
+	public SessionHash(HttpSession session, AttributePolicy policy) {
 		this.maxInactiveInterval = session.getMaxInactiveInterval();
+		final Map<String,?> values;
+		if(session instanceof SessionProxy) {
+			// Use the stored values, so that deferred attributes are not loaded just to hash them
+			values = ((SessionProxy)session).getStoredAttributes();
+		} else {
+			final Map<String,Object> attrs = new HashMap<String,Object>();
+			for(String name : Collections.list(session.getAttributeNames())) {
+				attrs.put(name, session.getAttribute(name));
+			}
+			values = attrs;
+		}
+
+		if(policy == null) {
+			data = hashesOf(values);
+			localData = ImmutableMap.of();
+			return;
+		}
 		final ImmutableMap.Builder<String, Integer> builder = ImmutableMap.builder();
-		for(String name : Collections.list(session.getAttributeNames())) {
-			Object value = session.getAttribute(name);
-			builder.put(name, value == null ? 0 : value.hashCode());
+		final ImmutableMap.Builder<String, Integer> localBuilder = ImmutableMap.builder();
+		for(Map.Entry<String,?> entry : values.entrySet()) {
+			Object value = entry.getValue();
+			switch(policy.scopeOf(entry.getKey(), value)) {
+				case TRANSIENT:
+					break;
+				case LOCAL:
+					localBuilder.put(entry.getKey(), value == null ? 0 : value.hashCode());
+					break;
+				default:
+					builder.put(entry.getKey(), value == null ? 0 : value.hashCode());
+			}
 		}
 		data = builder.build();
+		localData = localBuilder.build();
+	}
+
+	/**
+	* The {@link Object#hashCode()} of each of the attribute values.
+	*/
+	public static Map<String,Integer> hashesOf(Map<String,?> attrs) {
+		final ImmutableMap.Builder<String, Integer> builder = ImmutableMap.builder();
+		for(Map.Entry<String,?> entry : attrs.entrySet()) {
+			Object value = entry.getValue();
+			builder.put(entry.getKey(), value == null ? 0 : value.hashCode());
+		}
+		return builder.build();
 	}
 
 	public Map<String,Integer> delegate() {
@@ -36,6 +87,13 @@ public class SessionHash extends ForwardingMap<String,Integer> {
 	public boolean equals(Object o) {
 		if(o instanceof HttpSession) return equals(new SessionHash((HttpSession)o));
 
+		return isDurablyEqual(o) && this.localData.equals(((SessionHash)o).localData);
+	}
+
+	/**
+	* Whether the other hash only differs from this one in the attributes kept by the node-local tier.
+	*/
+	public boolean isDurablyEqual(Object o) {
 		return standardEquals(o) && 
 			(o instanceof SessionHash) && 
 			this.maxInactiveInterval == ((SessionHash)o).maxInactiveInterval;
@@ -0,0 +1,168 @@
+package grails.plugin.databasesession;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Converts session ids to and from the key column of the session tables (see {@link JdbcPersister#setKeyFormat(String)}).
+ * The compact formats store the id as fixed-length binary, which only works for ids of that exact shape:
+ * {@link #canEncode(String)} tells whether an id fits.
+ *
+ * @author Robert Fischer
+ */
+abstract class SessionKeyCodec {
+
+	/**
+	* Ids as they are, in a {@code VARCHAR(255)} column.
+	*/
+	static final SessionKeyCodec STRING = new SessionKeyCodec() {
+		String columnType() {
+			return "VARCHAR(255)";
+		}
+		boolean canEncode(final String sessionId) {
+			return sessionId != null;
+		}
+		Object encode(final String sessionId) {
+			return sessionId;
+		}
+		String decode(final ResultSet rs, final int idx) throws SQLException {
+			return rs.getString(idx);
+		}
+	};
+
+	/**
+	* UUIDs in their usual textual form (lower case, with dashes), in a {@code BINARY(16)} column.
+	*/
+	static final SessionKeyCodec UUID_BINARY = new SessionKeyCodec() {
+		String columnType() {
+			return "BINARY(16)";
+		}
+		boolean canEncode(final String sessionId) {
+			if(sessionId == null || sessionId.length() != 36) return false;
+			try {
+				return UUID.fromString(sessionId).toString().equals(sessionId);
+			} catch(IllegalArgumentException iae) {
+				return false;
+			}
+		}
+		Object encode(final String sessionId) {
+			checkEncodable(sessionId);
+			final UUID uuid = UUID.fromString(sessionId);
+			final byte[] bytes = new byte[16];
+			putLong(bytes, 0, uuid.getMostSignificantBits());
+			putLong(bytes, 8, uuid.getLeastSignificantBits());
+			return bytes;
+		}
+		String decode(final ResultSet rs, final int idx) throws SQLException {
+			final byte[] bytes = rs.getBytes(idx);
+			if(bytes == null) return null;
+			return new UUID(getLong(bytes, 0), getLong(bytes, 8)).toString();
+		}
+	};
+
+	/**
+	* Hexadecimal ids of exactly {@code 2 * length} digits in the given case (such as Tomcat's), in a {@code BINARY(length)} column.
+	*/
+	static SessionKeyCodec hex(final int length, final boolean upperCase) {
+		if(length <= 0) throw new IllegalArgumentException("The key length must be positive: " + length);
+		return new SessionKeyCodec() {
+			String columnType() {
+				return "BINARY(" + length + ")";
+			}
+			boolean canEncode(final String sessionId) {
+				if(sessionId == null || sessionId.length() != 2 * length) return false;
+				for(int i = 0; i < sessionId.length(); i++) {
+					final char c = sessionId.charAt(i);
+					if(c >= '0' && c <= '9') continue;
+					if(upperCase ? (c >= 'A' && c <= 'F') : (c >= 'a' && c <= 'f')) continue;
+					return false;
+				}
+				return true;
+			}
+			Object encode(final String sessionId) {
+				checkEncodable(sessionId);
+				return fromHex(sessionId);
+			}
+			String decode(final ResultSet rs, final int idx) throws SQLException {
+				final byte[] bytes = rs.getBytes(idx);
+				if(bytes == null) return null;
+				final String hex = SerializationBuffers.toHex(bytes); // Upper case
+				return upperCase ? hex : hex.toLowerCase(Locale.ENGLISH);
+			}
+		};
+	}
+
+	/**
+	* The codec for a {@link JdbcPersister#getKeyFormat() key format}.
+	*/
+	static SessionKeyCodec forFormat(final String format, final int length, final boolean upperCase) {
+		if(format == null || "string".equals(format)) return STRING;
+		if("uuid".equals(format)) return UUID_BINARY;
+		if("hex".equals(format)) return hex(length, upperCase);
+		throw new IllegalArgumentException("Unknown session key format (expected string, uuid, or hex): " + format);
+	}
+
+	/**
+	* The SQL type of the key column.
+	*/
+	abstract String columnType();
+
+	abstract boolean canEncode(String sessionId);
+
+	/**
+	* The value to bind for the session id.
+	* @throws IllegalArgumentException if the id does not fit this format
+	*/
+	abstract Object encode(String sessionId);
+
+	abstract String decode(ResultSet rs, int idx) throws SQLException;
+
+	boolean isCompact() {
+		return this != STRING;
+	}
+
+	void bind(final PreparedStatement ps, final int idx, final String sessionId) throws SQLException {
+		final Object key = encode(sessionId);
+		if(key instanceof byte[]) {
+			ps.setBytes(idx, (byte[])key);
+		} else {
+			ps.setString(idx, (String)key);
+		}
+	}
+
+	void checkEncodable(final String sessionId) {
+		if(!canEncode(sessionId)) {
+			throw new IllegalArgumentException("Session id does not fit the " + columnType() + " session key column: " + sessionId);
+		}
+	}
+
+	static byte[] fromHex(final String hex) {
+		if(hex.length() % 2 != 0) throw new IllegalArgumentException("Odd number of hex digits: " + hex);
+		final byte[] bytes = new byte[hex.length() / 2];
+		for(int i = 0; i < bytes.length; i++) {
+			final int high = Character.digit(hex.charAt(2*i), 16);
+			final int low = Character.digit(hex.charAt(2*i + 1), 16);
+			if(high < 0 || low < 0) throw new IllegalArgumentException("Not a hex string: " + hex);
+			bytes[i] = (byte)((high << 4) | low);
+		}
+		return bytes;
+	}
+
+	private static void putLong(final byte[] bytes, final int offset, final long value) {
+		for(int i = 0; i < 8; i++) {
+			bytes[offset + i] = (byte)(value >>> (56 - 8 * i));
+		}
+	}
+
+	private static long getLong(final byte[] bytes, final int offset) {
+		long value = 0;
+		for(int i = 0; i < 8; i++) {
+			value = (value << 8) | (bytes[offset + i] & 0xff);
+		}
+		return value;
+	}
+
+}
@@ -0,0 +1,169 @@
+package grails.plugin.databasesession;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * What this node knows about which sessions are stored, so that {@link JdbcPersister} does not have to ask the
+ * database with a {@code SELECT COUNT(*)} each time. It holds the ids this node has lately seen to be present (read
+ * or written) or absent (looked up and not found, deleted, or just created by the container), trusted for
+ * {@link #getTrustSeconds()}, and a rotating Bloom filter of the ids this node has written.
+ * <p>
+ * Other nodes may change the store at any time, so a remembered presence and the Bloom filter are only used where a
+ * wrong answer is recovered from: an update of a missing session falls back to an insert, and an insert of an existing
+ * one falls back to an update. Only a remembered absence is trusted when asked whether a session is valid.
+ * <p>
+ * The Bloom filter is not locked: a write which races another write or a rotation may lose its bits, which only turns
+ * a {@link #mightHaveWritten(String)} into a {@code false} and costs a query.
+ *
+ * @author Robert Fischer
+ */
+public class SessionMembership implements InitializingBean {
+
+	/**
+	* The number of session ids whose presence or absence is remembered.
+	*/
+	private volatile int maximumSize = 10000;
+	public int getMaximumSize() {
+		return maximumSize;
+	}
+	public void setMaximumSize(int maximumSize) {
+		this.maximumSize = maximumSize;
+	}
+
+	/**
+	* How long what this node saw of a session is trusted for.
+	*/
+	private volatile int trustSeconds = 30;
+	public int getTrustSeconds() {
+		return trustSeconds;
+	}
+	public void setTrustSeconds(int trustSeconds) {
+		this.trustSeconds = trustSeconds;
+	}
+
+	/**
+	* The number of written ids each generation of the Bloom filter holds before it is rotated. The filter remembers
+	* between one and two generations of ids.
+	*/
+	private volatile int writtenPerGeneration = 100000;
+	public int getWrittenPerGeneration() {
+		return writtenPerGeneration;
+	}
+	public void setWrittenPerGeneration(int writtenPerGeneration) {
+		this.writtenPerGeneration = writtenPerGeneration;
+	}
+
+	private volatile double falsePositiveRate = 0.01;
+	public double getFalsePositiveRate() {
+		return falsePositiveRate;
+	}
+	public void setFalsePositiveRate(double falsePositiveRate) {
+		this.falsePositiveRate = falsePositiveRate;
+	}
+
+	private volatile Cache<String,Boolean> known = null;
+
+	private volatile Generations written = null;
+
+	/**
+	* The current generation of the Bloom filter and the one before, swapped as a whole when the current one is full.
+	*/
+	private static final class Generations {
+		final BloomFilter<byte[]> current;
+		final BloomFilter<byte[]> previous;
+		final AtomicInteger count = new AtomicInteger();
+
+		Generations(final BloomFilter<byte[]> current, final BloomFilter<byte[]> previous) {
+			this.current = current;
+			this.previous = previous;
+		}
+
+		boolean mightContain(final byte[] key) {
+			return current.mightContain(key) || (previous != null && previous.mightContain(key));
+		}
+	}
+
+	public void afterPropertiesSet() {
+		known = CacheBuilder.newBuilder()
+			.maximumSize(maximumSize)
+			.expireAfterWrite(trustSeconds, TimeUnit.SECONDS)
+			.build();
+		written = new Generations(newGeneration(), null);
+	}
+
+	private BloomFilter<byte[]> newGeneration() {
+		return BloomFilter.create(Funnels.byteArrayFunnel(), writtenPerGeneration, falsePositiveRate);
+	}
+
+	/**
+	* Whether the session is stored, if this node knows: {@code null} if it does not. A {@code true} may be out of
+	* date if another node has deleted the session since.
+	*/
+	public Boolean isPresent(final String sessionId) {
+		return known == null ? null : known.getIfPresent(sessionId);
+	}
+
+	/**
+	* Whether this node might have written the session lately. Unlike {@link #isPresent(String)}, a {@code true} may
+	* be wrong, and so may a {@code false} if the session was written elsewhere.
+	*/
+	public boolean mightHaveWritten(final String sessionId) {
+		final Generations generations = written;
+		return generations != null && generations.mightContain(toBytes(sessionId));
+	}
+
+	public void markPresent(final String sessionId) {
+		if(known != null) known.put(sessionId, Boolean.TRUE);
+	}
+
+	public void markWritten(final String sessionId) {
+		markPresent(sessionId);
+		Generations generations = written;
+		if(generations == null) return;
+		final int count = generations.count.incrementAndGet();
+		if(count == writtenPerGeneration + 1) {
+			// Only the write which overfills the generation rotates it
+			generations = new Generations(newGeneration(), generations.current);
+			generations.count.incrementAndGet();
+			written = generations;
+		} else if(count > writtenPerGeneration) {
+			// Put into the one the rotation starts, or into the full one if it is not there yet: both are asked
+			generations = written;
+		}
+		generations.current.put(toBytes(sessionId));
+	}
+
+	public void markAbsent(final String sessionId) {
+		if(known != null) known.put(sessionId, Boolean.FALSE);
+	}
+
+	public void markAbsent(final Collection<String> sessionIds) {
+		for(String sessionId : sessionIds) markAbsent(sessionId);
+	}
+
+	/**
+	* Forgets what this node knew of the session, so that the next question goes to the database.
+	*/
+	public void forget(final String sessionId) {
+		if(known != null) known.invalidate(sessionId);
+	}
+
+	private static byte[] toBytes(final String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch(UnsupportedEncodingException uee) {
+			throw new IllegalStateException("UTF-8 is not supported", uee);
+		}
+	}
+
+}
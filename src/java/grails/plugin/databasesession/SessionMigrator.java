@@ -0,0 +1,461 @@
+package grails.plugin.databasesession;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Copies the sessions of a {@link JdbcPersister} into another {@link Persister} while the site keeps running, which is
+ * meant to be used with a {@link DualWritePersister} taking care of the sessions written meanwhile. The source table
+ * is split into key ranges of about {@link #getChunkSize()} sessions, which are copied on several threads, at most
+ * {@link #getMaxSessionsPerSecond()} sessions a second.
+ * <p>
+ * After a range is copied, its sessions are read from the source again, and those which were written (or deleted)
+ * in the meantime are copied again, so that an old copy does not overwrite a newer write to the target. The ranges,
+ * and which of them are done, are saved to the {@link #getCheckpointFile() checkpoint file}, so that a migration
+ * which is stopped (or fails) carries on where it left off when run again. Delete the file to start over.
+ *
+ * @author Robert Fischer
+ */
+public class SessionMigrator {
+
+	private final Logger log = Logger.getLogger(getClass());
+
+	private volatile JdbcPersister source;
+	public JdbcPersister getSource() {
+		return source;
+	}
+	public void setSource(JdbcPersister source) {
+		this.source = source;
+	}
+
+	private volatile Persister target;
+	public Persister getTarget() {
+		return target;
+	}
+	public void setTarget(Persister target) {
+		this.target = target;
+	}
+
+	private volatile int threads = 4;
+	public int getThreads() {
+		return threads;
+	}
+	public void setThreads(int threads) {
+		if(threads <= 0) throw new IllegalArgumentException("The thread count must be positive: " + threads);
+		this.threads = threads;
+	}
+
+	/**
+	* The number of sessions in each key range. Only used when the ranges are computed, so it does not change the
+	* ranges of a migration which is carried on from a checkpoint.
+	*/
+	private volatile int chunkSize = 500;
+	public int getChunkSize() {
+		return chunkSize;
+	}
+	public void setChunkSize(int chunkSize) {
+		if(chunkSize <= 0) throw new IllegalArgumentException("The chunk size must be positive: " + chunkSize);
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	* The most sessions copied per second, across all threads. A value of {@code 0} or less means no limit.
+	*/
+	private volatile int maxSessionsPerSecond = 0;
+	public int getMaxSessionsPerSecond() {
+		return maxSessionsPerSecond;
+	}
+	public void setMaxSessionsPerSecond(int maxSessionsPerSecond) {
+		this.maxSessionsPerSecond = maxSessionsPerSecond;
+	}
+
+	/**
+	* How many times the sessions of a range which keep being written are copied again. If they are still being written
+	* after that, they are deleted from the target (so that reads fall back to the source) and the range is left to the
+	* next run.
+	*/
+	private volatile int maxCopyAttempts = 3;
+	public int getMaxCopyAttempts() {
+		return maxCopyAttempts;
+	}
+	public void setMaxCopyAttempts(int maxCopyAttempts) {
+		if(maxCopyAttempts <= 0) throw new IllegalArgumentException("The copy attempts must be positive: " + maxCopyAttempts);
+		this.maxCopyAttempts = maxCopyAttempts;
+	}
+
+	/**
+	* The file the progress is saved to. If {@code null}, a migration which is stopped starts over.
+	*/
+	private volatile String checkpointFile = null;
+	public String getCheckpointFile() {
+		return checkpointFile;
+	}
+	public void setCheckpointFile(String checkpointFile) {
+		this.checkpointFile = checkpointFile;
+	}
+
+	private final AtomicBoolean running = new AtomicBoolean(false);
+	private final AtomicBoolean stopping = new AtomicBoolean(false);
+
+	private volatile int totalRanges = 0;
+	private final AtomicInteger doneRanges = new AtomicInteger();
+	private final AtomicInteger failedRanges = new AtomicInteger();
+	private final AtomicLong copiedSessions = new AtomicLong();
+	private final AtomicLong recopiedSessions = new AtomicLong();
+	private final AtomicLong removedSessions = new AtomicLong();
+
+	private final Object throttleLock = new Object();
+	private long nextCopyNanos = 0L; // Guarded by throttleLock
+
+	public boolean isRunning() {
+		return running.get();
+	}
+
+	public int getTotalRanges() {
+		return totalRanges;
+	}
+
+	/**
+	* The ranges which are done, including those done by earlier runs.
+	*/
+	public int getDoneRanges() {
+		return doneRanges.get();
+	}
+
+	/**
+	* The ranges which failed (or whose sessions kept being written) during this run: they are tried again by the next one.
+	*/
+	public int getFailedRanges() {
+		return failedRanges.get();
+	}
+
+	public long getCopiedSessions() {
+		return copiedSessions.get();
+	}
+
+	/**
+	* The sessions which were copied again because they were written while they were copied.
+	*/
+	public long getRecopiedSessions() {
+		return recopiedSessions.get();
+	}
+
+	/**
+	* The sessions which were deleted from the target because they were deleted from the source while they were copied.
+	*/
+	public long getRemovedSessions() {
+		return removedSessions.get();
+	}
+
+	/**
+	* Runs the migration on a background thread and returns immediately.
+	*/
+	public void start() {
+		final Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					migrate();
+				} catch(RuntimeException re) {
+					log.error("Error while migrating the sessions", re);
+				}
+			}
+		}, "session-migrator");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	* Stops the migration once the ranges being copied are done. It can be carried on by running it again.
+	*/
+	public void stop() {
+		if(running.get()) {
+			log.info("Stopping the session migration");
+			stopping.set(true);
+		}
+	}
+
+	/**
+	* Runs the migration, returning once it is over.
+	* @return whether every range has been copied
+	*/
+	public boolean migrate() {
+		if(source == null) {
+			throw new IllegalStateException("source property must be assigned (cannot be null)");
+		}
+		if(target == null) {
+			throw new IllegalStateException("target property must be assigned (cannot be null)");
+		}
+		if(!running.compareAndSet(false, true)) {
+			throw new IllegalStateException("The session migration is already running");
+		}
+		try {
+			stopping.set(false);
+			failedRanges.set(0);
+			return doMigrate();
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			log.warn("Interrupted while migrating the sessions");
+			return false;
+		} finally {
+			running.set(false);
+		}
+	}
+
+	private boolean doMigrate() throws InterruptedException {
+		final long start = System.currentTimeMillis();
+		final Checkpoint checkpoint = loadCheckpoint();
+		totalRanges = checkpoint.ranges.size();
+		doneRanges.set(checkpoint.countDone());
+		log.info(
+			"Migrating the sessions of " + source.getTableName() + " in " + totalRanges + " ranges (" +
+			doneRanges.get() + " already done)"
+		);
+
+		final ExecutorService executor = Executors.newFixedThreadPool(threads,
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("session-migrator-%d").build()
+		);
+		try {
+			for(int i = 0; i < checkpoint.ranges.size(); i++) {
+				if(checkpoint.isDone(i)) continue;
+				final int index = i;
+				executor.execute(new Runnable() {
+					public void run() {
+						if(stopping.get()) return;
+						final String[] range = checkpoint.ranges.get(index);
+						try {
+							if(!copyRange(range[0], range[1])) {
+								failedRanges.incrementAndGet();
+								log.warn("Sessions from " + range[0] + " to " + range[1] + " kept being written: leaving the range to the next run");
+								return;
+							}
+							checkpoint.markDone(index);
+							final int done = doneRanges.incrementAndGet();
+							if(done % 100 == 0) {
+								log.info("Migrated " + done + " of " + totalRanges + " session ranges (" + copiedSessions.get() + " sessions)");
+							}
+						} catch(InterruptedException ie) {
+							Thread.currentThread().interrupt();
+						} catch(RuntimeException re) {
+							failedRanges.incrementAndGet();
+							log.error("Error while migrating the sessions from " + range[0] + " to " + range[1], re);
+						}
+					}
+				});
+			}
+			executor.shutdown();
+			while(!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				log.info("Migrated " + doneRanges.get() + " of " + totalRanges + " session ranges (" + copiedSessions.get() + " sessions)");
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		final boolean complete = doneRanges.get() == totalRanges;
+		log.info(
+			(complete ? "Migrated" : "Stopped migrating") + " the sessions of " + source.getTableName() + " after " +
+			(System.currentTimeMillis() - start) + "ms: " + doneRanges.get() + " of " + totalRanges + " ranges, " +
+			copiedSessions.get() + " sessions copied, " + recopiedSessions.get() + " copied again, " +
+			removedSessions.get() + " removed, " + failedRanges.get() + " ranges failed"
+		);
+		return complete;
+	}
+
+	/**
+	* Copies the sessions of the range until the copy of each is seen to be as recent as the source.
+	* @return whether that happened within {@link #getMaxCopyAttempts()}: if not, the sessions which were still being
+	* written are deleted from the target, so that reads go to the source instead of a copy which may be stale
+	*/
+	private boolean copyRange(final String fromId, final String toId) throws InterruptedException {
+		final List<String> sessionIds = source.getSessionIdsInRange(fromId, toId);
+		if(sessionIds.isEmpty()) return true;
+		throttle(sessionIds.size());
+
+		Map<String,SessionData> copied = source.getSessionData(sessionIds);
+		copy(copied);
+		copiedSessions.addAndGet(copied.size());
+
+		// Whatever was written to the source meanwhile may have been written to the target before the copy
+		for(int attempt = 1; attempt <= maxCopyAttempts && !copied.isEmpty(); attempt++) {
+			final Map<String,SessionData> current = source.getSessionData(copied.keySet());
+			final List<String> removed = new ArrayList<String>();
+			final Map<String,SessionData> changed = new HashMap<String,SessionData>();
+			for(Map.Entry<String,SessionData> entry : copied.entrySet()) {
+				final SessionData now = current.get(entry.getKey());
+				if(now == null) {
+					removed.add(entry.getKey());
+				} else if(now.lastAccessedAt != entry.getValue().lastAccessedAt || now.version != entry.getValue().version) {
+					changed.put(entry.getKey(), now);
+				}
+			}
+			if(!removed.isEmpty()) {
+				target.invalidateAll(removed);
+				removedSessions.addAndGet(removed.size());
+			}
+			if(!changed.isEmpty()) {
+				copy(changed);
+				recopiedSessions.addAndGet(changed.size());
+			}
+			copied = changed;
+		}
+		if(copied.isEmpty()) return true;
+
+		// The last copy was not checked, so it may have overwritten a newer write
+		log.debug(copied.size() + " sessions were still being written after " + maxCopyAttempts + " copies");
+		target.invalidateAll(copied.keySet());
+		return false;
+	}
+
+	/**
+	* Writes the sessions to the target unversioned, since its versions need not follow those of the source.
+	*/
+	private void copy(final Map<String,SessionData> sessions) {
+		final List<SessionData> copies = new ArrayList<SessionData>(sessions.size());
+		for(SessionData session : sessions.values()) copies.add(session.withVersion(0L));
+		target.persistSessions(copies);
+	}
+
+	private void throttle(final int sessions) throws InterruptedException {
+		final int rate = maxSessionsPerSecond;
+		if(rate <= 0) return;
+		final long waitNanos;
+		synchronized(throttleLock) {
+			final long now = System.nanoTime();
+			if(nextCopyNanos - now < 0) nextCopyNanos = now;
+			waitNanos = nextCopyNanos - now;
+			nextCopyNanos += TimeUnit.SECONDS.toNanos(sessions) / rate;
+		}
+		if(waitNanos > 0) TimeUnit.NANOSECONDS.sleep(waitNanos);
+	}
+
+	private Checkpoint loadCheckpoint() {
+		final String path = checkpointFile;
+		final File file = path == null ? null : new File(path);
+		if(file != null && file.exists()) {
+			try {
+				final Checkpoint checkpoint = Checkpoint.read(file);
+				log.info("Carrying on the session migration from checkpoint " + file);
+				return checkpoint;
+			} catch(IOException ioe) {
+				throw new IllegalStateException("Could not read the session migration checkpoint " + file + ": delete it to start over", ioe);
+			}
+		}
+
+		final List<String> boundaries = source.getSessionIdBoundaries(chunkSize);
+		final List<String[]> ranges = new ArrayList<String[]>(boundaries.size() + 1);
+		String from = null;
+		for(String boundary : boundaries) {
+			ranges.add(new String[] { from, boundary });
+			from = boundary;
+		}
+		ranges.add(new String[] { from, null });
+		final Checkpoint checkpoint = new Checkpoint(file, ranges, new boolean[ranges.size()]);
+		checkpoint.save();
+		return checkpoint;
+	}
+
+	/**
+	* The key ranges of a migration, and which of them are done, saved to a properties file after each range.
+	*/
+	private static final class Checkpoint {
+
+		private static final Logger log = Logger.getLogger(Checkpoint.class);
+
+		final List<String[]> ranges;
+		private final boolean[] done; // Guarded by this
+		private final File file;
+
+		Checkpoint(final File file, final List<String[]> ranges, final boolean[] done) {
+			this.file = file;
+			this.ranges = ranges;
+			this.done = done;
+		}
+
+		static Checkpoint read(final File file) throws IOException {
+			final Properties props = new Properties();
+			final InputStream in = new FileInputStream(file);
+			try {
+				props.load(in);
+			} finally {
+				in.close();
+			}
+			final String count = props.getProperty("ranges");
+			if(count == null) throw new IOException("No ranges in " + file);
+			final int size = Integer.parseInt(count);
+			final List<String[]> ranges = new ArrayList<String[]>(size);
+			final boolean[] done = new boolean[size];
+			for(int i = 0; i < size; i++) {
+				ranges.add(new String[] { props.getProperty("range." + i + ".from"), props.getProperty("range." + i + ".to") });
+				done[i] = Boolean.parseBoolean(props.getProperty("range." + i + ".done"));
+			}
+			return new Checkpoint(file, ranges, done);
+		}
+
+		synchronized boolean isDone(final int index) {
+			return done[index];
+		}
+
+		synchronized int countDone() {
+			int count = 0;
+			for(boolean d : done) if(d) count++;
+			return count;
+		}
+
+		synchronized void markDone(final int index) {
+			done[index] = true;
+			save();
+		}
+
+		/**
+		* Writes the checkpoint to a temporary file and moves it into place, so that a crash does not leave half of it.
+		* A checkpoint which cannot be written only costs copying some ranges again, so that is not an error.
+		*/
+		synchronized void save() {
+			if(file == null) return;
+			final Properties props = new Properties();
+			props.setProperty("ranges", String.valueOf(ranges.size()));
+			for(int i = 0; i < ranges.size(); i++) {
+				final String[] range = ranges.get(i);
+				if(range[0] != null) props.setProperty("range." + i + ".from", range[0]);
+				if(range[1] != null) props.setProperty("range." + i + ".to", range[1]);
+				if(done[i]) props.setProperty("range." + i + ".done", "true");
+			}
+			final File tmp = new File(file.getPath() + ".tmp");
+			try {
+				final OutputStream out = new FileOutputStream(tmp);
+				try {
+					props.store(out, "Session migration checkpoint");
+				} finally {
+					out.close();
+				}
+				if(!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+					throw new IOException("Could not move " + tmp + " to " + file);
+				}
+			} catch(IOException ioe) {
+				log.warn("Could not save the session migration checkpoint " + file, ioe);
+			}
+		}
+
+	}
+
+}
@@ -12,8 +12,7 @@ import java.util.Map;
 import java.util.UUID;
 
 
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpSession;
@@ -24,6 +23,7 @@ import javax.servlet.http.HttpSessionBindingListener;
 import javax.servlet.http.HttpSessionActivationListener; 
 
 import com.google.common.collect.ForwardingMap;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.Iterators;
 
@@ -43,12 +43,17 @@ public class SessionProxy implements HttpSession,Serializable,Cloneable {
 	private final Persister _persister;
 	private final String _sessionId;
 	private final ServletContext _servletContext;
-	private final ConcurrentMap<String,Serializable> _attrs;
+	private volatile PersistentAttributeMap _attrs; // Replaced as a whole through _attrsUpdater
 	private final long _createdAt;
 	private final HttpSessionEvent _event = new HttpSessionEvent(this); // Might as well cache this
 	private volatile long _lastAccessedAt;
 	private volatile boolean _invalidated;
 	private volatile int _maxInactiveInterval;
+	private final long _baseVersion;
+	private final Map<String,Integer> _baseAttributeHashes;
+
+	private static final AtomicReferenceFieldUpdater<SessionProxy,PersistentAttributeMap> _attrsUpdater =
+		AtomicReferenceFieldUpdater.newUpdater(SessionProxy.class, PersistentAttributeMap.class, "_attrs");
 	
 
 	/**
@@ -70,16 +75,29 @@ public class SessionProxy implements HttpSession,Serializable,Cloneable {
 
 		if(data == null) {
 			log.debug("Creating a new session data for " + sessionId);
-			_attrs = new ConcurrentHashMap<String,Serializable>();
+			_attrs = PersistentAttributeMap.empty();
 			_createdAt = System.currentTimeMillis();
 			_lastAccessedAt = System.currentTimeMillis();
 			_maxInactiveInterval = 600;
+			_baseVersion = 0L;
+			_baseAttributeHashes = ImmutableMap.of();
 		} else {
 			log.debug("Using persisted session for " + sessionId + ": " + Arrays.deepToString(data.attrs.keySet().toArray(new String[0])));
-			_attrs = new ConcurrentHashMap<String,Serializable>(data.attrs);
+			PersistentAttributeMap attrs = PersistentAttributeMap.copyOf(data.attrs);
+			for(Map.Entry<String,Serializable> entry : data.localAttrs.entrySet()) {
+				attrs = attrs.plus(entry.getKey(), entry.getValue());
+			}
+			final long now = System.currentTimeMillis();
+			for(Map.Entry<String,Serializable> entry : attrs.entrySet()) {
+				final Serializable value = entry.getValue();
+				if(value instanceof ExpiringAttribute && ((ExpiringAttribute)value).isExpired(now)) attrs = attrs.minus(entry.getKey());
+			}
+			_attrs = attrs;
 			_createdAt = data.createdAt;
 			_lastAccessedAt = data.lastAccessedAt;
 			_maxInactiveInterval = data.maxInactiveInterval;
+			_baseVersion = data.version;
+			_baseAttributeHashes = SessionHash.hashesOf(data.attrs);
 		}
 		log.debug("Done constructing the proxy session for " + sessionId);
 	}
@@ -93,8 +111,24 @@ public class SessionProxy implements HttpSession,Serializable,Cloneable {
 		return SessionData.fromProxy(this);
 	}
 
+	/**
+	* The version of the stored session this proxy was created from, or {@code 0} for a new session.
+	*/
+	public long getBaseVersion() {
+		return _baseVersion;
+	}
+
+	/**
+	* The hash codes of the attributes this proxy was created with.
+	*/
+	public Map<String,Integer> getBaseAttributeHashes() {
+		return _baseAttributeHashes;
+	}
+
 	public void fireSessionActivationListeners() {
-		for(Serializable value : _attrs.values()) {
+		for(Serializable stored : _attrs.values()) {
+			if(stored instanceof DeferredAttribute && !((DeferredAttribute)stored).isActivationListener()) continue;
+			final Serializable value = DeferredAttribute.unwrap(stored);
 			if(value instanceof HttpSessionActivationListener) {
 				log.debug("Firing sessionActivation for " + value);
 				((HttpSessionActivationListener)value).sessionDidActivate(_event);
@@ -103,7 +137,10 @@ public class SessionProxy implements HttpSession,Serializable,Cloneable {
 	}
 
 	public void fireSessionPassivationListeners() {
-		for(Serializable value : _attrs.values()) {
+		for(Serializable stored : _attrs.values()) {
+			// Deferred attributes that were never loaded were never activated, either
+			if(stored instanceof DeferredAttribute && !((DeferredAttribute)stored).isResolved()) continue;
+			final Serializable value = DeferredAttribute.unwrap(stored);
 			if(value instanceof HttpSessionActivationListener) {
 				log.debug("Firing sessionPassivation for " + value);
 				((HttpSessionActivationListener)value).sessionWillPassivate(_event);
@@ -147,7 +184,7 @@ public class SessionProxy implements HttpSession,Serializable,Cloneable {
 	@Override
 	public Serializable getAttribute(String name) {
 		checkAccess("getAttribute");
-		return _attrs.get(name);
+		return DeferredAttribute.unwrap(_attrs.get(name));
 	}
 
 	@Override @Deprecated
@@ -176,7 +213,7 @@ public class SessionProxy implements HttpSession,Serializable,Cloneable {
 		} else {
 			final Serializable oldValue;
 			try {
-				oldValue = _attrs.put(name, (Serializable)value);
+				oldValue = DeferredAttribute.unwrap(swapAttribute(name, (Serializable)value));
 			} catch(ClassCastException cce) {
 				throw new IllegalStateException("Can only set Serializable values into the session (tried to add: " + value.getClass() + ")");
 			}
@@ -203,7 +240,7 @@ public class SessionProxy implements HttpSession,Serializable,Cloneable {
 	@Override
 	public void removeAttribute(String name) {
 		checkAccess("removeAttribute");
-		Serializable value = _attrs.remove(name);
+		Serializable value = DeferredAttribute.unwrap(swapAttribute(name, null));
 		if(value != null && value instanceof HttpSessionBindingListener) {
 			log.debug("Firing off valueUnbound listener for " + value + " (was attached to '" + name + "')");
 			((HttpSessionBindingListener)value).valueUnbound(
@@ -213,6 +250,17 @@ public class SessionProxy implements HttpSession,Serializable,Cloneable {
 		return;
 	}
 
+	/**
+	* Sets (or, given {@code null}, removes) the attribute, returning the value it replaced.
+	*/
+	private Serializable swapAttribute(final String name, final Serializable value) {
+		while(true) {
+			final PersistentAttributeMap current = _attrs;
+			final PersistentAttributeMap next = value == null ? current.minus(name) : current.plus(name, value);
+			if(next == current || _attrsUpdater.compareAndSet(this, current, next)) return current.get(name);
+		}
+	}
+
 	@Override @Deprecated
 	public void removeValue(String name) {
 		removeAttribute(name);
@@ -287,7 +335,20 @@ public class SessionProxy implements HttpSession,Serializable,Cloneable {
 	* Gets an immutable map of all the attributes.
 	*/
 	public Map<String,Serializable> getAttributes() {
-		return ImmutableSortedMap.copyOf(_attrs);
+		final ImmutableSortedMap.Builder<String,Serializable> builder = ImmutableSortedMap.naturalOrder();
+		for(Map.Entry<String,Serializable> entry : _attrs.entrySet()) {
+			final Serializable value = DeferredAttribute.unwrap(entry.getValue());
+			if(value != null) builder.put(entry.getKey(), value);
+		}
+		return builder.build();
+	}
+
+	/**
+	* Gets an immutable map of the attributes as they are stored, which means that {@link DeferredAttribute} values 
+	* are not loaded. This is a snapshot which later changes to the session do not show up in, and costs nothing to take.
+	*/
+	public PersistentAttributeMap getStoredAttributes() {
+		return _attrs;
 	}
 
 	public long getCreatedAt() {
@@ -1,6 +1,10 @@
 package grails.plugin.databasesession;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 
 import java.util.UUID;
 import java.util.Collections;
@@ -8,6 +12,9 @@ import java.util.Collections;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
@@ -16,6 +23,9 @@ import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.Assert;
@@ -32,8 +42,67 @@ public class SessionProxyFilter extends OncePerRequestFilter {
 
 	protected static final String COOKIE_NAME = "SessionProxyFilter_SessionId";
 
+	/**
+	* Records which node last wrote the session, and the version it wrote: {@code nodeId|version|signature}.
+	*/
+	protected static final String AFFINITY_COOKIE_NAME = "SessionProxyFilter_Affinity";
+
+	private static final String AFFINITY_MAC = "HmacSHA256";
+
+	/**
+	* The request attribute holding the {@link AsyncDispatch} of a request which went async.
+	*/
+	private static final String ASYNC_DISPATCH_ATTRIBUTE = SessionProxyFilter.class.getName() + ".asyncDispatch";
+
 	private Persister persister;
 
+	private Persister localPersister;
+
+	private boolean persistAfterResponse = false;
+
+	private CookiePersister cookiePersister;
+
+	private AttributePolicy attributePolicy;
+
+	private SessionStorageAnalyzer storageAnalyzer;
+
+	private SessionMembership membership;
+
+	private boolean timingEnabled = false;
+
+	private boolean serverTimingHeader = false;
+
+	private long slowRequestMillis = 0L;
+
+	private String nodeId = UUID.randomUUID().toString();
+
+	private volatile SecretKeySpec affinityKey = null;
+
+	private boolean affinitySecure = false;
+
+	/**
+	* The version this node last issued in the affinity cookie for each session whose local copy is current.
+	*/
+	private final Cache<String,Long> affinityVersions = CacheBuilder.newBuilder()
+		.maximumSize(100000)
+		.expireAfterAccess(1, TimeUnit.DAYS)
+		.build();
+
+	private final AtomicLong nextAffinityVersion = new AtomicLong(System.currentTimeMillis());
+
+	private final ThreadLocal<Mac> affinityMacs = new ThreadLocal<Mac>() {
+		@Override
+		protected Mac initialValue() {
+			try {
+				final Mac mac = Mac.getInstance(AFFINITY_MAC);
+				mac.init(affinityKey);
+				return mac;
+			} catch(GeneralSecurityException gse) {
+				throw new IllegalStateException("Could not create the " + AFFINITY_MAC + " for the affinity cookie", gse);
+			}
+		}
+	};
+
 	private final Logger log = LoggerFactory.getLogger(getClass());
 
 	@Override
@@ -42,21 +111,130 @@ public class SessionProxyFilter extends OncePerRequestFilter {
 					throws ServletException, IOException {
 		log.debug("Executing the SessionProxyFilter");
 
+		final AsyncDispatch dispatch = AsyncSessionSupport.isAsyncDispatch(request) ? 
+			(AsyncDispatch)request.getAttribute(ASYNC_DISPATCH_ATTRIBUTE) : null;
+		final SessionTimings timings = dispatch != null ? dispatch.timings : isTimingEnabled() ? new SessionTimings() : null;
+		HttpServletResponse responseForSession = response;
+		if(timings != null) {
+			timings.bind();
+			if(dispatch == null) request.setAttribute(SessionTimings.REQUEST_ATTRIBUTE, timings);
+			if(serverTimingHeader) {
+				// Innermost, so that the header includes whatever ran before the commit
+				responseForSession = new CommitAwareResponse(response, new Runnable() {
+					public void run() {
+						response.setHeader("Server-Timing", timings.toServerTiming());
+					}
+				});
+			}
+		}
+
+		if(cookiePersister != null) cookiePersister.bind(request, responseForSession);
+		try {
+			if(dispatch != null) {
+				doFilterAsyncDispatch(request, responseForSession, chain, dispatch);
+			} else {
+				doFilterSession(request, responseForSession, chain);
+			}
+		} finally {
+			if(cookiePersister != null) cookiePersister.unbind();
+			if(timings != null) {
+				SessionTimings.unbind();
+				// The latest the header can be set: an async request is persisted after its response is complete
+				if(serverTimingHeader && !response.isCommitted()) response.setHeader("Server-Timing", timings.toServerTiming());
+				if(dispatch == null && AsyncSessionSupport.isAsyncStarted(request)) {
+					// Registered after the listener persisting the session, so that the log includes the persist
+					AsyncSessionSupport.onComplete(request, new Runnable() {
+						public void run() {
+							logIfSlow(request, timings);
+						}
+					});
+				} else if(dispatch == null) {
+					logIfSlow(request, timings);
+				}
+			}
+		}
+	}
+
+	private void logIfSlow(final HttpServletRequest request, final SessionTimings timings) {
+		if(slowRequestMillis > 0 && timings.getElapsedNanos() >= TimeUnit.MILLISECONDS.toNanos(slowRequestMillis)) {
+			log.warn("Slow request {} ({}ms): {}", new Object[] {
+				request.getRequestURI(), TimeUnit.NANOSECONDS.toMillis(timings.getElapsedNanos()), timings
+			});
+		}
+	}
+
+	/**
+	* What an async dispatch of a request needs from the dispatch which started it: the session that dispatch handed
+	* to the chain (unless it was the container's own), and the callback to run before the response is committed.
+	*/
+	private static final class AsyncDispatch {
+		final HttpSession session;
+		final Runnable beforeCommit;
+		final SessionTimings timings;
+
+		AsyncDispatch(final HttpSession session, final Runnable beforeCommit, final SessionTimings timings) {
+			this.session = session;
+			this.beforeCommit = beforeCommit;
+			this.timings = timings;
+		}
+	}
+
+	/**
+	* Passes an async dispatch of a request which went async down the chain with the session the request already has,
+	* rather than reading it again: the session is persisted once, when the request completes.
+	*/
+	private void doFilterAsyncDispatch(final HttpServletRequest request,
+			final HttpServletResponse response, final FilterChain chain, final AsyncDispatch dispatch)
+					throws ServletException, IOException {
+		log.debug("Async dispatch: passing on the session the request already has");
+		final HttpServletRequest requestForChain = dispatch.session == null ? request : new HttpServletRequestWrapper(request) {
+			@Override
+			public HttpSession getSession(boolean ignored) {
+				return dispatch.session;
+			}
+
+			@Override
+			public HttpSession getSession() {
+				return dispatch.session;
+			}
+		};
+		final HttpServletResponse responseForChain = dispatch.beforeCommit == null ? response : new CommitAwareResponse(response, dispatch.beforeCommit);
+
+		final SessionTimings timings = SessionTimings.current();
+		final long appStart = System.nanoTime();
+		try {
+			chain.doFilter(requestForChain, responseForChain);
+		} finally {
+			if(timings != null) timings.add(SessionTimings.Phase.APP, System.nanoTime() - appStart);
+		}
+	}
+
+	private void doFilterSession(final HttpServletRequest request,
+			final HttpServletResponse response, final FilterChain chain)
+					throws ServletException, IOException {
 		final HttpServletRequest requestForChain;
+		final SessionTimings timings = SessionTimings.current();
+		final long loadStart = System.nanoTime();
 
 		final String sessionId = getCookieValue(request);
+		final String affinitySessionId;
 		if(sessionId == null) {
 			// Since there's no sessionId to use, just let the normal session stuff play out
 			log.debug("No cookie for presisted session found");
-			createCookie(request.getSession(true).getId(), request, response);
+			final HttpSession created = request.getSession(true);
+			affinitySessionId = created.getId();
+			if(membership != null && created.isNew()) membership.markAbsent(affinitySessionId);
+			createCookie(affinitySessionId, request, response);
 			requestForChain = request;
 		} else {
 			log.debug("Session cookie {} found: wrapping request with proxy session", sessionId);
+			affinitySessionId = sessionId;
+			final SessionData localData = getAffineSessionData(sessionId, request);
 
 			// Since we have a sessionId, we need to wrap the request to return the proxy session
 			requestForChain = new HttpServletRequestWrapper(request) {
 
-				private final SessionProxy session = proxySession(sessionId, request, response);
+				private final SessionProxy session = proxySession(sessionId, localData, request, response);
 
 				/**
 				* Provides the session. We don't bother checking the argument ({@code create}) because we know that we have
@@ -74,11 +252,89 @@ public class SessionProxyFilter extends OncePerRequestFilter {
 			};
 		}
 
-		final SessionHash originalHash = request.getSession(false) == null ? null : new SessionHash(request.getSession());
+		// The session the chain sees: the proxy, or the container session created above
+		final HttpSession originalSession = requestForChain.getSession(false);
+		final long hashStart = System.nanoTime();
+		final SessionHash originalHash = originalSession == null ? null : new SessionHash(originalSession, attributePolicy);
+		if(timings != null) {
+			timings.setSessionId(affinitySessionId);
+			// Everything before hashing was loading the session, apart from the activation listeners
+			timings.add(SessionTimings.Phase.LOAD, hashStart - loadStart - timings.getNanos(SessionTimings.Phase.ACTIVATE));
+			timings.add(SessionTimings.Phase.HASH, System.nanoTime() - hashStart);
+		}
+
+		// The affinity cookie is only issued when the session is written, so it has to go out with the headers if the
+		// session has changed by then
+		final AtomicReference<Long> affinityVersion = isAffinityEnabled() ? new AtomicReference<Long>() : null;
+		final AtomicReference<SessionHash> committedHash = new AtomicReference<SessionHash>();
+		final Runnable beforeCommit = cookiePersister == null && affinityVersion == null ? null : new Runnable() {
+			public void run() {
+				try {
+					final HttpSession session = requestForChain.getSession(false);
+					if(session == null) return;
+					final SessionHash hash;
+					if(cookiePersister != null) {
+						// Sessions kept in a cookie have to be written before the headers go out
+						hash = persistChanges(session, originalHash, response);
+						committedHash.set(hash);
+					} else {
+						hash = new SessionHash(session, attributePolicy);
+					}
+					if(affinityVersion != null && (originalHash == null || !originalHash.equals(hash))) {
+						affinityVersion.set(issueAffinityCookie(affinitySessionId, request, response));
+					}
+				} catch(IllegalStateException ise) {
+					log.debug("Not looking at the session before the response is committed because it seems to be invalid", ise);
+				}
+			}
+		};
+		final HttpServletResponse responseForChain = beforeCommit == null ? response : new CommitAwareResponse(response, beforeCommit);
 
 		log.debug("Passing off to the next filter in the chain: " + requestForChain + " " + chain);
-		chain.doFilter(requestForChain, response);
+		final long appStart = System.nanoTime();
+		try {
+			chain.doFilter(requestForChain, responseForChain);
+		} finally {
+			if(timings != null) timings.add(SessionTimings.Phase.APP, System.nanoTime() - appStart);
+		}
+
+		final Runnable finish = new Runnable() {
+			public void run() {
+				finishSession(requestForChain, response, originalHash, committedHash.get(), affinitySessionId, affinityVersion);
+			}
+		};
+		if(AsyncSessionSupport.isAsyncStarted(requestForChain)) {
+			// The handler goes on with the session after this thread returns
+			log.debug("Deferring the persistence of session {} until the async request completes", affinitySessionId);
+			request.setAttribute(ASYNC_DISPATCH_ATTRIBUTE, new AsyncDispatch(
+				requestForChain == request ? null : requestForChain.getSession(false), beforeCommit, timings
+			));
+			AsyncSessionSupport.onComplete(requestForChain, new Runnable() {
+				public void run() {
+					if(cookiePersister != null) cookiePersister.bind(request, response);
+					if(timings != null) timings.bind();
+					try {
+						finish.run();
+					} finally {
+						if(cookiePersister != null) cookiePersister.unbind();
+						if(timings != null) SessionTimings.unbind();
+					}
+				}
+			});
+			return;
+		}
+		finish.run();
+	}
 
+	/**
+	* Fires the passivation listeners and persists the session the request ended up with, once the request is done with it.
+	*/
+	private void finishSession(final HttpServletRequest requestForChain, final HttpServletResponse response,
+			final SessionHash originalHash, final SessionHash committedHash, final String affinitySessionId, 
+			final AtomicReference<Long> affinityVersion) {
+		final SessionTimings timings = SessionTimings.current();
+		boolean persisted = false;
+		boolean changed = false;
 		try {
 			final HttpSession session = requestForChain.getSession(false);
 			if(session == null) return;
@@ -86,40 +342,232 @@ public class SessionProxyFilter extends OncePerRequestFilter {
 			if(session instanceof SessionProxy) {
 				// If it's not a SessionProxy, leave it to the wrapped session to deal with it
 				// TODO Or should we explicitly fire them all ourselves, in case someone needs to swap themselves for a Serializable representation?
+				final long passivateStart = System.nanoTime();
 				((SessionProxy)session).fireSessionPassivationListeners();
+				if(timings != null) timings.add(SessionTimings.Phase.PASSIVATE, System.nanoTime() - passivateStart);
 			}
 
-			// Persist the session only if there looks like there was a change
-			if(originalHash == null || !originalHash.equals(new SessionHash(session))) {
-				if(persister.isValid(session.getId()) || !Collections.list(session.getAttributeNames()).isEmpty()) {
-					persister.persistSession(SessionData.fromSession(session));
-				} else {
-					log.debug("Not persisting session because the session is empty");
-				}
-			} else {
-				log.debug("Not persisting session because there doesn't seem to have been a change");
+			final long hashStart = System.nanoTime();
+			final SessionHash currentHash = new SessionHash(session, attributePolicy);
+			if(timings != null) timings.add(SessionTimings.Phase.HASH, System.nanoTime() - hashStart);
+			changed = originalHash == null || !originalHash.equals(currentHash);
+			if(changed && affinityVersion != null && affinityVersion.get() == null && !response.isCommitted()) {
+				affinityVersion.set(issueAffinityCookie(affinitySessionId, requestForChain, response));
 			}
+			persistChanges(session, committedHash == null ? originalHash : committedHash, currentHash, response);
+			persisted = true;
 		} catch(IllegalStateException ise) {
 			log.debug("Not persisting session because it seems to be invalid", ise);
 		} catch(Exception e) {
 			log.error("Unknown exception while persisting " + requestForChain.getSession().getId(), e);
+		} finally {
+			if(affinityVersion != null) {
+				// A session which was only read keeps the cookie the client already has
+				final Long version = affinityVersion.get();
+				if(!persisted || (changed && version == null)) {
+					affinityVersions.invalidate(affinitySessionId);
+				} else if(version != null) {
+					affinityVersions.put(affinitySessionId, version);
+				}
+			}
+		}
+	}
+
+	/**
+	* Persists the session if it looks like it has changed since the given hash, and touches it otherwise. Returns the hash
+	* of the session as persisted.
+	*/
+	protected SessionHash persistChanges(final HttpSession session, final SessionHash originalHash, final HttpServletResponse response) {
+		final SessionTimings timings = SessionTimings.current();
+		final long hashStart = System.nanoTime();
+		final SessionHash currentHash = new SessionHash(session, attributePolicy);
+		if(timings != null) timings.add(SessionTimings.Phase.HASH, System.nanoTime() - hashStart);
+		persistChanges(session, originalHash, currentHash, response);
+		return currentHash;
+	}
+
+	private void persistChanges(final HttpSession session, final SessionHash originalHash, final SessionHash currentHash,
+			final HttpServletResponse response) {
+		final AsyncPersister async = getAsyncPersister();
+		final SessionTimings timings = SessionTimings.current();
+		final long persistStart = System.nanoTime();
+		if(storageAnalyzer != null && originalHash != null && storageAnalyzer.shouldSample()) {
+			storageAnalyzer.recordChanges(originalHash, currentHash);
+		}
+		try {
+			writeChanges(session, originalHash, currentHash, async, response);
+		} finally {
+			if(timings != null) timings.add(SessionTimings.Phase.PERSIST, System.nanoTime() - persistStart);
+		}
+	}
+
+	private void writeChanges(final HttpSession session, final SessionHash originalHash, final SessionHash currentHash,
+			final AsyncPersister async, final HttpServletResponse response) {
+		if(originalHash != null && !originalHash.equals(currentHash) && originalHash.isDurablyEqual(currentHash) 
+				&& localPersister instanceof InMemoryPersister) {
+			log.debug("Only local attributes changed: persisting the session to the local tier only");
+			((InMemoryPersister)localPersister).cacheLocalChanges(SessionData.fromSession(session, attributePolicy));
+			persister.touchSession(session.getId(), session.getLastAccessedTime(), session.getMaxInactiveInterval());
+			return;
+		}
+
+		// Persist the session only if there looks like there was a change
+		if(originalHash == null || !originalHash.equals(currentHash)) {
+			if(!Collections.list(session.getAttributeNames()).isEmpty() || persister.isValid(session.getId())) {
+				final SessionData data = SessionData.fromSession(session, attributePolicy);
+				if(async != null) {
+					flushResponse(response);
+					async.persistSessionAsync(data);
+				} else {
+					persister.persistSession(data);
+				}
+			} else {
+				log.debug("Not persisting session because the session is empty");
+			}
+		} else {
+			log.debug("Not persisting session because there doesn't seem to have been a change");
+			if(async != null) {
+				flushResponse(response);
+				async.touchSessionAsync(session.getId(), session.getLastAccessedTime(), session.getMaxInactiveInterval());
+			} else {
+				persister.touchSession(session.getId(), session.getLastAccessedTime(), session.getMaxInactiveInterval());
+			}
+		}
+	}
+
+	/**
+	* Provides the persister to hand writes off to after the response has been flushed, or {@code null} if 
+	* sessions should be persisted before the request thread returns.
+	*/
+	protected AsyncPersister getAsyncPersister() {
+		if(persistAfterResponse && persister instanceof AsyncPersister) return (AsyncPersister)persister;
+		return null;
+	}
+
+	/**
+	* Commits the response so that the client has it before the session is persisted.
+	*/
+	protected void flushResponse(final HttpServletResponse response) {
+		try {
+			response.flushBuffer();
+		} catch(IOException ioe) {
+			log.debug("Could not flush the response before persisting the session", ioe);
 		}
 	}
 
 	protected SessionProxy proxySession(final String sessionId, final HttpServletRequest request,
 			final HttpServletResponse response) {
+		return proxySession(sessionId, null, request, response);
+	}
+
+	/**
+	* Creates the proxy session from the given data, or from the persister if the data is {@code null}.
+	*/
+	protected SessionProxy proxySession(final String sessionId, final SessionData data, final HttpServletRequest request,
+			final HttpServletResponse response) {
 		log.debug("Creating HttpSession proxy for request for {}", request.getRequestURL());
-		SessionProxy proxy = new SessionProxy(getServletContext(), persister, sessionId);
+		SessionProxy proxy = data == null ? 
+			new SessionProxy(getServletContext(), persister, sessionId) : 
+			new SessionProxy(getServletContext(), persister, sessionId, data);
+		final SessionTimings timings = SessionTimings.current();
+		final long activateStart = System.nanoTime();
 		proxy.fireSessionActivationListeners();
+		if(timings != null) timings.add(SessionTimings.Phase.ACTIVATE, System.nanoTime() - activateStart);
 		return proxy;
 	}
 
+	protected boolean isAffinityEnabled() {
+		return affinityKey != null && localPersister != null;
+	}
+
+	/**
+	* Provides the local copy of the session if the affinity cookie shows that this node wrote the current version
+	* of it. If the signed cookie shows the session was written elsewhere, or by this node as another version, the local
+	* copy is evicted so that the session is read from the shared store, after writing back whatever of it has not been
+	* written yet. A missing or unsigned cookie says nothing about where the session was written, so the local copy is
+	* kept. Returns {@code null} if the session should be read normally.
+	*/
+	protected SessionData getAffineSessionData(final String sessionId, final HttpServletRequest request) {
+		if(!isAffinityEnabled()) return null;
+
+		final String value = getCookieValue(request, AFFINITY_COOKIE_NAME);
+		final int macIdx = value == null ? -1 : value.lastIndexOf('|');
+		final int versionIdx = macIdx <= 0 ? -1 : value.lastIndexOf('|', macIdx - 1);
+		if(versionIdx <= 0) {
+			log.debug("No affinity cookie for session {}: reading it normally", sessionId);
+			return null;
+		}
+		final String cookieNode = value.substring(0, versionIdx);
+		final String cookieVersion = value.substring(versionIdx + 1, macIdx);
+		if(!MessageDigest.isEqual(toBytes(value.substring(macIdx + 1)), toBytes(signAffinity(sessionId, cookieNode, cookieVersion)))) {
+			log.debug("Affinity cookie for session {} is not signed for it: reading it normally", sessionId);
+			return null;
+		}
+		final Long localVersion = affinityVersions.getIfPresent(sessionId);
+		if(nodeId.equals(cookieNode) && localVersion != null && localVersion.toString().equals(cookieVersion)) {
+			if(persister instanceof AsyncPersister && ((AsyncPersister)persister).isPending(sessionId)) {
+				// The local tier has not seen the pending write yet
+				return null;
+			}
+			final SessionData local = localPersister.getSessionData(sessionId);
+			if(local != null) {
+				log.debug("Serving session {} from local memory based on the affinity cookie", sessionId);
+				return local;
+			}
+			return null;
+		}
+
+		log.debug("Affinity cookie for session {} does not match this node: evicting the local copy", sessionId);
+		affinityVersions.invalidate(sessionId);
+		if(localPersister instanceof InMemoryPersister) {
+			// Overlapping requests can leave the client with an older version: its changes must not go with the copy
+			((InMemoryPersister)localPersister).evict(sessionId);
+		} else {
+			localPersister.invalidate(sessionId);
+		}
+		return null;
+	}
+
+	/**
+	* Issues the affinity cookie recording that this node is writing a new version of the session, and returns that version.
+	* Only called when the session is written, so that requests which merely read it do not set a cookie.
+	*/
+	protected Long issueAffinityCookie(final String sessionId, final HttpServletRequest request, final HttpServletResponse response) {
+		final Long version = nextAffinityVersion.incrementAndGet();
+		final String value = nodeId + "|" + version + "|" + signAffinity(sessionId, nodeId, version.toString());
+		// The Servlet 2.5 Cookie cannot be made HttpOnly, so the header is written out here, as the CookiePersister does
+		final StringBuilder header = new StringBuilder(AFFINITY_COOKIE_NAME.length() + value.length() + 32);
+		header.append(AFFINITY_COOKIE_NAME).append('=').append(value).append("; Path=/");
+		if(affinitySecure || request.isSecure()) header.append("; Secure");
+		header.append("; HttpOnly");
+		response.addHeader("Set-Cookie", header.toString());
+		return version;
+	}
+
+	private String signAffinity(final String sessionId, final String node, final String version) {
+		final Mac mac = affinityMacs.get();
+		mac.reset();
+		return SerializationBuffers.toHex(mac.doFinal(toBytes(sessionId + "|" + node + "|" + version)));
+	}
+
+	private static byte[] toBytes(final String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch(UnsupportedEncodingException uee) {
+			throw new IllegalStateException("UTF-8 is not supported", uee);
+		}
+	}
+
 
 	protected Cookie getCookie(HttpServletRequest request) {
+		return getCookie(request, COOKIE_NAME);
+	}
+
+	protected Cookie getCookie(HttpServletRequest request, String name) {
 		Cookie[] cookies = request.getCookies();
 		if (cookies != null) {
 			for (Cookie cookie : cookies) {
-				if (COOKIE_NAME.equals(cookie.getName())) {
+				if (name.equals(cookie.getName())) {
 					return cookie;
 				}
 			}
@@ -129,7 +577,11 @@ public class SessionProxyFilter extends OncePerRequestFilter {
 	}
 
 	protected String getCookieValue(HttpServletRequest request) {
-		Cookie cookie = getCookie(request);
+		return getCookieValue(request, COOKIE_NAME);
+	}
+
+	protected String getCookieValue(HttpServletRequest request, String name) {
+		Cookie cookie = getCookie(request, name);
 		return cookie == null ? null : cookie.getValue();
 	}
 
@@ -147,7 +599,11 @@ public class SessionProxyFilter extends OncePerRequestFilter {
 	}
 
 	protected Cookie newCookie(String sessionId, HttpServletRequest request) {
-		Cookie cookie = new Cookie(COOKIE_NAME, sessionId);
+		return newCookie(COOKIE_NAME, sessionId, request);
+	}
+
+	protected Cookie newCookie(String name, String value, HttpServletRequest request) {
+		Cookie cookie = new Cookie(name, value);
 		//cookie.setDomain(request.getServerName()); // TODO needs config option
 		cookie.setPath("/");
 		cookie.setSecure(false); // TODO Should this be request.isSecure() or config option?
@@ -179,6 +635,124 @@ public class SessionProxyFilter extends OncePerRequestFilter {
 		return persister;
 	}
 
+	/**
+	* The node-local tier (usually the {@link InMemoryPersister}) which the affinity cookie vouches for.
+	*/
+	public void setLocalPersister(Persister localPersister) {
+		this.localPersister = localPersister;
+	}
+
+	protected Persister getLocalPersister() {
+		return localPersister;
+	}
+
+	/**
+	* Whether to flush the response before persisting the session, and to persist it on the executor of the 
+	* {@link AsyncPersister}. Only takes effect if the {@link #setPersister(Persister) persister} is an {@link AsyncPersister}.
+	*/
+	public void setPersistAfterResponse(boolean persistAfterResponse) {
+		this.persistAfterResponse = persistAfterResponse;
+	}
+
+	protected boolean isPersistAfterResponse() {
+		return persistAfterResponse;
+	}
+
+	/**
+	* The {@link CookiePersister} (if any) among the persisters, which needs the request and response bound to the thread,
+	* and the session persisted before the response is committed.
+	*/
+	public void setCookiePersister(CookiePersister cookiePersister) {
+		this.cookiePersister = cookiePersister;
+	}
+
+	protected CookiePersister getCookiePersister() {
+		return cookiePersister;
+	}
+
+	/**
+	* Decides which attributes are persisted where. If {@code null}, all attributes are persisted everywhere.
+	*/
+	public void setAttributePolicy(AttributePolicy attributePolicy) {
+		this.attributePolicy = attributePolicy;
+	}
+
+	protected AttributePolicy getAttributePolicy() {
+		return attributePolicy;
+	}
+
+	/**
+	* Records which attributes sampled requests change. If {@code null}, no changes are recorded.
+	*/
+	public void setStorageAnalyzer(SessionStorageAnalyzer storageAnalyzer) {
+		this.storageAnalyzer = storageAnalyzer;
+	}
+
+	protected SessionStorageAnalyzer getStorageAnalyzer() {
+		return storageAnalyzer;
+	}
+
+	/**
+	* Told of the sessions the container creates, which are not stored yet. If {@code null}, the persister finds out.
+	*/
+	public void setMembership(SessionMembership membership) {
+		this.membership = membership;
+	}
+
+	protected SessionMembership getMembership() {
+		return membership;
+	}
+
+	/**
+	* Whether each request records how long its session phases took, in the {@link SessionTimings#REQUEST_ATTRIBUTE}
+	* request attribute. Also on when the {@code Server-Timing} header or the slow request log is.
+	*/
+	public void setTimingEnabled(boolean timingEnabled) {
+		this.timingEnabled = timingEnabled;
+	}
+
+	protected boolean isTimingEnabled() {
+		return timingEnabled || serverTimingHeader || slowRequestMillis > 0;
+	}
+
+	/**
+	* Whether to send the session phase timings in a {@code Server-Timing} response header. Only the phases which
+	* ran before the response was committed are included.
+	*/
+	public void setServerTimingHeader(boolean serverTimingHeader) {
+		this.serverTimingHeader = serverTimingHeader;
+	}
+
+	/**
+	* Requests which take at least this long are logged with their session phase timings. {@code 0} turns the log off.
+	*/
+	public void setSlowRequestMillis(long slowRequestMillis) {
+		this.slowRequestMillis = slowRequestMillis;
+	}
+
+	public void setNodeId(String nodeId) {
+		if(nodeId == null) throw new IllegalArgumentException("Cannot assign a null nodeId property");
+		this.nodeId = nodeId;
+	}
+
+	protected String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	* The secret used to sign the affinity cookie. If {@code null}, no affinity cookie is used.
+	*/
+	public void setAffinitySecret(String affinitySecret) {
+		this.affinityKey = affinitySecret == null ? null : new SecretKeySpec(toBytes(affinitySecret), AFFINITY_MAC);
+	}
+
+	/**
+	* Whether the affinity cookie is marked {@code Secure} even on requests which did not come over HTTPS.
+	*/
+	public void setAffinitySecure(boolean affinitySecure) {
+		this.affinitySecure = affinitySecure;
+	}
+
 /*
 	@Override
 	public void afterPropertiesSet() throws ServletException {
@@ -0,0 +1,434 @@
+package grails.plugin.databasesession;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Finds out what takes up the space in the session table, and which attributes make sessions get rewritten.
+ *
+ * {@link #analyze()} reads every stored session from the {@link JdbcPersister}, decoding them on several threads, and
+ * reports the size of the sessions, the serialized size of the attributes by name and by value class, and the largest
+ * sessions. Deferred attributes (spilled or shared ones) are counted at the size of the reference the session row holds.
+ *
+ * When {@link #getSampleRate()} is above {@code 0}, the {@link SessionProxyFilter} also reports which attributes each
+ * sampled request changed, from which {@link #getChurn()} gives how often each attribute changes.
+ *
+ * @author Robert Fischer
+ */
+public class SessionStorageAnalyzer {
+
+	private final Logger log = Logger.getLogger(getClass());
+
+	private volatile JdbcPersister jdbcPersister;
+	public JdbcPersister getJdbcPersister() {
+		return jdbcPersister;
+	}
+	public void setJdbcPersister(JdbcPersister jdbcPersister) {
+		this.jdbcPersister = jdbcPersister;
+	}
+
+	private volatile int threads = 4;
+	public int getThreads() {
+		return threads;
+	}
+	public void setThreads(int threads) {
+		if(threads <= 0) throw new IllegalArgumentException("The thread count must be positive: " + threads);
+		this.threads = threads;
+	}
+
+	/**
+	* Sessions whose stored form is larger than this many bytes are listed in the report.
+	*/
+	private volatile int largeSessionBytes = 64 * 1024;
+	public int getLargeSessionBytes() {
+		return largeSessionBytes;
+	}
+	public void setLargeSessionBytes(int largeSessionBytes) {
+		this.largeSessionBytes = largeSessionBytes;
+	}
+
+	/**
+	* The most large sessions listed in the report: the largest ones are kept.
+	*/
+	private volatile int maxLargeSessions = 100;
+	public int getMaxLargeSessions() {
+		return maxLargeSessions;
+	}
+	public void setMaxLargeSessions(int maxLargeSessions) {
+		this.maxLargeSessions = maxLargeSessions;
+	}
+
+	/**
+	* The fraction of requests (between 0 and 1) whose attribute changes are recorded. {@code 0} turns sampling off.
+	*/
+	private volatile double sampleRate = 0.0;
+	public double getSampleRate() {
+		return sampleRate;
+	}
+	public void setSampleRate(double sampleRate) {
+		if(sampleRate < 0.0 || sampleRate > 1.0) {
+			throw new IllegalArgumentException("The sample rate must be in [0,1]: " + sampleRate);
+		}
+		this.sampleRate = sampleRate;
+	}
+
+	private final ThreadLocal<Random> randoms = new ThreadLocal<Random>() {
+		@Override
+		protected Random initialValue() {
+			return new Random();
+		}
+	};
+
+	private final ConcurrentMap<String,ChurnStats> churn = new ConcurrentHashMap<String,ChurnStats>();
+	private final AtomicLong sampledRequests = new AtomicLong();
+
+	/**
+	* A distribution of sizes, kept as counts in power-of-two buckets.
+	*/
+	public static final class SizeStats {
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalBytes = new AtomicLong();
+		private final AtomicLong maxBytes = new AtomicLong();
+		private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+		void record(final long bytes) {
+			count.incrementAndGet();
+			totalBytes.addAndGet(bytes);
+			buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(0L, bytes)));
+			long max;
+			do {
+				max = maxBytes.get();
+			} while(bytes > max && !maxBytes.compareAndSet(max, bytes));
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getTotalBytes() {
+			return totalBytes.get();
+		}
+
+		public long getMaxBytes() {
+			return maxBytes.get();
+		}
+
+		public long getMeanBytes() {
+			final long n = count.get();
+			return n == 0 ? 0 : totalBytes.get() / n;
+		}
+
+		/**
+		* An upper bound (within a factor of two) of the given percentile (between 0 and 1) of the sizes.
+		*/
+		public long getPercentileBytes(final double percentile) {
+			final long n = count.get();
+			if(n == 0) return 0;
+			final long rank = Math.max(1L, (long)Math.ceil(percentile * n));
+			long seen = 0;
+			for(int i = 0; i < 64; i++) {
+				seen += buckets.get(i);
+				if(seen >= rank) return Math.min(maxBytes.get(), i == 0 ? 0L : (1L << i) - 1);
+			}
+			return maxBytes.get();
+		}
+
+		public String toString() {
+			return "count=" + getCount() + " total=" + getTotalBytes() + " mean=" + getMeanBytes() +
+				" p50=" + getPercentileBytes(0.5) + " p99=" + getPercentileBytes(0.99) + " max=" + getMaxBytes();
+		}
+	}
+
+	/**
+	* How often an attribute changed in the sampled requests of sessions which had it.
+	*/
+	public static final class ChurnStats {
+		private final AtomicLong sampled = new AtomicLong();
+		private final AtomicLong changed = new AtomicLong();
+
+		public long getSampled() {
+			return sampled.get();
+		}
+
+		public long getChanged() {
+			return changed.get();
+		}
+
+		public double getChangeRate() {
+			final long n = sampled.get();
+			return n == 0 ? 0.0 : (double)changed.get() / n;
+		}
+
+		public String toString() {
+			return "sampled=" + getSampled() + " changed=" + getChanged() + " rate=" + getChangeRate();
+		}
+	}
+
+	public static final class LargeSession {
+		public final String sessionId;
+		public final long bytes;
+
+		LargeSession(final String sessionId, final long bytes) {
+			this.sessionId = sessionId;
+			this.bytes = bytes;
+		}
+
+		public String toString() {
+			return sessionId + "=" + bytes;
+		}
+	}
+
+	private static final Comparator<LargeSession> BY_SIZE = new Comparator<LargeSession>() {
+		public int compare(LargeSession a, LargeSession b) {
+			return a.bytes < b.bytes ? -1 : (a.bytes == b.bytes ? 0 : 1);
+		}
+	};
+
+	/**
+	* The outcome of {@link SessionStorageAnalyzer#analyze()}.
+	*/
+	public static final class Report {
+		private final SizeStats sessions = new SizeStats();
+		private final ConcurrentMap<String,SizeStats> byAttribute = new ConcurrentHashMap<String,SizeStats>();
+		private final ConcurrentMap<String,SizeStats> byValueClass = new ConcurrentHashMap<String,SizeStats>();
+		private final PriorityQueue<LargeSession> largeSessions = new PriorityQueue<LargeSession>(16, BY_SIZE);
+		private final AtomicLong failed = new AtomicLong();
+		private volatile long elapsedMillis;
+
+		/**
+		* The sizes of the stored sessions.
+		*/
+		public SizeStats getSessions() {
+			return sessions;
+		}
+
+		public Map<String,SizeStats> getByAttribute() {
+			return Collections.unmodifiableMap(byAttribute);
+		}
+
+		public Map<String,SizeStats> getByValueClass() {
+			return Collections.unmodifiableMap(byValueClass);
+		}
+
+		/**
+		* The attribute names, by the total bytes of their values, largest first.
+		*/
+		public List<String> getAttributesByTotalBytes() {
+			final List<String> names = new ArrayList<String>(byAttribute.keySet());
+			Collections.sort(names, new Comparator<String>() {
+				public int compare(String a, String b) {
+					final long ta = byAttribute.get(a).getTotalBytes();
+					final long tb = byAttribute.get(b).getTotalBytes();
+					return ta > tb ? -1 : (ta == tb ? a.compareTo(b) : 1);
+				}
+			});
+			return names;
+		}
+
+		/**
+		* The sessions over {@link SessionStorageAnalyzer#getLargeSessionBytes()}, largest first.
+		*/
+		public List<LargeSession> getLargeSessions() {
+			final List<LargeSession> result;
+			synchronized(largeSessions) {
+				result = new ArrayList<LargeSession>(largeSessions);
+			}
+			Collections.sort(result, Collections.reverseOrder(BY_SIZE));
+			return result;
+		}
+
+		/**
+		* The number of sessions which could not be decoded.
+		*/
+		public long getFailedCount() {
+			return failed.get();
+		}
+
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+
+		public String toString() {
+			final StringBuilder out = new StringBuilder();
+			out.append("Sessions: ").append(sessions).append(" (").append(failed.get()).append(" failed) in ").append(elapsedMillis).append("ms\n");
+			out.append("By attribute:\n");
+			for(String name : getAttributesByTotalBytes()) {
+				out.append("  ").append(name).append(": ").append(byAttribute.get(name)).append('\n');
+			}
+			out.append("By value class:\n");
+			for(Map.Entry<String,SizeStats> entry : byValueClass.entrySet()) {
+				out.append("  ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+			}
+			out.append("Large sessions: ").append(getLargeSessions());
+			return out.toString();
+		}
+	}
+
+	private static SizeStats statsFor(final ConcurrentMap<String,SizeStats> map, final String key) {
+		SizeStats stats = map.get(key);
+		if(stats == null) {
+			map.putIfAbsent(key, new SizeStats());
+			stats = map.get(key);
+		}
+		return stats;
+	}
+
+	/**
+	* Reads and measures every session in the table. This reads the whole table, so run it when the database can take it.
+	*/
+	public Report analyze() throws InterruptedException {
+		if(jdbcPersister == null) {
+			throw new IllegalStateException("jdbcPersister property must be assigned (cannot be null)");
+		}
+		final long start = System.currentTimeMillis();
+		final Report report = new Report();
+		final int large = largeSessionBytes;
+		final int maxLarge = maxLargeSessions;
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+			threads, threads, 60, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(threads * 4),
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("session-analyzer-%d").build(),
+			new ThreadPoolExecutor.CallerRunsPolicy() // The reading thread decodes too when the others are busy
+		);
+		try {
+			jdbcPersister.scanSessions(new JdbcPersister.SessionRowHandler() {
+				public void handle(final String sessionId, final byte[] sessionData) {
+					report.sessions.record(sessionData.length);
+					if(sessionData.length > large && maxLarge > 0) {
+						synchronized(report.largeSessions) {
+							report.largeSessions.add(new LargeSession(sessionId, sessionData.length));
+							if(report.largeSessions.size() > maxLarge) report.largeSessions.poll();
+						}
+					}
+					executor.execute(new Runnable() {
+						public void run() {
+							measure(sessionId, sessionData, report);
+						}
+					});
+				}
+			});
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} finally {
+			executor.shutdownNow();
+		}
+		report.elapsedMillis = System.currentTimeMillis() - start;
+		log.info("Analyzed " + report.sessions.getCount() + " sessions in " + report.elapsedMillis + "ms");
+		return report;
+	}
+
+	private void measure(final String sessionId, final byte[] sessionData, final Report report) {
+		final Map<String,Serializable> attrs;
+		try {
+			attrs = jdbcPersister.decodeAttributes(sessionData);
+		} catch(RuntimeException re) {
+			log.warn("Could not decode session " + sessionId + " for analysis", re);
+			report.failed.incrementAndGet();
+			return;
+		}
+		for(Map.Entry<String,Serializable> entry : attrs.entrySet()) {
+			final Serializable value = entry.getValue();
+			final long size = serializedSize(value);
+			statsFor(report.byAttribute, entry.getKey()).record(size);
+			statsFor(report.byValueClass, value == null ? "null" : value.getClass().getName()).record(size);
+		}
+	}
+
+	/**
+	* Counts the bytes written to it, and drops them.
+	*/
+	private static final class CountingSink extends OutputStream {
+		long count = 0;
+
+		@Override
+		public void write(final int b) {
+			count++;
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+			count += len;
+		}
+	}
+
+	private static long serializedSize(final Serializable value) {
+		final CountingSink sink = new CountingSink();
+		try {
+			final ObjectOutputStream oos = new ObjectOutputStream(sink);
+			oos.writeObject(value);
+			oos.close();
+		} catch(IOException ioe) {
+			return -1L;
+		}
+		return sink.count;
+	}
+
+	/**
+	* Whether this request's changes should be recorded.
+	*/
+	public boolean shouldSample() {
+		final double rate = sampleRate;
+		return rate > 0.0 && (rate >= 1.0 || randoms.get().nextDouble() < rate);
+	}
+
+	/**
+	* Records which attributes changed between the attribute hashes at the start and at the end of a request.
+	*/
+	public void recordChanges(final Map<String,Integer> before, final Map<String,Integer> after) {
+		sampledRequests.incrementAndGet();
+		final Set<String> names = new HashSet<String>(before.keySet());
+		names.addAll(after.keySet());
+		for(String name : names) {
+			ChurnStats stats = churn.get(name);
+			if(stats == null) {
+				churn.putIfAbsent(name, new ChurnStats());
+				stats = churn.get(name);
+			}
+			stats.sampled.incrementAndGet();
+			final Integer was = before.get(name);
+			if(was == null || !was.equals(after.get(name))) stats.changed.incrementAndGet();
+		}
+	}
+
+	/**
+	* How often each attribute changed in the sampled requests.
+	*/
+	public Map<String,ChurnStats> getChurn() {
+		return Collections.unmodifiableMap(new HashMap<String,ChurnStats>(churn));
+	}
+
+	public long getSampledRequests() {
+		return sampledRequests.get();
+	}
+
+	public void resetChurn() {
+		churn.clear();
+		sampledRequests.set(0);
+	}
+
+}
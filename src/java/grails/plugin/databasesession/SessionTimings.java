@@ -0,0 +1,174 @@
+package grails.plugin.databasesession;
+
+import java.util.Locale;
+
+import java.util.concurrent.Callable;
+
+/**
+ * How long each session phase of a request took, as recorded by {@link SessionProxyFilter} when timing is enabled.
+ * The timings of the current request are available from the {@link #REQUEST_ATTRIBUTE} request attribute, and
+ * the persisters add what they know (the tier which served the read, and the bytes read and written) while the
+ * timings are bound to the request thread.
+ *
+ * @author Robert Fischer
+ */
+public final class SessionTimings {
+
+	/**
+	* The request attribute holding the timings of the request.
+	*/
+	public static final String REQUEST_ATTRIBUTE = SessionTimings.class.getName();
+
+	public static enum Phase {
+		/** Reading the session from the persisters. */
+		LOAD("session-load"),
+		/** Firing the activation listeners. */
+		ACTIVATE("session-activate"),
+		/** Hashing the attributes, to see whether they changed. */
+		HASH("session-hash"),
+		/** The rest of the filter chain. */
+		APP("app"),
+		/** Firing the passivation listeners. */
+		PASSIVATE("session-passivate"),
+		/** Writing or touching the session. */
+		PERSIST("session-persist");
+
+		/**
+		* The metric name used in the {@code Server-Timing} header.
+		*/
+		public final String metric;
+
+		Phase(final String metric) {
+			this.metric = metric;
+		}
+	}
+
+	private static final ThreadLocal<SessionTimings> current = new ThreadLocal<SessionTimings>();
+
+	private final long startedAt = System.nanoTime();
+	private final long[] nanos = new long[Phase.values().length];
+	private volatile String sessionId = null;
+	private volatile String readTier = null;
+	private volatile long readBytes = -1L;
+	private volatile long writtenBytes = -1L;
+
+	/**
+	* The timings bound to this thread, or {@code null} if timing is off.
+	*/
+	static SessionTimings current() {
+		return current.get();
+	}
+
+	void bind() {
+		current.set(this);
+	}
+
+	static void unbind() {
+		current.remove();
+	}
+
+	/**
+	* Wraps the task so that it runs with the timings of this thread bound, for work done on another thread on behalf
+	* of the request.
+	*/
+	static <T> Callable<T> propagate(final Callable<T> task) {
+		final SessionTimings timings = current();
+		if(timings == null) return task;
+		return new Callable<T>() {
+			public T call() throws Exception {
+				timings.bind();
+				try {
+					return task.call();
+				} finally {
+					unbind();
+				}
+			}
+		};
+	}
+
+	/**
+	* Records the persister which served the read, if timings are bound to this thread.
+	*/
+	static void recordReadTier(final Persister persister) {
+		final SessionTimings timings = current.get();
+		if(timings != null) timings.readTier = persister.getClass().getSimpleName();
+	}
+
+	static void recordReadBytes(final long bytes) {
+		final SessionTimings timings = current.get();
+		if(timings != null) timings.readBytes = bytes;
+	}
+
+	static void recordWrittenBytes(final long bytes) {
+		final SessionTimings timings = current.get();
+		if(timings != null) timings.writtenBytes = Math.max(0L, timings.writtenBytes) + bytes;
+	}
+
+	synchronized void add(final Phase phase, final long elapsedNanos) {
+		nanos[phase.ordinal()] += elapsedNanos;
+	}
+
+	void setSessionId(final String sessionId) {
+		this.sessionId = sessionId;
+	}
+
+	public synchronized long getNanos(final Phase phase) {
+		return nanos[phase.ordinal()];
+	}
+
+	/**
+	* The time since the timings were created, which is when the filter started on the request.
+	*/
+	public long getElapsedNanos() {
+		return System.nanoTime() - startedAt;
+	}
+
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	/**
+	* The simple class name of the persister which served the session, or {@code null} if it was not read from one.
+	*/
+	public String getReadTier() {
+		return readTier;
+	}
+
+	/**
+	* The size of the stored session read from the database, or {@code -1} if it was not read from the database.
+	*/
+	public long getReadBytes() {
+		return readBytes;
+	}
+
+	/**
+	* The size of the session written to the database by this thread, or {@code -1} if it was not written.
+	*/
+	public long getWrittenBytes() {
+		return writtenBytes;
+	}
+
+	/**
+	* The value of the {@code Server-Timing} header: the phases which took any time, in milliseconds.
+	*/
+	public synchronized String toServerTiming() {
+		final StringBuilder out = new StringBuilder();
+		for(Phase phase : Phase.values()) {
+			final long n = nanos[phase.ordinal()];
+			if(n <= 0) continue;
+			if(out.length() > 0) out.append(", ");
+			out.append(phase.metric).append(";dur=").append(String.format(Locale.ROOT, "%.3f", n / 1000000.0));
+		}
+		return out.toString();
+	}
+
+	public synchronized String toString() {
+		final StringBuilder out = new StringBuilder("session ").append(sessionId);
+		for(Phase phase : Phase.values()) {
+			out.append(' ').append(phase.metric).append('=').append(nanos[phase.ordinal()] / 1000L).append("us");
+		}
+		out.append(" tier=").append(readTier).append(" read=").append(readBytes).append(" written=").append(writtenBytes);
+		return out.toString();
+	}
+
+}
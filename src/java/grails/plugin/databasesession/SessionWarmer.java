@@ -0,0 +1,235 @@
+package grails.plugin.databasesession;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Loads the most recently accessed sessions from the {@link JdbcPersister} into the local tier, so that a freshly
+ * started node does not send every session read to the database. Sessions are read in chunks on several threads,
+ * most recent first, until {@link #getMaxSessions()} sessions or {@link #getMaxBytes()} bytes have been loaded, or
+ * {@link #getTimeoutMillis()} has passed. The node is {@link #isReady() ready} once the warm-up is over either way.
+ *
+ * @author Robert Fischer
+ */
+public class SessionWarmer {
+
+	private final Logger log = Logger.getLogger(getClass());
+
+	private volatile JdbcPersister jdbcPersister;
+	public JdbcPersister getJdbcPersister() {
+		return jdbcPersister;
+	}
+	public void setJdbcPersister(JdbcPersister jdbcPersister) {
+		this.jdbcPersister = jdbcPersister;
+	}
+
+	/**
+	* The tier to load the sessions into.
+	*/
+	private volatile Persister localPersister;
+	public Persister getLocalPersister() {
+		return localPersister;
+	}
+	public void setLocalPersister(Persister localPersister) {
+		this.localPersister = localPersister;
+	}
+
+	private volatile int maxSessions = 10000;
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+	public void setMaxSessions(int maxSessions) {
+		this.maxSessions = maxSessions;
+	}
+
+	/**
+	* The most serialized bytes of sessions to load. A value of {@code 0} or less means no limit.
+	*/
+	private volatile long maxBytes = 64L * 1024 * 1024;
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	private volatile long timeoutMillis = 30000;
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+	public void setTimeoutMillis(long timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	* Only sessions accessed within this many seconds are warmed up: it should be at least the session timeout, past
+	* which the sessions have expired anyway.
+	*/
+	private volatile int recentSeconds = 3600;
+	public int getRecentSeconds() {
+		return recentSeconds;
+	}
+	public void setRecentSeconds(int recentSeconds) {
+		if(recentSeconds <= 0) throw new IllegalArgumentException("The recent period must be positive: " + recentSeconds);
+		this.recentSeconds = recentSeconds;
+	}
+
+	private volatile int threads = 4;
+	public int getThreads() {
+		return threads;
+	}
+	public void setThreads(int threads) {
+		if(threads <= 0) throw new IllegalArgumentException("The thread count must be positive: " + threads);
+		this.threads = threads;
+	}
+
+	private volatile int chunkSize = 200;
+	public int getChunkSize() {
+		return chunkSize;
+	}
+	public void setChunkSize(int chunkSize) {
+		if(chunkSize <= 0) throw new IllegalArgumentException("The chunk size must be positive: " + chunkSize);
+		this.chunkSize = chunkSize;
+	}
+
+	private volatile boolean ready = false;
+
+	/**
+	* Whether the warm-up has finished (or given up).
+	*/
+	public boolean isReady() {
+		return ready;
+	}
+
+	private final AtomicInteger warmedSessions = new AtomicInteger();
+	public int getWarmedSessions() {
+		return warmedSessions.get();
+	}
+
+	private final AtomicLong warmedBytes = new AtomicLong();
+	public long getWarmedBytes() {
+		return warmedBytes.get();
+	}
+
+	/**
+	* Runs the warm-up on a background thread and returns immediately.
+	*/
+	public void start() {
+		final Thread thread = new Thread(new Runnable() {
+			public void run() {
+				warmUp();
+			}
+		}, "session-warmer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	* Runs the warm-up, returning once it is over.
+	*/
+	public void warmUp() {
+		try {
+			if(jdbcPersister == null) {
+				throw new IllegalStateException("jdbcPersister property must be assigned (cannot be null)");
+			}
+			if(localPersister == null) {
+				throw new IllegalStateException("localPersister property must be assigned (cannot be null)");
+			}
+			doWarmUp();
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			log.warn("Interrupted while warming up the local session tier");
+		} catch(RuntimeException re) {
+			log.warn("Error while warming up the local session tier", re);
+		} finally {
+			ready = true;
+		}
+	}
+
+	private void doWarmUp() throws InterruptedException {
+		final long start = System.currentTimeMillis();
+		final long deadline = start + timeoutMillis;
+		final List<String> sessionIds = jdbcPersister.getRecentSessionIds(maxSessions, start - TimeUnit.SECONDS.toMillis(recentSeconds));
+		log.info("Warming up the local session tier with up to " + sessionIds.size() + " sessions");
+
+		final AtomicBoolean exhausted = new AtomicBoolean(false);
+		final ExecutorService executor = Executors.newFixedThreadPool(threads,
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("session-warmer-%d").build()
+		);
+		try {
+			for(final List<String> chunk : Lists.partition(sessionIds, chunkSize)) {
+				executor.execute(new Runnable() {
+					public void run() {
+						if(exhausted.get() || System.currentTimeMillis() > deadline) return;
+						try {
+							warmChunk(chunk, exhausted);
+						} catch(RuntimeException re) {
+							log.warn("Error while warming up a chunk of " + chunk.size() + " sessions", re);
+						}
+					}
+				});
+			}
+			executor.shutdown();
+			if(!executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+				log.warn("Warming up the local session tier timed out after " + timeoutMillis + "ms");
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		log.info(
+			"Warmed up the local session tier with " + warmedSessions.get() + " sessions (" + warmedBytes.get() + " bytes) in " +
+			(System.currentTimeMillis() - start) + "ms"
+		);
+	}
+
+	private void warmChunk(final List<String> chunk, final AtomicBoolean exhausted) {
+		final InMemoryPersister memory = localPersister instanceof InMemoryPersister ? (InMemoryPersister)localPersister : null;
+		final long stamp = memory == null ? 0L : memory.startLoad();
+		try {
+			warmChunk(chunk, exhausted, memory, stamp);
+		} finally {
+			if(memory != null) memory.endLoad();
+		}
+	}
+
+	private void warmChunk(final List<String> chunk, final AtomicBoolean exhausted, final InMemoryPersister memory, final long stamp) {
+		final Map<String,SessionData> found = jdbcPersister.getSessionData(chunk);
+		// Sessions which requests have already brought into the local tier are more recent than these
+		found.keySet().removeAll(localPersister.getSessionData(found.keySet()).keySet());
+
+		final Collection<SessionData> toWarm = new ArrayList<SessionData>(found.size());
+		for(String sessionId : chunk) {
+			final SessionData session = found.get(sessionId);
+			if(session == null) continue;
+			final int size = Math.max(0, SerializationBuffers.sizeHint(sessionId));
+			if(maxBytes > 0 && warmedBytes.addAndGet(size) > maxBytes) {
+				warmedBytes.addAndGet(-size);
+				exhausted.set(true);
+				break;
+			}
+			toWarm.add(session);
+		}
+		if(memory != null) {
+			// Nothing to write back, and requests may have brought the sessions in (or invalidated them) since the check
+			warmedSessions.addAndGet(memory.cacheSessionsIfAbsent(toWarm, stamp));
+		} else {
+			localPersister.persistSessions(toWarm);
+			warmedSessions.addAndGet(toWarm.size());
+		}
+	}
+
+}
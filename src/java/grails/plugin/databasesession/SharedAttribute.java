@@ -0,0 +1,52 @@
+package grails.plugin.databasesession;
+
+import java.io.Serializable;
+
+/**
+ * A reference to a large attribute value which {@link JdbcPersister} has written once to its shared value table,
+ * keyed by the SHA-256 digest of its serialized form, so that sessions holding equal values share one copy. The
+ * value is loaded the first time it is read, usually from the persister's cache of shared values.
+ *
+ * @author Robert Fischer
+ */
+public class SharedAttribute extends DeferredAttribute {
+
+	private static final long serialVersionUID = 1;
+
+	public final String digest;
+
+	private transient volatile JdbcPersister persister;
+
+	public SharedAttribute(final String digest, final Serializable value) {
+		super(value);
+		this.digest = digest;
+	}
+
+	/**
+	* Assigns the persister to load the value from: done by the {@link JdbcPersister} after reading the session.
+	*/
+	void attach(final JdbcPersister persister) {
+		this.persister = persister;
+	}
+
+	/**
+	* The persister the value is loaded from, or {@code null} if it is not attached.
+	*/
+	JdbcPersister getPersister() {
+		return persister;
+	}
+
+	@Override
+	protected Serializable load() {
+		final JdbcPersister p = persister;
+		if(p == null) {
+			throw new IllegalStateException("Shared attribute " + digest + " is not attached to a persister");
+		}
+		return p.loadSharedValue(digest);
+	}
+
+	public String toString() {
+		return "SharedAttribute[" + digest + "]";
+	}
+
+}
@@ -0,0 +1,63 @@
+package grails.plugin.databasesession;
+
+import java.io.Serializable;
+
+/**
+ * A reference to a large attribute which {@link JdbcPersister} has written to its spill table instead of the
+ * session row. The value is loaded from the spill table the first time it is read, from the row under its key (which
+ * each write of the attribute changes).
+ *
+ * @author Robert Fischer
+ */
+public class SpilledAttribute extends DeferredAttribute {
+
+	private static final long serialVersionUID = 1;
+
+	public final String sessionId;
+	public final String name;
+	private final String key; // null if written before spill rows had their own keys
+
+	private transient volatile JdbcPersister persister;
+
+	public SpilledAttribute(final String sessionId, final String name, final String key, final Serializable value) {
+		super(value);
+		this.sessionId = sessionId;
+		this.name = name;
+		this.key = key;
+	}
+
+	/**
+	* The {@code attributeName} of the spill row holding the value.
+	*/
+	public String getKey() {
+		return key == null ? name : key;
+	}
+
+	/**
+	* Assigns the persister to load the value from: done by the {@link JdbcPersister} after reading the session.
+	*/
+	void attach(final JdbcPersister persister) {
+		this.persister = persister;
+	}
+
+	/**
+	* The persister the value is loaded from, or {@code null} if it is not attached.
+	*/
+	JdbcPersister getPersister() {
+		return persister;
+	}
+
+	@Override
+	protected Serializable load() {
+		final JdbcPersister p = persister;
+		if(p == null) {
+			throw new IllegalStateException("Spilled attribute " + name + " of session " + sessionId + " is not attached to a persister");
+		}
+		return p.loadSpilledAttribute(sessionId, name, getKey());
+	}
+
+	public String toString() {
+		return "SpilledAttribute[" + sessionId + ":" + name + "]";
+	}
+
+}
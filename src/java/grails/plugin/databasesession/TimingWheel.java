@@ -0,0 +1,113 @@
+package grails.plugin.databasesession;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A hashed timing wheel of keys and their deadlines. Scheduling a key again supersedes its previous deadline,
+ * so that the wheel never has to search its slots. Deadlines further out than one turn of the wheel stay in
+ * their slot until the turn they are due.
+ *
+ * @author Robert Fischer
+ */
+final class TimingWheel {
+
+	private static final class Entry {
+		final String key;
+		final long deadline;
+		Entry(final String key, final long deadline) {
+			this.key = key;
+			this.deadline = deadline;
+		}
+	}
+
+	private final long tickMillis;
+	private final ConcurrentLinkedQueue<Entry>[] slots;
+	private final ConcurrentMap<String,Long> deadlines = new ConcurrentHashMap<String,Long>();
+	private final ReentrantLock advanceLock = new ReentrantLock();
+	private volatile long lastTick;
+
+	@SuppressWarnings("unchecked")
+	TimingWheel(final long tickMillis, final int wheelSize) {
+		if(tickMillis <= 0) throw new IllegalArgumentException("The tick must be positive: " + tickMillis);
+		if(wheelSize <= 0) throw new IllegalArgumentException("The wheel size must be positive: " + wheelSize);
+		this.tickMillis = tickMillis;
+		this.slots = new ConcurrentLinkedQueue[wheelSize];
+		for(int i = 0; i < wheelSize; i++) {
+			slots[i] = new ConcurrentLinkedQueue<Entry>();
+		}
+		this.lastTick = System.currentTimeMillis() / tickMillis;
+	}
+
+	private ConcurrentLinkedQueue<Entry> slotFor(final long tick) {
+		return slots[(int)(tick % slots.length)];
+	}
+
+	/**
+	* Schedules the key to expire at the given time (in epoch millis), replacing any earlier schedule. The key goes
+	* into the slot of the first tick which starts at or after its deadline, so that it has expired once the wheel
+	* turns to it, rather than waiting for the next turn.
+	*/
+	void schedule(final String key, final long deadline) {
+		deadlines.put(key, deadline);
+		final long tick = deadline / tickMillis + (deadline % tickMillis > 0 ? 1 : 0);
+		slotFor(Math.max(tick, lastTick + 1)).add(new Entry(key, deadline));
+	}
+
+	/**
+	* Removes the key from the wheel.
+	*/
+	void cancel(final String key) {
+		deadlines.remove(key);
+	}
+
+	/**
+	* Whether the key has a deadline at or before the given time.
+	*/
+	boolean isExpired(final String key, final long now) {
+		final Long deadline = deadlines.get(key);
+		return deadline != null && deadline.longValue() <= now;
+	}
+
+	int size() {
+		return deadlines.size();
+	}
+
+	/**
+	* Turns the wheel up to the given time, and returns the keys which have expired (and were not rescheduled).
+	* Returns an empty list if another thread is turning the wheel already.
+	*/
+	List<String> advance(final long now) {
+		if(!advanceLock.tryLock()) return new ArrayList<String>(0);
+		try {
+			final List<String> expired = new ArrayList<String>();
+			final long nowTick = now / tickMillis;
+			final long fromTick = Math.max(lastTick + 1, nowTick - slots.length + 1);
+			for(long tick = fromTick; tick <= nowTick; tick++) {
+				final ConcurrentLinkedQueue<Entry> slot = slotFor(tick);
+				final List<Entry> pending = new ArrayList<Entry>();
+				Entry entry;
+				while((entry = slot.poll()) != null) {
+					final Long current = deadlines.get(entry.key);
+					if(current == null || current.longValue() != entry.deadline) continue; // Superseded
+					if(entry.deadline <= now) {
+						if(deadlines.remove(entry.key, current)) expired.add(entry.key);
+					} else {
+						pending.add(entry); // Due on a later turn of the wheel
+					}
+				}
+				slot.addAll(pending);
+			}
+			lastTick = Math.max(lastTick, nowTick);
+			return expired;
+		} finally {
+			advanceLock.unlock();
+		}
+	}
+
+}
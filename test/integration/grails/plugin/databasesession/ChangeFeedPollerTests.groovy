@@ -0,0 +1,170 @@
+package grails.plugin.databasesession
+
+import org.apache.commons.dbcp.BasicDataSource
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.jdbc.datasource.DataSourceTransactionManager
+import org.springframework.transaction.support.TransactionTemplate
+
+/**
+ * Runs two nodes against one embedded H2 database with the change feed enabled, and checks that {@link ChangeFeedPoller}
+ * evicts the sessions the other node changed or invalidated from the local tier, and leaves those of its own node alone.
+ */
+class ChangeFeedPollerTests extends GroovyTestCase {
+
+	private BasicDataSource dataSource
+	private InMemoryPersister memory
+	private JdbcPersister jdbc
+	private ChainPersister chain
+	private JdbcPersister otherNode
+	private ChangeFeedPoller poller
+
+	protected void setUp() {
+		super.setUp()
+		dataSource = new BasicDataSource(
+			driverClassName: 'org.h2.Driver',
+			url: "jdbc:h2:mem:changeFeed${System.nanoTime()};DB_CLOSE_DELAY=-1",
+			username: 'sa',
+			password: ''
+		)
+		memory = new InMemoryPersister()
+		memory.afterPropertiesSet()
+		jdbc = newNode('this-node', memory)
+		chain = new ChainPersister(persisters: [memory, jdbc])
+		chain.afterPropertiesSet()
+		otherNode = newNode('other-node', null)
+
+		// Polled by hand below
+		poller = new ChangeFeedPoller(jdbcPersister: jdbc, localPersister: memory, pollIntervalMillis: 3600000L)
+	}
+
+	protected void tearDown() {
+		poller?.destroy()
+		chain?.destroy()
+		memory?.destroy()
+		dataSource?.close()
+		super.tearDown()
+	}
+
+	private JdbcPersister newNode(String nodeId, Persister local) {
+		def transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource))
+		transactionTemplate.propagationBehaviorName = 'PROPAGATION_NEVER'
+		def node = new JdbcPersister(
+			jdbcTemplate: new JdbcTemplate(dataSource),
+			transactionTemplate: transactionTemplate,
+			localPersister: local,
+			changeFeedEnabled: true,
+			nodeId: nodeId
+		)
+		node.afterPropertiesSet()
+		node
+	}
+
+	private static SessionData session(String sessionId, Map attrs) {
+		def now = System.currentTimeMillis()
+		new SessionData(sessionId, attrs, now, now, 1800)
+	}
+
+	void testEvictsSessionsChangedByOtherNodes() {
+		chain.persistSession(session('changed', [value: 'mine']))
+		poller.afterPropertiesSet()
+		assertNotNull memory.getSessionData('changed')
+
+		otherNode.persistSession(session('changed', [value: 'theirs']))
+		assertEquals 'mine', chain.getSessionData('changed').attrs.value // Stale until the poll
+		poller.poll()
+
+		assertNull memory.getSessionData('changed')
+		assertEquals 'theirs', chain.getSessionData('changed').attrs.value
+		assertTrue poller.lastSeen > 0
+	}
+
+	void testEvictsSessionsInvalidatedByOtherNodes() {
+		chain.persistSession(session('invalidated', [value: 'mine']))
+		poller.afterPropertiesSet()
+
+		otherNode.invalidate('invalidated')
+		poller.poll()
+
+		assertNull memory.getSessionData('invalidated')
+		assertNull chain.getSessionData('invalidated')
+	}
+
+	void testKeepsSessionsChangedByThisNode() {
+		poller.afterPropertiesSet()
+		chain.persistSession(session('own', [value: 'mine']))
+		otherNode.persistSession(session('theirs', [value: 'theirs']))
+		poller.poll()
+
+		assertEquals 'mine', memory.getSessionData('own').attrs.value
+		assertEquals 'theirs', chain.getSessionData('theirs').attrs.value
+	}
+
+	void testEvictsBatchesOfChanges() {
+		def sessionIds = (0..<25).collect { "batched${it}".toString() }
+		chain.persistSessions(sessionIds.collect { session(it, [value: 'mine']) })
+		poller.batchSize = 10
+		poller.afterPropertiesSet()
+
+		otherNode.persistSessions(sessionIds.collect { session(it, [value: 'theirs']) })
+		poller.poll()
+
+		assertTrue memory.getSessionData(sessionIds).isEmpty()
+		assertEquals(['theirs'] as Set, chain.getSessionData(sessionIds).values()*.attrs*.value as Set)
+	}
+
+	void testEvictionDuringAWriteBackDoesNotDeleteTheSession() {
+		def writeBack = null
+		def writeBackPoller = null
+		def pollDuringFlush = true
+		// Delivers the change of the other node while this node is writing the session back
+		def target = [
+			persistSessions: { Collection sessions ->
+				if(pollDuringFlush) {
+					pollDuringFlush = false
+					writeBackPoller.poll()
+				}
+				jdbc.persistSessions(sessions)
+			},
+			invalidateAll: { Collection sessionIds -> jdbc.invalidateAll(sessionIds) }
+		] as Persister
+		try {
+			writeBack = new InMemoryPersister(writeBackTarget: target, maxUnflushedMillis: 3600000L)
+			writeBack.afterPropertiesSet()
+			writeBackPoller = new ChangeFeedPoller(jdbcPersister: jdbc, localPersister: writeBack, pollIntervalMillis: 3600000L)
+			writeBackPoller.afterPropertiesSet()
+
+			writeBack.persistSession(session('written', [value: 'mine']))
+			otherNode.persistSession(session('written', [value: 'theirs']))
+			writeBack.checkpoint()
+
+			assertFalse pollDuringFlush
+			assertEquals 'mine', jdbc.getSessionData('written')?.attrs?.value // Written last, and not deleted
+			assertNull writeBack.getSessionData('written')
+			assertEquals 1L, writeBack.flushedCount
+		} finally {
+			writeBackPoller?.destroy()
+			writeBack?.destroy()
+		}
+	}
+
+	void testEvictionWritesBackUnflushedChangesFirst() {
+		def writeBack = new InMemoryPersister(writeBackTarget: jdbc, maxUnflushedMillis: 3600000L)
+		def writeBackPoller = new ChangeFeedPoller(jdbcPersister: jdbc, localPersister: writeBack, pollIntervalMillis: 3600000L)
+		try {
+			writeBack.afterPropertiesSet()
+			writeBackPoller.afterPropertiesSet()
+
+			writeBack.persistSession(session('unflushed', [value: 'mine', other: 'kept']))
+			otherNode.persistSession(session('unflushed', [value: 'theirs']))
+			writeBackPoller.poll()
+
+			assertEquals 0, writeBack.unflushedCount
+			assertNull writeBack.getSessionData('unflushed')
+			assertEquals 'kept', jdbc.getSessionData('unflushed')?.attrs?.other
+		} finally {
+			writeBackPoller.destroy()
+			writeBack.destroy()
+		}
+	}
+
+}
@@ -0,0 +1,130 @@
+package grails.plugin.databasesession
+
+import org.apache.commons.dbcp.BasicDataSource
+import org.springframework.jdbc.core.BatchPreparedStatementSetter
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.jdbc.datasource.DataSourceTransactionManager
+import org.springframework.transaction.support.TransactionTemplate
+
+/**
+ * Checks the bulk operations of {@link JdbcPersister}: that batches larger than {@code batchSize} are split into
+ * several {@code IN (...)} queries and batched statements, that a batch mixing stored and new sessions updates the one
+ * and inserts the other, and that a batched insert which finds a session stored meanwhile falls back to writing the
+ * sessions one at a time.
+ */
+class JdbcPersisterBulkTests extends GroovyTestCase {
+
+	private BasicDataSource dataSource
+	private TransactionTemplate transactionTemplate
+	private JdbcTemplate jdbcTemplate
+	private List<String> statements
+	private Closure beforeBatchInsert
+	private JdbcPersister jdbc
+
+	protected void setUp() {
+		super.setUp()
+		dataSource = new BasicDataSource(
+			driverClassName: 'org.h2.Driver',
+			url: "jdbc:h2:mem:bulk${System.nanoTime()};DB_CLOSE_DELAY=-1",
+			username: 'sa',
+			password: ''
+		)
+		statements = []
+		beforeBatchInsert = null
+		def test = this
+		jdbcTemplate = new JdbcTemplate(dataSource) {
+			int[] batchUpdate(String sql, BatchPreparedStatementSetter setter) {
+				test.statements << sql.split(' ')[0] + ' batch of ' + setter.batchSize
+				if(test.beforeBatchInsert && sql.startsWith('INSERT INTO ' + test.jdbc.tableName + ' ')) {
+					def action = test.beforeBatchInsert
+					test.beforeBatchInsert = null
+					action()
+				}
+				super.batchUpdate(sql, setter)
+			}
+		}
+		transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource))
+		transactionTemplate.propagationBehaviorName = 'PROPAGATION_NEVER'
+		jdbc = new JdbcPersister(jdbcTemplate: jdbcTemplate, transactionTemplate: transactionTemplate, batchSize: 2)
+		jdbc.afterPropertiesSet()
+	}
+
+	protected void tearDown() {
+		jdbc?.destroy()
+		dataSource?.close()
+		super.tearDown()
+	}
+
+	private static SessionData session(String sessionId, String value = sessionId) {
+		def now = System.currentTimeMillis()
+		new SessionData(sessionId, [value: value], now, now, 1800)
+	}
+
+	private static List<String> ids(int count) {
+		(1..count).collect { "s${it}".toString() }
+	}
+
+	private int count() {
+		jdbcTemplate.queryForInt("SELECT COUNT(*) FROM " + jdbc.tableName)
+	}
+
+	void testBatchesAreSplitByTheBatchSize() {
+		jdbc.persistSessions(ids(5).collect { session(it) })
+
+		assertEquals 5, count()
+		assertEquals(['UPDATE batch of 2', 'INSERT batch of 2'] * 2 + ['UPDATE batch of 1', 'INSERT batch of 1'], statements)
+
+		def found = jdbc.getSessionData(ids(5) + ['missing'])
+		assertEquals ids(5) as Set, found.keySet()
+		ids(5).each { assertEquals it, found[it].attrs.value }
+
+		jdbc.invalidateAll(ids(3))
+		assertEquals 2, count()
+		assertEquals(['s4', 's5'] as Set, jdbc.getSessionData(ids(5)).keySet())
+	}
+
+	void testStoredSessionsAreUpdatedAndNewOnesInserted() {
+		jdbc.persistSession(session('s1'))
+		statements.clear()
+
+		jdbc.persistSessions([session('s1', 'changed'), session('s2')])
+
+		assertEquals(['UPDATE batch of 2', 'INSERT batch of 1'], statements)
+		assertEquals 'changed', jdbc.getSessionData('s1').attrs.value
+		assertEquals 's2', jdbc.getSessionData('s2').attrs.value
+		assertEquals 2, count()
+	}
+
+	void testAnInsertFindingAStoredSessionFallsBackToSingleWrites() {
+		def other = new JdbcPersister(jdbcTemplate: new JdbcTemplate(dataSource), transactionTemplate: transactionTemplate)
+		other.afterPropertiesSet()
+		try {
+			// Another node stores one of the sessions between the batched update and the batched insert
+			beforeBatchInsert = { other.persistSession(session('s2', 'other')) }
+
+			jdbc.persistSessions([session('s1'), session('s2')])
+
+			assertEquals 2, count()
+			assertEquals 's1', jdbc.getSessionData('s1').attrs.value
+			assertEquals 's2', jdbc.getSessionData('s2').attrs.value
+		} finally {
+			other.destroy()
+		}
+	}
+
+	void testNullsAndEmptyBatchesAreSkipped() {
+		jdbc.persistSessions([])
+		jdbc.persistSessions(null)
+		jdbc.persistSessions([null, session('s1')])
+		assertEquals 1, count()
+
+		assertEquals([:], jdbc.getSessionData([]))
+		jdbc.invalidateAll([])
+		assertEquals 1, count()
+	}
+
+	void testTheBatchSizeIsChecked() {
+		shouldFail(IllegalArgumentException) { jdbc.batchSize = 0 }
+	}
+
+}
@@ -0,0 +1,123 @@
+package grails.plugin.databasesession
+
+import org.apache.commons.dbcp.BasicDataSource
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.jdbc.datasource.DataSourceTransactionManager
+import org.springframework.transaction.support.TransactionTemplate
+
+/**
+ * Checks that {@link JdbcPersister} with {@code hex} keys keeps the sessions whose ids do not fit (such as Tomcat ids
+ * with a {@code .jvmRoute} suffix) in its key fallback table, and that {@link JdbcPersister#migrateKeys(String, String)}
+ * copies a table with string keys into both.
+ */
+class JdbcPersisterKeyTests extends GroovyTestCase {
+
+	private static final String FITTING = '0123456789ABCDEF0123456789ABCDEF'
+	private static final String UNFIT = 'FEDCBA9876543210FEDCBA9876543210.node1'
+
+	private BasicDataSource dataSource
+	private JdbcTemplate jdbcTemplate
+	private TransactionTemplate transactionTemplate
+	private JdbcPersister jdbc
+
+	protected void setUp() {
+		super.setUp()
+		dataSource = new BasicDataSource(
+			driverClassName: 'org.h2.Driver',
+			url: "jdbc:h2:mem:keys${System.nanoTime()};DB_CLOSE_DELAY=-1",
+			username: 'sa',
+			password: ''
+		)
+		jdbcTemplate = new JdbcTemplate(dataSource)
+		transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource))
+		transactionTemplate.propagationBehaviorName = 'PROPAGATION_NEVER'
+		jdbc = persister('compactSessions', 'hex')
+	}
+
+	protected void tearDown() {
+		jdbc?.destroy()
+		dataSource?.close()
+		super.tearDown()
+	}
+
+	private JdbcPersister persister(String tableName, String keyFormat) {
+		def persister = new JdbcPersister(
+			jdbcTemplate: jdbcTemplate,
+			transactionTemplate: transactionTemplate,
+			tableName: tableName,
+			keyFormat: keyFormat
+		)
+		persister.afterPropertiesSet()
+		persister
+	}
+
+	private static SessionData session(String sessionId, String value = sessionId) {
+		def now = System.currentTimeMillis()
+		new SessionData(sessionId, [value: value], now, now, 1800)
+	}
+
+	private int count(String table) {
+		jdbcTemplate.queryForInt("SELECT COUNT(*) FROM " + table)
+	}
+
+	void testUnfitIdsAreKeptInTheFallbackTable() {
+		assertEquals 'compactSessionsStringKeys', jdbc.keyFallbackTableName
+		jdbc.persistSession(session(FITTING))
+		jdbc.persistSession(session(UNFIT))
+
+		assertEquals 1, count('compactSessions')
+		assertEquals 1, count(jdbc.keyFallbackTableName)
+		assertEquals UNFIT, jdbc.getSessionData(UNFIT).attrs.value
+		assertEquals FITTING, jdbc.getSessionData(FITTING).attrs.value
+		assertTrue jdbc.isValid(UNFIT)
+
+		jdbc.persistSession(session(UNFIT, 'changed'))
+		assertEquals 'changed', jdbc.getSessionData(UNFIT).attrs.value
+
+		jdbc.invalidate(UNFIT)
+		assertNull jdbc.getSessionData(UNFIT)
+		assertFalse jdbc.isValid(UNFIT)
+		assertEquals 0, count(jdbc.keyFallbackTableName)
+	}
+
+	void testBatchesAreSplitBetweenTheTables() {
+		jdbc.persistSessions([session(FITTING), session(UNFIT)])
+
+		assertEquals([FITTING, UNFIT] as Set, jdbc.getSessionData([FITTING, UNFIT, 'missing']).keySet())
+
+		jdbc.invalidateAll([FITTING, UNFIT])
+		assertEquals 0, count('compactSessions')
+		assertEquals 0, count(jdbc.keyFallbackTableName)
+	}
+
+	void testStringKeysNeedNoFallback() {
+		def strings = persister('stringSessions', 'string')
+		strings.persistSession(session(UNFIT))
+
+		assertEquals 1, count('stringSessions')
+		assertEquals 0, jdbcTemplate.queryForInt(
+			"SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE UPPER(TABLE_NAME) = 'STRINGSESSIONSSTRINGKEYS'"
+		)
+	}
+
+	void testMigrationConvertsTheKeysAndKeepsUnfitIds() {
+		def old = persister('oldSessions', 'string')
+		old.persistSessions([session(FITTING), session(UNFIT)])
+
+		assertEquals 2, jdbc.migrateKeys('oldSessions', null)
+		assertEquals 1, count('compactSessions')
+		assertEquals 1, count(jdbc.keyFallbackTableName)
+		assertEquals FITTING, jdbc.getSessionData(FITTING).attrs.value
+		assertEquals UNFIT, jdbc.getSessionData(UNFIT).attrs.value
+
+		// Sessions which are there already are skipped, so the migration can run again
+		assertEquals 0, jdbc.migrateKeys('oldSessions', null)
+		assertEquals 1, count('compactSessions')
+	}
+
+	void testMigrationRefusesItsOwnTable() {
+		shouldFail(IllegalArgumentException) { jdbc.migrateKeys('compactSessions', null) }
+		shouldFail(IllegalArgumentException) { jdbc.migrateKeys(null, null) }
+	}
+
+}
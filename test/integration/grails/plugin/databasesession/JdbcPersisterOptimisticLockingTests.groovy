@@ -0,0 +1,197 @@
+package grails.plugin.databasesession
+
+import java.sql.Statement
+
+import org.apache.commons.dbcp.BasicDataSource
+import org.springframework.dao.OptimisticLockingFailureException
+import org.springframework.jdbc.core.BatchPreparedStatementSetter
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.jdbc.datasource.DataSourceTransactionManager
+import org.springframework.transaction.support.TransactionTemplate
+
+/**
+ * Checks the compare-and-set writes of {@link JdbcPersister}: that concurrent changes are merged, one session at a time
+ * and in batches (also when the driver does not report the batched update counts), and that a conflict which cannot be
+ * merged keeps the stored session.
+ */
+class JdbcPersisterOptimisticLockingTests extends GroovyTestCase {
+
+	private BasicDataSource dataSource
+	private JdbcTemplate jdbcTemplate
+	private JdbcPersister jdbc
+	private boolean reportCounts
+
+	protected void setUp() {
+		super.setUp()
+		dataSource = new BasicDataSource(
+			driverClassName: 'org.h2.Driver',
+			url: "jdbc:h2:mem:locking${System.nanoTime()};DB_CLOSE_DELAY=-1",
+			username: 'sa',
+			password: ''
+		)
+		reportCounts = true
+		jdbcTemplate = new JdbcTemplate(dataSource) {
+			int[] batchUpdate(String sql, BatchPreparedStatementSetter setter) {
+				def counts = super.batchUpdate(sql, setter)
+				reportCounts ? counts : counts.collect { Statement.SUCCESS_NO_INFO } as int[]
+			}
+		}
+		def transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource))
+		transactionTemplate.propagationBehaviorName = 'PROPAGATION_NEVER'
+		jdbc = new JdbcPersister(
+			jdbcTemplate: jdbcTemplate,
+			transactionTemplate: transactionTemplate,
+			optimisticLocking: true
+		)
+		jdbc.afterPropertiesSet()
+	}
+
+	protected void tearDown() {
+		jdbc?.destroy()
+		dataSource?.close()
+		super.tearDown()
+	}
+
+	/**
+	* The session as a request which read the stored one would write it, with its changes applied.
+	*/
+	private static SessionData changed(SessionData read, Map changes) {
+		def attrs = new HashMap(read.attrs)
+		changes.each { name, value -> value == null ? attrs.remove(name) : attrs.put(name, value) }
+		def hashes = read.attrs.collectEntries { name, value -> [name, value.hashCode()] }
+		new SessionData(
+			read.sessionId, attrs, read.createdAt, System.currentTimeMillis(), read.maxInactiveInterval,
+			read.version + 1, hashes, [:]
+		)
+	}
+
+	/**
+	* A new session as a request would write it, without having read a stored one.
+	*/
+	private static SessionData created(String sessionId, Map attrs) {
+		def now = System.currentTimeMillis()
+		new SessionData(sessionId, attrs, now, now, 1800, 1L, null, [:])
+	}
+
+	private SessionData stored(String sessionId) {
+		jdbc.getSessionData(sessionId)
+	}
+
+	void testConcurrentChangesToOtherAttributesAreMerged() {
+		jdbc.persistSession(created('s1', [a: 1, b: 1]))
+		def read = stored('s1')
+		assertEquals 1L, read.version
+
+		jdbc.persistSession(changed(read, [a: 2]))
+		jdbc.persistSession(changed(read, [b: 2, c: 3]))
+
+		def result = stored('s1')
+		assertEquals([a: 2, b: 2, c: 3], result.attrs)
+		assertEquals 3L, result.version
+	}
+
+	void testConcurrentRemovalsAreMerged() {
+		jdbc.persistSession(created('s1', [a: 1, b: 1]))
+		def read = stored('s1')
+
+		jdbc.persistSession(changed(read, [a: 2]))
+		jdbc.persistSession(changed(read, [b: null]))
+
+		assertEquals([a: 2], stored('s1').attrs)
+	}
+
+	void testTheLaterWriteWinsTheSameAttribute() {
+		jdbc.persistSession(created('s1', [a: 1]))
+		def read = stored('s1')
+
+		jdbc.persistSession(changed(read, [a: 2]))
+		jdbc.persistSession(changed(read, [a: 3]))
+
+		assertEquals 3, stored('s1').attrs.a
+	}
+
+	void testUnmergeableConflictsKeepTheStoredSession() {
+		def local = new InMemoryPersister()
+		local.afterPropertiesSet()
+		jdbc.localPersister = local
+		jdbc.maxMergeAttempts = 0
+
+		jdbc.persistSession(created('s1', [a: 1]))
+		def read = stored('s1')
+		jdbc.persistSession(changed(read, [a: 2]))
+		local.persistSession(changed(read, [b: 2]))
+
+		shouldFail(OptimisticLockingFailureException) {
+			jdbc.persistSession(changed(read, [b: 2]))
+		}
+		assertEquals([a: 2], stored('s1').attrs)
+		assertEquals 2L, stored('s1').version
+		assertNull 'the local copy with the dropped changes is evicted', local.getSessionData('s1')
+		local.destroy()
+	}
+
+	void testBatchedConflictsAreMerged() {
+		jdbc.persistSession(created('s1', [a: 1]))
+		jdbc.persistSession(created('s2', [a: 1]))
+		def read = stored('s1')
+		jdbc.persistSession(changed(read, [a: 2]))
+
+		jdbc.persistSessions([
+			changed(read, [b: 2]),          // Conflicts with the write above
+			changed(stored('s2'), [a: 2]),  // Does not conflict
+			created('s3', [a: 3])           // Not stored yet
+		])
+
+		assertEquals([a: 2, b: 2], stored('s1').attrs)
+		assertEquals([a: 2], stored('s2').attrs)
+		assertEquals([a: 3], stored('s3').attrs)
+	}
+
+	void testBatchedConflictsOfNewSessionsAreMergedRatherThanInserted() {
+		jdbc.persistSession(created('s1', [a: 1]))
+
+		jdbc.persistSessions([created('s1', [b: 2]), created('s2', [a: 2])])
+
+		assertEquals([a: 1, b: 2], stored('s1').attrs)
+		assertEquals 2L, stored('s1').version
+		assertEquals([a: 2], stored('s2').attrs)
+	}
+
+	void testBatchesWithUnreportedCountsAreCheckedAgainstTheRows() {
+		jdbc.persistSession(created('s1', [a: 1]))
+		jdbc.persistSession(created('s2', [a: 1]))
+		def read = stored('s1')
+		jdbc.persistSession(changed(read, [a: 2]))
+		reportCounts = false
+
+		jdbc.persistSessions([changed(read, [b: 2]), changed(stored('s2'), [a: 2]), created('s3', [a: 3])])
+
+		assertEquals([a: 2, b: 2], stored('s1').attrs)
+		assertEquals 3L, stored('s1').version
+		assertEquals([a: 2], stored('s2').attrs)
+		assertEquals 2L, stored('s2').version
+		assertEquals([a: 3], stored('s3').attrs)
+		assertFalse jdbc.@batchCountsReported
+
+		// From now on the compare-and-set writes go one at a time
+		read = stored('s1')
+		jdbc.persistSession(changed(read, [a: 4]))
+		jdbc.persistSessions([changed(read, [c: 4]), changed(stored('s3'), [a: 4])])
+		assertEquals([a: 4, b: 2, c: 4], stored('s1').attrs)
+		assertEquals([a: 4], stored('s3').attrs)
+	}
+
+	void testBatchedUnmergeableConflictsDoNotStopTheOtherWrites() {
+		jdbc.maxMergeAttempts = 0
+		jdbc.persistSession(created('s1', [a: 1]))
+		def read = stored('s1')
+		jdbc.persistSession(changed(read, [a: 2]))
+
+		shouldFail(OptimisticLockingFailureException) {
+			jdbc.persistSessions([changed(read, [b: 2]), created('s2', [a: 2])])
+		}
+		assertEquals([a: 2], stored('s1').attrs)
+		assertEquals([a: 2], stored('s2').attrs)
+	}
+
+}
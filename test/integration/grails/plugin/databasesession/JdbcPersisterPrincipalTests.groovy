@@ -0,0 +1,161 @@
+package grails.plugin.databasesession
+
+import org.apache.commons.dbcp.BasicDataSource
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.jdbc.datasource.DataSourceTransactionManager
+import org.springframework.transaction.support.TransactionTemplate
+
+/**
+ * Checks that {@link JdbcPersister} indexes each session by its principal as it is written, keeps the index up to date
+ * as the principal changes or goes, finds and invalidates the sessions of a principal (evicting them from the local
+ * tier too), and indexes the sessions written before principals were.
+ */
+class JdbcPersisterPrincipalTests extends GroovyTestCase {
+
+	private BasicDataSource dataSource
+	private JdbcTemplate jdbcTemplate
+	private TransactionTemplate transactionTemplate
+	private InMemoryPersister memory
+	private JdbcPersister jdbc
+	private List<String> principalWrites
+
+	protected void setUp() {
+		super.setUp()
+		dataSource = new BasicDataSource(
+			driverClassName: 'org.h2.Driver',
+			url: "jdbc:h2:mem:principal${System.nanoTime()};DB_CLOSE_DELAY=-1",
+			username: 'sa',
+			password: ''
+		)
+		principalWrites = []
+		def writes = principalWrites
+		jdbcTemplate = new JdbcTemplate(dataSource) {
+			int update(String sql, Object... args) {
+				if(sql.contains('Principals') && !sql.startsWith('CREATE')) writes << sql.split(' ')[0]
+				super.update(sql, args)
+			}
+		}
+		transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource))
+		transactionTemplate.propagationBehaviorName = 'PROPAGATION_NEVER'
+		memory = new InMemoryPersister()
+		memory.afterPropertiesSet()
+		jdbc = persister(new AttributePrincipalExtractor(attributeName: 'user', propertyPath: null))
+	}
+
+	protected void tearDown() {
+		jdbc?.destroy()
+		memory?.destroy()
+		dataSource?.close()
+		super.tearDown()
+	}
+
+	private JdbcPersister persister(PrincipalExtractor extractor) {
+		def persister = new JdbcPersister(
+			jdbcTemplate: jdbcTemplate,
+			transactionTemplate: transactionTemplate,
+			principalExtractor: extractor,
+			localPersister: memory
+		)
+		persister.afterPropertiesSet()
+		persister
+	}
+
+	private static SessionData session(String sessionId, Map attrs, Map<String,Integer> base = null) {
+		def now = System.currentTimeMillis()
+		new SessionData(sessionId, attrs, now, now, 1800, 0L, base)
+	}
+
+	private static Map<String,Integer> hashes(Map attrs) {
+		attrs.collectEntries { name, value -> [(name): value.hashCode()] }
+	}
+
+	private int indexed() {
+		jdbcTemplate.queryForInt("SELECT COUNT(*) FROM " + jdbc.principalTableName)
+	}
+
+	void testSessionsAreFoundByTheirPrincipal() {
+		assertEquals 'grailsSessionDataPrincipals', jdbc.principalTableName
+		jdbc.persistSession(session('s1', [user: 'alice']))
+		jdbc.persistSessions([session('s2', [user: 'alice']), session('s3', [user: 'bob']), session('s4', [other: 1])])
+
+		assertEquals(['s1', 's2'] as Set, jdbc.findSessionIds('alice'))
+		assertEquals(['s3'] as Set, jdbc.findSessionIds('bob'))
+		assertEquals([] as Set, jdbc.findSessionIds('carol'))
+		assertEquals([] as Set, jdbc.findSessionIds(null))
+		assertEquals 3, indexed()
+	}
+
+	void testTheIndexFollowsThePrincipal() {
+		jdbc.persistSession(session('s1', [user: 'alice']))
+		jdbc.persistSession(session('s1', [user: 'bob']))
+		assertEquals([] as Set, jdbc.findSessionIds('alice'))
+		assertEquals(['s1'] as Set, jdbc.findSessionIds('bob'))
+
+		// Logging out drops the session from the index
+		jdbc.persistSession(session('s1', [cart: 1]))
+		assertEquals([] as Set, jdbc.findSessionIds('bob'))
+		assertEquals 0, indexed()
+	}
+
+	void testTheIndexIsOnlyRewrittenWhenThePrincipalAttributeChanges() {
+		jdbc.persistSession(session('s1', [user: 'alice', cart: 1]))
+		principalWrites.clear()
+
+		def read = [user: 'alice', cart: 1]
+		jdbc.persistSession(session('s1', [user: 'alice', cart: 2], hashes(read)))
+		assertEquals([], principalWrites)
+
+		jdbc.persistSession(session('s1', [user: 'bob', cart: 2], hashes([user: 'alice', cart: 2])))
+		assertEquals(['UPDATE'], principalWrites)
+	}
+
+	void testPrincipalsTooLongToIndexAreLeftOut() {
+		jdbc.persistSession(session('s1', [user: 'x' * 256]))
+		assertEquals 0, indexed()
+		assertNotNull jdbc.getSessionData('s1')
+	}
+
+	void testInvalidatingAPrincipalDeletesAndEvictsItsSessions() {
+		jdbc.persistSessions([session('s1', [user: 'alice']), session('s2', [user: 'alice']), session('s3', [user: 'bob'])])
+		memory.cacheSession(session('s1', [user: 'alice']))
+
+		assertEquals(['s1', 's2'] as Set, jdbc.invalidateByPrincipal('alice'))
+
+		assertNull jdbc.getSessionData('s1')
+		assertNull jdbc.getSessionData('s2')
+		assertNull memory.getSessionData('s1')
+		assertNotNull jdbc.getSessionData('s3')
+		assertEquals(['s3'] as Set, jdbc.findSessionIds('bob'))
+		assertEquals 1, indexed()
+	}
+
+	void testInvalidatingASessionDropsItFromTheIndex() {
+		jdbc.persistSessions([session('s1', [user: 'alice']), session('s2', [user: 'alice'])])
+		jdbc.invalidate('s1')
+		assertEquals(['s2'] as Set, jdbc.findSessionIds('alice'))
+		jdbc.invalidateAll(['s2'])
+		assertEquals 0, indexed()
+	}
+
+	void testSessionsWrittenBeforeIndexingAreIndexedOnRequest() {
+		def unindexed = persister(null)
+		try {
+			unindexed.persistSessions([session('s1', [user: 'alice']), session('s2', [user: 'bob']), session('s3', [:])])
+			assertEquals 0, indexed()
+
+			assertEquals 2, jdbc.indexPrincipals()
+			assertEquals(['s1'] as Set, jdbc.findSessionIds('alice'))
+			assertEquals(['s2'] as Set, jdbc.findSessionIds('bob'))
+
+			// Running it again changes nothing
+			assertEquals 2, jdbc.indexPrincipals()
+			assertEquals 2, indexed()
+
+			shouldFail(IllegalStateException) { unindexed.indexPrincipals() }
+			assertEquals([] as Set, unindexed.findSessionIds('alice'))
+		} finally {
+			unindexed.destroy()
+		}
+	}
+
+}
@@ -0,0 +1,74 @@
+package grails.plugin.databasesession
+
+import java.sql.Timestamp
+
+import org.apache.commons.dbcp.BasicDataSource
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.jdbc.datasource.DataSourceTransactionManager
+import org.springframework.transaction.support.TransactionTemplate
+
+/**
+ * Checks that {@link JdbcPersister#getRecentSessionIds(int, long)}, which picks the sessions to warm up, lists the
+ * unexpired sessions accessed since the given time, most recent first and no more than asked for.
+ */
+class JdbcPersisterRecentTests extends GroovyTestCase {
+
+	private BasicDataSource dataSource
+	private JdbcTemplate jdbcTemplate
+	private JdbcPersister jdbc
+	private long now
+
+	protected void setUp() {
+		super.setUp()
+		dataSource = new BasicDataSource(
+			driverClassName: 'org.h2.Driver',
+			url: "jdbc:h2:mem:recent${System.nanoTime()};DB_CLOSE_DELAY=-1",
+			username: 'sa',
+			password: ''
+		)
+		jdbcTemplate = new JdbcTemplate(dataSource)
+		def transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource))
+		transactionTemplate.propagationBehaviorName = 'PROPAGATION_NEVER'
+		jdbc = new JdbcPersister(jdbcTemplate: jdbcTemplate, transactionTemplate: transactionTemplate)
+		jdbc.afterPropertiesSet()
+		now = System.currentTimeMillis()
+	}
+
+	protected void tearDown() {
+		jdbc?.destroy()
+		dataSource?.close()
+		super.tearDown()
+	}
+
+	private void store(String sessionId, long minutesAgo, int maxInactiveInterval = 1800) {
+		def accessed = now - minutesAgo * 60000L
+		jdbc.persistSession(new SessionData(sessionId, [value: sessionId], accessed, accessed, maxInactiveInterval))
+		jdbcTemplate.update(
+			"UPDATE " + jdbc.tableName + " SET lastAccessedAt = ? WHERE sessionId = ?", new Timestamp(accessed), sessionId
+		)
+	}
+
+	void testListsTheMostRecentFirst() {
+		store('older', 20)
+		store('newest', 1)
+		store('newer', 10)
+
+		assertEquals(['newest', 'newer', 'older'], jdbc.getRecentSessionIds(10, now - 3600000L))
+		assertEquals(['newest', 'newer'], jdbc.getRecentSessionIds(2, now - 3600000L))
+	}
+
+	void testLeavesOutSessionsAccessedBeforeTheGivenTime() {
+		store('recent', 5)
+		store('old', 90, 7200)
+
+		assertEquals(['recent'], jdbc.getRecentSessionIds(10, now - 3600000L))
+	}
+
+	void testLeavesOutExpiredSessions() {
+		store('live', 5)
+		store('expired', 5, 60)
+
+		assertEquals(['live'], jdbc.getRecentSessionIds(10, now - 3600000L))
+	}
+
+}
@@ -0,0 +1,153 @@
+package grails.plugin.databasesession
+
+import org.apache.commons.dbcp.BasicDataSource
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.jdbc.datasource.DataSourceTransactionManager
+import org.springframework.transaction.support.TransactionTemplate
+
+/**
+ * Checks that {@link JdbcPersister} writes equal large values once to the shared value table, that each session loads
+ * a copy of its own, and that the clean-up only removes the values no session refers to.
+ */
+class JdbcPersisterSharingTests extends GroovyTestCase {
+
+	private BasicDataSource dataSource
+	private JdbcTemplate jdbcTemplate
+	private JdbcPersister jdbc
+
+	protected void setUp() {
+		super.setUp()
+		dataSource = new BasicDataSource(
+			driverClassName: 'org.h2.Driver',
+			url: "jdbc:h2:mem:sharing${System.nanoTime()};DB_CLOSE_DELAY=-1",
+			username: 'sa',
+			password: ''
+		)
+		jdbcTemplate = new JdbcTemplate(dataSource)
+		def transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource))
+		transactionTemplate.propagationBehaviorName = 'PROPAGATION_NEVER'
+		jdbc = new JdbcPersister(
+			jdbcTemplate: jdbcTemplate,
+			transactionTemplate: transactionTemplate,
+			sharedThreshold: 256
+		)
+		jdbc.afterPropertiesSet()
+	}
+
+	protected void tearDown() {
+		jdbc?.destroy()
+		dataSource?.close()
+		super.tearDown()
+	}
+
+	private static ArrayList<String> largeValue(String prefix) {
+		(0..<100).collect { "${prefix}-${it}".toString() } as ArrayList
+	}
+
+	private static SessionData session(String sessionId, Map attrs) {
+		def now = System.currentTimeMillis()
+		new SessionData(sessionId, attrs, now, now, 1800)
+	}
+
+	private int count(String table) {
+		jdbcTemplate.queryForInt("SELECT COUNT(*) FROM " + table)
+	}
+
+	private String digestOf(String sessionId, String name) {
+		jdbcTemplate.queryForObject(
+			"SELECT digest FROM " + jdbc.sharedRefTableName + " WHERE sessionId = ? AND attributeName = ?",
+			String, sessionId, name
+		)
+	}
+
+	void testEqualValuesAreStoredOnce() {
+		jdbc.persistSession(session('s1', [roles: largeValue('role'), name: 'one']))
+		jdbc.persistSession(session('s2', [roles: largeValue('role'), name: 'two']))
+
+		assertEquals 1, count(jdbc.sharedTableName)
+		assertEquals 2, count(jdbc.sharedRefTableName)
+		assertEquals digestOf('s1', 'roles'), digestOf('s2', 'roles')
+
+		def stored = jdbc.getSessionData('s1')
+		assertTrue stored.attrs.roles instanceof SharedAttribute
+		assertEquals largeValue('role'), stored.attrs.roles.value
+		assertEquals 'one', stored.attrs.name // Small values stay in the session row
+	}
+
+	void testEachSessionLoadsACopyOfItsOwn() {
+		jdbc.persistSession(session('s1', [roles: largeValue('role')]))
+		jdbc.persistSession(session('s2', [roles: largeValue('role')]))
+
+		def first = jdbc.getSessionData('s1').attrs.roles.value
+		first << 'changed in place'
+		def second = jdbc.getSessionData('s2').attrs.roles.value
+
+		assertNotSame first, second
+		assertEquals largeValue('role'), second
+		assertEquals largeValue('role'), jdbc.getSessionData('s1').attrs.roles.value
+	}
+
+	void testChangedValuesAreSharedUnderTheirNewDigest() {
+		jdbc.persistSession(session('s1', [roles: largeValue('role')]))
+		jdbc.persistSession(session('s2', [roles: largeValue('role')]))
+		def before = digestOf('s1', 'roles')
+
+		jdbc.persistSession(session('s1', [roles: largeValue('admin')]))
+
+		assertEquals 2, count(jdbc.sharedTableName)
+		assertFalse before == digestOf('s1', 'roles')
+		assertEquals before, digestOf('s2', 'roles')
+		assertEquals largeValue('admin'), jdbc.getSessionData('s1').attrs.roles.value
+	}
+
+	void testValuesWhichAreNoLongerLargeDropTheirReference() {
+		jdbc.persistSession(session('s1', [roles: largeValue('role')]))
+		jdbc.persistSession(session('s1', [roles: ['small'] as ArrayList]))
+
+		assertEquals 0, count(jdbc.sharedRefTableName)
+		assertEquals(['small'], jdbc.getSessionData('s1').attrs.roles)
+	}
+
+	void testCleanUpRemovesOnlyUnreferencedValues() {
+		jdbc.sharedGraceSeconds = 0
+		jdbc.persistSession(session('s1', [roles: largeValue('role')]))
+		jdbc.persistSession(session('s2', [roles: largeValue('role')]))
+		Thread.sleep(10)
+
+		jdbc.invalidate('s1')
+		jdbc.cleanUp()
+		assertEquals 1, count(jdbc.sharedTableName)
+		assertEquals largeValue('role'), jdbc.getSessionData('s2').attrs.roles.value
+
+		jdbc.invalidate('s2')
+		jdbc.cleanUp()
+		assertEquals 0, count(jdbc.sharedTableName)
+		assertEquals 0, count(jdbc.sharedRefTableName)
+	}
+
+	void testCleanUpKeepsUnreferencedValuesWithinTheGracePeriod() {
+		jdbc.persistSession(session('s1', [roles: largeValue('role')]))
+		jdbc.invalidate('s1')
+		jdbc.cleanUp()
+
+		assertEquals 1, count(jdbc.sharedTableName)
+		assertEquals 0, count(jdbc.sharedRefTableName)
+	}
+
+	void testCleanUpDropsTheReferencesOfExpiredSessions() {
+		jdbc.sharedGraceSeconds = 0
+		def longAgo = System.currentTimeMillis() - 7200000L
+		jdbc.persistSession(new SessionData('expired', [roles: largeValue('role')], longAgo, longAgo, 60))
+		jdbcTemplate.update(
+			"UPDATE " + jdbc.tableName + " SET lastAccessedAt = ? WHERE sessionId = ?", new java.sql.Timestamp(longAgo), 'expired'
+		)
+		Thread.sleep(10)
+
+		jdbc.cleanUp()
+
+		assertNull jdbc.getSessionData('expired')
+		assertEquals 0, count(jdbc.sharedRefTableName)
+		assertEquals 0, count(jdbc.sharedTableName)
+	}
+
+}
@@ -0,0 +1,121 @@
+package grails.plugin.databasesession
+
+import java.util.concurrent.atomic.AtomicInteger
+
+import org.apache.commons.dbcp.BasicDataSource
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.jdbc.datasource.DataSourceTransactionManager
+import org.springframework.transaction.support.TransactionTemplate
+
+/**
+ * Checks that {@link JdbcPersister} serializes each large attribute once per write, and drops the spill rows a write
+ * replaces whether or not it knows them from an earlier read or write.
+ */
+class JdbcPersisterSpillTests extends GroovyTestCase {
+
+	private BasicDataSource dataSource
+	private JdbcTemplate jdbcTemplate
+	private JdbcPersister jdbc
+
+	protected void setUp() {
+		super.setUp()
+		dataSource = new BasicDataSource(
+			driverClassName: 'org.h2.Driver',
+			url: "jdbc:h2:mem:spill${System.nanoTime()};DB_CLOSE_DELAY=-1",
+			username: 'sa',
+			password: ''
+		)
+		jdbcTemplate = new JdbcTemplate(dataSource)
+		def transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource))
+		transactionTemplate.propagationBehaviorName = 'PROPAGATION_NEVER'
+		jdbc = new JdbcPersister(
+			jdbcTemplate: jdbcTemplate,
+			transactionTemplate: transactionTemplate,
+			spillThreshold: 256
+		)
+		jdbc.afterPropertiesSet()
+		CountedValue.writes.set(0)
+	}
+
+	protected void tearDown() {
+		jdbc?.destroy()
+		dataSource?.close()
+		super.tearDown()
+	}
+
+	private static SessionData session(String sessionId, Map attrs) {
+		def now = System.currentTimeMillis()
+		new SessionData(sessionId, attrs, now, now, 1800)
+	}
+
+	private List<String> spillKeys(String sessionId) {
+		jdbcTemplate.queryForList(
+			"SELECT attributeName FROM " + jdbc.spillTableName + " WHERE sessionId = ?", String, sessionId
+		)
+	}
+
+	void testLargeAttributesAreSerializedOncePerWrite() {
+		jdbc.persistSession(session('s1', [big: new CountedValue('first'), name: 'one']))
+		CountedValue.writes.set(0)
+
+		jdbc.persistSession(session('s1', [big: new CountedValue('second'), name: 'one']))
+		assertEquals 1, CountedValue.writes.get()
+
+		jdbc.persistSessions([session('s1', [big: new CountedValue('third'), name: 'one'])])
+		assertEquals 2, CountedValue.writes.get()
+		assertEquals 'third', jdbc.getSessionData('s1').attrs.big.value.label
+	}
+
+	void testUnchangedSpilledAttributesAreNotWrittenAgain() {
+		jdbc.persistSession(session('s1', [big: new CountedValue('first')]))
+		def read = jdbc.getSessionData('s1')
+		assertTrue read.attrs.big instanceof SpilledAttribute
+		def keys = spillKeys('s1')
+		CountedValue.writes.set(0)
+
+		jdbc.persistSession(new SessionData('s1', read.attrs + [name: 'one'], read.createdAt, System.currentTimeMillis(), 1800))
+		assertEquals 0, CountedValue.writes.get()
+		assertEquals keys, spillKeys('s1')
+		assertEquals 'first', jdbc.getSessionData('s1').attrs.big.value.label
+	}
+
+	void testReplacedSpillRowsAreDropped() {
+		jdbc.persistSession(session('s1', [big: new CountedValue('first')]))
+		jdbc.persistSession(session('s1', [big: new CountedValue('second')]))
+		assertEquals 1, spillKeys('s1').size()
+
+		jdbc.persistSession(session('s1', [name: 'small']))
+		assertEquals([], spillKeys('s1'))
+	}
+
+	void testSpillRowsNotKnownToThisNodeAreReadBack() {
+		jdbc.persistSession(session('s1', [big: new CountedValue('first')]))
+		jdbc.@knownSpillKeys.invalidateAll()
+
+		jdbc.persistSession(session('s1', [big: new CountedValue('second')]))
+		assertEquals 1, spillKeys('s1').size()
+		assertEquals 'second', jdbc.getSessionData('s1').attrs.big.value.label
+	}
+
+}
+
+/**
+ * A large value which counts how often it is serialized.
+ */
+class CountedValue implements Serializable {
+
+	static final AtomicInteger writes = new AtomicInteger()
+
+	final String label
+	final String padding = 'x' * 1000
+
+	CountedValue(String label) {
+		this.label = label
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		writes.incrementAndGet()
+		out.defaultWriteObject()
+	}
+
+}
@@ -0,0 +1,115 @@
+package grails.plugin.databasesession
+
+import java.sql.Timestamp
+
+import org.apache.commons.dbcp.BasicDataSource
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.jdbc.datasource.DataSourceTransactionManager
+import org.springframework.transaction.support.TransactionTemplate
+
+/**
+ * Checks that {@link JdbcPersister#touchSession(String, long, int)} updates the access time of a stored session at most
+ * once per {@code touchFraction} of its {@code maxInactiveInterval}, counting writes as touches, and that a session
+ * with no row is not looked for on every request either.
+ */
+class JdbcPersisterTouchTests extends GroovyTestCase {
+
+	private static final int INTERVAL = 1800
+	private static final long THROTTLE = INTERVAL * 1000L / 4
+
+	private BasicDataSource dataSource
+	private JdbcTemplate jdbcTemplate
+	private List<String> touches
+	private JdbcPersister jdbc
+	private long now
+
+	protected void setUp() {
+		super.setUp()
+		dataSource = new BasicDataSource(
+			driverClassName: 'org.h2.Driver',
+			url: "jdbc:h2:mem:touch${System.nanoTime()};DB_CLOSE_DELAY=-1",
+			username: 'sa',
+			password: ''
+		)
+		touches = []
+		def recorded = touches
+		jdbcTemplate = new JdbcTemplate(dataSource) {
+			int update(String sql, Object... args) {
+				if(sql.contains('SET lastAccessedAt = ?, maxInactiveInterval = ?')) recorded << args[-1]
+				super.update(sql, args)
+			}
+		}
+		def transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource))
+		transactionTemplate.propagationBehaviorName = 'PROPAGATION_NEVER'
+		jdbc = new JdbcPersister(jdbcTemplate: jdbcTemplate, transactionTemplate: transactionTemplate)
+		jdbc.afterPropertiesSet()
+		now = System.currentTimeMillis()
+	}
+
+	protected void tearDown() {
+		jdbc?.destroy()
+		dataSource?.close()
+		super.tearDown()
+	}
+
+	private long storedAccessTime(String sessionId) {
+		jdbcTemplate.queryForObject(
+			"SELECT lastAccessedAt FROM " + jdbc.tableName + " WHERE sessionId = ?", Timestamp, sessionId
+		).time
+	}
+
+	void testTouchesWithinTheThrottleAreSkipped() {
+		jdbc.persistSession(new SessionData('s1', [value: 1], now, now, INTERVAL))
+
+		jdbc.touchSession('s1', now + 1000, INTERVAL)
+		jdbc.touchSession('s1', now + THROTTLE - 1, INTERVAL)
+		assertEquals([], touches)
+		assertEquals now, storedAccessTime('s1')
+
+		jdbc.touchSession('s1', now + THROTTLE, INTERVAL)
+		assertEquals(['s1'], touches)
+		assertEquals now + THROTTLE, storedAccessTime('s1')
+
+		// The throttle starts again from the last touch
+		jdbc.touchSession('s1', now + THROTTLE + 1000, INTERVAL)
+		assertEquals(['s1'], touches)
+	}
+
+	void testTheThrottleFollowsTheInterval() {
+		jdbc.persistSession(new SessionData('s1', [value: 1], now, now, 60))
+		jdbc.touchSession('s1', now + 15000, 60)
+		assertEquals(['s1'], touches)
+		assertEquals now + 15000, storedAccessTime('s1')
+	}
+
+	void testAZeroFractionTouchesEveryTime() {
+		jdbc.touchFraction = 0.0
+		jdbc.persistSession(new SessionData('s1', [value: 1], now, now, INTERVAL))
+		jdbc.touchSession('s1', now + 1, INTERVAL)
+		jdbc.touchSession('s1', now + 2, INTERVAL)
+		assertEquals(['s1', 's1'], touches)
+	}
+
+	void testSessionsWithoutARowAreThrottledToo() {
+		jdbc.touchSession('missing', now, INTERVAL)
+		jdbc.touchSession('missing', now + 1000, INTERVAL)
+		jdbc.touchSession('missing', now + 2000, INTERVAL)
+		assertEquals(['missing'], touches)
+	}
+
+	void testInvalidationForgetsTheThrottle() {
+		jdbc.persistSession(new SessionData('s1', [value: 1], now, now, INTERVAL))
+		jdbc.touchSession('s1', now + 1000, INTERVAL)
+		assertEquals([], touches)
+
+		jdbc.invalidate('s1')
+		jdbc.touchSession('s1', now + 2000, INTERVAL)
+		assertEquals(['s1'], touches)
+	}
+
+	void testTheFractionIsChecked() {
+		shouldFail(IllegalArgumentException) { jdbc.touchFraction = -0.1 }
+		shouldFail(IllegalArgumentException) { jdbc.touchFraction = 1.5 }
+	}
+
+}
@@ -0,0 +1,292 @@
+package grails.plugin.databasesession
+
+import java.lang.management.ManagementFactory
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Proxy
+import java.sql.Connection
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicLong
+
+import javax.servlet.FilterChain
+import javax.servlet.http.Cookie
+
+import org.apache.commons.dbcp.BasicDataSource
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.jdbc.datasource.DataSourceTransactionManager
+import org.springframework.jdbc.datasource.DelegatingDataSource
+import org.springframework.mock.web.MockFilterConfig
+import org.springframework.mock.web.MockHttpServletRequest
+import org.springframework.mock.web.MockHttpServletResponse
+import org.springframework.mock.web.MockServletContext
+import org.springframework.transaction.support.TransactionTemplate
+
+/**
+ * Drives {@link SessionProxyFilter} from many threads with mock requests, using the real {@link ChainPersister},
+ * {@link InMemoryPersister}, and {@link JdbcPersister} against an embedded H2 database, and reports the throughput,
+ * latency percentiles, database statements, and allocation rate. It needs nothing but the test classpath, so
+ * configurations can be compared before rolling them out.
+ *
+ * Each of the {@link #sessions} sessions is worked on by {@link #concurrentPerSession} threads at once, each sending
+ * {@link #requestsPerThread} requests. A {@link #mutatingFraction} of the requests change an attribute and the rest
+ * read all of them; a {@link #cookielessFraction} of the requests carry no session cookie, like a first visit.
+ * {@link #configure} is called with the persisters and the filter before they are initialized, to set up the
+ * configuration under test.
+ *
+ * Once the load is over, each session is read back from the database, to check that the attributes it was seeded with
+ * are intact and, with one thread per session, that its counter matches the changes which were made.
+ *
+ * @author Robert Fischer
+ */
+class SessionLoadHarness {
+
+	int sessions = 100
+	int concurrentPerSession = 1
+	int requestsPerThread = 200
+	int warmupRequestsPerThread = 20
+	double mutatingFraction = 0.2
+	double cookielessFraction = 0.05
+	int attributesPerSession = 5
+	int attributeBytes = 1024
+
+	/**
+	* Called with the memory persister, the database persister, the chain, and the filter before they are initialized.
+	*/
+	Closure configure = null
+
+	static class Report {
+		long requests
+		long errors
+		long elapsedMillis
+		long[] latencyNanos
+		Map<String,Long> statements
+		long allocatedBytes
+		long sessionsChecked
+		long sessionsLost
+		/** The sessions whose counter does not match the changes made to it, or -1 with concurrent threads per session */
+		long countersWrong
+
+		double getThroughput() {
+			elapsedMillis == 0 ? 0.0d : requests * 1000.0d / elapsedMillis
+		}
+
+		long percentileNanos(double percentile) {
+			if(latencyNanos.length == 0) return 0L
+			latencyNanos[Math.min(latencyNanos.length - 1, (int)Math.ceil(percentile * latencyNanos.length) - 1)]
+		}
+
+		long getStatementCount() {
+			statements.values().sum(0L)
+		}
+
+		String toString() {
+			def micros = { double p -> (percentileNanos(p) / 1000L) + "us" }
+			def lines = [
+				"Requests: ${requests} (${errors} failed) in ${elapsedMillis}ms = ${String.format('%.1f', throughput)}/s",
+				"Latency: p50=${micros(0.5)} p90=${micros(0.9)} p99=${micros(0.99)} p99.9=${micros(0.999)} max=${micros(1.0)}",
+				"Statements: ${statementCount} (${String.format('%.2f', requests == 0 ? 0.0d : statementCount / (double)requests)}/request) ${statements}",
+			]
+			if(allocatedBytes >= 0) {
+				lines << "Allocated: ${allocatedBytes >> 20}MB = ${elapsedMillis == 0 ? 0 : (allocatedBytes * 1000L / elapsedMillis) >> 20}MB/s, ${requests == 0 ? 0 : allocatedBytes / requests} bytes/request"
+			} else {
+				lines << "Allocated: not measurable on this JVM"
+			}
+			lines << "Contents: ${sessionsChecked} sessions checked, ${sessionsLost} lost, ${countersWrong < 0 ? 'counters not checked' : countersWrong + ' with wrong counters'}"
+			lines.join("\n")
+		}
+	}
+
+	/**
+	* Counts the statements prepared through the connections of a data source, by their first SQL keyword.
+	*/
+	static class CountingDataSource extends DelegatingDataSource {
+		final Map<String,AtomicLong> counts = new ConcurrentHashMap<String,AtomicLong>()
+
+		CountingDataSource(javax.sql.DataSource target) {
+			super(target)
+		}
+
+		Connection getConnection() {
+			wrap(super.getConnection())
+		}
+
+		Connection getConnection(String username, String password) {
+			wrap(super.getConnection(username, password))
+		}
+
+		private Connection wrap(final Connection connection) {
+			(Connection)Proxy.newProxyInstance(Connection.classLoader, [Connection] as Class[], { proxy, method, args ->
+				if(method.name in ['prepareStatement', 'prepareCall']) count(args[0] as String)
+				if(method.name == 'createStatement') count('STATEMENT')
+				try {
+					method.invoke(connection, args)
+				} catch(InvocationTargetException ite) {
+					throw ite.cause
+				}
+			} as InvocationHandler)
+		}
+
+		private void count(String sql) {
+			def kind = sql.trim().split(/\s+/, 2)[0].toUpperCase()
+			def counter = counts.get(kind)
+			if(counter == null) {
+				counts.putIfAbsent(kind, new AtomicLong())
+				counter = counts.get(kind)
+			}
+			counter.incrementAndGet()
+		}
+
+		Map<String,Long> snapshot() {
+			counts.collectEntries { k, v -> [k, v.get()] }
+		}
+	}
+
+	Report run() {
+		def dataSource = new BasicDataSource(
+			driverClassName: 'org.h2.Driver',
+			url: "jdbc:h2:mem:sessionLoad${System.nanoTime()};DB_CLOSE_DELAY=-1",
+			username: 'sa',
+			password: '',
+			maxActive: sessions * concurrentPerSession + 10
+		)
+		def counting = new CountingDataSource(dataSource)
+
+		def memory = new InMemoryPersister()
+		def jdbc = new JdbcPersister(
+			jdbcTemplate: new JdbcTemplate(counting),
+			transactionTemplate: new TransactionTemplate(new DataSourceTransactionManager(counting)),
+			localPersister: memory
+		)
+		def chain = new ChainPersister(persisters: [memory, jdbc])
+		def filter = new SessionProxyFilter(persister: chain, localPersister: memory)
+		if(configure) configure(memory, jdbc, chain, filter)
+
+		jdbc.afterPropertiesSet()
+		memory.afterPropertiesSet()
+		chain.afterPropertiesSet()
+		def servletContext = new MockServletContext()
+		filter.init(new MockFilterConfig(servletContext, 'sessionProxyFilter'))
+
+		def payload = new byte[attributeBytes]
+		new Random(0).nextBytes(payload)
+		def sessionIds = (0..<sessions).collect { UUID.randomUUID().toString() }
+		def changes = sessionIds.collect { new AtomicLong() }
+
+		FilterChain app = { request, response ->
+			def session = request.getSession(true)
+			if(request.getParameter('mutate')) {
+				session.setAttribute('counter', (session.getAttribute('counter') ?: 0) + 1)
+			} else if(request.getParameter('seed')) {
+				(0..<attributesPerSession).each { session.setAttribute("attribute${it}".toString(), payload.clone()) }
+			} else {
+				session.attributeNames.toList().each { session.getAttribute(it) }
+			}
+		} as FilterChain
+
+		def send = { String sessionId, String parameter ->
+			def request = new MockHttpServletRequest(servletContext, 'GET', '/load')
+			if(sessionId) request.setCookies(new Cookie(SessionProxyFilter.COOKIE_NAME, sessionId))
+			if(parameter) request.addParameter(parameter, 'true')
+			filter.doFilter(request, new MockHttpServletResponse(), app)
+		}
+
+		try {
+			sessionIds.each { send(it, 'seed') }
+
+			def threads = sessions * concurrentPerSession
+			def latencies = new long[threads][]
+			def allocated = new long[threads]
+			def errors = new AtomicLong()
+			def ready = new CountDownLatch(threads)
+			def start = new CountDownLatch(1)
+			def done = new CountDownLatch(threads)
+			def mx = ManagementFactory.threadMXBean
+			// Only HotSpot's com.sun.management.ThreadMXBean measures allocations
+			def allocationSupported = mx.metaClass.respondsTo(mx, 'isThreadAllocatedMemorySupported') && mx.threadAllocatedMemorySupported
+
+			def workers = (0..<threads).collect { idx ->
+				Thread.start("session-load-${idx}") {
+					def random = new Random(idx)
+					def sessionId = sessionIds[idx.intdiv(concurrentPerSession)]
+					def changed = changes[idx.intdiv(concurrentPerSession)]
+					def times = new long[requestsPerThread]
+					def waiting = true
+					def request = { ->
+						def cookieless = random.nextDouble() < cookielessFraction
+						def mutate = random.nextDouble() < mutatingFraction
+						send(cookieless ? null : sessionId, mutate ? 'mutate' : null)
+						if(mutate && !cookieless) changed.incrementAndGet()
+					}
+					try {
+						warmupRequestsPerThread.times { request() }
+						waiting = false
+						ready.countDown()
+						start.await()
+						def allocatedBefore = allocationSupported ? mx.getThreadAllocatedBytes(Thread.currentThread().id) : 0L
+						for(int i = 0; i < requestsPerThread; i++) {
+							def before = System.nanoTime()
+							try {
+								request()
+							} catch(Throwable t) {
+								errors.incrementAndGet()
+							}
+							times[i] = System.nanoTime() - before
+						}
+						if(allocationSupported) allocated[idx] = mx.getThreadAllocatedBytes(Thread.currentThread().id) - allocatedBefore
+					} finally {
+						latencies[idx] = times
+						if(waiting) ready.countDown()
+						done.countDown()
+					}
+				}
+			}
+
+			ready.await()
+			def statementsBefore = counting.snapshot()
+			def began = System.currentTimeMillis()
+			start.countDown()
+			done.await()
+			def elapsed = System.currentTimeMillis() - began
+			workers*.join()
+
+			def statementsAfter = counting.snapshot()
+			def all = (latencies as List).collectMany { it as List } as long[]
+			Arrays.sort(all)
+
+			// Read back from the database, past the memory tier, once any written-back changes are there
+			memory.checkpoint()
+			def lost = 0L
+			def countersWrong = 0L
+			sessionIds.eachWithIndex { sessionId, idx ->
+				def stored = jdbc.getSessionData(sessionId)
+				def value = { String name ->
+					def attribute = stored.attrs.get(name)
+					attribute instanceof DeferredAttribute ? attribute.value : attribute
+				}
+				if(stored == null || (0..<attributesPerSession).any { !Arrays.equals(payload, value("attribute${it}".toString()) as byte[]) }) {
+					lost++
+				} else if((value('counter') ?: 0) != changes[idx].get()) {
+					countersWrong++
+				}
+			}
+			return new Report(
+				requests: threads * (long)requestsPerThread,
+				errors: errors.get(),
+				elapsedMillis: elapsed,
+				latencyNanos: all,
+				statements: statementsAfter.collectEntries { k, v -> [k, v - (statementsBefore[k] ?: 0L)] },
+				allocatedBytes: allocationSupported ? (allocated as List).sum(0L) : -1L,
+				sessionsChecked: sessionIds.size(),
+				sessionsLost: lost,
+				// Concurrent changes to one counter may overwrite each other
+				countersWrong: concurrentPerSession == 1 ? countersWrong : -1L
+			)
+		} finally {
+			chain.destroy()
+			memory.destroy()
+			dataSource.close()
+		}
+	}
+
+}
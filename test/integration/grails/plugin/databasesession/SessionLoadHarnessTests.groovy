@@ -0,0 +1,42 @@
+package grails.plugin.databasesession
+
+/**
+ * Runs {@link SessionLoadHarness} with a small workload. To compare configurations, override its properties with
+ * system properties, e.g. {@code grails -DsessionLoad.sessions=500 -DsessionLoad.concurrentPerSession=4
+ * -DsessionLoad.memory.writeBack=true test-app integration: SessionLoadHarness}.
+ */
+class SessionLoadHarnessTests extends GroovyTestCase {
+
+	private static final String PREFIX = 'sessionLoad.'
+
+	void testLoad() {
+		def harness = new SessionLoadHarness(sessions: 20, requestsPerThread: 50, warmupRequestsPerThread: 5)
+		def settings = System.properties.findAll { k, v -> k.startsWith(PREFIX) }.collectEntries { k, v -> [k.substring(PREFIX.length()), v] }
+		settings.each { name, value ->
+			if(!name.contains('.') && harness.hasProperty(name)) {
+				def type = harness.metaClass.getMetaProperty(name).type
+				harness[name] = value.asType(type == int ? Integer : type == double ? Double : type)
+			}
+		}
+		harness.configure = { memory, jdbc, chain, filter ->
+			if(settings['memory.maximumSize']) memory.maximumSize = settings['memory.maximumSize'] as Integer
+			if(settings['memory.writeBack'] == 'true') memory.writeBackTarget = jdbc
+			if(settings['spillThreshold']) jdbc.spillThreshold = settings['spillThreshold'] as Integer
+			if(settings['shared.threshold']) jdbc.sharedThreshold = settings['shared.threshold'] as Integer
+			if(settings['keys.format']) jdbc.keyFormat = settings['keys.format']
+			if(settings['optimisticLocking']) jdbc.optimisticLocking = settings['optimisticLocking'] == 'true'
+			if(settings['affinity.secret']) filter.affinitySecret = settings['affinity.secret']
+		}
+
+		def report = harness.run()
+		println report
+
+		assertEquals 0L, report.errors
+		assertEquals harness.sessions * harness.concurrentPerSession * (long)harness.requestsPerThread, report.requests
+		assertTrue report.statementCount > 0
+		assertEquals harness.sessions, report.sessionsChecked
+		assertEquals 0L, report.sessionsLost
+		if(harness.concurrentPerSession == 1) assertEquals 0L, report.countersWrong
+	}
+
+}
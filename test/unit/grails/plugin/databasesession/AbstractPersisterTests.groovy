@@ -0,0 +1,45 @@
+package grails.plugin.databasesession
+
+/**
+ * Checks that the bulk methods of {@link AbstractPersister} fall back to the single-session ones.
+ */
+class AbstractPersisterTests extends GroovyTestCase {
+
+	private Map<String,SessionData> stored
+	private AbstractPersister persister
+
+	protected void setUp() {
+		super.setUp()
+		stored = [:]
+		persister = [
+			persistSession: { SessionData session -> stored[session.sessionId] = session },
+			getSessionData: { String sessionId -> stored[sessionId] },
+			invalidate: { String sessionId -> stored.remove(sessionId) }
+		] as AbstractPersister
+	}
+
+	private static SessionData session(String sessionId) {
+		def now = System.currentTimeMillis()
+		new SessionData(sessionId, [value: sessionId], now, now, 1800)
+	}
+
+	void testBulkMethodsLoopOverTheSingleOnes() {
+		persister.persistSessions([session('s1'), session('s2'), session('s3')])
+		assertEquals(['s1', 's2', 's3'] as Set, stored.keySet())
+
+		def found = persister.getSessionData(['s1', 's3', 'missing'])
+		assertEquals(['s1', 's3'] as Set, found.keySet())
+		assertEquals 's3', found.s3.attrs.value
+
+		persister.invalidateAll(['s1', 'missing'])
+		assertEquals(['s2', 's3'] as Set, stored.keySet())
+	}
+
+	void testSessionsAreNotIndexedByPrincipal() {
+		persister.persistSession(session('s1'))
+		assertEquals([] as Set, persister.findSessionIds('user'))
+		assertEquals([] as Set, persister.invalidateByPrincipal('user'))
+		assertEquals(['s1'] as Set, stored.keySet())
+	}
+
+}
@@ -0,0 +1,206 @@
+package grails.plugin.databasesession
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+
+/**
+ * Checks how {@link AsyncPersister} combines the writes queued for a session while its executor is busy: that later
+ * versions replace earlier ones, that two persists of the same version are merged by the attributes the second one
+ * changed, that writes it cannot combine are applied in order, and that the futures of combined writes complete with
+ * the write that supersedes them. Also checks that reads see the pending writes.
+ */
+class AsyncPersisterTests extends GroovyTestCase {
+
+	private AsyncPersister async
+	private List applied
+	private Map<String,SessionData> stored
+	private CountDownLatch gate
+	private CountDownLatch blocked
+	private RuntimeException failure
+
+	protected void setUp() {
+		super.setUp()
+		applied = [].asSynchronized()
+		stored = [:].asSynchronized()
+		failure = null
+		def target = [
+			persistSession: { SessionData session ->
+				if(session.sessionId == 'blocker') {
+					blocked.countDown()
+					gate.await(5, TimeUnit.SECONDS)
+				}
+				if(failure) throw failure
+				applied << session
+				stored[session.sessionId] = session
+			},
+			touchSession: { String sessionId, long lastAccessedAt, int maxInactiveInterval ->
+				applied << "touch ${sessionId} ${lastAccessedAt}".toString()
+			},
+			invalidate: { String sessionId ->
+				applied << "invalidate ${sessionId}".toString()
+				stored.remove(sessionId)
+			},
+			getSessionData: { String sessionId -> stored[sessionId] },
+			isValid: { String sessionId -> stored.containsKey(sessionId) }
+		] as Persister
+		async = new AsyncPersister(persister: target, threads: 1)
+		async.afterPropertiesSet()
+	}
+
+	protected void tearDown() {
+		gate?.countDown()
+		async.destroy()
+		super.tearDown()
+	}
+
+	/**
+	* Keeps the only thread of the executor busy until {@link #release()}, so that the writes submitted meanwhile queue up.
+	*/
+	private void hold() {
+		gate = new CountDownLatch(1)
+		blocked = new CountDownLatch(1)
+		async.persistSessionAsync(session('blocker', 0L, [:]))
+		assertTrue blocked.await(5, TimeUnit.SECONDS)
+	}
+
+	private void release(List<java.util.concurrent.Future> futures) {
+		gate.countDown()
+		futures.each { it.get(5, TimeUnit.SECONDS) }
+		applied.removeAll { it instanceof SessionData && it.sessionId == 'blocker' }
+	}
+
+	private static SessionData session(String sessionId, long version, Map attrs, Map<String,Integer> base = null, long lastAccessedAt = 1000L) {
+		new SessionData(sessionId, attrs, 0L, lastAccessedAt, 1800, version, base)
+	}
+
+	private static Map<String,Integer> hashes(Map attrs) {
+		attrs.collectEntries { name, value -> [(name): value.hashCode()] }
+	}
+
+	void testLaterVersionsReplaceTheWritesQueuedBeforeThem() {
+		hold()
+		def futures = [
+			async.persistSessionAsync(session('s1', 1L, [value: 1])),
+			async.persistSessionAsync(session('s1', 2L, [value: 2])),
+			async.persistSessionAsync(session('s1', 3L, [value: 3]))
+		]
+		assertEquals 3, async.getSessionData('s1').attrs.value
+		release(futures)
+
+		assertEquals 1, applied.size()
+		assertEquals 3, applied[0].attrs.value
+		futures.each { assertTrue it.done }
+		assertFalse async.isPending('s1')
+	}
+
+	void testWritesOfTheSameVersionAreMergedByWhatTheSecondChanged() {
+		def read = [a: 1, b: 1, c: 1]
+		hold()
+		def futures = [
+			// Both requests read version 4: the first changes a, the second changes b, adds d and removes c
+			async.persistSessionAsync(session('s1', 4L, [a: 5, b: 1, c: 1], hashes(read), 1000L)),
+			async.persistSessionAsync(session('s1', 4L, [a: 1, b: 2, d: 4], hashes(read), 2000L))
+		]
+		release(futures)
+
+		assertEquals 1, applied.size()
+		def merged = applied[0]
+		assertEquals([a: 5, b: 2, d: 4], merged.attrs)
+		assertEquals 4L, merged.version
+		assertEquals hashes(read), merged.baseAttributeHashes
+		assertEquals 2000L, merged.lastAccessedAt
+	}
+
+	void testWritesWhichCannotBeMergedAreAppliedInOrder() {
+		hold()
+		def futures = [
+			async.persistSessionAsync(session('s1', 4L, [value: 'first'])),
+			async.persistSessionAsync(session('s1', 4L, [value: 'second'])), // No base hashes to merge by
+			async.persistSessionAsync(session('s1', 3L, [value: 'stale'], [value: 1]))
+		]
+		release(futures)
+
+		assertEquals(['first', 'second', 'stale'], applied*.attrs*.value)
+	}
+
+	void testTouchesAreFoldedIntoAPendingPersist() {
+		hold()
+		def futures = [
+			async.persistSessionAsync(session('s1', 1L, [value: 1])),
+			async.touchSessionAsync('s1', 5000L, 60)
+		]
+		assertEquals 1, async.getSessionData('s1').attrs.value // The touch does not hide the data
+		release(futures)
+
+		assertEquals 1, applied.size()
+		assertEquals 5000L, applied[0].lastAccessedAt
+		assertEquals 60, applied[0].maxInactiveInterval
+		assertEquals 1, applied[0].attrs.value
+	}
+
+	void testInvalidationSupersedesTheWritesBeforeIt() {
+		hold()
+		def futures = [
+			async.touchSessionAsync('s1', 5000L, 60),
+			async.persistSessionAsync(session('s1', 1L, [value: 1])),
+			async.invalidateAsync('s1'),
+			async.touchSessionAsync('s1', 6000L, 60)
+		]
+		assertNull async.getSessionData('s1')
+		assertFalse async.isValid('s1')
+		release(futures)
+
+		assertEquals(['invalidate s1'], applied)
+	}
+
+	void testAPersistAfterAnInvalidationReplacesIt() {
+		hold()
+		def futures = [
+			async.invalidateAsync('s1'),
+			async.persistSessionAsync(session('s1', 1L, [value: 'new']))
+		]
+		assertTrue async.isValid('s1')
+		release(futures)
+
+		assertEquals 1, applied.size()
+		assertEquals 'new', applied[0].attrs.value
+	}
+
+	void testTheFuturesOfCombinedWritesShareTheirFailure() {
+		hold()
+		def futures = [
+			async.persistSessionAsync(session('s1', 1L, [value: 1])),
+			async.persistSessionAsync(session('s1', 2L, [value: 2]))
+		]
+		failure = new IllegalStateException('The database is down')
+		gate.countDown()
+
+		futures.each { future ->
+			try {
+				future.get(5, TimeUnit.SECONDS)
+				fail 'The write should have failed'
+			} catch(ExecutionException ee) {
+				assertSame failure, ee.cause
+			}
+		}
+		assertFalse async.isPending('s1')
+	}
+
+	void testReadsGoToThePersisterOnceTheWriteIsDone() {
+		async.persistSessionAsync(session('s1', 1L, [value: 1])).get(5, TimeUnit.SECONDS)
+		assertFalse async.isPending('s1')
+		assertEquals 0, async.pendingCount
+		assertSame stored.s1, async.getSessionData('s1')
+		assertSame stored.s1, async.getSessionDataAsync('s1').get(5, TimeUnit.SECONDS)
+		assertTrue async.isValid('s1')
+	}
+
+	void testWritesAfterShutdownRunOnTheCaller() {
+		async.destroy()
+		def future = async.persistSessionAsync(session('s1', 1L, [value: 1]))
+		assertTrue future.done
+		assertEquals 1, stored.s1.attrs.value
+	}
+
+}
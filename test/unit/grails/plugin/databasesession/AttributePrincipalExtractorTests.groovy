@@ -0,0 +1,60 @@
+package grails.plugin.databasesession
+
+/**
+ * Checks that {@link AttributePrincipalExtractor} reads the principal from a property of the attribute (by default
+ * the way Spring Security keeps it), from the attribute itself, or from a deferred attribute, and that sessions without
+ * one have none.
+ */
+class AttributePrincipalExtractorTests extends GroovyTestCase {
+
+	static class Authentication implements Serializable {
+		String name
+	}
+
+	static class SecurityContext implements Serializable {
+		Authentication authentication
+	}
+
+	static class Deferred extends DeferredAttribute {
+		Deferred(Serializable value) {
+			super(value)
+		}
+		protected Serializable load() {
+			throw new IllegalStateException('Already loaded')
+		}
+	}
+
+	private AttributePrincipalExtractor extractor = new AttributePrincipalExtractor()
+
+	private static SecurityContext context(String name) {
+		new SecurityContext(authentication: name == null ? null : new Authentication(name: name))
+	}
+
+	void testReadsTheSpringSecurityNameByDefault() {
+		assertEquals(['SPRING_SECURITY_CONTEXT'], extractor.attributeNames as List)
+		assertEquals 'alice', extractor.principalOf([SPRING_SECURITY_CONTEXT: context('alice')])
+	}
+
+	void testSessionsWithoutAPrincipalHaveNone() {
+		assertNull extractor.principalOf([:])
+		assertNull extractor.principalOf([SPRING_SECURITY_CONTEXT: context(null)])
+		assertNull extractor.principalOf([SPRING_SECURITY_CONTEXT: 'not a context'])
+	}
+
+	void testReadsDeferredAttributes() {
+		assertEquals 'bob', extractor.principalOf([SPRING_SECURITY_CONTEXT: new Deferred(context('bob'))])
+	}
+
+	void testReadsTheAttributeItselfWithoutAPath() {
+		extractor.attributeName = 'user'
+		extractor.propertyPath = ''
+		assertEquals(['user'], extractor.attributeNames as List)
+		assertEquals 'carol', extractor.principalOf([user: 'carol'])
+		assertEquals '42', extractor.principalOf([user: 42])
+	}
+
+	void testTheAttributeNameIsRequired() {
+		shouldFail(IllegalArgumentException) { extractor.attributeName = null }
+	}
+
+}
@@ -0,0 +1,247 @@
+package grails.plugin.databasesession
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Checks the hedged reads of {@link ChainPersister} against stub tiers: that the first tier is read on the calling
+ * thread, that a slow tier is hedged, and that a read which finds no free hedge thread goes without its hedge. Also
+ * checks that bulk reads only ask each tier for the sessions the tiers before it did not have, and that the batch
+ * deleting tombstoned sessions cannot delete a session written while it runs.
+ */
+class ChainPersisterTests extends GroovyTestCase {
+
+	private ChainPersister chain
+	private Map<String,List<Thread>> readers
+
+	protected void setUp() {
+		super.setUp()
+		readers = [:].withDefault { [] }.asSynchronized()
+	}
+
+	protected void tearDown() {
+		chain?.destroy()
+		super.tearDown()
+	}
+
+	/**
+	* A tier named {@code name} which answers after {@code delayMillis} with a session holding its name, or with
+	* {@code null} if it has none.
+	*/
+	private Persister tier(String name, long delayMillis, boolean found = true) {
+		[
+			getSessionData: { String sessionId ->
+				readers[name] << Thread.currentThread()
+				if(delayMillis > 0) Thread.sleep(delayMillis)
+				if(!found) return null
+				def now = System.currentTimeMillis()
+				new SessionData(sessionId, [tier: name], now, now, 1800)
+			},
+			toString: { -> name }
+		] as Persister
+	}
+
+	private void start(List<Persister> persisters, List<Persister> hedges = [], int threads = 4) {
+		chain = new ChainPersister(
+			persisters: persisters,
+			hedgePersisters: hedges,
+			hedgedReads: true,
+			hedgeThreads: threads,
+			defaultHedgeDelayMillis: 20
+		)
+		chain.afterPropertiesSet()
+	}
+
+	private long millisToRead(Closure check) {
+		def start = System.nanoTime()
+		def session = chain.getSessionData('s1')
+		def millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+		check(session)
+		millis
+	}
+
+	void testTheFirstTierIsReadOnTheCallingThread() {
+		start([tier('memory', 0), tier('database', 0)])
+
+		assertEquals 'memory', chain.getSessionData('s1').attrs.tier
+		assertEquals([Thread.currentThread()], readers.memory)
+		assertFalse readers.containsKey('database')
+	}
+
+	void testTheOtherTiersAreReadOnTheHedgeExecutor() {
+		start([tier('memory', 0, false), tier('database', 0)])
+
+		assertEquals 'database', chain.getSessionData('s1').attrs.tier
+		assertEquals([Thread.currentThread()], readers.memory)
+		assertEquals 1, readers.database.size()
+		assertNotSame Thread.currentThread(), readers.database[0]
+	}
+
+	void testASlowTierIsHedged() {
+		start([tier('memory', 0, false), tier('database', 1000)], [tier('replica', 0)])
+
+		def millis = millisToRead { assertEquals 'replica', it.attrs.tier }
+		assertTrue "took ${millis}ms", millis < 500
+	}
+
+	void testAHedgeFindingNoThreadIsSkipped() {
+		start([tier('memory', 0, false), tier('database', 200)], [tier('replica', 0)], 1)
+
+		millisToRead { assertEquals 'database', it.attrs.tier }
+		assertFalse readers.containsKey('replica')
+	}
+
+	void testAReadFindingNoThreadRunsOnTheCallingThread() {
+		start([tier('memory', 0, false), tier('database', 0)], [], 1)
+		def release = new CountDownLatch(1)
+		def busy = new CountDownLatch(1)
+		chain.hedgeExecutor.submit { busy.countDown(); release.await() }
+		busy.await()
+
+		try {
+			assertEquals 'database', chain.getSessionData('s1').attrs.tier
+			assertEquals([Thread.currentThread()], readers.database)
+		} finally {
+			release.countDown()
+		}
+	}
+
+	void testTheNextSourceIsReadWhenATierHasNoSession() {
+		start([tier('memory', 0, false), tier('database', 0, false)], [tier('replica', 0)])
+
+		assertEquals 'replica', chain.getSessionData('s1').attrs.tier
+		assertEquals 1, readers.database.size()
+	}
+
+	private static SessionData session(String sessionId, String value) {
+		def now = System.currentTimeMillis()
+		new SessionData(sessionId, [value: value], now, now, 1800)
+	}
+
+	/**
+	* A tier which holds the sessions {@code held} and records the ids each bulk read asks it for.
+	*/
+	private Persister bulkTier(String name, List<String> held, List<Collection<String>> asked) {
+		[
+			getSessionData: { Collection<String> sessionIds ->
+				asked << new ArrayList(sessionIds)
+				sessionIds.findAll { it in held }.collectEntries { [(it): session(it, name)] }
+			}
+		] as Persister
+	}
+
+	void testBulkReadsOnlyAskEachTierForTheSessionsStillMissing() {
+		def memoryAsked = []
+		def databaseAsked = []
+		chain = new ChainPersister(persisters: [
+			bulkTier('memory', ['s1'], memoryAsked),
+			bulkTier('database', ['s1', 's2'], databaseAsked)
+		])
+		chain.afterPropertiesSet()
+
+		def found = chain.getSessionData(['s1', 's2', 's3'])
+
+		assertEquals(['s1', 's2'] as Set, found.keySet())
+		assertEquals 'memory', found.s1.attrs.value
+		assertEquals 'database', found.s2.attrs.value
+		assertEquals([['s1', 's2', 's3']], memoryAsked)
+		assertEquals([['s2', 's3']], databaseAsked)
+	}
+
+	void testBulkReadsStopOnceEverySessionIsFound() {
+		def databaseAsked = []
+		chain = new ChainPersister(persisters: [
+			bulkTier('memory', ['s1', 's2'], []),
+			bulkTier('database', ['s1', 's2'], databaseAsked)
+		])
+		chain.afterPropertiesSet()
+
+		assertEquals 2, chain.getSessionData(['s1', 's2']).size()
+		assertEquals([], databaseAsked)
+	}
+
+	private void startDeferred(Persister shared) {
+		chain = new ChainPersister(persisters: [shared], deferredInvalidation: true, invalidationIntervalMillis: 10)
+		chain.afterPropertiesSet()
+	}
+
+	private void waitForTombstones() {
+		def deadline = System.currentTimeMillis() + 2000
+		while(chain.tombstoneCount > 0 && System.currentTimeMillis() < deadline) Thread.sleep(5)
+		assertEquals 0, chain.tombstoneCount
+	}
+
+	void testAWriteWaitsForTheBatchDeletingItsSession() {
+		def store = new ConcurrentHashMap<String,SessionData>()
+		def firstDelete = new AtomicBoolean(true)
+		def deleting = new CountDownLatch(1)
+		def release = new CountDownLatch(1)
+		startDeferred([
+			persistSession: { SessionData session -> store[session.sessionId] = session },
+			invalidateAll: { Collection sessionIds ->
+				if(firstDelete.getAndSet(false)) {
+					deleting.countDown()
+					release.await()
+				}
+				store.keySet().removeAll(sessionIds)
+			}
+		] as Persister)
+		store.s1 = session('s1', 'old')
+
+		chain.invalidate('s1')
+		assertTrue deleting.await(2, TimeUnit.SECONDS)
+		def writer = Thread.start { chain.persistSession(session('s1', 'new')) }
+		try {
+			writer.join(100)
+			assertTrue 'the write waits for the batch', writer.isAlive()
+		} finally {
+			release.countDown()
+		}
+		writer.join(2000)
+		assertFalse writer.isAlive()
+		assertEquals 'new', store.s1?.attrs?.value
+		assertEquals 0, chain.tombstoneCount
+	}
+
+	void testTheBatchLeavesOutSessionsBeingWritten() {
+		def store = new ConcurrentHashMap<String,SessionData>()
+		def deleted = [].asSynchronized()
+		def writing = new CountDownLatch(1)
+		def release = new CountDownLatch(1)
+		startDeferred([
+			persistSession: { SessionData session ->
+				writing.countDown()
+				release.await()
+				store[session.sessionId] = session
+			},
+			invalidateAll: { Collection sessionIds ->
+				deleted.addAll(sessionIds)
+				store.keySet().removeAll(sessionIds)
+			}
+		] as Persister)
+
+		def writer = Thread.start { chain.persistSession(session('s1', 'new')) }
+		try {
+			assertTrue writing.await(2, TimeUnit.SECONDS)
+			chain.invalidate('s1')
+			Thread.sleep(100) // Several batches
+			assertFalse 'the batch left the session to be deleted after the write', deleted.contains('s1')
+		} finally {
+			release.countDown()
+		}
+		writer.join(2000)
+		waitForTombstones()
+		assertTrue deleted.contains('s1')
+		assertNull 'the invalidation came after the write started, so it wins', store.s1
+	}
+
+	void testNoTierHasTheSession() {
+		start([tier('memory', 0, false), tier('database', 0, false)])
+
+		assertNull chain.getSessionData('s1')
+		assertEquals 1, readers.database.size()
+	}
+
+}
@@ -0,0 +1,185 @@
+package grails.plugin.databasesession
+
+import javax.servlet.http.Cookie
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+import org.apache.commons.codec.binary.Base64
+
+/**
+ * Checks that {@link CookiePersister} signs and encrypts the cookie, accepts the cookies of rotated-out secrets, and moves
+ * sessions to and from the fallback persister, with stub requests and a recording fallback.
+ */
+class CookiePersisterTests extends GroovyTestCase {
+
+	private Map<String,SessionData> fallbackSessions
+	private List<String> fallbackWrites
+	private List<String> fallbackInvalidations
+	private Persister fallback
+	private List<String> setCookies
+	private boolean committed
+
+	protected void setUp() {
+		super.setUp()
+		fallbackSessions = [:]
+		fallbackWrites = []
+		fallbackInvalidations = []
+		fallback = [
+			getSessionData: { String sessionId -> fallbackSessions[sessionId] },
+			persistSession: { SessionData session -> fallbackWrites << session.sessionId; fallbackSessions[session.sessionId] = session },
+			invalidate: { String sessionId -> fallbackInvalidations << sessionId; fallbackSessions.remove(sessionId) },
+			touchSession: { String sessionId, long lastAccessedAt, int maxInactiveInterval -> }
+		] as Persister
+	}
+
+	private CookiePersister persister(List<String> secrets, Map properties = [:]) {
+		def cookies = new CookiePersister(fallback: fallback, secrets: secrets)
+		properties.each { name, value -> cookies[name] = value }
+		cookies.afterPropertiesSet()
+		cookies
+	}
+
+	/**
+	* Binds a request carrying the cookie value (if any) and a response recording its {@code Set-Cookie} headers.
+	*/
+	private void bind(CookiePersister cookies, String value = null) {
+		setCookies = []
+		committed = false
+		def request = [
+			getCookies: { -> value == null ? null : [new Cookie(cookies.cookieName, value)] as Cookie[] },
+			isSecure: { -> true }
+		] as HttpServletRequest
+		def response = [
+			addHeader: { String name, String header -> if(name == 'Set-Cookie') setCookies << header },
+			isCommitted: { -> committed }
+		] as HttpServletResponse
+		cookies.bind(request, response)
+	}
+
+	private String lastCookieValue() {
+		assertFalse 'a cookie was issued', setCookies.isEmpty()
+		setCookies[-1].split(';')[0].split('=', 2)[1]
+	}
+
+	private static SessionData session(String sessionId, Map attrs, long version = 0L, Map localAttrs = [:]) {
+		def now = System.currentTimeMillis()
+		new SessionData(sessionId, attrs, now, now, 1800, version, null, localAttrs)
+	}
+
+	void testSmallSessionsAreKeptInASignedAndEncryptedCookie() {
+		def cookies = persister(['secret'])
+		bind(cookies)
+		cookies.persistSession(session('s1', [user: 'alice-the-user']))
+
+		assertEquals([], fallbackWrites)
+		assertTrue setCookies[0].contains('; Secure')
+		assertTrue setCookies[0].contains('; HttpOnly')
+		def value = lastCookieValue()
+		assertFalse new String(Base64.decodeBase64(value), 'ISO-8859-1').contains('alice-the-user')
+
+		cookies.unbind()
+		bind(cookies, value)
+		assertEquals 'alice-the-user', cookies.getSessionData('s1').attrs.user
+		assertNull 'the cookie only holds its own session', cookies.getSessionData('s2')
+	}
+
+	void testTamperedCookiesAreRefused() {
+		def cookies = persister(['secret'], [encrypt: false, compress: false])
+		def value = cookies.encode(session('s1', [role: 'user']))
+		assertEquals 'user', cookies.decode(value).attrs.role
+
+		def bytes = Base64.decodeBase64(value)
+		def text = new String(bytes, 'ISO-8859-1')
+		def at = text.indexOf('user')
+		assertTrue 'an unencrypted cookie holds the value in plain', at > 0
+		bytes[at] = (byte)'x'
+		assertNull cookies.decode(Base64.encodeBase64URLSafeString(bytes))
+		assertNull cookies.decode('not a cookie')
+	}
+
+	void testCookiesOfARotatedOutSecretAreStillAccepted() {
+		def before = persister(['old'])
+		def after = persister(['new', 'old'])
+		def retired = persister(['new'])
+
+		def oldValue = before.encode(session('s1', [user: 'alice']))
+		assertEquals 'alice', after.decode(oldValue).attrs.user
+		assertNull retired.decode(oldValue)
+
+		def newValue = after.encode(session('s1', [user: 'alice']))
+		assertEquals 'alice', retired.decode(newValue).attrs.user
+		assertNull before.decode(newValue)
+	}
+
+	void testLargeSessionsGoToTheFallback() {
+		def cookies = persister(['secret'], [maxCookieBytes: 200, compress: false])
+		bind(cookies)
+		cookies.persistSession(session('s1', [blob: 'x' * 1000]))
+
+		assertEquals([], setCookies)
+		assertEquals(['s1'], fallbackWrites)
+	}
+
+	void testSessionsGrowingOutOfTheCookieMoveToTheFallback() {
+		def cookies = persister(['secret'], [maxCookieBytes: 400, compress: false])
+		def value = cookies.encode(session('s1', [user: 'alice']))
+		bind(cookies, value)
+		assertNotNull cookies.getSessionData('s1')
+
+		cookies.persistSession(session('s1', [user: 'alice', blob: 'x' * 1000]))
+		assertEquals(['s1'], fallbackWrites)
+		assertTrue 'the cookie is removed', setCookies[-1].contains('Max-Age=0')
+	}
+
+	void testSessionsMovingIntoTheCookieCarryTheirDeferredValues() {
+		def loads = 0
+		def deferred = new DeferredAttribute(null) {
+			protected Serializable load() {
+				loads++
+				'spilled value'
+			}
+		}
+		fallbackSessions.s1 = session('s1', [spilled: deferred, user: 'alice'])
+		def cookies = persister(['secret'])
+		bind(cookies)
+		def read = cookies.getSessionData('s1')
+
+		cookies.persistSession(read)
+		assertEquals(['s1'], fallbackInvalidations)
+		assertEquals 1, loads
+
+		cookies.unbind()
+		bind(cookies, lastCookieValue())
+		def fromCookie = cookies.getSessionData('s1')
+		assertEquals 'spilled value', fromCookie.attrs.spilled
+		assertEquals 'alice', fromCookie.attrs.user
+	}
+
+	void testTouchingTheCookieKeepsTheVersionAndLocalAttributes() {
+		def cookies = persister(['secret'], [touchFraction: 0.0d])
+		def value = cookies.encode(session('s1', [user: 'alice'], 5L, [scratch: 'local']))
+		bind(cookies, value)
+
+		cookies.touchSession('s1', System.currentTimeMillis() + 1000, 1800)
+		def touched = cookies.decode(lastCookieValue())
+		assertEquals 5L, touched.version
+		assertEquals 'local', touched.localAttrs.scratch
+		assertEquals 'alice', touched.attrs.user
+	}
+
+	void testACommittedResponseSendsTheSessionToTheFallback() {
+		def cookies = persister(['secret'])
+		def value = cookies.encode(session('s1', [user: 'alice']))
+		bind(cookies, value)
+		assertNotNull cookies.getSessionData('s1')
+
+		committed = true
+		cookies.persistSession(session('s1', [user: 'bob']))
+		assertEquals(['s1'], fallbackWrites)
+
+		cookies.unbind()
+		bind(cookies, value)
+		assertEquals 'the superseded cookie is refused', 'bob', cookies.getSessionData('s1').attrs.user
+	}
+
+}
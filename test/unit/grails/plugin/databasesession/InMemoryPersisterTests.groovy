@@ -0,0 +1,189 @@
+package grails.plugin.databasesession
+
+/**
+ * Checks the write-back mode of {@link InMemoryPersister} against a recording target: that a session invalidated while
+ * it is written back is deleted again, and that a session which is only evicted meanwhile is not. Also checks that
+ * sessions are weighed by the size they were last written with, and that touches move the cached access time on.
+ */
+class InMemoryPersisterTests extends GroovyTestCase {
+
+	private InMemoryPersister memory
+	private List<String> written
+	private List<String> deleted
+	private Closure duringWrite
+
+	protected void setUp() {
+		super.setUp()
+		written = []
+		deleted = []
+		duringWrite = null
+		def target = [
+			persistSessions: { Collection sessions ->
+				if(duringWrite) {
+					def action = duringWrite
+					duringWrite = null
+					action()
+				}
+				written.addAll(sessions*.sessionId)
+			},
+			invalidateAll: { Collection sessionIds -> deleted.addAll(sessionIds) }
+		] as Persister
+		memory = new InMemoryPersister(writeBackTarget: target, maxUnflushedMillis: 3600000L)
+		memory.afterPropertiesSet()
+	}
+
+	protected void tearDown() {
+		memory.destroy()
+		super.tearDown()
+	}
+
+	private static SessionData session(String sessionId, Map attrs = [value: sessionId]) {
+		def now = System.currentTimeMillis()
+		new SessionData(sessionId, attrs, now, now, 1800)
+	}
+
+	void testChangesAreOnlyWrittenAtCheckpoints() {
+		memory.persistSession(session('s1'))
+		assertEquals 1, memory.unflushedCount
+		assertEquals([], written)
+
+		memory.checkpoint()
+		assertEquals(['s1'], written)
+		assertEquals 0, memory.unflushedCount
+		assertEquals 's1', memory.getSessionData('s1').attrs.value
+	}
+
+	void testCachedSessionsAreNotWrittenBack() {
+		memory.cacheSession(session('s1'))
+		memory.checkpoint()
+		assertEquals([], written)
+		assertNotNull memory.getSessionData('s1')
+	}
+
+	void testLocalChangesAreHeldAsTheVersionReadAndNotWrittenBack() {
+		def now = System.currentTimeMillis()
+		memory.cacheLocalChanges(new SessionData('s1', [value: 's1'], now, now, 1800, 4L, null, [local: 'here']))
+		memory.checkpoint()
+
+		assertEquals([], written)
+		assertEquals 3L, memory.getSessionData('s1').version
+		assertEquals 'here', memory.getSessionData('s1').localAttrs.local
+	}
+
+	void testLocalChangesReplaceTheChangesWaitingToBeWrittenBack() {
+		memory.persistSession(session('s1'))
+		def now = System.currentTimeMillis()
+		memory.cacheLocalChanges(new SessionData('s1', [value: 's1'], now, now, 1800, 2L, null, [local: 'here']))
+		assertEquals 1, memory.unflushedCount
+
+		memory.checkpoint()
+		assertEquals(['s1'], written)
+		assertEquals 'here', memory.getSessionData('s1').localAttrs.local
+	}
+
+	void testSessionsInvalidatedDuringAWriteBackAreDeletedAgain() {
+		memory.persistSession(session('s1'))
+		duringWrite = { memory.invalidate('s1') }
+		memory.checkpoint()
+
+		assertEquals(['s1'], written)
+		assertEquals(['s1'], deleted)
+		assertNull memory.getSessionData('s1')
+	}
+
+	void testSessionsEvictedDuringAWriteBackAreNotDeleted() {
+		memory.persistSession(session('s1'))
+		duringWrite = { memory.evictAll(['s1']) }
+		memory.checkpoint()
+
+		assertEquals(['s1'], written)
+		assertEquals([], deleted)
+		assertNull memory.getSessionData('s1')
+	}
+
+	void testEvictionWritesBackUnflushedChangesFirst() {
+		memory.persistSession(session('s1'))
+		memory.persistSession(session('s2'))
+		memory.evictAll(['s1'])
+
+		assertEquals(['s1'], written)
+		assertEquals([], deleted)
+		assertNull memory.getSessionData('s1')
+		assertNotNull memory.getSessionData('s2')
+		assertEquals 1, memory.unflushedCount
+	}
+
+	void testEvictionKeepsSessionsWhoseChangesCannotBeWritten() {
+		memory.persistSession(session('s1'))
+		duringWrite = { throw new IllegalStateException('The database is down') }
+		memory.evict('s1')
+
+		assertNotNull memory.getSessionData('s1')
+		assertEquals 1, memory.unflushedCount
+	}
+
+	void testInvalidatedSessionsAreNotWrittenBack() {
+		memory.persistSession(session('s1'))
+		memory.invalidate('s1')
+		memory.checkpoint()
+
+		assertEquals([], written)
+		assertNull memory.getSessionData('s1')
+	}
+
+	void testTouchesRefreshTheCachedAccessTime() {
+		def session = session('s1')
+		memory.cacheSession(session)
+		memory.touchSession('s1', session.lastAccessedAt + 5000, 60)
+
+		def touched = memory.getSessionData('s1')
+		assertEquals session.lastAccessedAt + 5000, touched.lastAccessedAt
+		assertEquals 60, touched.maxInactiveInterval
+		assertEquals session.attrs, touched.attrs
+		assertEquals session.version, touched.version
+	}
+
+	void testOlderTouchesAreIgnored() {
+		def session = session('s1')
+		memory.cacheSession(session)
+		memory.touchSession('s1', session.lastAccessedAt - 5000, 60)
+		assertSame session, memory.getSessionData('s1')
+	}
+
+	void testTouchesCarryIntoTheChangesWaitingToBeWrittenBack() {
+		def session = session('s1')
+		memory.persistSession(session)
+		memory.touchSession('s1', session.lastAccessedAt + 5000, 1800)
+		assertEquals session.lastAccessedAt + 5000, memory.getSessionData('s1').lastAccessedAt
+
+		def target = []
+		memory.writeBackTarget = [persistSessions: { Collection sessions -> target.addAll(sessions) }] as Persister
+		memory.checkpoint()
+		assertEquals session.lastAccessedAt + 5000, target[0].lastAccessedAt
+	}
+
+	void testTouchingAnUncachedSessionDoesNotCacheIt() {
+		memory.touchSession('missing', System.currentTimeMillis(), 1800)
+		assertNull memory.getSessionData('missing')
+	}
+
+	void testSessionsAreWeighedByTheSizeLastWritten() {
+		def weighed = new InMemoryPersister(maximumBytes: 10000, concurrencyLevel: 1)
+		weighed.afterPropertiesSet()
+		try {
+			assertEquals 0, weighed.expiresSeconds
+			SerializationBuffers.recordSize('large1', 6000)
+			SerializationBuffers.recordSize('large2', 6000)
+			weighed.persistSession(session('large1'))
+			weighed.persistSession(session('large2'))
+
+			assertNull weighed.getSessionData('large1')
+			assertNotNull weighed.getSessionData('large2')
+		} finally {
+			SerializationBuffers.forgetSize('large1')
+			SerializationBuffers.forgetSize('large2')
+			weighed.destroy()
+		}
+	}
+
+}
@@ -0,0 +1,190 @@
+package grails.plugin.databasesession
+
+/**
+ * Checks {@link PersistentAttributeMap} against a {@link HashMap}, with keys whose hashes collide in all their bits
+ * ("Aa" and "BB" hash alike, and so does any string made of them) as well as keys which only share a trie slot.
+ */
+class PersistentAttributeMapTests extends GroovyTestCase {
+
+	private static final List<String> COLLIDING = ['AaAa', 'AaBB', 'BBAa', 'BBBB']
+
+	void testPlusAndGetWithCollidingHashes() {
+		assertEquals 1, COLLIDING*.hashCode().unique().size()
+
+		def map = PersistentAttributeMap.empty()
+		COLLIDING.eachWithIndex { key, i -> map = map.plus(key, i) }
+		map = map.plus('other', 'value')
+
+		assertEquals 5, map.size()
+		COLLIDING.eachWithIndex { key, i ->
+			assertTrue map.containsKey(key)
+			assertEquals i, map.get(key)
+		}
+		assertEquals 'value', map.get('other')
+		assertFalse map.containsKey('AaCC')
+		assertNull map.get('AaCC')
+	}
+
+	void testReplacingACollidingKey() {
+		def map = PersistentAttributeMap.empty().plus('Aa', 1).plus('BB', 2)
+		def replaced = map.plus('BB', 3)
+
+		assertEquals 2, replaced.size()
+		assertEquals 1, replaced.get('Aa')
+		assertEquals 3, replaced.get('BB')
+		assertEquals 2, map.get('BB') // The original is unchanged
+	}
+
+	void testIterationWithCollidingHashes() {
+		def expected = [:]
+		def map = PersistentAttributeMap.empty()
+		(COLLIDING + ['Aa', 'BB', 'x', 'y', 'z']).eachWithIndex { key, i ->
+			expected[key] = i
+			map = map.plus(key, i)
+		}
+
+		def seen = [:]
+		for(entry in map.entrySet()) {
+			assertFalse "${entry.key} seen twice", seen.containsKey(entry.key)
+			seen[entry.key] = entry.value
+		}
+		assertEquals expected, seen
+		assertEquals expected.size(), map.size()
+		assertEquals expected, map
+		assertEquals map, expected
+		assertEquals expected.hashCode(), map.hashCode()
+	}
+
+	void testMinusWithCollidingHashes() {
+		def map = PersistentAttributeMap.empty()
+		COLLIDING.each { map = map.plus(it, it) }
+
+		def removed = map.minus('AaBB')
+		assertEquals 3, removed.size()
+		assertFalse removed.containsKey('AaBB')
+		['AaAa', 'BBAa', 'BBBB'].each { assertEquals it, removed.get(it) }
+		assertEquals 4, map.size() // The original is unchanged
+		assertEquals 'AaBB', map.get('AaBB')
+
+		assertSame removed, removed.minus('AaCC') // Same hash, other key
+		assertSame removed, removed.minus('AaBB')
+	}
+
+	void testRemovingOneOfTwoCollidingKeysCollapses() {
+		def map = PersistentAttributeMap.empty().plus('Aa', 1).plus('BB', 2)
+		assertNull 'colliding keys sit in a child node', map.@root.@array[0]
+
+		def collapsed = map.minus('Aa')
+		assertEquals 1, collapsed.size()
+		assertEquals 2, collapsed.get('BB')
+		assertEquals 'the remaining entry is pulled up into the root', 'BB', collapsed.@root.@array[0]
+		assertEquals 2, collapsed.@root.@array.length
+
+		def grown = collapsed.plus('Aa', 3)
+		assertEquals 2, grown.size()
+		assertEquals 3, grown.get('Aa')
+		assertEquals 2, grown.get('BB')
+	}
+
+	void testRemovingFromASharedSlotCollapses() {
+		// Two keys whose hashes differ, but not in the bits the root uses
+		def byRootSlot = (0..<1000).collect { "key${it}".toString() }.groupBy { rootSlot(it) }
+		def (first, second) = byRootSlot.values().find { it.size() > 1 }
+
+		def map = PersistentAttributeMap.empty().plus(first, 1).plus(second, 2)
+		assertNull map.@root.@array[0]
+
+		def collapsed = map.minus(second)
+		assertEquals([(first): 1], collapsed)
+		assertEquals first, collapsed.@root.@array[0]
+	}
+
+	void testRemovingTheLastKeyGivesTheEmptyMap() {
+		def map = PersistentAttributeMap.empty().plus('Aa', 1).plus('BB', 2)
+		assertSame PersistentAttributeMap.empty(), map.minus('Aa').minus('BB')
+		assertSame PersistentAttributeMap.empty(), map.minus('BB').minus('Aa')
+		assertTrue PersistentAttributeMap.empty().entrySet().isEmpty()
+	}
+
+	void testUnchangedMapsAreShared() {
+		def value = 'value'
+		def map = PersistentAttributeMap.empty().plus('Aa', value).plus('BB', value)
+		assertSame map, map.plus('Aa', value)
+		assertSame map, map.plus('BB', value)
+		assertSame map, map.minus('missing')
+	}
+
+	void testAgreesWithHashMap() {
+		def random = new Random(42)
+		def keys = (0..<200).collect { "k${it}".toString() } + COLLIDING + ['Aa', 'BB']
+		def expected = [:]
+		def map = PersistentAttributeMap.empty()
+		5000.times {
+			def key = keys[random.nextInt(keys.size())]
+			if(random.nextInt(3) == 0) {
+				expected.remove(key)
+				map = map.minus(key)
+			} else {
+				def value = random.nextInt(10)
+				expected[key] = value
+				map = map.plus(key, value)
+			}
+			assertEquals expected.size(), map.size()
+		}
+		assertEquals expected, map
+		assertEquals expected, PersistentAttributeMap.copyOf(expected)
+		keys.each { assertEquals expected[it], map.get(it) }
+		assertEquals expected.size(), map.entrySet().iterator().collect { it.key }.unique().size()
+	}
+
+	void testRejectsNulls() {
+		shouldFail(IllegalArgumentException) { PersistentAttributeMap.empty().plus(null, 'value') }
+		shouldFail(IllegalArgumentException) { PersistentAttributeMap.empty().plus('key', null) }
+	}
+
+	void testIteratorIsReadOnly() {
+		def iterator = PersistentAttributeMap.empty().plus('key', 'value').entrySet().iterator()
+		iterator.next()
+		shouldFail(UnsupportedOperationException) { iterator.remove() }
+		shouldFail(NoSuchElementException) { iterator.next() }
+	}
+
+	private Object roundTrip(Object value) {
+		def bytes = new ByteArrayOutputStream()
+		bytes.withObjectOutputStream { it.writeObject(value) }
+		new ByteArrayInputStream(bytes.toByteArray()).withObjectInputStream(getClass().classLoader) { it.readObject() }
+	}
+
+	void testSerializesItsEntries() {
+		def map = PersistentAttributeMap.empty()
+		(COLLIDING + ['Aa', 'BB', 'x']).eachWithIndex { key, i -> map = map.plus(key, i) }
+
+		def copy = roundTrip(map)
+
+		assertEquals PersistentAttributeMap, copy.getClass()
+		assertEquals map, copy
+		assertEquals map.size(), copy.size()
+		assertSame PersistentAttributeMap.empty(), roundTrip(PersistentAttributeMap.empty())
+	}
+
+	void testSerializationKeepsSharedValuesShared() {
+		def shared = ['one', 'two'] as ArrayList
+		def map = PersistentAttributeMap.empty().plus('first', shared).plus('second', shared)
+
+		def copy = roundTrip(map)
+
+		assertEquals shared, copy.first
+		assertSame copy.first, copy.second
+	}
+
+	void testReadsMapsStoredAsHashMaps() {
+		def stored = roundTrip(new HashMap([a: 1, b: 2]))
+		assertEquals([a: 1, b: 2], PersistentAttributeMap.copyOf(stored))
+	}
+
+	private static int rootSlot(String key) {
+		int h = key.hashCode()
+		(h ^ (h >>> 16)) & 31
+	}
+
+}
@@ -0,0 +1,71 @@
+package grails.plugin.databasesession
+
+import java.sql.ResultSet
+
+/**
+ * Checks that each {@link SessionKeyCodec} tells the ids it can store from those it cannot, and that the ids it stores
+ * read back as they were.
+ */
+class SessionKeyCodecTests extends GroovyTestCase {
+
+	private static final String TOMCAT_ID = '0123456789ABCDEF0123456789ABCDEF'
+	private static final String UUID_ID = '0f8fad5b-d9cb-469f-a165-70867728950e'
+
+	private static ResultSet row(Object key) {
+		[getBytes: { int idx -> key }, getString: { int idx -> key }] as ResultSet
+	}
+
+	private static String roundTrip(SessionKeyCodec codec, String sessionId) {
+		codec.decode(row(codec.encode(sessionId)), 1)
+	}
+
+	void testStringKeysFitAnyId() {
+		def codec = SessionKeyCodec.forFormat(null, 16, true)
+		assertSame SessionKeyCodec.STRING, codec
+		assertFalse codec.compact
+		assertTrue codec.canEncode(TOMCAT_ID + '.node1')
+		assertFalse codec.canEncode(null)
+		assertEquals TOMCAT_ID + '.node1', roundTrip(codec, TOMCAT_ID + '.node1')
+	}
+
+	void testUuidKeys() {
+		def codec = SessionKeyCodec.forFormat('uuid', 16, true)
+		assertEquals 'BINARY(16)', codec.columnType()
+		assertTrue codec.canEncode(UUID_ID)
+		assertFalse codec.canEncode(UUID_ID.toUpperCase()) // Would not read back the same
+		assertFalse codec.canEncode(UUID_ID + '.node1')
+		assertFalse codec.canEncode(TOMCAT_ID)
+		assertEquals 16, codec.encode(UUID_ID).length
+		assertEquals UUID_ID, roundTrip(codec, UUID_ID)
+	}
+
+	void testHexKeys() {
+		def codec = SessionKeyCodec.forFormat('hex', 16, true)
+		assertEquals 'BINARY(16)', codec.columnType()
+		assertTrue codec.canEncode(TOMCAT_ID)
+		assertFalse codec.canEncode(TOMCAT_ID.toLowerCase())
+		assertFalse codec.canEncode(TOMCAT_ID + '.node1')
+		assertFalse codec.canEncode(TOMCAT_ID.substring(2))
+		assertEquals TOMCAT_ID, roundTrip(codec, TOMCAT_ID)
+
+		def lower = SessionKeyCodec.hex(4, false)
+		assertTrue lower.canEncode('00ff10ab')
+		assertFalse lower.canEncode('00FF10AB')
+		assertEquals '00ff10ab', roundTrip(lower, '00ff10ab')
+	}
+
+	void testIdsWhichDoNotFitAreRejected() {
+		def codec = SessionKeyCodec.forFormat('hex', 16, true)
+		shouldFail(IllegalArgumentException) { codec.encode(TOMCAT_ID + '.node1') }
+		shouldFail(IllegalArgumentException) { codec.checkEncodable('not hex') }
+		codec.checkEncodable(TOMCAT_ID)
+	}
+
+	void testBadFormats() {
+		shouldFail(IllegalArgumentException) { SessionKeyCodec.forFormat('base64', 16, true) }
+		shouldFail(IllegalArgumentException) { SessionKeyCodec.hex(0, true) }
+		shouldFail(IllegalArgumentException) { SessionKeyCodec.fromHex('abc') }
+		shouldFail(IllegalArgumentException) { SessionKeyCodec.fromHex('zz') }
+	}
+
+}
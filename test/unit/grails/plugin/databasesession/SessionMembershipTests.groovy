@@ -0,0 +1,107 @@
+package grails.plugin.databasesession
+
+/**
+ * Checks that {@link SessionMembership} remembers what it saw of a session, and that its Bloom filter of written ids
+ * keeps the last two generations and drops the ones before, also when several threads write at once.
+ */
+class SessionMembershipTests extends GroovyTestCase {
+
+	private static final int PER_GENERATION = 50
+
+	private SessionMembership membership
+
+	protected void setUp() {
+		super.setUp()
+		membership = new SessionMembership(writtenPerGeneration: PER_GENERATION, falsePositiveRate: 0.0001)
+		membership.afterPropertiesSet()
+	}
+
+	private static List<String> ids(String prefix) {
+		(0..<PER_GENERATION).collect { "${prefix}${it}".toString() }
+	}
+
+	void testKnowsNothingBeforeItIsStarted() {
+		def unstarted = new SessionMembership()
+		unstarted.markWritten('s1')
+		unstarted.markAbsent('s2')
+		assertNull unstarted.isPresent('s1')
+		assertNull unstarted.isPresent('s2')
+		assertFalse unstarted.mightHaveWritten('s1')
+	}
+
+	void testRemembersPresenceAndAbsence() {
+		assertNull membership.isPresent('s1')
+
+		membership.markPresent('s1')
+		assertEquals Boolean.TRUE, membership.isPresent('s1')
+
+		membership.markAbsent(['s1', 's2'])
+		assertEquals Boolean.FALSE, membership.isPresent('s1')
+		assertEquals Boolean.FALSE, membership.isPresent('s2')
+
+		membership.forget('s1')
+		assertNull membership.isPresent('s1')
+		assertEquals Boolean.FALSE, membership.isPresent('s2')
+	}
+
+	void testWrittenIdsArePresent() {
+		membership.markWritten('s1')
+		assertEquals Boolean.TRUE, membership.isPresent('s1')
+		assertTrue membership.mightHaveWritten('s1')
+		assertFalse membership.mightHaveWritten('s2')
+	}
+
+	void testRotationKeepsThePreviousGeneration() {
+		def first = ids('first')
+		first.each { membership.markWritten(it) }
+		first.each { assertTrue it, membership.mightHaveWritten(it) }
+
+		// The first of these starts a new generation, and the first one becomes the previous
+		def second = ids('second')
+		second.each { membership.markWritten(it) }
+		first.each { assertTrue it, membership.mightHaveWritten(it) }
+		second.each { assertTrue it, membership.mightHaveWritten(it) }
+	}
+
+	void testRotationForgetsOlderGenerations() {
+		def first = ids('first')
+		def second = ids('second')
+		def third = ids('third')
+		(first + second + third).each { membership.markWritten(it) }
+
+		second.each { assertTrue it, membership.mightHaveWritten(it) }
+		third.each { assertTrue it, membership.mightHaveWritten(it) }
+		// A false positive is possible, but with this rate, hardly more than one
+		assertTrue first.count { membership.mightHaveWritten(it) } <= 1
+	}
+
+	void testConcurrentWritesRotateOnce() {
+		def threads = 5
+		def start = new java.util.concurrent.CountDownLatch(1)
+		def workers = (0..<threads).collect { n ->
+			Thread.start {
+				start.await()
+				(0..<PER_GENERATION.intdiv(threads)).each { membership.markWritten("t${n}-${it}".toString()) }
+			}
+		}
+		start.countDown()
+		workers*.join()
+
+		// The writes fill the first generation without rotating it
+		def before = membership.@written
+		assertNull before.previous
+		assertEquals PER_GENERATION, before.count.get()
+
+		membership.markWritten('next')
+		assertSame before.current, membership.@written.previous
+		assertTrue membership.mightHaveWritten('next')
+	}
+
+	void testRestartingClearsTheFilter() {
+		membership.markWritten('s1')
+		membership.afterPropertiesSet()
+		assertFalse membership.mightHaveWritten('s1')
+		assertNull membership.isPresent('s1')
+	}
+
+}
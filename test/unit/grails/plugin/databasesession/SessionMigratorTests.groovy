@@ -0,0 +1,198 @@
+package grails.plugin.databasesession
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Checks {@link SessionMigrator} against a stub source table and a recording target: that every range is copied, that
+ * sessions written or deleted while their range is copied are copied again or removed, that a range whose sessions keep
+ * being written is left to the next run without a stale copy in the target, and that a run carries on from the
+ * checkpoint of the one before.
+ */
+class SessionMigratorTests extends GroovyTestCase {
+
+	private TreeMap<String,SessionData> source
+	private Map<String,SessionData> target
+	private List<String> targetWrites
+	private List<String> targetDeletes
+	private Closure afterSourceRead
+	private Closure beforeTargetWrite
+	private File checkpointFile
+	private SessionMigrator migrator
+
+	protected void setUp() {
+		super.setUp()
+		source = new TreeMap<String,SessionData>()
+		(1..7).each { store("s${it}".toString(), 1L) }
+		target = new ConcurrentHashMap<String,SessionData>()
+		targetWrites = [].asSynchronized()
+		targetDeletes = [].asSynchronized()
+		afterSourceRead = null
+		beforeTargetWrite = null
+		checkpointFile = File.createTempFile('migration', '.properties')
+		checkpointFile.delete()
+
+		def test = this
+		def jdbc = new JdbcPersister() {
+			List<String> getSessionIdBoundaries(int every) {
+				def ids = test.source.keySet() as List
+				(every..<ids.size()).step(every).collect { ids[it] }
+			}
+			List<String> getSessionIdsInRange(String fromId, String toId) {
+				test.source.keySet().findAll { (fromId == null || it >= fromId) && (toId == null || it < toId) } as List
+			}
+			Map<String,SessionData> getSessionData(Collection<String> sessionIds) {
+				def found
+				synchronized(test.source) {
+					found = sessionIds.findAll { test.source.containsKey(it) }.collectEntries { [(it): test.source[it]] }
+				}
+				if(test.afterSourceRead) test.afterSourceRead(sessionIds)
+				found
+			}
+		}
+		def copies = [
+			persistSessions: { Collection sessions ->
+				if(test.beforeTargetWrite) test.beforeTargetWrite(sessions)
+				sessions.each {
+					test.targetWrites << it.sessionId
+					test.target[it.sessionId] = it
+				}
+			},
+			invalidateAll: { Collection sessionIds ->
+				test.targetDeletes.addAll(sessionIds)
+				sessionIds.each { test.target.remove(it) }
+			}
+		] as Persister
+		migrator = new SessionMigrator(source: jdbc, target: copies, chunkSize: 3, threads: 2, checkpointFile: checkpointFile.path)
+	}
+
+	protected void tearDown() {
+		checkpointFile.delete()
+		new File(checkpointFile.path + '.tmp').delete()
+		super.tearDown()
+	}
+
+	private void store(String sessionId, long version, String value = 'source') {
+		synchronized(source) {
+			source[sessionId] = new SessionData(sessionId, [value: value], 0L, version * 1000, 1800, version, null)
+		}
+	}
+
+	void testCopiesEveryRange() {
+		assertTrue migrator.migrate()
+
+		assertEquals 3, migrator.totalRanges
+		assertEquals 3, migrator.doneRanges
+		assertEquals 0, migrator.failedRanges
+		assertEquals 7L, migrator.copiedSessions
+		assertEquals source.keySet(), target.keySet()
+		// Written unversioned, since the target's versions need not follow the source's
+		target.values().each { assertEquals 0L, it.version }
+		assertFalse migrator.running
+	}
+
+	void testSessionsWrittenDuringTheCopyAreCopiedAgain() {
+		def reads = [].asSynchronized()
+		afterSourceRead = { ids ->
+			// Written just after the first read of its range, so the first copy is stale
+			if(ids.contains('s2') && !reads.contains('s2')) {
+				reads << 's2'
+				store('s2', 2L, 'newer')
+			}
+		}
+
+		assertTrue migrator.migrate()
+
+		assertEquals 1L, migrator.recopiedSessions
+		assertEquals 'newer', target.s2.attrs.value
+		assertEquals 2, targetWrites.count('s2')
+	}
+
+	void testSessionsDeletedDuringTheCopyAreRemoved() {
+		def deleted = false
+		afterSourceRead = { ids ->
+			if(ids.contains('s5') && !deleted) {
+				deleted = true
+				synchronized(source) { source.remove('s5') }
+			}
+		}
+
+		assertTrue migrator.migrate()
+
+		assertEquals 1L, migrator.removedSessions
+		assertFalse target.containsKey('s5')
+		assertEquals(['s5'], targetDeletes)
+	}
+
+	void testRangesWhichKeepBeingWrittenAreLeftToTheNextRun() {
+		migrator.maxCopyAttempts = 2
+		def version = 1L
+		afterSourceRead = { ids -> if(ids.contains('s4')) store('s4', ++version) }
+
+		assertFalse migrator.migrate()
+
+		assertEquals 1, migrator.failedRanges
+		assertEquals 2, migrator.doneRanges
+		assertFalse 'no copy which may be stale is left', target.containsKey('s4')
+		assertTrue target.containsKey('s1')
+
+		// Once the writes stop, the next run only copies that range
+		afterSourceRead = null
+		targetWrites.clear()
+		assertTrue migrator.migrate()
+		assertEquals 0, migrator.failedRanges
+		assertEquals 3, migrator.doneRanges
+		assertEquals(['s4', 's5', 's6'] as Set, targetWrites as Set)
+		assertEquals source.keySet(), target.keySet()
+	}
+
+	void testCarriesOnFromTheCheckpoint() {
+		beforeTargetWrite = { sessions ->
+			if(sessions*.sessionId.contains('s7')) throw new IllegalStateException('The target is down')
+		}
+		assertFalse migrator.migrate()
+		assertEquals 1, migrator.failedRanges
+		assertTrue checkpointFile.exists()
+
+		// A new migrator, as after a restart, with other settings which do not change the ranges
+		beforeTargetWrite = null
+		targetWrites.clear()
+		def restarted = new SessionMigrator(
+			source: migrator.source, target: migrator.target, checkpointFile: checkpointFile.path, chunkSize: 100
+		)
+		assertTrue restarted.migrate()
+
+		assertEquals 3, restarted.totalRanges
+		assertEquals 3, restarted.doneRanges
+		assertEquals(['s7'], targetWrites)
+		assertEquals source.keySet(), target.keySet()
+	}
+
+	void testWithoutACheckpointAStoppedMigrationStartsOver() {
+		migrator.checkpointFile = null
+		assertTrue migrator.migrate()
+		targetWrites.clear()
+		assertTrue migrator.migrate()
+		assertEquals 7, targetWrites.size()
+	}
+
+	void testAnUnreadableCheckpointIsAnError() {
+		checkpointFile.text = 'not=a checkpoint\n'
+		shouldFail(IllegalStateException) { migrator.migrate() }
+		assertFalse migrator.running
+	}
+
+	void testTheRateIsLimited() {
+		migrator.maxSessionsPerSecond = 20
+		migrator.threads = 1
+		def start = System.currentTimeMillis()
+		assertTrue migrator.migrate()
+		// Ranges of 3, 3 and 1 sessions: the last may only start after 6 sessions' worth of time
+		assertTrue System.currentTimeMillis() - start >= 250
+	}
+
+	void testNeedsBothStores() {
+		shouldFail(IllegalStateException) { new SessionMigrator(target: migrator.target).migrate() }
+		shouldFail(IllegalStateException) { new SessionMigrator(source: migrator.source).migrate() }
+	}
+
+}
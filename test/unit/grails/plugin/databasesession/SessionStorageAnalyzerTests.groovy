@@ -0,0 +1,142 @@
+package grails.plugin.databasesession
+
+/**
+ * Checks the report of {@link SessionStorageAnalyzer} over a stub table: the session sizes and their percentiles, the
+ * sizes by attribute and by value class, the largest sessions, and the sessions which cannot be decoded. Also checks
+ * the attribute churn recorded from sampled requests.
+ */
+class SessionStorageAnalyzerTests extends GroovyTestCase {
+
+	private Map<String,Map> attrsById
+	private Map<String,Integer> sizesById
+	private SessionStorageAnalyzer analyzer
+
+	protected void setUp() {
+		super.setUp()
+		attrsById = [:]
+		sizesById = [:]
+		def test = this
+		def jdbc = new JdbcPersister() {
+			void scanSessions(JdbcPersister.SessionRowHandler handler) {
+				test.sizesById.each { sessionId, size -> handler.handle(sessionId, stored(sessionId, size)) }
+			}
+			Map<String,Serializable> decodeAttributes(byte[] sessionData) {
+				def sessionId = new String(sessionData, 'UTF-8').trim()
+				if(!test.attrsById.containsKey(sessionId)) throw new IllegalStateException('Not a session: ' + sessionId)
+				test.attrsById[sessionId]
+			}
+		}
+		analyzer = new SessionStorageAnalyzer(jdbcPersister: jdbc, threads: 2)
+	}
+
+	/**
+	* Stands in for the stored bytes of a session: its id, padded to the size.
+	*/
+	private static byte[] stored(String sessionId, int size) {
+		sessionId.padRight(size).getBytes('UTF-8')
+	}
+
+	private void store(String sessionId, int size, Map attrs) {
+		sizesById[sessionId] = size
+		attrsById[sessionId] = attrs
+	}
+
+	private static long serializedSize(Serializable value) {
+		def bytes = new ByteArrayOutputStream()
+		bytes.withObjectOutputStream { it.writeObject(value) }
+		bytes.size()
+	}
+
+	void testMeasuresTheSessions() {
+		store('s1', 100, [user: 'alice', cart: [1, 2, 3] as ArrayList])
+		store('s2', 300, [user: 'bob'])
+		store('s3', 1000, [user: 'carol', cart: [] as ArrayList])
+
+		def report = analyzer.analyze()
+
+		assertEquals 3, report.sessions.count
+		assertEquals 1400, report.sessions.totalBytes
+		assertEquals 1000, report.sessions.maxBytes
+		assertEquals 466, report.sessions.meanBytes
+		assertEquals 0, report.failedCount
+
+		assertEquals 3, report.byAttribute.user.count
+		assertEquals 2, report.byAttribute.cart.count
+		assertEquals(
+			['alice', 'bob', 'carol'].sum { serializedSize(it) },
+			report.byAttribute.user.totalBytes
+		)
+		assertEquals 3, report.byValueClass['java.lang.String'].count
+		assertEquals 2, report.byValueClass['java.util.ArrayList'].count
+		assertEquals report.byAttribute.keySet(), report.attributesByTotalBytes as Set
+		assertEquals 'cart', report.attributesByTotalBytes[0]
+	}
+
+	void testPercentilesAreBoundedWithinAFactorOfTwo() {
+		(1..100).each { store("s${it}".toString(), it * 10, [:]) }
+
+		def sessions = analyzer.analyze().sessions
+
+		def p50 = sessions.getPercentileBytes(0.5)
+		assertTrue "p50 was ${p50}", p50 >= 500 && p50 < 1000
+		assertEquals 1000, sessions.getPercentileBytes(1.0)
+		assertEquals 0, new SessionStorageAnalyzer.SizeStats().getPercentileBytes(0.5)
+	}
+
+	void testListsTheLargestSessionsUpToTheLimit() {
+		analyzer.largeSessionBytes = 150
+		analyzer.maxLargeSessions = 2
+		store('small', 100, [:])
+		store('large', 200, [:])
+		store('larger', 400, [:])
+		store('largest', 800, [:])
+
+		def large = analyzer.analyze().largeSessions
+
+		assertEquals(['largest', 'larger'], large*.sessionId)
+		assertEquals([800L, 400L], large*.bytes)
+	}
+
+	void testCountsSessionsWhichCannotBeDecoded() {
+		store('s1', 100, [user: 'alice'])
+		sizesById['corrupt'] = 50
+
+		def report = analyzer.analyze()
+
+		assertEquals 2, report.sessions.count
+		assertEquals 1, report.failedCount
+		assertEquals 1, report.byAttribute.user.count
+		assertTrue report.toString().contains('(1 failed)')
+	}
+
+	void testRecordsWhichAttributesChange() {
+		analyzer.recordChanges([user: 1, cart: 2], [user: 1, cart: 3])
+		analyzer.recordChanges([user: 1, cart: 3], [user: 1, cart: 3, flash: 4])
+		analyzer.recordChanges([user: 1, cart: 3, flash: 4], [user: 1, cart: 3])
+
+		def churn = analyzer.churn
+		assertEquals 3, analyzer.sampledRequests
+		assertEquals 3, churn.user.sampled
+		assertEquals 0, churn.user.changed
+		assertEquals 1, churn.cart.changed
+		assertTrue Math.abs(churn.cart.changeRate - 1.0d / 3) < 0.0001
+		assertEquals 2, churn.flash.sampled
+		assertEquals 2, churn.flash.changed
+
+		analyzer.resetChurn()
+		assertEquals 0, analyzer.sampledRequests
+		assertTrue analyzer.churn.isEmpty()
+	}
+
+	void testSamplingFollowsTheRate() {
+		assertFalse analyzer.shouldSample()
+		analyzer.sampleRate = 1.0
+		assertTrue analyzer.shouldSample()
+		shouldFail(IllegalArgumentException) { analyzer.sampleRate = 1.5 }
+	}
+
+	void testNeedsItsPersister() {
+		shouldFail(IllegalStateException) { new SessionStorageAnalyzer().analyze() }
+	}
+
+}
@@ -0,0 +1,120 @@
+package grails.plugin.databasesession
+
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+import javax.servlet.http.HttpServletResponse
+
+/**
+ * Checks the {@code Server-Timing} header value of {@link SessionTimings}, that the persisters' figures are only
+ * recorded while timings are bound to the thread (or propagated to another one), and that a header set before the
+ * commit, as {@link SessionProxyFilter} does, includes the phases recorded until then.
+ */
+class SessionTimingsTests extends GroovyTestCase {
+
+	protected void tearDown() {
+		SessionTimings.unbind()
+		super.tearDown()
+	}
+
+	private static long millis(double value) {
+		(long)(value * 1000000)
+	}
+
+	void testTheHeaderListsThePhasesWhichTookAnyTime() {
+		def timings = new SessionTimings()
+		assertEquals '', timings.toServerTiming()
+
+		timings.add(SessionTimings.Phase.LOAD, millis(1.5))
+		timings.add(SessionTimings.Phase.APP, millis(20))
+		timings.add(SessionTimings.Phase.APP, millis(5))
+		timings.add(SessionTimings.Phase.PERSIST, 1234)
+
+		assertEquals 'session-load;dur=1.500, app;dur=25.000, session-persist;dur=0.001', timings.toServerTiming()
+		assertEquals millis(25), timings.getNanos(SessionTimings.Phase.APP)
+		assertEquals 0, timings.getNanos(SessionTimings.Phase.HASH)
+	}
+
+	void testTheHeaderIgnoresTheDefaultLocale() {
+		def locale = Locale.default
+		Locale.default = Locale.GERMANY
+		try {
+			def timings = new SessionTimings()
+			timings.add(SessionTimings.Phase.HASH, millis(0.25))
+			assertEquals 'session-hash;dur=0.250', timings.toServerTiming()
+		} finally {
+			Locale.default = locale
+		}
+	}
+
+	void testFiguresAreOnlyRecordedWhileBound() {
+		def timings = new SessionTimings()
+		SessionTimings.recordReadBytes(100)
+		assertEquals(-1L, timings.readBytes)
+
+		timings.bind()
+		assertSame timings, SessionTimings.current()
+		SessionTimings.recordReadTier(new InMemoryPersister())
+		SessionTimings.recordReadBytes(100)
+		SessionTimings.recordWrittenBytes(30)
+		SessionTimings.recordWrittenBytes(12)
+		SessionTimings.unbind()
+		SessionTimings.recordWrittenBytes(1000)
+
+		assertNull SessionTimings.current()
+		assertEquals 'InMemoryPersister', timings.readTier
+		assertEquals 100L, timings.readBytes
+		assertEquals 42L, timings.writtenBytes
+		assertTrue timings.toString().contains('tier=InMemoryPersister read=100 written=42')
+	}
+
+	void testTimingsArePropagatedToOtherThreads() {
+		def timings = new SessionTimings()
+		def executor = Executors.newSingleThreadExecutor()
+		try {
+			assertNull executor.submit(SessionTimings.propagate({ SessionTimings.current() } as Callable)).get(5, TimeUnit.SECONDS)
+
+			timings.bind()
+			def task = SessionTimings.propagate({
+				SessionTimings.recordReadBytes(7)
+				SessionTimings.current()
+			} as Callable)
+			assertSame timings, executor.submit(task).get(5, TimeUnit.SECONDS)
+			assertEquals 7L, timings.readBytes
+
+			// Unbound again once the task is done
+			assertNull executor.submit({ SessionTimings.current() } as Callable).get(5, TimeUnit.SECONDS)
+		} finally {
+			executor.shutdownNow()
+		}
+	}
+
+	void testAHeaderSetBeforeTheCommitIncludesThePhasesSoFar() {
+		def headers = [:]
+		def committed = false
+		def response = [
+			setHeader: { String name, String value -> headers[name] = value },
+			isCommitted: { -> committed },
+			flushBuffer: { -> committed = true },
+			getBufferSize: { -> 8192 }
+		] as HttpServletResponse
+		def timings = new SessionTimings()
+		def wrapped = new CommitAwareResponse(response, { headers['Server-Timing'] = timings.toServerTiming() } as Runnable)
+
+		timings.add(SessionTimings.Phase.LOAD, millis(2))
+		timings.add(SessionTimings.Phase.APP, millis(3))
+		wrapped.flushBuffer()
+		timings.add(SessionTimings.Phase.PERSIST, millis(4)) // Too late for the header
+
+		assertTrue committed
+		assertEquals 'session-load;dur=2.000, app;dur=3.000', headers['Server-Timing']
+	}
+
+	void testTheElapsedTimeRunsFromCreation() {
+		def timings = new SessionTimings()
+		Thread.sleep(5)
+		assertTrue timings.elapsedNanos >= TimeUnit.MILLISECONDS.toNanos(5)
+	}
+
+}
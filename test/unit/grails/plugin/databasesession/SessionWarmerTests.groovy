@@ -0,0 +1,134 @@
+package grails.plugin.databasesession
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Checks that {@link SessionWarmer} loads the recent sessions into the local tier within its session and byte budgets
+ * and its timeout, that it leaves the sessions requests have brought in meanwhile alone, and that the node is ready
+ * once it is over, whether it succeeded or not.
+ */
+class SessionWarmerTests extends GroovyTestCase {
+
+	private Map<String,SessionData> stored
+	private List<List> recentQueries
+	private long readDelayMillis
+	private InMemoryPersister memory
+	private SessionWarmer warmer
+
+	protected void setUp() {
+		super.setUp()
+		stored = new LinkedHashMap()
+		(1..5).each { stored["s${it}".toString()] = session("s${it}".toString(), 'stored') }
+		recentQueries = []
+		readDelayMillis = 0
+		def test = this
+		def jdbc = new JdbcPersister() {
+			List<String> getRecentSessionIds(int max, long since) {
+				test.recentQueries << [max, since]
+				test.stored.keySet().take(max) as List
+			}
+			Map<String,SessionData> getSessionData(Collection<String> sessionIds) {
+				try {
+					if(test.readDelayMillis > 0) Thread.sleep(test.readDelayMillis)
+				} catch(InterruptedException ie) {
+					Thread.currentThread().interrupt() // Given up on
+				}
+				test.stored.subMap(sessionIds)
+			}
+		}
+		memory = new InMemoryPersister()
+		memory.afterPropertiesSet()
+		warmer = new SessionWarmer(jdbcPersister: jdbc, localPersister: memory, threads: 1, chunkSize: 1)
+	}
+
+	protected void tearDown() {
+		stored.keySet().each { SerializationBuffers.forgetSize(it) }
+		memory.destroy()
+		super.tearDown()
+	}
+
+	private static SessionData session(String sessionId, String value) {
+		def now = System.currentTimeMillis()
+		new SessionData(sessionId, [value: value], now, now, 1800)
+	}
+
+	private List<String> warmed() {
+		stored.keySet().findAll { memory.getSessionData(it) != null } as List
+	}
+
+	void testWarmsTheRecentSessionsUpToTheSessionBudget() {
+		warmer.maxSessions = 3
+		def before = System.currentTimeMillis()
+		warmer.warmUp()
+		def after = System.currentTimeMillis()
+
+		assertTrue warmer.ready
+		assertEquals(['s1', 's2', 's3'], warmed())
+		assertEquals 3, warmer.warmedSessions
+		assertEquals 0, memory.unflushedCount
+
+		def (max, since) = recentQueries[0]
+		assertEquals 3, max
+		def recent = TimeUnit.SECONDS.toMillis(warmer.recentSeconds)
+		assertTrue since >= before - recent && since <= after - recent
+	}
+
+	void testStopsAtTheByteBudget() {
+		stored.keySet().each { SerializationBuffers.recordSize(it, 1000) }
+		warmer.maxBytes = 2500
+		warmer.warmUp()
+
+		assertEquals(['s1', 's2'], warmed())
+		assertEquals 2, warmer.warmedSessions
+		assertEquals 2000L, warmer.warmedBytes
+	}
+
+	void testNoByteBudgetWarmsEverything() {
+		stored.keySet().each { SerializationBuffers.recordSize(it, 1000) }
+		warmer.maxBytes = 0
+		warmer.warmUp()
+
+		assertEquals stored.keySet() as List, warmed()
+		assertEquals 5, warmer.warmedSessions
+	}
+
+	void testSessionsAlreadyInTheLocalTierAreKept() {
+		memory.cacheSession(session('s2', 'requested'))
+		warmer.warmUp()
+
+		assertEquals 'requested', memory.getSessionData('s2').attrs.value
+		assertEquals 'stored', memory.getSessionData('s1').attrs.value
+		assertEquals 4, warmer.warmedSessions
+	}
+
+	void testGivesUpAtTheTimeout() {
+		readDelayMillis = 200
+		warmer.timeoutMillis = 100
+		def start = System.currentTimeMillis()
+		warmer.warmUp()
+
+		assertTrue warmer.ready
+		assertTrue System.currentTimeMillis() - start < 1000
+		assertTrue warmer.warmedSessions < stored.size()
+	}
+
+	void testIsReadyAfterAFailure() {
+		warmer.jdbcPersister = [getRecentSessionIds: { int max, long since -> throw new IllegalStateException('The database is down') }] as JdbcPersister
+		warmer.warmUp()
+		assertTrue warmer.ready
+		assertEquals 0, warmer.warmedSessions
+	}
+
+	void testIsReadyWithoutItsPersisters() {
+		def unconfigured = new SessionWarmer()
+		unconfigured.warmUp()
+		assertTrue unconfigured.ready
+	}
+
+	void testSettingsAreChecked() {
+		shouldFail(IllegalArgumentException) { warmer.recentSeconds = 0 }
+		shouldFail(IllegalArgumentException) { warmer.threads = 0 }
+		shouldFail(IllegalArgumentException) { warmer.chunkSize = 0 }
+	}
+
+}
@@ -0,0 +1,100 @@
+package grails.plugin.databasesession
+
+/**
+ * Checks that {@link TimingWheel} hands back each key within a tick of its deadline, and only for its latest deadline,
+ * with a wheel of eight 10ms slots so that some deadlines lie more than a turn ahead.
+ */
+class TimingWheelTests extends GroovyTestCase {
+
+	private TimingWheel wheel
+	private long start
+
+	protected void setUp() {
+		super.setUp()
+		wheel = new TimingWheel(10, 8)
+		start = System.currentTimeMillis()
+	}
+
+	void testExpiresKeysOnceTheirDeadlinePasses() {
+		wheel.schedule('a', start + 25)
+		wheel.schedule('b', start + 45)
+		assertEquals 2, wheel.size()
+
+		assertEquals([], wheel.advance(start + 20) as List)
+		assertEquals(['a'], wheel.advance(start + 35) as List)
+		assertEquals(['b'], wheel.advance(start + 55) as List)
+		assertEquals([], wheel.advance(start + 100) as List)
+		assertEquals 0, wheel.size()
+	}
+
+	void testIsExpiredBeforeTheWheelAdvances() {
+		wheel.schedule('a', start + 25)
+		assertFalse wheel.isExpired('a', start + 20)
+		assertTrue wheel.isExpired('a', start + 25)
+		assertFalse wheel.isExpired('unscheduled', start + 1000)
+	}
+
+	void testReschedulingSupersedesTheEarlierDeadline() {
+		wheel.schedule('a', start + 25)
+		wheel.schedule('a', start + 55)
+		assertEquals 1, wheel.size()
+
+		assertEquals([], wheel.advance(start + 35) as List)
+		assertFalse wheel.isExpired('a', start + 35)
+		assertEquals(['a'], wheel.advance(start + 65) as List)
+		assertEquals([], wheel.advance(start + 200) as List)
+	}
+
+	void testReschedulingEarlier() {
+		wheel.schedule('a', start + 55)
+		wheel.schedule('a', start + 25)
+		assertEquals(['a'], wheel.advance(start + 35) as List)
+		assertEquals([], wheel.advance(start + 65) as List)
+	}
+
+	void testCancelledKeysDoNotExpire() {
+		wheel.schedule('a', start + 25)
+		wheel.cancel('a')
+		assertEquals 0, wheel.size()
+		assertFalse wheel.isExpired('a', start + 30)
+		assertEquals([], wheel.advance(start + 30) as List)
+	}
+
+	void testDeadlinesMoreThanATurnAhead() {
+		wheel.schedule('far', start + 250)
+		wheel.schedule('near', start + 15)
+
+		assertEquals(['near'], wheel.advance(start + 100) as List)
+		assertEquals 1, wheel.size()
+		assertEquals([], wheel.advance(start + 170) as List)
+		assertEquals(['far'], wheel.advance(start + 260) as List)
+		assertEquals 0, wheel.size()
+	}
+
+	void testPastDeadlinesExpireOnTheNextTick() {
+		wheel.schedule('late', start - 1000)
+		assertTrue wheel.isExpired('late', start)
+		assertEquals(['late'], wheel.advance(start + 20) as List)
+	}
+
+	void testManyKeys() {
+		def deadlines = (0..<500).collectEntries { ["key${it}".toString(), start + 1 + (it * 7) % 400] }
+		deadlines.each { key, deadline -> wheel.schedule(key, deadline) }
+
+		def expired = [] as Set
+		for(long now = start; now <= start + 420; now += 13) {
+			def keys = wheel.advance(now)
+			keys.each { key ->
+				assertTrue "${key} expired early", deadlines[key] <= now
+				assertTrue "${key} expired twice", expired.add(key)
+			}
+			deadlines.each { key, deadline ->
+				if(deadline <= now - 10) assertTrue "${key} expired late", expired.contains(key)
+			}
+		}
+		expired.addAll(wheel.advance(start + 500))
+		assertEquals deadlines.keySet(), expired
+		assertEquals 0, wheel.size()
+	}
+
+}